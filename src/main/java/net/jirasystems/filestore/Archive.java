@@ -0,0 +1,283 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+/**
+ * Streams the content of a {@link FileStore} to and from a zip archive with one entry per ID,
+ * named by the ID rather than by its path on disk.
+ * <p>
+ * The archive itself has to be written and read in order, so that is done on the calling thread,
+ * while the files are read and written on a pool of worker threads. On export, workers read up
+ * to {@value #readAhead} IDs per thread ahead of the entry being written; on import, entries are
+ * handed to workers to be created while the next entry is read. Only IDs of up to
+ * {@value #maxBuffered} bytes are handed over in this way, which bounds the memory used; larger
+ * IDs are streamed straight through on the calling thread.
+ *
+ * @author david
+ *
+ */
+final class Archive {
+
+	/**
+	 * The largest content, in bytes, that is buffered so that it can be handed between threads.
+	 * The value is {@value #maxBuffered}.
+	 */
+	static final int maxBuffered = 1024 * 1024;
+
+	/**
+	 * The number of IDs per worker thread that may be read or written ahead of the calling thread.
+	 * The value is {@value #readAhead}.
+	 */
+	static final int readAhead = 4;
+
+	/**
+	 * No need to instantiate.
+	 */
+	private Archive() {
+		// No need to instantiate.
+	}
+
+	/**
+	 * Writes every ID in the store to the given stream as a zip archive. Entries are written in
+	 * the order of the IDs' paths, so exporting the same content always gives the same archive.
+	 * Each entry is a consistent copy of its ID, but IDs changed during the export may appear as
+	 * they were either before or after the change.
+	 * <p>
+	 * The archive is finished, but the stream is not closed.
+	 *
+	 * @param store
+	 *            The store to export.
+	 * @param output
+	 *            The stream to write the archive to.
+	 * @param threads
+	 *            The number of worker threads.
+	 * @return The number of IDs exported.
+	 * @throws IOException
+	 *             If the store cannot be read or the archive cannot be written.
+	 */
+	static long export(final FileStore store, OutputStream output, int threads) throws IOException {
+
+		// List the IDs, in a repeatable order:
+		final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+		ForkJoinPool walkPool = new ForkJoinPool(threads);
+		try {
+			StoreWalker.walk(store, walkPool, (id, file) -> ids.add(id));
+		} finally {
+			walkPool.shutdown();
+		}
+		ids.sort(Comparator.comparing(store::idToPath));
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ZipOutputStream zip = new ZipOutputStream(output);
+		// The content is copied as-is, so that compression does not hold up the calling thread:
+		zip.setLevel(Deflater.NO_COMPRESSION);
+		try {
+			Deque<Future<Entry>> pending = new ArrayDeque<Future<Entry>>();
+			int next = 0;
+			long count = 0;
+			while (next < ids.size() || !pending.isEmpty()) {
+				while (next < ids.size() && pending.size() < threads * readAhead) {
+					final String id = ids.get(next++);
+					pending.add(pool.submit(() -> Entry.read(store, id)));
+				}
+				Entry entry = get(pending.remove());
+				if (entry == null) {
+					// Deleted since the walk
+					continue;
+				}
+				if (entry.content != null) {
+					ZipEntry zipEntry = new ZipEntry(entry.id);
+					zipEntry.setMethod(ZipEntry.STORED);
+					zipEntry.setSize(entry.content.length);
+					zipEntry.setCompressedSize(entry.content.length);
+					zipEntry.setCrc(entry.crc);
+					zipEntry.setTime(entry.lastModified);
+					zip.putNextEntry(zipEntry);
+					zip.write(entry.content);
+				} else {
+					try (InputStream input = store.read(entry.id)) {
+						if (input == null) {
+							continue;
+						}
+						ZipEntry zipEntry = new ZipEntry(entry.id);
+						zipEntry.setTime(entry.lastModified);
+						zip.putNextEntry(zipEntry);
+						IOUtils.copyLarge(input, zip);
+					}
+				}
+				zip.closeEntry();
+				count++;
+			}
+			zip.finish();
+			zip.flush();
+			return count;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates an ID in the store for each entry in the zip archive read from the given stream.
+	 * Entries are created through {@link FileStore#create(String, InputStream)}, so quotas,
+	 * journaling and mirroring apply as usual. The import stops at the first entry that cannot be
+	 * created, such as one whose ID already exists, although entries already handed to workers
+	 * may still be created.
+	 * <p>
+	 * The stream is not closed.
+	 *
+	 * @param store
+	 *            The store to import into.
+	 * @param input
+	 *            The stream to read the archive from.
+	 * @param threads
+	 *            The number of worker threads.
+	 * @return The number of IDs imported.
+	 * @throws IOException
+	 *             If the archive cannot be read.
+	 * @throws FileStoreException
+	 *             If an entry is not a valid ID, or cannot be created.
+	 */
+	static long importFrom(final FileStore store, InputStream input, int threads) throws IOException,
+			FileStoreException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final Semaphore inFlight = new Semaphore(threads * readAhead);
+		final AtomicReference<FileStoreException> failure = new AtomicReference<FileStoreException>();
+		long count = 0;
+		try {
+			ZipInputStream zip = new ZipInputStream(input);
+			ZipEntry zipEntry;
+			while (failure.get() == null && (zipEntry = zip.getNextEntry()) != null) {
+				if (zipEntry.isDirectory()) {
+					continue;
+				}
+				final String id = zipEntry.getName();
+				if (!store.validId(id)) {
+					throw new FileStoreException("Invalid ID " + id + " in archive");
+				}
+				byte[] start = IOUtils.toByteArray(new BoundedInputStream(zip, maxBuffered + 1));
+				if (start.length <= maxBuffered) {
+					final byte[] content = start;
+					acquire(inFlight);
+					pool.execute(() -> {
+						try {
+							store.create(id, new ByteArrayInputStream(content));
+						} catch (FileStoreException e) {
+							failure.compareAndSet(null, e);
+						} finally {
+							inFlight.release();
+						}
+					});
+				} else {
+					// The archive must stay open for the next entry:
+					store.create(id, new SequenceInputStream(new ByteArrayInputStream(start), CloseShieldInputStream.wrap(zip)));
+				}
+				count++;
+			}
+			// Wait for the workers to finish:
+			acquire(inFlight, threads * readAhead);
+		} finally {
+			pool.shutdown();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return count;
+	}
+
+	// --------------- Internal methods --------------- //
+
+	private static Entry get(Future<Entry> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while exporting");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Unable to read ID for export", e.getCause());
+		}
+	}
+
+	private static void acquire(Semaphore semaphore) throws InterruptedIOException {
+		acquire(semaphore, 1);
+	}
+
+	private static void acquire(Semaphore semaphore, int permits) throws InterruptedIOException {
+		try {
+			semaphore.acquire(permits);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while importing");
+		}
+	}
+
+	/**
+	 * An ID read by a worker for export. The content is null if the ID is too large to buffer,
+	 * in which case it is streamed when its entry is written.
+	 */
+	private static class Entry {
+		final String id;
+		final long lastModified;
+		byte[] content;
+		long crc;
+
+		Entry(String id, long lastModified) {
+			this.id = id;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @return The entry, or null if the ID no longer exists.
+		 */
+		static Entry read(FileStore store, String id) throws IOException {
+			File file = store.idToFile(id);
+			Entry entry = new Entry(id, file.lastModified());
+			if (file.length() > maxBuffered) {
+				return entry;
+			}
+			try (InputStream input = store.read(id)) {
+				if (input == null) {
+					return null;
+				}
+				entry.content = IOUtils.toByteArray(input);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(entry.content);
+			entry.crc = crc.getValue();
+			return entry;
+		}
+	}
+}
@@ -0,0 +1,432 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of reusable I/O buffers, so that copying content in and out of a
+ * {@link FileStore} does not allocate a fresh buffer for every stream. Heap buffers are used for
+ * stream copies and direct buffers for channel I/O.
+ * <p>
+ * Each thread keeps one buffer of each kind to hand, so a thread that repeatedly acquires and
+ * releases a buffer never contends with other threads. Beyond that, released buffers go to a
+ * shared free list of at most {@link #getMaxPooled()} buffers of each kind; any more are left to
+ * the garbage collector. An acquisition that finds no pooled buffer allocates a new one and
+ * counts as a miss.
+ *
+ * @author david
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * The default size of heap buffers, which is {@value #defaultHeapBufferSize} bytes, the same as
+	 * {@link java.io.BufferedInputStream}.
+	 */
+	public static final int defaultHeapBufferSize = 8192;
+
+	/**
+	 * The default size of direct buffers, which is {@value #defaultDirectBufferSize} bytes.
+	 */
+	public static final int defaultDirectBufferSize = 65536;
+
+	/**
+	 * The default number of buffers of each kind held in the shared free list, which is
+	 * {@value #defaultMaxPooled}.
+	 */
+	public static final int defaultMaxPooled = 64;
+
+	private static final BufferPool shared = new BufferPool();
+
+	private final int heapBufferSize;
+	private final int directBufferSize;
+	private final int maxPooled;
+	private final ThreadLocal<Slot> local = ThreadLocal.withInitial(Slot::new);
+	private final Queue<byte[]> heap = new ConcurrentLinkedQueue<byte[]>();
+	private final Queue<ByteBuffer> direct = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger heapCount = new AtomicInteger();
+	private final AtomicInteger directCount = new AtomicInteger();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Creates a pool with the default sizes.
+	 */
+	public BufferPool() {
+		this(defaultHeapBufferSize, defaultDirectBufferSize, defaultMaxPooled);
+	}
+
+	/**
+	 * @param heapBufferSize
+	 *            The size of heap buffers in bytes.
+	 * @param directBufferSize
+	 *            The size of direct buffers in bytes.
+	 * @param maxPooled
+	 *            The maximum number of buffers of each kind in the shared free list.
+	 */
+	public BufferPool(int heapBufferSize, int directBufferSize, int maxPooled) {
+		if (heapBufferSize <= 0 || directBufferSize <= 0 || maxPooled < 0) {
+			throw new IllegalArgumentException("Invalid buffer pool sizes: " + heapBufferSize + ", " + directBufferSize
+					+ ", " + maxPooled);
+		}
+		this.heapBufferSize = heapBufferSize;
+		this.directBufferSize = directBufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * @return The pool used by stores that have not been given one of their own.
+	 */
+	public static BufferPool getShared() {
+		return shared;
+	}
+
+	/**
+	 * @return A heap buffer of {@link #getHeapBufferSize()} bytes. Pass it to
+	 *         {@link #release(byte[])} when finished with.
+	 */
+	public byte[] acquireHeap() {
+		Slot slot = local.get();
+		byte[] buffer = slot.heap;
+		if (buffer != null) {
+			slot.heap = null;
+		} else {
+			buffer = heap.poll();
+			if (buffer != null) {
+				heapCount.decrementAndGet();
+			}
+		}
+		if (buffer != null) {
+			hits.increment();
+			return buffer;
+		}
+		misses.increment();
+		return new byte[heapBufferSize];
+	}
+
+	/**
+	 * Returns a heap buffer to the pool. The caller must not use the buffer afterwards.
+	 *
+	 * @param buffer
+	 *            A buffer obtained from {@link #acquireHeap()}.
+	 */
+	public void release(byte[] buffer) {
+		if (buffer.length != heapBufferSize) {
+			return;
+		}
+		Slot slot = local.get();
+		if (slot.heap == null) {
+			slot.heap = buffer;
+		} else if (heapCount.incrementAndGet() <= maxPooled) {
+			heap.offer(buffer);
+		} else {
+			heapCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return A cleared direct buffer of {@link #getDirectBufferSize()} bytes. Pass it to
+	 *         {@link #release(ByteBuffer)} when finished with.
+	 */
+	public ByteBuffer acquireDirect() {
+		Slot slot = local.get();
+		ByteBuffer buffer = slot.direct;
+		if (buffer != null) {
+			slot.direct = null;
+		} else {
+			buffer = direct.poll();
+			if (buffer != null) {
+				directCount.decrementAndGet();
+			}
+		}
+		if (buffer != null) {
+			hits.increment();
+			buffer.clear();
+			return buffer;
+		}
+		misses.increment();
+		return ByteBuffer.allocateDirect(directBufferSize);
+	}
+
+	/**
+	 * Returns a direct buffer to the pool. The caller must not use the buffer afterwards.
+	 *
+	 * @param buffer
+	 *            A buffer obtained from {@link #acquireDirect()}.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (!buffer.isDirect() || buffer.capacity() != directBufferSize) {
+			return;
+		}
+		Slot slot = local.get();
+		if (slot.direct == null) {
+			slot.direct = buffer;
+		} else if (directCount.incrementAndGet() <= maxPooled) {
+			direct.offer(buffer);
+		} else {
+			directCount.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return The number of acquisitions served from the pool.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return The number of acquisitions that had to allocate a new buffer.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return The proportion of acquisitions served from the pool, between 0 and 1, or 0 if no
+	 *         buffers have been acquired.
+	 */
+	public double getHitRate() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total > 0 ? (double) hits / total : 0;
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Wraps a stream with buffering that uses a pooled buffer. The buffer is returned to the pool
+	 * when the stream is closed.
+	 *
+	 * @param in
+	 *            The unbuffered stream.
+	 * @return A buffered stream.
+	 */
+	InputStream input(InputStream in) {
+		return new PooledInputStream(in);
+	}
+
+	/**
+	 * Wraps a stream with buffering that uses a pooled buffer. The buffer is returned to the pool
+	 * when the stream is closed.
+	 *
+	 * @param out
+	 *            The unbuffered stream.
+	 * @return A buffered stream.
+	 */
+	OutputStream output(OutputStream out) {
+		return new PooledOutputStream(out);
+	}
+
+	/**
+	 * The buffers kept to hand by a single thread.
+	 */
+	private static class Slot {
+		byte[] heap;
+		ByteBuffer direct;
+	}
+
+	/**
+	 * A buffered input stream whose buffer is borrowed from the pool. Mark and reset are not
+	 * supported.
+	 */
+	private class PooledInputStream extends InputStream {
+
+		private final InputStream in;
+		private byte[] buffer = acquireHeap();
+		private int position;
+		private int limit;
+
+		PooledInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (position == limit && !fill()) {
+				return -1;
+			}
+			return buffer[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			int buffered = limit - position;
+			if (buffered == 0) {
+				ensureOpen();
+				// Large reads go straight to the underlying stream:
+				if (len >= buffer.length) {
+					return in.read(b, off, len);
+				}
+				if (!fill()) {
+					return -1;
+				}
+				buffered = limit - position;
+			}
+			int count = Math.min(len, buffered);
+			System.arraycopy(buffer, position, b, off, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (n <= 0) {
+				return 0;
+			}
+			int buffered = limit - position;
+			if (buffered > 0) {
+				int count = (int) Math.min(n, buffered);
+				position += count;
+				return count;
+			}
+			ensureOpen();
+			return in.skip(n);
+		}
+
+		@Override
+		public int available() throws IOException {
+			ensureOpen();
+			int buffered = limit - position;
+			int available = in.available();
+			return buffered > Integer.MAX_VALUE - available ? Integer.MAX_VALUE : buffered + available;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (buffer != null) {
+				byte[] buffer = this.buffer;
+				this.buffer = null;
+				position = limit = 0;
+				release(buffer);
+			}
+			in.close();
+		}
+
+		private boolean fill() throws IOException {
+			ensureOpen();
+			int count = in.read(buffer, 0, buffer.length);
+			if (count <= 0) {
+				return false;
+			}
+			position = 0;
+			limit = count;
+			return true;
+		}
+
+		private void ensureOpen() throws IOException {
+			if (buffer == null) {
+				throw new IOException("Stream closed");
+			}
+		}
+	}
+
+	/**
+	 * A buffered output stream whose buffer is borrowed from the pool.
+	 */
+	private class PooledOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private byte[] buffer = acquireHeap();
+		private int count;
+
+		PooledOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			ensureOpen();
+			if (count == buffer.length) {
+				flushBuffer();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			if (len >= buffer.length) {
+				// Large writes go straight to the underlying stream:
+				flushBuffer();
+				out.write(b, off, len);
+				return;
+			}
+			if (len > buffer.length - count) {
+				flushBuffer();
+			}
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			ensureOpen();
+			flushBuffer();
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (buffer == null) {
+				return;
+			}
+			try {
+				flushBuffer();
+			} finally {
+				byte[] buffer = this.buffer;
+				this.buffer = null;
+				release(buffer);
+				out.close();
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			if (count > 0) {
+				out.write(buffer, 0, count);
+				count = 0;
+			}
+		}
+
+		private void ensureOpen() throws IOException {
+			if (buffer == null) {
+				throw new IOException("Stream closed");
+			}
+		}
+	}
+
+	// --------------- Getters and Setters --------------- //
+
+	/**
+	 * @return the heapBufferSize
+	 */
+	public int getHeapBufferSize() {
+		return heapBufferSize;
+	}
+
+	/**
+	 * @return the directBufferSize
+	 */
+	public int getDirectBufferSize() {
+		return directBufferSize;
+	}
+
+	/**
+	 * @return the maxPooled
+	 */
+	public int getMaxPooled() {
+		return maxPooled;
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+/**
+ * A record in the change feed of a {@link FileStore}: an ID that was created, updated or deleted,
+ * and when. See {@link FileStore#setChangeFeedEnabled(boolean)}.
+ *
+ * @author david
+ *
+ */
+public class Change {
+
+	private final long sequence;
+	private final Operation operation;
+	private final String id;
+	private final long timeMillis;
+	private final boolean external;
+
+	/**
+	 * @param sequence
+	 *            The position of the change in the feed.
+	 * @param operation
+	 *            {@link Operation#CREATE}, {@link Operation#UPDATE} or {@link Operation#DELETE}.
+	 * @param id
+	 *            The ID that changed.
+	 * @param timeMillis
+	 *            When the change was recorded, in milliseconds since the epoch.
+	 * @param external
+	 *            Whether the change was made to the base path by another process.
+	 */
+	public Change(long sequence, Operation operation, String id, long timeMillis, boolean external) {
+		this.sequence = sequence;
+		this.operation = operation;
+		this.id = id;
+		this.timeMillis = timeMillis;
+		this.external = external;
+	}
+
+	/**
+	 * @return the sequence
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the operation
+	 */
+	public Operation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return the id
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the timeMillis
+	 */
+	public long getTimeMillis() {
+		return timeMillis;
+	}
+
+	/**
+	 * @return Whether the change was made to the base path by another process, rather than
+	 *         through this store.
+	 */
+	public boolean isExternal() {
+		return external;
+	}
+
+	@Override
+	public String toString() {
+		return sequence + " " + operation + " " + id + (external ? " (external)" : "");
+	}
+}
@@ -0,0 +1,492 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Flow;
+
+/**
+ * A sequence-numbered, append-only log of the changes made to a {@link FileStore}, which
+ * consumers can read from any retained sequence number onwards.
+ * <p>
+ * The log is written as a series of segment files of {@value #segmentRecords} records each,
+ * named by the sequence number of their first record. Once there are more than
+ * {@value #retainedSegments} segments, the oldest is deleted. Each record is written with a
+ * single write call and carries its own length, so readers only ever see complete records, and a
+ * record cut short by a crash is discarded when the log is opened. Records are not forced to
+ * stable storage.
+ * <p>
+ * Consumers either read batches directly with {@link #read(long, int)}, or subscribe through
+ * {@link #publisher(long, int)}, in which case each subscription has its own thread, which
+ * delivers a batch for each unit of demand and waits for new changes once it has caught up.
+ *
+ * @author david
+ *
+ */
+class ChangeFeed implements Closeable {
+
+	/**
+	 * The number of records in each segment. The value is {@value #segmentRecords}.
+	 */
+	static final int segmentRecords = 65536;
+
+	/**
+	 * The number of segments kept. The value is {@value #retainedSegments}.
+	 */
+	static final int retainedSegments = 16;
+
+	private static final String prefix = "changes-";
+	private static final String suffix = ".log";
+	private static final int readSize = 64 * 1024;
+
+	private final File folder;
+	private final Object lock = new Object();
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	private Segment active;
+	private FileOutputStream output;
+	private int activeRecords;
+	private long next = 1;
+	private boolean closed;
+
+	/**
+	 * Opens the log, continuing from the last complete record written by a previous run.
+	 *
+	 * @param folder
+	 *            The folder that holds the log segments.
+	 * @throws IOException
+	 *             If the log cannot be read or opened for writing.
+	 */
+	ChangeFeed(File folder) throws IOException {
+		this.folder = folder;
+		folder.mkdirs();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					long first = Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+					segments.put(Long.valueOf(first), new Segment(first, file, file.length()));
+				}
+			}
+		}
+		if (segments.isEmpty()) {
+			roll();
+		} else {
+			active = segments.lastEntry().getValue();
+			recoverActive();
+			output = new FileOutputStream(active.file, true);
+		}
+	}
+
+	/**
+	 * Appends a change to the log.
+	 *
+	 * @param operation
+	 *            The kind of change.
+	 * @param id
+	 *            The ID that changed.
+	 * @param external
+	 *            Whether the change was made by another process.
+	 * @return The sequence number of the change.
+	 * @throws IOException
+	 *             If the change cannot be written.
+	 */
+	long append(Operation operation, String id, boolean external) throws IOException {
+		long timeMillis = System.currentTimeMillis();
+		synchronized (lock) {
+			if (closed) {
+				throw new IOException("The change feed is closed");
+			}
+			if (activeRecords >= segmentRecords) {
+				roll();
+			}
+			long sequence = next;
+			byte[] record = encode(new Change(sequence, operation, id, timeMillis, external));
+			output.write(record);
+			next++;
+			activeRecords++;
+			active.length += record.length;
+			lock.notifyAll();
+			return sequence;
+		}
+	}
+
+	/**
+	 * @return The sequence number the next change will be given.
+	 */
+	long getNextSequence() {
+		synchronized (lock) {
+			return next;
+		}
+	}
+
+	/**
+	 * Reads changes from the log.
+	 *
+	 * @param from
+	 *            The sequence number of the first change to read.
+	 * @param max
+	 *            The maximum number of changes to read.
+	 * @return The changes, in sequence order. This is empty if there are no changes from the given
+	 *         sequence number yet.
+	 * @throws IOException
+	 *             If the changes have already been discarded, or cannot be read.
+	 */
+	List<Change> read(long from, int max) throws IOException {
+		try (Cursor cursor = new Cursor(from)) {
+			return cursor.read(max);
+		}
+	}
+
+	/**
+	 * @param from
+	 *            The sequence number of the first change to deliver.
+	 * @param batchSize
+	 *            The maximum number of changes in each batch.
+	 * @return A publisher that delivers batches of changes to each subscriber, from the given
+	 *         sequence number onwards, as the subscriber requests them.
+	 */
+	Flow.Publisher<List<Change>> publisher(final long from, final int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		return subscriber -> {
+			Subscription subscription = new Subscription(from, batchSize, subscriber);
+			subscriber.onSubscribe(subscription);
+			subscription.thread.start();
+		};
+	}
+
+	/**
+	 * Closes the log. Subscribers are completed once they have caught up.
+	 *
+	 * @throws IOException
+	 *             If the log cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+			output.close();
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Starts a new segment and deletes the oldest ones beyond those retained. Must be called
+	 * holding the lock, or from the constructor.
+	 */
+	private void roll() throws IOException {
+		if (output != null) {
+			output.close();
+		}
+		File file = new File(folder, prefix + String.format("%020d", Long.valueOf(next)) + suffix);
+		active = new Segment(next, file, 0);
+		output = new FileOutputStream(file);
+		activeRecords = 0;
+		segments.put(Long.valueOf(next), active);
+		while (segments.size() > retainedSegments) {
+			Segment oldest = segments.pollFirstEntry().getValue();
+			oldest.file.delete();
+		}
+	}
+
+	/**
+	 * Finds the end of the last complete record in the active segment and discards anything after
+	 * it.
+	 */
+	private void recoverActive() throws IOException {
+		long sequence = active.first;
+		int records = 0;
+		long valid = 0;
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(active.file)))) {
+			while (true) {
+				int length;
+				byte[] body;
+				try {
+					length = input.readInt();
+					if (length <= 0 || length > readSize) {
+						break;
+					}
+					body = new byte[length];
+					input.readFully(body);
+				} catch (EOFException e) {
+					break;
+				}
+				sequence = decode(body).getSequence() + 1;
+				records++;
+				valid += 4 + length;
+			}
+		}
+		if (valid < active.file.length()) {
+			try (FileChannel channel = FileChannel.open(active.file.toPath(), StandardOpenOption.WRITE)) {
+				channel.truncate(valid);
+			}
+		}
+		active.length = valid;
+		activeRecords = records;
+		next = sequence;
+	}
+
+	private static byte[] encode(Change change) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeInt(0);
+		data.writeLong(change.getSequence());
+		data.writeByte(change.getOperation().ordinal());
+		data.writeBoolean(change.isExternal());
+		data.writeLong(change.getTimeMillis());
+		data.writeUTF(change.getId());
+		byte[] record = bytes.toByteArray();
+		ByteBuffer.wrap(record).putInt(record.length - 4);
+		return record;
+	}
+
+	private static Change decode(byte[] body) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+		long sequence = data.readLong();
+		Operation operation = Operation.values()[data.readByte()];
+		boolean external = data.readBoolean();
+		long timeMillis = data.readLong();
+		String id = data.readUTF();
+		return new Change(sequence, operation, id, timeMillis, external);
+	}
+
+	/**
+	 * A segment of the log. The length is the end of the last complete record.
+	 */
+	private static class Segment {
+		final long first;
+		final File file;
+		volatile long length;
+
+		Segment(long first, File file, long length) {
+			this.first = first;
+			this.file = file;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A position in the log, from which records are read in order.
+	 */
+	private class Cursor implements Closeable {
+		private long segment;
+		private long offset;
+		private long sequence;
+		private FileChannel channel;
+
+		/**
+		 * Positions the cursor at the given sequence number.
+		 */
+		Cursor(long from) throws IOException {
+			synchronized (lock) {
+				Map.Entry<Long, Segment> entry = segments.floorEntry(Long.valueOf(from));
+				if (entry == null) {
+					throw new IOException("Changes before " + segments.firstKey() + " have been discarded");
+				}
+				segment = entry.getKey().longValue();
+			}
+			sequence = segment;
+			// Skip to the requested change:
+			while (sequence < from) {
+				if (read((int) Math.min(from - sequence, readSize)).isEmpty()) {
+					break;
+				}
+			}
+		}
+
+		/**
+		 * @return Whether there are changes the cursor has not read yet.
+		 */
+		boolean behind() {
+			synchronized (lock) {
+				return sequence < next;
+			}
+		}
+
+		/**
+		 * Reads up to the given number of changes, moving on to the next segment as necessary.
+		 */
+		List<Change> read(int max) throws IOException {
+			List<Change> result = new ArrayList<Change>();
+			while (result.size() < max) {
+				Segment current;
+				Long following;
+				synchronized (lock) {
+					current = segments.get(Long.valueOf(segment));
+					following = segments.higherKey(Long.valueOf(segment));
+				}
+				if (current == null) {
+					throw new IOException("Changes from " + sequence + " have been discarded");
+				}
+				long end = current.length;
+				if (offset >= end) {
+					if (following == null) {
+						// Caught up
+						break;
+					}
+					closeChannel();
+					segment = following.longValue();
+					offset = 0;
+					continue;
+				}
+				if (channel == null) {
+					channel = FileChannel.open(current.file.toPath(), StandardOpenOption.READ);
+				}
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(readSize, end - offset));
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer, offset + buffer.position()) < 0) {
+						break;
+					}
+				}
+				buffer.flip();
+				int consumed = 0;
+				while (result.size() < max && buffer.remaining() >= 4) {
+					int length = buffer.getInt(buffer.position());
+					if (buffer.remaining() < 4 + length) {
+						break;
+					}
+					byte[] body = new byte[length];
+					buffer.position(buffer.position() + 4);
+					buffer.get(body);
+					consumed += 4 + length;
+					Change change = decode(body);
+					sequence = change.getSequence() + 1;
+					result.add(change);
+				}
+				if (consumed == 0) {
+					throw new IOException("Record at " + offset + " in " + current.file + " is larger than " + readSize);
+				}
+				offset += consumed;
+			}
+			return result;
+		}
+
+		@Override
+		public void close() throws IOException {
+			closeChannel();
+		}
+
+		private void closeChannel() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+
+	/**
+	 * A subscription to the feed, with a thread that delivers a batch for each unit of demand.
+	 */
+	private class Subscription implements Flow.Subscription {
+		private final long from;
+		private final int batchSize;
+		private final Flow.Subscriber<? super List<Change>> subscriber;
+		private final Thread thread;
+		private long demand;
+		private boolean cancelled;
+		private IllegalArgumentException invalid;
+
+		Subscription(long from, int batchSize, Flow.Subscriber<? super List<Change>> subscriber) {
+			this.from = from;
+			this.batchSize = batchSize;
+			this.subscriber = subscriber;
+			thread = new Thread(this::run, "FileStore change feed " + folder);
+			thread.setDaemon(true);
+		}
+
+		@Override
+		public void request(long n) {
+			synchronized (lock) {
+				if (n <= 0) {
+					invalid = new IllegalArgumentException("Demand must be positive: " + n);
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				}
+				lock.notifyAll();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (lock) {
+				cancelled = true;
+				lock.notifyAll();
+			}
+		}
+
+		/**
+		 * Body of the delivery thread. The outcome of each wait is decided under the lock, but the
+		 * subscriber is only ever signalled after the lock is released, so a slow subscriber
+		 * cannot hold up {@link ChangeFeed#append(Operation, String, boolean)}.
+		 */
+		private void run() {
+			try (Cursor cursor = new Cursor(from)) {
+				while (true) {
+					Throwable error = null;
+					boolean complete = false;
+					synchronized (lock) {
+						while (!cancelled && invalid == null && (demand == 0 || !cursor.behind()) && !closed) {
+							lock.wait();
+						}
+						if (cancelled) {
+							return;
+						}
+						if (invalid != null) {
+							error = invalid;
+						} else if (closed && !cursor.behind()) {
+							complete = true;
+						} else if (demand == 0) {
+							// Closed, but the subscriber has not asked for the rest
+							lock.wait();
+							continue;
+						} else {
+							demand--;
+						}
+					}
+					if (error != null) {
+						subscriber.onError(error);
+						return;
+					}
+					if (complete) {
+						subscriber.onComplete();
+						return;
+					}
+					List<Change> batch = cursor.read(batchSize);
+					if (!batch.isEmpty()) {
+						subscriber.onNext(batch);
+					} else {
+						synchronized (lock) {
+							demand++;
+						}
+					}
+				}
+			} catch (IOException e) {
+				subscriber.onError(e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bridges a {@link WatchService} on the base path of a {@link FileStore} to its
+ * {@link ChangeFeed}, so that files created, modified or deleted by other processes appear in the
+ * feed as external changes.
+ * <p>
+ * Every folder of the store is watched, and new folders are watched as they appear, with any
+ * files already in them recorded as created. Changes the store has just made itself also raise
+ * events, so events for an ID changed through the store in the last {@value #ownChangeMillis}ms
+ * are ignored. Events the watch service drops because they arrive too quickly are lost, so this
+ * is a best-effort bridge.
+ *
+ * @author david
+ *
+ */
+class ChangeWatcher implements Closeable {
+
+	/**
+	 * How long, in milliseconds, after the store changes an ID that events for it are assumed to
+	 * be its own. The value is {@value #ownChangeMillis}.
+	 */
+	static final long ownChangeMillis = 2000;
+
+	private final FileStore store;
+	private final ChangeFeed feed;
+	private final Path base;
+	private final WatchService watchService;
+	private final Map<WatchKey, Path> keys = new ConcurrentHashMap<WatchKey, Path>();
+	private final Map<String, Long> own = new ConcurrentHashMap<String, Long>();
+	private final Thread thread;
+
+	/**
+	 * Watches every folder of the store. Call {@link #start()} to start recording events.
+	 *
+	 * @param store
+	 *            The store to watch.
+	 * @param feed
+	 *            The feed to record external changes in.
+	 * @throws IOException
+	 *             If the folders cannot be watched.
+	 */
+	ChangeWatcher(FileStore store, ChangeFeed feed) throws IOException {
+		this.store = store;
+		this.feed = feed;
+		base = Paths.get(store.getBasePath());
+		Files.createDirectories(base);
+		watchService = base.getFileSystem().newWatchService();
+		watch(base, false);
+		thread = new Thread(this::run, "FileStore watcher " + base);
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the background thread.
+	 */
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Notes that the store itself has just changed an ID.
+	 *
+	 * @param id
+	 *            The ID.
+	 */
+	void own(String id) {
+		own.put(id, Long.valueOf(System.currentTimeMillis()));
+	}
+
+	/**
+	 * Stops watching.
+	 *
+	 * @throws IOException
+	 *             If the watch service cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Watches a folder and its subfolders, other than the metadata folder.
+	 *
+	 * @param recordFiles
+	 *            Whether to record the files found as created, because the folder is new.
+	 */
+	private void watch(Path folder, boolean recordFiles) throws IOException {
+		keys.put(folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), folder);
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(folder)) {
+			for (Path child : children) {
+				if (Files.isDirectory(child)) {
+					if (!isMetadata(child)) {
+						watch(child, recordFiles);
+					}
+				} else if (recordFiles) {
+					record(Operation.CREATE, child);
+				}
+			}
+		}
+	}
+
+	private boolean isMetadata(Path path) {
+		return path.getParent().equals(base) && FileStore.metadataFolder.equals(path.getFileName().toString());
+	}
+
+	/**
+	 * Records an event for a file in the feed, unless it is not a file of the store or the store
+	 * has just changed the ID itself.
+	 */
+	private void record(Operation operation, Path path) throws IOException {
+		String relative = base.relativize(path).toString();
+		if (!relative.endsWith(store.getExtension())) {
+			return;
+		}
+		String id = store.pathToId(relative);
+		if (!store.validId(id)) {
+			return;
+		}
+		Long changed = own.get(id);
+		if (changed != null && System.currentTimeMillis() - changed.longValue() < ownChangeMillis) {
+			return;
+		}
+		feed.append(operation, id, true);
+	}
+
+	/**
+	 * Body of the background thread.
+	 */
+	private void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.poll(ownChangeMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			// Forget the store's own changes once their events will have arrived:
+			long now = System.currentTimeMillis();
+			own.values().removeIf(changed -> now - changed.longValue() >= ownChangeMillis);
+			if (key == null) {
+				continue;
+			}
+			Path folder = keys.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (folder == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					continue;
+				}
+				Path child = folder.resolve((Path) event.context());
+				try {
+					if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+						if (Files.isDirectory(child)) {
+							if (!isMetadata(child)) {
+								watch(child, true);
+							}
+						} else {
+							record(Operation.CREATE, child);
+						}
+					} else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+						if (!Files.isDirectory(child)) {
+							record(Operation.UPDATE, child);
+						}
+					} else {
+						record(Operation.DELETE, child);
+					}
+				} catch (IOException e) {
+					// Deleted before it could be watched, or the feed is closed
+				}
+			}
+			if (!key.reset()) {
+				keys.remove(key);
+			}
+		}
+	}
+}
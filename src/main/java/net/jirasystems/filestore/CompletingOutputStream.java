@@ -0,0 +1,64 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that invokes a {@link Completion} once the underlying stream has been closed.
+ * This allows work that depends on the content being complete to be triggered when a caller
+ * finishes writing to a stream returned by {@link FileStore#create(String)} or
+ * {@link FileStore#update(String)}.
+ *
+ * @author david
+ *
+ */
+class CompletingOutputStream extends FilterOutputStream {
+
+	/**
+	 * Callback invoked when the stream is closed.
+	 */
+	interface Completion {
+
+		/**
+		 * Called once, after the underlying stream has been closed successfully.
+		 *
+		 * @throws IOException
+		 *             If the completion work fails.
+		 */
+		void completed() throws IOException;
+	}
+
+	private final Completion completion;
+	private boolean closed;
+
+	/**
+	 * @param out
+	 *            The stream to write to. This should already be buffered.
+	 * @param completion
+	 *            The work to do once the stream has been closed.
+	 */
+	CompletingOutputStream(OutputStream out, Completion completion) {
+		super(out);
+		this.completion = completion;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		// FilterOutputStream writes arrays one byte at a time:
+		out.write(b, off, len);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		super.close();
+		completion.completed();
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+
+/**
+ * Publishes the content of a file as a sequence of buffers, reading the file with an
+ * {@link AsynchronousFileChannel} only as the subscriber signals demand, so that no thread is held
+ * while the content is transferred. Each subscriber reads the file independently, from the start.
+ * <p>
+ * One read is in flight at a time, and a read is only started when the subscriber has requested a
+ * buffer, so a slow subscriber holds back the reads rather than having buffers pile up. Each
+ * buffer is newly allocated, so the subscriber can keep it.
+ *
+ * @author david
+ *
+ */
+class ContentPublisher implements Flow.Publisher<ByteBuffer> {
+
+	private final Path path;
+	private final byte[] content;
+	private final int chunkSize;
+
+	/**
+	 * @param path
+	 *            The file to publish.
+	 * @param chunkSize
+	 *            The size of the buffers to read into.
+	 */
+	ContentPublisher(Path path, int chunkSize) {
+		this.path = path;
+		this.content = null;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Publishes content that is already in memory, as a single buffer.
+	 *
+	 * @param content
+	 *            The content.
+	 */
+	ContentPublisher(byte[] content) {
+		this.path = null;
+		this.content = content;
+		this.chunkSize = content.length;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+		Objects.requireNonNull(subscriber);
+		AsynchronousFileChannel channel = null;
+		long size = content != null ? content.length : 0;
+		IOException failure = null;
+		if (path != null) {
+			try {
+				channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+				size = channel.size();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		ReadSubscription subscription = new ReadSubscription(subscriber, channel, size);
+		subscriber.onSubscribe(subscription);
+		if (failure != null) {
+			subscription.fail(failure);
+		}
+	}
+
+	/**
+	 * The subscription of one subscriber, which reads the file as demand arrives.
+	 */
+	private class ReadSubscription implements Flow.Subscription, CompletionHandler<Integer, ByteBuffer> {
+
+		private final Flow.Subscriber<? super ByteBuffer> subscriber;
+		private final AsynchronousFileChannel channel;
+		private final long size;
+		private long position;
+		private long demand;
+		private boolean reading;
+		private boolean done;
+
+		ReadSubscription(Flow.Subscriber<? super ByteBuffer> subscriber, AsynchronousFileChannel channel, long size) {
+			this.subscriber = subscriber;
+			this.channel = channel;
+			this.size = size;
+		}
+
+		@Override
+		public void request(long n) {
+			boolean start;
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				if (n <= 0) {
+					start = false;
+				} else {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+					start = !reading;
+					reading = true;
+				}
+			}
+			if (n <= 0) {
+				fail(new IllegalArgumentException("Demand must be positive: " + n));
+			} else if (start) {
+				read();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				done = true;
+			}
+			close();
+		}
+
+		@Override
+		public void completed(Integer count, ByteBuffer buffer) {
+			if (count.intValue() < 0) {
+				// Truncated while being read:
+				complete();
+				return;
+			}
+			position += count.intValue();
+			buffer.flip();
+			deliver(buffer);
+		}
+
+		@Override
+		public void failed(Throwable e, ByteBuffer buffer) {
+			fail(e);
+		}
+
+		/**
+		 * Starts the next read or, at the end of the file, completes.
+		 */
+		private void read() {
+			if (position >= size) {
+				complete();
+			} else if (channel == null) {
+				position = size;
+				deliver(ByteBuffer.wrap(content));
+			} else {
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(chunkSize, size - position));
+				try {
+					channel.read(buffer, position, buffer, this);
+				} catch (RuntimeException e) {
+					// For example, the channel has been closed by a cancel
+					fail(e);
+				}
+			}
+		}
+
+		/**
+		 * Passes a buffer to the subscriber and carries on reading if there is more demand.
+		 */
+		private void deliver(ByteBuffer buffer) {
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				demand--;
+			}
+			subscriber.onNext(buffer);
+			boolean more;
+			synchronized (this) {
+				more = !done && (demand > 0 || position >= size);
+				reading = more;
+			}
+			if (more) {
+				read();
+			}
+		}
+
+		private void complete() {
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				done = true;
+			}
+			close();
+			subscriber.onComplete();
+		}
+
+		void fail(Throwable e) {
+			synchronized (this) {
+				if (done) {
+					return;
+				}
+				done = true;
+			}
+			close();
+			subscriber.onError(e);
+		}
+
+		private void close() {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Nothing more can be done
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Writes the buffers it receives to the file for an ID, using an {@link AsynchronousFileChannel}
+ * so that no thread is held while the content is transferred. Obtain one from
+ * {@link FileStore#createSubscriber(String)} or {@link FileStore#updateSubscriber(String)} and
+ * subscribe it to a publisher of the content.
+ * <p>
+ * One buffer is requested at a time, and the next is only requested once the previous one has
+ * been written, so the publisher can go no faster than the disk. The publisher must not reuse a
+ * buffer it has passed to {@link #onNext(ByteBuffer)}. The content is written to a temporary
+ * file, which atomically replaces the file for the ID on {@link #onComplete()}, so readers never
+ * see it half written. The outcome is reported by {@link #getResult()}.
+ *
+ * @author david
+ *
+ */
+public class ContentSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+	private final String id;
+	private final File temp;
+	private final AsynchronousFileChannel channel;
+	private final CompletingOutputStream.Completion completion;
+	private final Runnable abandon;
+	private final CompletableFuture<Long> result = new CompletableFuture<Long>();
+	private final Writes writes = new Writes();
+	private Flow.Subscription subscription;
+	private volatile long position;
+	private boolean writing;
+	private boolean complete;
+	private boolean done;
+
+	/**
+	 * @param id
+	 *            The ID being written.
+	 * @param temp
+	 *            The temporary file to write the content to.
+	 * @param completion
+	 *            Publishes the temporary file under the ID once the content is complete.
+	 * @param abandon
+	 *            Undoes any reservation of the ID if the content cannot be written.
+	 * @throws IOException
+	 *             If the temporary file cannot be opened.
+	 */
+	ContentSubscriber(String id, File temp, CompletingOutputStream.Completion completion, Runnable abandon)
+			throws IOException {
+		this.id = id;
+		this.temp = temp;
+		this.completion = completion;
+		this.abandon = abandon;
+		channel = AsynchronousFileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * @return A future that completes with the number of bytes written once the content has been
+	 *         stored under the ID, or exceptionally if the publisher failed or the content could not
+	 *         be stored.
+	 */
+	public CompletableFuture<Long> getResult() {
+		return result;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		synchronized (this) {
+			if (this.subscription != null || done) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+		}
+		subscription.request(1);
+	}
+
+	@Override
+	public void onNext(ByteBuffer buffer) {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			writing = true;
+		}
+		write(buffer);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		fail(throwable);
+	}
+
+	@Override
+	public void onComplete() {
+		boolean finish;
+		synchronized (this) {
+			complete = true;
+			finish = !writing;
+		}
+		if (finish) {
+			finish();
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	private void write(ByteBuffer buffer) {
+		try {
+			channel.write(buffer, position, buffer, writes);
+		} catch (RuntimeException e) {
+			writes.failed(e, buffer);
+		}
+	}
+
+	/**
+	 * Publishes the content under the ID.
+	 */
+	private void finish() {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			done = true;
+		}
+		try {
+			channel.close();
+			completion.completed();
+			result.complete(Long.valueOf(position));
+		} catch (IOException e) {
+			discard();
+			result.completeExceptionally(new FileStoreException("Unable to store content for ID " + id, e));
+		}
+	}
+
+	/**
+	 * Abandons the content.
+	 */
+	private void fail(Throwable e) {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			done = true;
+		}
+		discard();
+		result.completeExceptionally(e);
+	}
+
+	private void discard() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more can be done
+		}
+		temp.delete();
+		abandon.run();
+	}
+
+	/**
+	 * Carries on from each write of the channel.
+	 */
+	private class Writes implements CompletionHandler<Integer, ByteBuffer> {
+
+		/**
+		 * Called when a write has finished.
+		 */
+		@Override
+		public void completed(Integer count, ByteBuffer buffer) {
+			position += count.intValue();
+			if (buffer.hasRemaining()) {
+				write(buffer);
+				return;
+			}
+			boolean finish;
+			synchronized (ContentSubscriber.this) {
+				writing = false;
+				finish = complete;
+			}
+			if (finish) {
+				finish();
+			} else {
+				subscription.request(1);
+			}
+		}
+
+		/**
+		 * Called when a write has failed.
+		 */
+		@Override
+		public void failed(Throwable e, ByteBuffer buffer) {
+			subscription.cancel();
+			fail(new FileStoreException("Unable to write content for ID " + id, e));
+		}
+	}
+}
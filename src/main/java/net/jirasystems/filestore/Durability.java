@@ -0,0 +1,34 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+/**
+ * Determines whether, and how, a {@link FileStore} forces written content to stable storage before
+ * an operation returns.
+ *
+ * @author david
+ *
+ */
+public enum Durability {
+
+	/**
+	 * Content is left to the operating system to write back in its own time. This is the fastest
+	 * mode, but acknowledged writes can be lost if power is lost.
+	 */
+	NONE,
+
+	/**
+	 * Each file, and any directory entries created for it, is forced to stable storage before the
+	 * operation returns.
+	 */
+	FILE,
+
+	/**
+	 * As for {@link #FILE}, but files and directories written by concurrent callers are gathered
+	 * up and forced together in a batch on a short timer. Each caller still waits for its own
+	 * content to be durable, but the cost of forcing is shared, so throughput under concurrency
+	 * stays close to that of {@link #NONE}.
+	 */
+	GROUP
+}
@@ -0,0 +1,406 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the expiry times of IDs in a {@link FileStore} and deletes them once they expire.
+ * <p>
+ * Expiry times are held in a hashed timer wheel: a ring of {@value #wheelSize} slots, each
+ * covering {@value #tickMillis}ms, so scheduling an ID and finding the IDs due on each tick cost
+ * a constant amount of work however many IDs are tracked. An ID due more than one revolution
+ * ahead simply stays in its slot until the revolution in which it falls due. A background thread
+ * advances the wheel once per tick and deletes the IDs that have expired in batches.
+ * <p>
+ * Expiry times are also recorded in an append-only log, so that they survive a restart. The log
+ * is rewritten without superseded records when it is loaded and whenever it has grown to more
+ * than twice the size it needs to be.
+ *
+ * @author david
+ *
+ */
+class Expiry implements Closeable {
+
+	/**
+	 * The time covered by each slot of the wheel, in milliseconds. The value is
+	 * {@value #tickMillis}.
+	 */
+	static final long tickMillis = 1000;
+
+	/**
+	 * The number of slots in the wheel. This must be a power of two. The value is
+	 * {@value #wheelSize}.
+	 */
+	static final int wheelSize = 512;
+
+	/**
+	 * The maximum number of IDs deleted before the log is flushed. The value is
+	 * {@value #batchSize}.
+	 */
+	static final int batchSize = 1000;
+
+	/**
+	 * The number of records the log can hold beyond twice the number of tracked IDs before it is
+	 * compacted. The value is {@value #compactionSlack}.
+	 */
+	private static final int compactionSlack = 10000;
+
+	/**
+	 * The number of locks over which IDs are spread, so that an ID is not deleted by the sweeper
+	 * while it is being created again. This must be a power of two. The value is
+	 * {@value #lockStripes}.
+	 */
+	private static final int lockStripes = 64;
+
+	private final FileStore store;
+	private final File file;
+	private final Map<String, Long> deadlines = new ConcurrentHashMap<String, Long>();
+	private final Object[] locks = new Object[lockStripes];
+
+	private final Object lock = new Object();
+	private final List<List<Scheduled>> wheel = new ArrayList<List<Scheduled>>(wheelSize);
+	private long tick;
+	private DataOutputStream log;
+	private int logRecords;
+	private boolean running = true;
+	private final Thread sweeper;
+
+	/**
+	 * Loads the expiry times recorded by a previous run. Call {@link #start()} to start deleting
+	 * expired IDs.
+	 *
+	 * @param store
+	 *            The store whose IDs expire.
+	 * @param file
+	 *            The log of expiry times.
+	 * @throws IOException
+	 *             If the log cannot be read or rewritten.
+	 */
+	Expiry(FileStore store, File file) throws IOException {
+		this.store = store;
+		this.file = file;
+		for (int i = 0; i < lockStripes; i++) {
+			locks[i] = new Object();
+		}
+		for (int i = 0; i < wheelSize; i++) {
+			wheel.add(new ArrayList<Scheduled>());
+		}
+		tick = System.currentTimeMillis() / tickMillis;
+		load();
+		synchronized (lock) {
+			for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+				schedule(entry.getKey(), entry.getValue().longValue());
+			}
+			compact();
+		}
+		sweeper = new Thread(this::sweep, "FileStore expiry " + store.getBasePath());
+		sweeper.setDaemon(true);
+	}
+
+	/**
+	 * Starts the background thread.
+	 */
+	void start() {
+		sweeper.start();
+	}
+
+	/**
+	 * @param id
+	 *            An ID.
+	 * @return Whether the ID has expired, whether or not it has been deleted yet.
+	 */
+	boolean isExpired(String id) {
+		Long deadline = deadlines.get(id);
+		return deadline != null && deadline.longValue() <= System.currentTimeMillis();
+	}
+
+	/**
+	 * @param id
+	 *            An ID.
+	 * @return The expiry time of the ID in milliseconds since the epoch, or null if it does not
+	 *         expire.
+	 */
+	Long get(String id) {
+		return deadlines.get(id);
+	}
+
+	/**
+	 * @param id
+	 *            An ID.
+	 * @return The lock for the ID. The sweeper does not delete the ID while the lock is held.
+	 */
+	Object stripe(String id) {
+		return locks[id.hashCode() & (lockStripes - 1)];
+	}
+
+	/**
+	 * Sets the time at which an ID expires.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @param deadline
+	 *            The expiry time in milliseconds since the epoch.
+	 * @throws IOException
+	 *             If the expiry time cannot be recorded.
+	 */
+	void set(String id, long deadline) throws IOException {
+		synchronized (lock) {
+			deadlines.put(id, Long.valueOf(deadline));
+			schedule(id, deadline);
+			append(deadline, id);
+			log.flush();
+		}
+	}
+
+	/**
+	 * Stops an ID from expiring, because it has been deleted.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @throws IOException
+	 *             If the change cannot be recorded.
+	 */
+	void clear(String id) throws IOException {
+		if (!deadlines.containsKey(id)) {
+			return;
+		}
+		synchronized (lock) {
+			if (deadlines.remove(id) != null) {
+				append(0, id);
+				log.flush();
+			}
+		}
+	}
+
+	/**
+	 * Deletes an ID straight away if it has expired, rather than waiting for the sweeper. This is
+	 * called before an ID is changed, so that an expired ID can be created again.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @throws IOException
+	 *             If the ID cannot be deleted.
+	 */
+	void expireIfDue(String id) throws IOException {
+		Long deadline = deadlines.get(id);
+		if (deadline != null && deadline.longValue() <= System.currentTimeMillis()) {
+			expire(id, deadline);
+			synchronized (lock) {
+				log.flush();
+			}
+		}
+	}
+
+	/**
+	 * Stops the background thread and closes the log. IDs that have expired but not yet been
+	 * deleted are deleted the next time expiry is enabled.
+	 *
+	 * @throws IOException
+	 *             If the log cannot be closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			sweeper.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			log.close();
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Deletes an ID if it still has the given expiry time.
+	 *
+	 * @return Whether the ID was deleted.
+	 */
+	private boolean expire(String id, Long deadline) throws IOException {
+		synchronized (stripe(id)) {
+			if (!deadline.equals(deadlines.get(id))) {
+				// Created again or deleted in the meantime
+				return false;
+			}
+			store.deleteExpired(id);
+			synchronized (lock) {
+				if (deadlines.remove(id, deadline)) {
+					append(0, id);
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Places an ID in the slot for its expiry time, or the next slot to be processed if that has
+	 * already passed. Must be called holding the lock.
+	 */
+	private void schedule(String id, long deadline) {
+		long due = Math.max(deadline / tickMillis, tick);
+		wheel.get((int) (due & (wheelSize - 1))).add(new Scheduled(id, deadline));
+	}
+
+	/**
+	 * Appends a record to the log. A deadline of zero records that the ID no longer expires. Must
+	 * be called holding the lock.
+	 */
+	private void append(long deadline, String id) throws IOException {
+		log.writeLong(deadline);
+		log.writeUTF(id);
+		logRecords++;
+	}
+
+	/**
+	 * Reads the log into the map of expiry times. A record cut short by a crash ends the log.
+	 */
+	private void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			while (true) {
+				long deadline;
+				String id;
+				try {
+					deadline = input.readLong();
+					id = input.readUTF();
+				} catch (EOFException e) {
+					break;
+				}
+				if (deadline > 0) {
+					deadlines.put(id, Long.valueOf(deadline));
+				} else {
+					deadlines.remove(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites the log with one record for each tracked ID, replacing it atomically. Must be
+	 * called holding the lock.
+	 */
+	private void compact() throws IOException {
+		if (log != null) {
+			log.close();
+		}
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+				output.writeLong(entry.getValue().longValue());
+				output.writeUTF(entry.getKey());
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		logRecords = deadlines.size();
+	}
+
+	/**
+	 * Body of the background thread.
+	 */
+	private void sweep() {
+		final Comparator<Scheduled> byPath = Comparator.comparing(scheduled -> store.idToPath(scheduled.id));
+		while (true) {
+			List<Scheduled> due = new ArrayList<Scheduled>();
+			synchronized (lock) {
+				try {
+					// A slot is due once the whole of its tick has passed:
+					long now = System.currentTimeMillis();
+					while (running && tick >= now / tickMillis) {
+						TimeUnit.MILLISECONDS.timedWait(lock, (tick + 1) * tickMillis - now);
+						now = System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					running = false;
+				}
+				if (!running) {
+					return;
+				}
+				// Catch up on every slot that has come due, but no more than one revolution:
+				long now = System.currentTimeMillis();
+				long current = now / tickMillis;
+				tick = Math.max(tick, current - wheelSize);
+				for (; tick < current; tick++) {
+					List<Scheduled> slot = wheel.get((int) (tick & (wheelSize - 1)));
+					List<Scheduled> later = new ArrayList<Scheduled>();
+					for (Scheduled scheduled : slot) {
+						if (!Long.valueOf(scheduled.deadline).equals(deadlines.get(scheduled.id))) {
+							continue;
+						}
+						if (scheduled.deadline <= now) {
+							due.add(scheduled);
+						} else {
+							later.add(scheduled);
+						}
+					}
+					slot.clear();
+					slot.addAll(later);
+				}
+			}
+
+			due.sort(byPath);
+			for (int start = 0; start < due.size(); start += batchSize) {
+				for (Scheduled scheduled : due.subList(start, Math.min(start + batchSize, due.size()))) {
+					try {
+						expire(scheduled.id, Long.valueOf(scheduled.deadline));
+					} catch (IOException e) {
+						// Try again on the next tick
+						synchronized (lock) {
+							schedule(scheduled.id, scheduled.deadline);
+						}
+					}
+				}
+				synchronized (lock) {
+					try {
+						log.flush();
+						if (logRecords > 2 * deadlines.size() + compactionSlack) {
+							compact();
+						}
+					} catch (IOException e) {
+						// Records are still buffered: try again after the next batch
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * An ID in a slot of the wheel. An entry whose expiry time no longer matches the ID's current
+	 * expiry time is stale, and is discarded when its slot comes round.
+	 */
+	private static class Scheduled {
+		final String id;
+		final long deadline;
+
+		Scheduled(String id, long deadline) {
+			this.id = id;
+			this.deadline = deadline;
+		}
+	}
+}
@@ -3,27 +3,56 @@
  */
 package net.jirasystems.filestore;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 
+import javax.management.JMException;
+
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.ProxyInputStream;
 
 /**
  * Provides an interface for storing and retrieving files by arbitrary ID. Files are stored under
  * the <code>basePath</code>, using a binary-tree style structure, based on the ID.
+ * <p>
+ * This is the filesystem implementation of {@link StorageBackend}. For an in-memory alternative,
+ * see {@link MemoryStore}.
  * 
  * @author david
  * 
  */
-public class FileStore {
+public class FileStore implements StorageBackend {
 
 	/**
 	 * This is the default file extension that will be used for files by instances of this class. It
@@ -50,11 +79,80 @@ public class FileStore {
 	 */
 	public static final int defaultIdChunkSize = 2;
 
+	/**
+	 * This is the name of the folder, directly under the <code>basePath</code>, in which the file
+	 * store keeps its own housekeeping data, such as the mirror queue. The "~" character is not
+	 * permitted by the {@link #defaultIdRegex}, so no ID can map onto this folder. The value is "
+	 * {@value #metadataFolder}".
+	 */
+	public static final String metadataFolder = "~filestore";
+
+	/**
+	 * The number of entries in the cache of resolved files. This must be a power of two. The value
+	 * is {@value #fileCacheSize}.
+	 */
+	static final int fileCacheSize = 1024;
+
+	/**
+	 * How long, in milliseconds, a file in the temporary folder must have been left untouched
+	 * before it is treated as abandoned and deleted when the base path is set. Other instances
+	 * may share the base path, so files that could still be in use are left alone. The value is
+	 * {@value #staleTempMillis}.
+	 */
+	static final long staleTempMillis = 24 * 60 * 60 * 1000L;
+
+	/**
+	 * The number of locks over which IDs are spread, so that comparing the tag of a file and
+	 * replacing it happen together. This must be a power of two. The value is
+	 * {@value #tagLockStripes}.
+	 */
+	private static final int tagLockStripes = 64;
+
+	/**
+	 * The characters permitted by the {@link #defaultIdRegex}, indexed by character value, so that
+	 * IDs can be validated without running a regex.
+	 */
+	private static final boolean[] defaultIdChars = idChars(Pattern.compile(defaultIdRegex));
+
 	private int idChunkSize = defaultIdChunkSize;
 	private String idRegex = defaultIdRegex;
 	private String basePath;
+	private Path base;
+	private boolean hardLinks;
 	private String extension = defaultFileExtension;
 	private Pattern pattern = Pattern.compile(idRegex);
+	private boolean[] idChars = defaultIdChars;
+	private final CachedFile[] fileCache = new CachedFile[fileCacheSize];
+	private Mirror mirror;
+	private volatile Durability durability = Durability.NONE;
+	private long groupCommitMillis = GroupCommit.defaultIntervalMillis;
+	private volatile GroupCommit groupCommit;
+	private Journal journal;
+	private FileStoreMetrics metrics;
+	private volatile WriteBehind writeBehind;
+	private BufferPool bufferPool = BufferPool.getShared();
+	private long writeBehindBytes;
+	private int maxVersions;
+	private long versionMaxAgeMillis;
+	private volatile Versions versions;
+	private volatile Expiry expiry;
+	private volatile Usage usage;
+	private volatile Relayout relayout;
+	private volatile ChangeFeed changeFeed;
+	private volatile ChangeWatcher changeWatcher;
+	private long prefetchBytes;
+	private volatile Prefetcher prefetcher;
+	private ExecutorService readers;
+	private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+	private final Object[] tagLocks = new Object[tagLockStripes];
+	private final Object snapshotting = new Object();
+	private volatile SnapshotCapture capture;
+
+	{
+		for (int i = 0; i < tagLockStripes; i++) {
+			tagLocks[i] = new Object();
+		}
+	}
 
 	/**
 	 * Default constructor. Performs no initialisation.
@@ -80,6 +178,7 @@ public class FileStore {
 	 * @return True if the given ID is not null or an empty string and matches the
 	 *         <code>idRegex</code>.
 	 */
+	@Override
 	public boolean validId(String id) {
 
 		// Basic checks:
@@ -90,6 +189,18 @@ public class FileStore {
 			return false;
 		}
 
+		// Table validation, for the default regex:
+		boolean[] idChars = this.idChars;
+		if (idChars != null) {
+			for (int i = 0; i < id.length(); i++) {
+				char c = id.charAt(i);
+				if (c >= idChars.length || !idChars[c]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
 		// Regex validation:
 		return pattern.matcher(id).matches();
 	}
@@ -100,31 +211,265 @@ public class FileStore {
 	 *            The ID to query.
 	 * @return If the given ID exists in the filestore, true. Otherwise, false.
 	 */
+	@Override
 	public boolean exists(String id) {
-		File file = idToFile(id);
-		boolean exists = file.exists();
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Exists();
+		event.begin();
+		WriteBehind writeBehind = this.writeBehind;
+		boolean exists = writeBehind != null ? writeBehind.exists(id) : idToFile(id).exists();
+		if (!exists && beforeRelayout(id) != null) {
+			exists = true;
+		}
+		Expiry expiry = this.expiry;
+		if (exists && expiry != null && expiry.isExpired(id)) {
+			exists = false;
+		}
+		completed(Operation.EXISTS, start, event, id);
 		return exists;
 	}
 
 	/**
-	 * This method allows you to read a file from the repository. The {@link FileInputStream} is
-	 * wrapped with a {@link BufferedInputStream} internally in order that the file can be read
-	 * efficiently by default.
+	 * This method allows you to read a file from the repository. The file is opened with
+	 * {@link Files#newInputStream(Path, java.nio.file.OpenOption...)} and buffered internally, with
+	 * a buffer from the {@link BufferPool}, in order that the file can be read efficiently by
+	 * default. The buffer is returned to the pool when the stream is closed. A missing file is
+	 * detected without an exception being thrown internally, so misses are cheap. See also
+	 * {@link #readIfExists(String)}.
 	 * 
 	 * @param id
 	 *            The ID of the file to be accessed.
 	 * @return An {@link InputStream} for the specified file, or null if the file does not exist.
 	 */
+	@Override
 	public InputStream read(String id) {
-		File file = idToFile(id);
-		FileInputStream fis;
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Read();
+		event.begin();
+		try {
+			Expiry expiry = this.expiry;
+			if (expiry != null && expiry.isExpired(id)) {
+				return null;
+			}
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				WriteBehind.Pending pending = writeBehind.get(id);
+				if (pending != null) {
+					if (pending.content == null) {
+						return null;
+					}
+					event.bytes = pending.content.length;
+					return metered(new ByteArrayInputStream(pending.content));
+				}
+			}
+			CachedFile resolved = resolve(id);
+			File file = resolved.file;
+			Path path = resolved.path;
+			// Detect a miss without constructing an exception:
+			if (!file.isFile()) {
+				file = beforeRelayout(id);
+				if (file == null) {
+					return null;
+				}
+				path = file.toPath();
+			}
+			InputStream input;
+			try {
+				input = Files.newInputStream(path);
+			} catch (IOException e) {
+				// Deleted since the check, or not readable
+				return null;
+			}
+			if (event.isEnabled()) {
+				event.bytes = file.length();
+			}
+			return metered(bufferPool.input(input));
+		} finally {
+			completed(Operation.READ, start, event, id);
+		}
+	}
+
+	/**
+	 * Reads the file with the given ID as a stream, like {@link #read(String)}, but with ranges of
+	 * the file read concurrently ahead of the caller by positional reads, so that reading a single
+	 * large file keeps several requests in flight to the device. The ranges are reassembled in
+	 * order. This is worthwhile for files of many megabytes; smaller files are better read with
+	 * {@link #read(String)}.
+	 * 
+	 * @param id
+	 *            The ID of the file to be accessed.
+	 * @param parallelism
+	 *            The number of ranges to read concurrently.
+	 * @return An {@link InputStream} for the specified file, or null if the file does not exist.
+	 *         The caller is responsible for closing the stream, which stops the reading ahead.
+	 */
+	public InputStream readParallel(String id, int parallelism) {
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Read();
+		event.begin();
 		try {
-			fis = new FileInputStream(file);
-		} catch (FileNotFoundException e) {
+			ParallelReader reader = parallelReader(id, parallelism);
+			if (reader == null) {
+				return null;
+			}
+			event.bytes = reader.size();
+			return metered(reader);
+		} catch (IOException e) {
+			// Deleted since the check, or not readable
 			return null;
+		} finally {
+			completed(Operation.READ, start, event, id);
+		}
+	}
+
+	/**
+	 * Reads the file with the given ID with ranges of the file read concurrently by positional
+	 * reads, as {@link #readParallel(String, int)} does, passing each range to the consumer in
+	 * order on the calling thread. A buffer is only valid for the duration of the call to the
+	 * consumer, after which it is reused.
+	 * 
+	 * @param id
+	 *            The ID of the file to be accessed.
+	 * @param parallelism
+	 *            The number of ranges to read concurrently.
+	 * @param consumer
+	 *            Receives the content of the file, range by range.
+	 * @return The number of bytes read, or -1 if the file does not exist.
+	 * @throws FileStoreException
+	 *             If an IO error occurs while reading the file.
+	 */
+	public long readParallel(String id, int parallelism, Consumer<ByteBuffer> consumer) throws FileStoreException {
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Read();
+		event.begin();
+		try {
+			ParallelReader reader;
+			try {
+				reader = parallelReader(id, parallelism);
+			} catch (IOException e) {
+				// Deleted since the check, or not readable
+				return -1;
+			}
+			if (reader == null) {
+				return -1;
+			}
+			try {
+				long read = 0;
+				ByteBuffer buffer;
+				while ((buffer = reader.next()) != null) {
+					int count = buffer.remaining();
+					consumer.accept(buffer);
+					read += count;
+				}
+				event.bytes = read;
+				FileStoreMetrics metrics = this.metrics;
+				if (metrics != null) {
+					metrics.read(read);
+				}
+				return read;
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw failed(new FileStoreException("Unable to read file for ID " + id, e));
+		} finally {
+			completed(Operation.READ, start, event, id);
+		}
+	}
+
+	/**
+	 * Returns a publisher of the content of the file with the given ID, for callers that consume
+	 * content reactively. The file is read with an {@link java.nio.channels.AsynchronousFileChannel}
+	 * as the subscriber signals demand, so no thread blocks while the content is transferred, and a
+	 * slow subscriber holds back the reads. Each subscriber reads the file from the start, in
+	 * buffers of up to {@link BufferPool#getDirectBufferSize()} bytes which it can keep.
+	 * 
+	 * @param id
+	 *            The ID of the file to be accessed.
+	 * @return A publisher for the specified file, or null if the file does not exist. If the file
+	 *         is deleted before a subscriber subscribes, the subscriber receives an error.
+	 */
+	public Flow.Publisher<ByteBuffer> readPublisher(String id) {
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Read();
+		event.begin();
+		try {
+			Expiry expiry = this.expiry;
+			if (expiry != null && expiry.isExpired(id)) {
+				return null;
+			}
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				WriteBehind.Pending pending = writeBehind.get(id);
+				if (pending != null) {
+					if (pending.content == null) {
+						return null;
+					}
+					event.bytes = pending.content.length;
+					return new ContentPublisher(pending.content);
+				}
+			}
+			CachedFile resolved = resolve(id);
+			File file = resolved.file;
+			Path path = resolved.path;
+			if (!file.isFile()) {
+				file = beforeRelayout(id);
+				if (file == null) {
+					return null;
+				}
+				path = file.toPath();
+			}
+			if (event.isEnabled()) {
+				event.bytes = file.length();
+			}
+			return new ContentPublisher(path, bufferPool.getDirectBufferSize());
+		} finally {
+			completed(Operation.READ, start, event, id);
+		}
+	}
+
+	/**
+	 * Warms the operating system's page cache for IDs that are about to be read, such as the
+	 * attachments of a message being opened, so that the reads that follow do not each wait for
+	 * the disk in turn. The files are resolved straight away, which also warms the cache of
+	 * resolved files, and read in the background by a small pool of threads, with the content
+	 * discarded. This returns without waiting for them to be read.
+	 * <p>
+	 * Prefetching must be enabled with {@link #setPrefetchBytes(long)}, which caps the number of
+	 * bytes queued or being read at once. Files that would take the total over the cap, IDs that
+	 * do not exist and content held in the write-behind buffer are skipped.
+	 * 
+	 * @param ids
+	 *            The IDs that are about to be read.
+	 * @return The number of IDs queued to be read.
+	 */
+	public int prefetch(Collection<String> ids) {
+		Prefetcher prefetcher = this.prefetcher;
+		if (prefetcher == null) {
+			throw new IllegalStateException("Prefetch is not enabled for " + basePath);
+		}
+		int queued = 0;
+		for (String id : ids) {
+			Expiry expiry = this.expiry;
+			if (expiry != null && expiry.isExpired(id)) {
+				continue;
+			}
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null && writeBehind.get(id) != null) {
+				continue;
+			}
+			File file = resolve(id).file;
+			if (!file.isFile()) {
+				file = beforeRelayout(id);
+				if (file == null) {
+					continue;
+				}
+			}
+			if (prefetcher.prefetch(file.toPath(), file.length())) {
+				queued++;
+			}
 		}
-		BufferedInputStream bis = new BufferedInputStream(fis);
-		return bis;
+		return queued;
 	}
 
 	/**
@@ -137,18 +482,109 @@ public class FileStore {
 	 * @throws FileStoreException
 	 *             If the ID already exists, or if an IO error occurs.
 	 */
+	@Override
 	public void create(String id, InputStream content) throws FileStoreException {
-		File file = idToFile(id);
-		File folder = file.getParentFile();
-		folder.mkdirs();
+		create(id, content, -1L);
+	}
+
+	/**
+	 * This method allows you to create a new file in the file store when the length of the
+	 * content is known up front. The expected size is used to check any quota before anything is
+	 * written, and to size the buffer the content is gathered in, up to the size of the direct
+	 * buffers of the {@link BufferPool}. Content that fits in the buffer is written to the file in
+	 * a single call, and larger content a whole buffer at a time. The file is not preallocated,
+	 * since Java can only extend a file sparsely.
+	 * <p>
+	 * The content must be exactly the expected length. If it turns out to be shorter or longer,
+	 * the create fails and the ID is left free.
+	 * 
+	 * @param id
+	 *            The ID for the new file.
+	 * @param content
+	 *            The content for the file.
+	 * @param expectedSize
+	 *            The expected length of the content, or -1 if it is not known.
+	 * @throws FileStoreException
+	 *             If the ID already exists, if the content is not the expected length, or if an IO
+	 *             error occurs.
+	 */
+	public void create(String id, InputStream content, long expectedSize) throws FileStoreException {
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Create();
+		event.begin();
+		Usage.Reservation quota = Usage.Reservation.none;
 		try {
-			// Check that the file doesn't already exist and can be created
-			if (!file.createNewFile()) {
-				throw new FileStoreException("Duplicate file ID " + id + " (" + file.getPath() + ")");
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				byte[] buffered = buffer(id, content);
+				if (expectedSize >= 0 && buffered.length != expectedSize) {
+					throw new FileStoreException("Content for ID " + id + " is " + buffered.length
+							+ " bytes, not the expected " + expectedSize);
+				}
+				quota = reserveQuota(id, buffered.length, null);
+				event.bytes = buffered.length;
+				try {
+					writeBehind.create(id, buffered);
+				} catch (IOException e) {
+					throw new FileStoreException("Unable to buffer content for ID " + id, e);
+				}
+			} else {
+				quota = reserveQuota(id, expectedSize, null);
+				event.bytes = createFile(id, content, expectedSize);
+			}
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			quota.release();
+			completed(Operation.CREATE, start, event, id);
+		}
+	}
+
+	/**
+	 * This method allows you to create a new file in the file store that expires after the given
+	 * time to live. Once it has expired, {@link #read(String)} and {@link #exists(String)} treat the
+	 * ID as absent, and it can be created again. Expired IDs are deleted by a background sweeper
+	 * within a second or so. Copies and moves of the ID expire at the same time, and an update
+	 * leaves the expiry time unchanged.
+	 * <p>
+	 * Expiry must be enabled with {@link #setExpiryEnabled(boolean)}. The expiry time is recorded
+	 * once the file has been created, and the sweeper is held off the ID in between. If the
+	 * expiry time cannot be recorded, the new file is deleted again.
+	 * 
+	 * @param id
+	 *            The ID for the new file.
+	 * @param content
+	 *            The content for the file.
+	 * @param ttl
+	 *            How long the file should live for.
+	 * @throws FileStoreException
+	 *             If the ID already exists, or if an IO error occurs.
+	 */
+	public void create(String id, InputStream content, Duration ttl) throws FileStoreException {
+		Expiry expiry = this.expiry;
+		if (expiry == null) {
+			throw new IllegalStateException("Expiry is not enabled for " + basePath);
+		}
+		if (ttl.isNegative() || ttl.isZero()) {
+			throw new IllegalArgumentException("Time to live must be positive: " + ttl);
+		}
+		long deadline = System.currentTimeMillis() + ttl.toMillis();
+		synchronized (expiry.stripe(id)) {
+			create(id, content);
+			try {
+				expiry.set(id, deadline);
+			} catch (IOException e) {
+				// The file must not outlive the request for it to expire:
+				try {
+					deleteExpired(id);
+				} catch (IOException suppressed) {
+					e.addSuppressed(suppressed);
+				}
+				throw failed(new FileStoreException("Unable to record expiry of ID " + id, e));
 			}
-			writeFile(file, content);
-		} catch (IOException e) {
-			throw new FileStoreException("Unable to create file for ID " + id + " (" + file.getPath() + ")", e);
 		}
 	}
 
@@ -161,7 +597,13 @@ public class FileStore {
 	 * output stream.
 	 * <p>
 	 * This method actually returns a buffered output stream so it is not necessary to wrap the
-	 * returned stream.
+	 * returned stream. If a {@link Mirror} is set, the new file is queued for mirroring when the
+	 * stream is closed.
+	 * <p>
+	 * The ID is reserved with an empty file straight away, but content is written to a temporary
+	 * file and only appears under the ID when the stream is closed. If the store is journaled and
+	 * another caller creates the same ID in the meantime, closing the stream fails with an
+	 * {@link IOException}.
 	 * 
 	 * @param id
 	 *            The ID for the new file.
@@ -170,23 +612,47 @@ public class FileStore {
 	 * @throws FileStoreException
 	 *             If the ID already exists, or if an IO error occurs.
 	 */
+	@Override
 	public OutputStream create(String id) throws FileStoreException {
-
-		OutputStream result;
-		File file = idToFile(id);
-		File folder = file.getParentFile();
-		folder.mkdirs();
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Create();
+		event.begin();
 		try {
-			// Check that the file doesn't already exist and can be created
-			if (!file.createNewFile()) {
-				throw new FileStoreException("Duplicate file ID " + id + " (" + file.getPath() + ")");
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			checkQuota(id);
+			OutputStream result;
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				try {
+					// Reserve the ID until the stream is closed:
+					writeBehind.create(id, new byte[0]);
+				} catch (IOException e) {
+					throw new FileStoreException("Unable to buffer content for ID " + id, e);
+				}
+				return bufferingOutputStream(writeBehind, id);
+			}
+			File file = idToFile(id);
+			try {
+				if (journal != null) {
+					if (file.exists()) {
+						throw new FileStoreException("Duplicate file ID " + id + " (" + file.getPath() + ")");
+					}
+					return journaledOutputStream(journal.intent(Operation.CREATE, id), id, file, true);
+				}
+				boolean newFolders = reserve(id, file);
+				result = copyOnWriteOutputStream(id, file, true, newFolders);
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to create file for ID " + id + " (" + file.getPath() + ")", e);
 			}
-			result = createOutputStream(file);
-		} catch (IOException e) {
-			throw new FileStoreException("Unable to create file for ID " + id + " (" + file.getPath() + ")", e);
-		}
 
-		return result;
+			return result;
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			completed(Operation.CREATE, start, event, id);
+		}
 	}
 
 	/**
@@ -200,20 +666,34 @@ public class FileStore {
 	 *             If the content is null, the ID does not exist, or if an error occurs while
 	 *             updating the file.
 	 */
+	@Override
 	public void update(String id, InputStream content) throws FileStoreException {
-		if (content == null) {
-			throw new FileStoreException("Null content detected.");
-		}
-		File file = idToFile(id);
-		// Check existence directly (for expedience) rather than calling the
-		// exists method
-		if (!file.exists()) {
-			throw new FileStoreException("Unable to find file ID " + id + " (" + file.getPath() + ")");
-		}
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Update();
+		event.begin();
 		try {
-			writeFile(file, content);
-		} catch (IOException e) {
-			throw new FileStoreException("Unable to update file for ID " + id + " (" + file.getPath() + ")", e);
+			if (content == null) {
+				throw new FileStoreException("Null content detected.");
+			}
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				byte[] buffered = buffer(id, content);
+				event.bytes = buffered.length;
+				try {
+					writeBehind.update(id, buffered);
+				} catch (IOException e) {
+					throw new FileStoreException("Unable to buffer content for ID " + id, e);
+				}
+			} else {
+				event.bytes = updateFile(id, content);
+			}
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			completed(Operation.UPDATE, start, event, id);
 		}
 	}
 
@@ -226,7 +706,12 @@ public class FileStore {
 	 * output stream.
 	 * <p>
 	 * This method actually returns a buffered output stream so it is not necessary to wrap the
-	 * returned stream.
+	 * returned stream. If a {@link Mirror} is set, the file is queued for mirroring when the stream
+	 * is closed.
+	 * <p>
+	 * Content is written to a temporary file which atomically replaces the file for the ID when
+	 * the stream is closed, so readers and {@link #snapshot(String) snapshots} never see it half
+	 * written.
 	 * 
 	 * @param id
 	 *            The ID of the file to be updated.
@@ -236,158 +721,2664 @@ public class FileStore {
 	 *             If the content is null, the ID does not exist, or if an error occurs while
 	 *             updating the file.
 	 */
+	@Override
 	public OutputStream update(String id) throws FileStoreException {
-
-		OutputStream result;
-		File file = idToFile(id);
-		// Check existence directly (for expedience) rather than calling the
-		// exists method
-		if (!file.exists()) {
-			throw new FileStoreException("Unable to find file ID " + id + " (" + file.getPath() + ")");
-		}
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Update();
+		event.begin();
 		try {
-			result = createOutputStream(file);
-		} catch (IOException e) {
-			throw new FileStoreException("Unable to update file for ID " + id + " (" + file.getPath() + ")", e);
-		}
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			OutputStream result;
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				if (!writeBehind.exists(id)) {
+					throw new FileStoreException("Unable to find file ID " + id + " (" + idToFile(id).getPath() + ")");
+				}
+				return bufferingOutputStream(writeBehind, id);
+			}
+			File file = idToFile(id);
+			// Check existence directly (for expedience) rather than calling the
+			// exists method
+			if (!file.exists()) {
+				throw new FileStoreException("Unable to find file ID " + id + " (" + file.getPath() + ")");
+			}
+			try {
+				if (journal != null) {
+					result = journaledOutputStream(journal.intent(Operation.UPDATE, id), id, file, false);
+				} else {
+					result = copyOnWriteOutputStream(id, file, false, false);
+				}
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to update file for ID " + id + " (" + file.getPath() + ")", e);
+			}
 
-		return result;
+			return result;
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			completed(Operation.UPDATE, start, event, id);
+		}
 	}
 
 	/**
-	 * This method allows you to delete the file associated with the given ID from the file store.
-	 * No attempt is made to delete parent folders of the file.
+	 * Returns a tag for the current content of the file with the given ID, in the manner of an
+	 * HTTP ETag. The tag changes whenever the file is replaced, and can be passed to
+	 * {@link #update(String, InputStream, String)} to update the ID only if nobody else has
+	 * changed it in the meantime. Tags are opaque: they are derived from the size, modification
+	 * time and identity of the file, so they are cheap to compute and need no content to be read.
+	 * <p>
+	 * Changes held in the write-behind buffer are written out first, so that the tag reflects
+	 * them.
 	 * 
 	 * @param id
-	 *            The ID to be deleted.
-	 * @return The return value of this method is governed by {@link File#delete()};
-	 * @see File#delete().
+	 *            The ID to query.
+	 * @return The tag, or null if the ID does not exist.
 	 * @throws FileStoreException
-	 *             If the file to be deleted does not exist.
+	 *             If buffered changes cannot be written, or the file cannot be examined.
 	 */
-	public boolean delete(String id) throws FileStoreException {
+	public String getTag(String id) throws FileStoreException {
+		Expiry expiry = this.expiry;
+		if (expiry != null && expiry.isExpired(id)) {
+			return null;
+		}
 		File file = idToFile(id);
-		// Check existence directly (for expedience) rather than calling the
-		// exists method
-		if (!file.exists()) {
-			throw new FileStoreException("Unable to find file ID " + id + " (" + file.getPath() + ")");
+		try {
+			flush();
+			if (!file.isFile()) {
+				File previous = beforeRelayout(id);
+				if (previous != null) {
+					file = previous;
+				}
+			}
+			return tag(file);
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to get the tag for ID " + id + " (" + file.getPath() + ")", e);
 		}
-		boolean result = file.delete();
-		return result;
 	}
 
-	// --------------- Internal methods --------------- //
-
 	/**
-	 * Converts the given ID to a path relative to the base path of the file store.
+	 * Replaces the content of the file with the given ID, but only if it still has the expected
+	 * tag, giving optimistic concurrency between writers of the same ID without an external lock.
+	 * The content is written to a temporary file first, without holding any lock, so a slow
+	 * upload does not hold up other writers. The tag is then compared and the temporary file
+	 * moved into place under a lock for the ID, so no other conditional update of the ID can come
+	 * between the comparison and the replacement.
+	 * <p>
+	 * If the expected tag is null, the ID is created instead, but only if it does not exist.
+	 * <p>
+	 * Tags change whenever a file is replaced, which every update does, because content is always
+	 * written to a new file that then replaces the old one. Changes held in the write-behind buffer
+	 * are written out first.
 	 * 
 	 * @param id
-	 *            The ID to be converted to a path.
-	 * @return A path relative to the base path of the file store.
+	 *            The ID of the file to be updated.
+	 * @param content
+	 *            The new content for the file.
+	 * @param expectedTag
+	 *            The tag from {@link #getTag(String)} or from an earlier call to this method, or
+	 *            null to create the ID.
+	 * @return The tag of the new content.
+	 * @throws TagMismatchException
+	 *             If the file no longer has the expected tag, has been deleted, or, when creating,
+	 *             already exists. The content has not been stored.
+	 * @throws FileStoreException
+	 *             If the content is null, or if an error occurs while updating the file.
 	 */
-	protected String idToPath(String id) {
-		StringBuilder result = new StringBuilder();
-		int pos = 0;
-		int chunkPos = 0;
-		while (pos < id.length()) {
-			result.append(id.charAt(pos));
-			pos++;
-			chunkPos++;
-			// Add a file separator at the end of each chunk, unless we have
-			// reached the end of the String:
-			if ((chunkPos >= idChunkSize) && (pos < id.length())) {
-				chunkPos = 0;
-				result.append(File.separatorChar);
+	public String update(String id, InputStream content, String expectedTag) throws FileStoreException {
+		long start = System.nanoTime();
+		Operation operation = expectedTag != null ? Operation.UPDATE : Operation.CREATE;
+		FileStoreEvent event = expectedTag != null ? new FileStoreEvent.Update() : new FileStoreEvent.Create();
+		event.begin();
+		Usage.Reservation quota = Usage.Reservation.none;
+		try {
+			if (content == null) {
+				throw new FileStoreException("Null content detected.");
+			}
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			try {
+				flush();
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to write buffered changes before updating ID " + id, e);
 			}
+			if (expectedTag == null) {
+				quota = reserveQuota(id, -1, null);
+			}
+			return swapFile(id, content, expectedTag, event);
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			quota.release();
+			completed(operation, start, event, id);
 		}
-		// Finally, add the extension:
-		return result.toString() + extension;
 	}
 
 	/**
-	 * Converts an ID into a {@link File} in the file store.
+	 * Returns a subscriber that creates a new file in the file store from the buffers it receives,
+	 * for callers that produce content reactively. The content is written with an
+	 * {@link java.nio.channels.AsynchronousFileChannel}, one buffer at a time as each write
+	 * finishes, so no thread blocks while the content is transferred and the publisher is held back
+	 * to the speed of the disk. See {@link ContentSubscriber}.
+	 * <p>
+	 * The ID is reserved straight away, as it is by {@link #create(String)}, and is deleted again
+	 * if the content cannot be written. Changes held in the write-behind buffer are written out
+	 * first, and the content itself is written straight to disk. The file appears atomically when
+	 * the publisher completes, so the content does not need to be journaled.
 	 * 
 	 * @param id
-	 *            The ID to be converted.
-	 * @return A {@link File} instance representing the file that corresponds to the given ID.
+	 *            The ID for the new file.
+	 * @return A subscriber to the content. Its {@link ContentSubscriber#getResult() result}
+	 *         completes once the file has been created.
+	 * @throws FileStoreException
+	 *             If the ID already exists, or if an IO error occurs.
 	 */
-	protected File idToFile(String id) {
-		File result = new File(basePath, idToPath(id));
-		return result;
+	public ContentSubscriber createSubscriber(String id) throws FileStoreException {
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Create();
+		event.begin();
+		try {
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			checkQuota(id);
+			File file = idToFile(id);
+			try {
+				flush();
+				boolean newFolders = reserve(id, file);
+				Runnable abandon = () -> release(file);
+				try {
+					File temp = tempFile("write");
+					return new ContentSubscriber(id, temp, copyOnWriteCompletion(id, file, temp, true, newFolders),
+							abandon);
+				} catch (IOException e) {
+					abandon.run();
+					throw e;
+				}
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to create file for ID " + id + " (" + file.getPath() + ")", e);
+			}
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			completed(Operation.CREATE, start, event, id);
+		}
 	}
 
 	/**
-	 * This method writes the contents of the given {@link InputStream} to the given {@link File}.
-	 * If content is null, a {@link NullPointerException} is thrown. A {@link BufferedOutputStream}
-	 * is used internally to write to the file, but no wrapping is performed on the incoming content
-	 * parameter. As a result, if you wish the reading of content to have any special treatment,
-	 * such as being buffered, you need to do this explicitly before invoking this method. This
-	 * method does not close the content {@link InputStream}.
+	 * Returns a subscriber that replaces the content of the file with the given ID with the buffers
+	 * it receives, for callers that produce content reactively. The content is written as it is by
+	 * {@link #createSubscriber(String)}, and atomically replaces the file when the publisher
+	 * completes. If the content cannot be written, the file is left as it was.
 	 * 
-	 * @param file
-	 *            The file to which content will be written (if not null) or which will otherwise be
-	 *            created if it does not exist.
-	 * @param content
-	 *            The content to be written to the file. The caller is responsible for closing the
-	 *            stream - this method does not assume that it should be closed.
-	 * @throws IOException
-	 *             If an error occurs.
+	 * @param id
+	 *            The ID of the file to be updated.
+	 * @return A subscriber to the content. Its {@link ContentSubscriber#getResult() result}
+	 *         completes once the file has been replaced.
+	 * @throws FileStoreException
+	 *             If the ID does not exist, or if an IO error occurs.
 	 */
-	protected void writeFile(File file, InputStream content) throws IOException {
-
-		if (content == null) {
-			throw new NullPointerException("Null content stream.");
-		}
-
-		BufferedOutputStream bos = createOutputStream(file);
-		int b;
+	public ContentSubscriber updateSubscriber(String id) throws FileStoreException {
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Update();
+		event.begin();
 		try {
-			while ((b = content.read()) != -1) {
-				bos.write(b);
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			File file = idToFile(id);
+			try {
+				flush();
+				// Check existence directly (for expedience) rather than calling the
+				// exists method
+				if (!file.exists()) {
+					throw new FileStoreException("Unable to find file ID " + id + " (" + file.getPath() + ")");
+				}
+				File temp = tempFile("write");
+				return new ContentSubscriber(id, temp, copyOnWriteCompletion(id, file, temp, false, false), () -> {
+					// The file is untouched
+				});
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to update file for ID " + id + " (" + file.getPath() + ")", e);
 			}
+		} catch (FileStoreException e) {
+			throw failed(e);
 		} finally {
-			IOUtils.closeQuietly(bos);
+			completed(Operation.UPDATE, start, event, id);
 		}
 	}
 
 	/**
-	 * Creates an output stream for the given file. The caller is responsible for closing the
-	 * returned stream.
+	 * Begins an upload of a large object in numbered parts, which can be written concurrently.
+	 * Every part except the last must be exactly the given size. The object appears under the ID
+	 * only when the upload is committed. See {@link MultipartUpload}.
 	 * 
-	 * @param file
-	 *            The file to create an output stream for
-	 * @return A buffered output stream for the given file
-	 * @throws IOException
-	 *             If it is not possible to create a file output stream for the given file
+	 * @param id
+	 *            The ID for the new file.
+	 * @param partSize
+	 *            The size of every part except the last.
+	 * @return The upload. The caller is responsible for committing or closing it.
+	 * @throws FileStoreException
+	 *             If the ID already exists, or if an IO error occurs.
 	 */
-	private BufferedOutputStream createOutputStream(File file) throws IOException {
-
-		FileOutputStream fos;
+	public MultipartUpload beginUpload(String id, long partSize) throws FileStoreException {
+		if (partSize < 1) {
+			throw new IllegalArgumentException("The part size must be at least one byte.");
+		}
+		if (exists(id)) {
+			throw failed(new FileStoreException("Duplicate file ID " + id + " (" + idToFile(id).getPath() + ")"));
+		}
 		try {
-			fos = new FileOutputStream(file);
-		} catch (FileNotFoundException e) {
-			throw new IOException("Unable to create output stream for file " + file.getPath());
+			return new MultipartUpload(this, id, partSize, tempFile("upload"));
+		} catch (IOException e) {
+			throw failed(new FileStoreException("Unable to begin upload of ID " + id, e));
 		}
-
-		BufferedOutputStream bos = new BufferedOutputStream(fos);
-		return bos;
 	}
 
-	// --------------- Getters and Setters --------------- //
-
 	/**
-	 * @return the idRegex
+	 * Copies the content of one ID to a new ID without passing the content through the JVM. Where
+	 * the file system supports hard links, the new ID is a hard link to the file of the original,
+	 * so no content is copied at all. Otherwise, the content is copied with
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets
+	 * the operating system copy it in the kernel. A later update to either ID gives it a file of
+	 * its own, so the other ID is unaffected.
+	 * 
+	 * @param fromId
+	 *            The ID of the file to be copied.
+	 * @param toId
+	 *            The ID for the copy.
+	 * @throws FileStoreException
+	 *             If the original ID does not exist, the new ID already exists, or if an IO error
+	 *             occurs.
 	 */
-	public String getIdRegex() {
-		return idRegex;
+	@Override
+	public void copy(String fromId, String toId) throws FileStoreException {
+		long start = System.nanoTime();
+		FileStoreEvent.Copy event = new FileStoreEvent.Copy();
+		event.begin();
+		Usage.Reservation quota = Usage.Reservation.none;
+		try {
+			event.targetId = toId;
+			ownChange(fromId);
+			ownChange(toId);
+			relocate(fromId);
+			relocate(toId);
+			expireIfDue(fromId);
+			expireIfDue(toId);
+			quota = reserveQuota(toId, sizeOf(fromId), null);
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				try {
+					event.bytes = writeBehind.copy(fromId, toId, false);
+				} catch (IOException e) {
+					throw new FileStoreException("Unable to buffer copy of ID " + fromId + " to " + toId, e);
+				}
+			} else {
+				event.bytes = copyFile(fromId, toId);
+			}
+			copyExpiry(fromId, toId, false);
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			quota.release();
+			completed(Operation.COPY, start, event, fromId);
+		}
 	}
 
 	/**
-	 * Sets the regular expression used for validating IDs and compiles a {@link Pattern}. The regex
-	 * defaults to [a-zA-Z0-9_\\.-]+ which means that a valid ID consists of one or more letters,
-	 * numbers, underscores, dashes and periods.
+	 * Gives the file of one ID a new ID. Where the file system supports hard links, the file is
+	 * linked under the new ID and then unlinked from the original, which fails atomically if the
+	 * new ID has been created in the meantime. Otherwise it is moved with
+	 * {@link Files#move(Path, Path, java.nio.file.CopyOption...)}.
+	 * <p>
+	 * If the store is journaled, the move is journaled as a copy followed by a delete, so a crash
+	 * part way through can leave the content under both IDs, but never under neither.
 	 * 
-	 * In practice, IDs are first checked for null and empty String, before being validated with the
+	 * @param fromId
+	 *            The ID of the file to be moved.
+	 * @param toId
+	 *            The new ID for the file.
+	 * @throws FileStoreException
+	 *             If the original ID does not exist, the new ID already exists, or if an IO error
+	 *             occurs.
+	 */
+	@Override
+	public void move(String fromId, String toId) throws FileStoreException {
+		long start = System.nanoTime();
+		FileStoreEvent.Move event = new FileStoreEvent.Move();
+		event.begin();
+		Usage.Reservation quota = Usage.Reservation.none;
+		try {
+			event.targetId = toId;
+			ownChange(fromId);
+			ownChange(toId);
+			relocate(fromId);
+			relocate(toId);
+			expireIfDue(fromId);
+			expireIfDue(toId);
+			quota = reserveQuota(toId, sizeOf(fromId), fromId);
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				try {
+					event.bytes = writeBehind.copy(fromId, toId, true);
+				} catch (IOException e) {
+					throw new FileStoreException("Unable to buffer move of ID " + fromId + " to " + toId, e);
+				}
+			} else {
+				event.bytes = moveFile(fromId, toId);
+			}
+			copyExpiry(fromId, toId, true);
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			quota.release();
+			completed(Operation.MOVE, start, event, fromId);
+		}
+	}
+
+	/**
+	 * This method allows you to delete the file associated with the given ID from the file store.
+	 * No attempt is made to delete parent folders of the file.
+	 * 
+	 * @param id
+	 *            The ID to be deleted.
+	 * @return The return value of this method is governed by {@link Files#deleteIfExists(Path)};
+	 * @see Files#deleteIfExists(Path)
+	 * @throws FileStoreException
+	 *             If the file to be deleted does not exist, or cannot be deleted.
+	 */
+	@Override
+	public boolean delete(String id) throws FileStoreException {
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Delete();
+		event.begin();
+		try {
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			boolean result = true;
+			WriteBehind writeBehind = this.writeBehind;
+			if (writeBehind != null) {
+				try {
+					writeBehind.delete(id);
+				} catch (IOException e) {
+					throw new FileStoreException("Unable to buffer deletion of ID " + id, e);
+				}
+			} else {
+				result = deleteFile(id);
+			}
+			clearExpiry(id);
+			return result;
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			completed(Operation.DELETE, start, event, id);
+		}
+	}
+
+	/**
+	 * Releases any background resources held by this instance, such as the replication thread of
+	 * a {@link Mirror}, the group commit thread or the journal. Work that has not yet been
+	 * completed remains recorded on disk and is picked up again the next time the same resources
+	 * are attached.
+	 * 
+	 * @throws IOException
+	 *             If an error occurs in releasing resources.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			setWriteBehindBytes(0);
+		} finally {
+			closeResources();
+		}
+	}
+
+	/**
+	 * Waits until any changes held in the write-behind buffer have been written to disk. If
+	 * write-behind is not enabled, this returns immediately.
+	 * 
+	 * @throws IOException
+	 *             If buffered changes could not be written.
+	 */
+	public void flush() throws IOException {
+		WriteBehind writeBehind = this.writeBehind;
+		if (writeBehind != null) {
+			writeBehind.drain();
+		}
+	}
+
+	/**
+	 * Takes a point-in-time snapshot of the whole store under the given name. Every file is
+	 * hard-linked into a tree under the {@value #metadataFolder} folder, so a snapshot costs
+	 * folder entries rather than content, and the tree is built in parallel. Where hard links are
+	 * not available, content is copied instead.
+	 * <p>
+	 * Files in the store are never modified in place: an update replaces the file with a new one,
+	 * so the snapshot keeps the content it was taken with. Changes are only held back for a moment
+	 * at the start, to fix the point in time the snapshot reflects, and at the end. While the tree
+	 * is being built, the first change to each ID that has not yet been walked links the ID's
+	 * current file into the snapshot before changing it. See {@link SnapshotCapture}. Changes held
+	 * in the write-behind buffer are written out first. The snapshot only appears in
+	 * {@link #getSnapshots()} once it is complete.
+	 *
+	 * @param name
+	 *            The name for the snapshot. This must be a valid ID.
+	 * @throws FileStoreException
+	 *             If the name is not valid, a snapshot of that name already exists, or if an IO
+	 *             error occurs.
+	 */
+	public void snapshot(String name) throws FileStoreException {
+		if (!validId(name)) {
+			throw new FileStoreException("Invalid snapshot name " + name);
+		}
+		File folder = snapshotFolder(name);
+		if (folder.exists()) {
+			throw new FileStoreException("Duplicate snapshot " + name + " (" + folder.getPath() + ")");
+		}
+		// The "~" character cannot appear in a name, so this cannot clash with another snapshot:
+		final File partial = snapshotFolder(name + "~partial");
+		Lock lock = snapshotLock.writeLock();
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			flush();
+			synchronized (snapshotting) {
+				FileUtils.deleteDirectory(partial);
+				Files.createDirectories(partial.toPath());
+				SnapshotCapture capture = new SnapshotCapture(this, partial);
+				// Changes are only held back to fix the point in time and to end the capture:
+				lock.lock();
+				try {
+					this.capture = capture;
+				} finally {
+					lock.unlock();
+				}
+				try {
+					StoreWalker.walk(this, pool, capture);
+				} finally {
+					lock.lock();
+					try {
+						this.capture = null;
+					} finally {
+						lock.unlock();
+					}
+				}
+				Files.move(partial.toPath(), folder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+		} catch (IOException e) {
+			try {
+				FileUtils.deleteDirectory(partial);
+			} catch (IOException ignored) {
+				// The original failure is more useful
+			}
+			throw new FileStoreException("Unable to take snapshot " + name + " (" + folder.getPath() + ")", e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @return The names of the complete snapshots of this store, in alphabetical order.
+	 */
+	public List<String> getSnapshots() {
+		List<String> result = new ArrayList<String>();
+		File[] folders = metadataFile("snapshots").listFiles();
+		if (folders != null) {
+			for (File folder : folders) {
+				if (folder.isDirectory() && validId(folder.getName())) {
+					result.add(folder.getName());
+				}
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Reads the content an ID had when a snapshot was taken.
+	 *
+	 * @param name
+	 *            The name of the snapshot.
+	 * @param id
+	 *            The ID of the file to be accessed.
+	 * @return An {@link InputStream} for the file in the snapshot, or null if the snapshot or the
+	 *         file does not exist.
+	 */
+	public InputStream readSnapshot(String name, String id) {
+		if (!validId(name)) {
+			return null;
+		}
+		File file = new File(snapshotFolder(name), idToPath(id));
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			return metered(bufferPool.input(Files.newInputStream(file.toPath())));
+		} catch (IOException e) {
+			// Deleted since the check, or not readable
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes a snapshot. Only the snapshot's links are removed, so files in the store are not
+	 * affected.
+	 *
+	 * @param name
+	 *            The name of the snapshot to delete.
+	 * @throws FileStoreException
+	 *             If the snapshot does not exist, or cannot be deleted.
+	 */
+	public void deleteSnapshot(String name) throws FileStoreException {
+		File folder = validId(name) ? snapshotFolder(name) : null;
+		if (folder == null || !folder.isDirectory()) {
+			throw new FileStoreException("Unable to find snapshot " + name);
+		}
+		try {
+			FileUtils.deleteDirectory(folder);
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to delete snapshot " + name + " (" + folder.getPath() + ")", e);
+		}
+	}
+
+	/**
+	 * Reads a previous version of an ID, kept because versioning was enabled when the ID was
+	 * updated. See {@link #setMaxVersions(int)}.
+	 * 
+	 * @param id
+	 *            The ID of the file to be accessed.
+	 * @param version
+	 *            The version number, as listed by {@link #getVersions(String)}.
+	 * @return An {@link InputStream} for the given version, or null if that version is not kept.
+	 */
+	public InputStream read(String id, int version) {
+		File file = versionFile(id, version);
+		if (version <= 0 || !file.isFile()) {
+			return null;
+		}
+		try {
+			return metered(bufferPool.input(Files.newInputStream(file.toPath())));
+		} catch (IOException e) {
+			// Pruned since the check, or not readable
+			return null;
+		}
+	}
+
+	/**
+	 * Lists the previous versions kept for an ID. Each update made while versioning is enabled
+	 * adds a version holding the content the update replaced, numbered one higher than the last.
+	 * 
+	 * @param id
+	 *            The ID to query.
+	 * @return The version numbers kept for the ID, oldest first. This is empty if there are none.
+	 */
+	public List<Integer> getVersions(String id) {
+		return Versions.list(this, id);
+	}
+
+	/**
+	 * @return The number of IDs in the store, from the running total kept while usage is tracked.
+	 *         See {@link #setUsageEnabled(boolean)}.
+	 */
+	public long getObjectCount() {
+		return usage().get("").getCount();
+	}
+
+	/**
+	 * @return The number of bytes held by the IDs in the store, from the running total kept while
+	 *         usage is tracked. See {@link #setUsageEnabled(boolean)}.
+	 */
+	public long getByteCount() {
+		return usage().get("").getBytes();
+	}
+
+	/**
+	 * Sets a quota on the IDs that start with the given prefix. Once the prefix has reached either
+	 * limit, creating, copying or moving an ID with the prefix fails straight away with a
+	 * {@link FileStoreException}, before any content is written. A create whose size is not known
+	 * in advance is allowed if the prefix is under its byte limit, so the limit can be overshot by
+	 * the content of the last ID created. Updates are not limited.
+	 * <p>
+	 * Each create, copy or move reserves its share of the quota until it has been written, so
+	 * concurrent writers cannot together overshoot the limits. Creates through a stream or a
+	 * subscriber, and creates held in the write-behind buffer, are only counted once they are
+	 * written to disk, so with those the limits are approximate.
+	 * <p>
+	 * Usage must be tracked, see {@link #setUsageEnabled(boolean)}. The first time a prefix is
+	 * given a quota, its usage is counted by walking the store before this method returns.
+	 * 
+	 * @param prefix
+	 *            The ID prefix to limit. The empty string limits the whole store.
+	 * @param maxObjects
+	 *            The maximum number of IDs with the prefix.
+	 * @param maxBytes
+	 *            The maximum number of bytes held by IDs with the prefix.
+	 * @throws FileStoreException
+	 *             If the store cannot be walked.
+	 */
+	public void setQuota(String prefix, long maxObjects, long maxBytes) throws FileStoreException {
+		try {
+			usage().setQuota(prefix, maxObjects, maxBytes);
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to count the usage of prefix \"" + prefix + "\" for its quota", e);
+		}
+	}
+
+	/**
+	 * Removes the quota on the IDs that start with the given prefix, if there is one.
+	 * 
+	 * @param prefix
+	 *            The ID prefix.
+	 */
+	public void removeQuota(String prefix) {
+		usage().removeQuota(prefix);
+	}
+
+	/**
+	 * Corrects the running totals of IDs and bytes by walking the store in parallel. This happens
+	 * in the background once a day in any case; changes made during the walk are carried over.
+	 * 
+	 * @throws FileStoreException
+	 *             If the store cannot be walked.
+	 */
+	public void reconcileUsage() throws FileStoreException {
+		try {
+			usage().reconcile();
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to reconcile usage of " + basePath, e);
+		}
+	}
+
+	/**
+	 * Writes every ID in the store to the given stream as a zip archive, with one entry per ID
+	 * named by the ID, so that the store can be moved to another host or layout with
+	 * {@link #importFrom(InputStream)}. Files are read on a pool of worker threads, while entries
+	 * are written in ID path order, so the same content always gives the same archive. Changes
+	 * held in the write-behind buffer are written out first.
+	 * <p>
+	 * The export is not a point-in-time copy of the whole store: each entry is a consistent copy
+	 * of its ID, but IDs changed during the export may appear as they were either before or after
+	 * the change. The archive is finished, but the stream is not closed.
+	 *
+	 * @param output
+	 *            The stream to write the archive to.
+	 * @return The number of IDs exported.
+	 * @throws FileStoreException
+	 *             If an IO error occurs.
+	 */
+	public long exportTo(OutputStream output) throws FileStoreException {
+		try {
+			flush();
+			return Archive.export(this, output, Runtime.getRuntime().availableProcessors());
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to export " + basePath, e);
+		}
+	}
+
+	/**
+	 * Creates an ID for each entry in a zip archive written by {@link #exportTo(OutputStream)}.
+	 * Entries are created on a pool of worker threads as the archive is read, so it is never
+	 * staged on disk. Each entry is created as if by {@link #create(String, InputStream)}, so the
+	 * import stops with an exception at the first entry whose ID already exists, although entries
+	 * already being created by other threads may still be completed. The stream is not closed.
+	 *
+	 * @param input
+	 *            The stream to read the archive from.
+	 * @return The number of IDs imported.
+	 * @throws FileStoreException
+	 *             If an entry is not a valid ID or cannot be created, or if an IO error occurs.
+	 */
+	public long importFrom(InputStream input) throws FileStoreException {
+		try {
+			return Archive.importFrom(this, input, Runtime.getRuntime().availableProcessors());
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to import into " + basePath, e);
+		}
+	}
+
+	/**
+	 * Moves the files in the store from a previous layout to the current one, as set by
+	 * {@link #setIdChunkSize(int)} and {@link #setExtension(String)}, while the store stays in use.
+	 * Files are moved in parallel by a background walk of the previous layout. Until the walk is
+	 * complete, {@link #read(String)} and {@link #exists(String)} look in the previous layout for
+	 * IDs that have not been moved yet, and an ID is moved straight away when it is changed.
+	 * <p>
+	 * Progress can be followed with {@link #getRelayoutMoved()} and
+	 * {@link #isRelayoutInProgress()}. If the store is closed before the relayout is complete, it
+	 * can be continued with {@link #resumeRelayout()}. Versions, snapshots and the mirror keep the
+	 * layout they were written with.
+	 * 
+	 * @param fromIdChunkSize
+	 *            The ID chunk size the files were written with.
+	 * @param fromExtension
+	 *            The extension the files were written with.
+	 * @throws IOException
+	 *             If the state of the relayout cannot be saved.
+	 * @throws IllegalStateException
+	 *             If a relayout is already in progress.
+	 */
+	public synchronized void relayout(int fromIdChunkSize, String fromExtension) throws IOException {
+		if (isRelayoutInProgress()) {
+			throw new IllegalStateException("A relayout is already in progress for " + basePath);
+		}
+		Relayout relayout = new Relayout(this, metadataFile("relayout"), fromIdChunkSize, fromExtension, 0);
+		relayout.start();
+		this.relayout = relayout;
+	}
+
+	/**
+	 * Continues a relayout that was in progress when the store was last closed. The current ID
+	 * chunk size and extension must be set first. See {@link #relayout(int, String)}.
+	 * 
+	 * @return True if a relayout is now in progress, false if there was none to resume.
+	 * @throws IOException
+	 *             If the saved state of the relayout cannot be read.
+	 */
+	public synchronized boolean resumeRelayout() throws IOException {
+		if (isRelayoutInProgress()) {
+			return true;
+		}
+		Relayout relayout = Relayout.load(this, metadataFile("relayout"));
+		if (relayout == null) {
+			return false;
+		}
+		relayout.start();
+		this.relayout = relayout;
+		return true;
+	}
+
+	/**
+	 * @return True if a relayout has been started or resumed and has not yet moved every file.
+	 */
+	public boolean isRelayoutInProgress() {
+		Relayout relayout = this.relayout;
+		return relayout != null && !relayout.isComplete();
+	}
+
+	/**
+	 * @return The number of files moved by the current or most recent relayout, including any
+	 *         moved before it was resumed, or zero if there has been none since the store was
+	 *         opened.
+	 */
+	public long getRelayoutMoved() {
+		Relayout relayout = this.relayout;
+		return relayout != null ? relayout.getMoved() : 0;
+	}
+
+	/**
+	 * @return The sequence number that the next change recorded in the change feed will be given.
+	 *         Subscribing from this number delivers only changes made from now on. See
+	 *         {@link #setChangeFeedEnabled(boolean)}.
+	 */
+	public long getNextChangeSequence() {
+		return changeFeed().getNextSequence();
+	}
+
+	/**
+	 * Reads a batch of changes from the change feed. See {@link #setChangeFeedEnabled(boolean)}.
+	 * 
+	 * @param fromSequence
+	 *            The sequence number of the first change to read.
+	 * @param max
+	 *            The maximum number of changes to read.
+	 * @return The changes, in sequence order. This is empty if no changes have been recorded from
+	 *         the given sequence number yet.
+	 * @throws IOException
+	 *             If the changes from the given sequence number have already been discarded, or
+	 *             cannot be read.
+	 */
+	public List<Change> readChanges(long fromSequence, int max) throws IOException {
+		return changeFeed().read(fromSequence, max);
+	}
+
+	/**
+	 * Subscribes to the change feed. Each subscriber is given its own thread, which delivers a
+	 * batch of up to <code>batchSize</code> changes for each unit of demand requested through its
+	 * {@link Flow.Subscription}, so a slow consumer simply falls behind rather than holding up the
+	 * store, and waits for new changes once it has caught up. Subscribers are completed when the
+	 * feed is disabled or the store is closed, once they have read what was recorded. See
+	 * {@link #setChangeFeedEnabled(boolean)}.
+	 * 
+	 * @param fromSequence
+	 *            The sequence number of the first change to deliver. A subscriber is sent an error
+	 *            if changes from this number have already been discarded.
+	 * @param batchSize
+	 *            The maximum number of changes in each batch.
+	 * @return A publisher of batches of changes.
+	 */
+	public Flow.Publisher<List<Change>> changesFrom(long fromSequence, int batchSize) {
+		return changeFeed().publisher(fromSequence, batchSize);
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * @return The change feed.
+	 * @throws IllegalStateException
+	 *             If the change feed is not enabled.
+	 */
+	private ChangeFeed changeFeed() {
+		ChangeFeed changeFeed = this.changeFeed;
+		if (changeFeed == null) {
+			throw new IllegalStateException("The change feed is not enabled for " + basePath);
+		}
+		return changeFeed;
+	}
+
+	/**
+	 * @param id
+	 *            An ID.
+	 * @param version
+	 *            A version number.
+	 * @return The file that holds, or would hold, the given version of the ID.
+	 */
+	File versionFile(String id, int version) {
+		return new File(metadataFile("versions"), idToPath(id) + "." + version);
+	}
+
+	/**
+	 * @return A lock that holds back changes to files on disk while it is held.
+	 */
+	Lock exclusiveLock() {
+		return snapshotLock.writeLock();
+	}
+
+	/**
+	 * @return The lock that is held while a file on disk is changed.
+	 */
+	Lock sharedLock() {
+		return snapshotLock.readLock();
+	}
+
+	/**
+	 * @param name
+	 *            The name of a snapshot.
+	 * @return The folder in which the snapshot is held.
+	 */
+	private File snapshotFolder(String name) {
+		return new File(metadataFile("snapshots"), name);
+	}
+
+	/**
+	 * Releases background resources other than the write-behind buffer.
+	 * 
+	 * @throws IOException
+	 *             If an error occurs in releasing resources.
+	 */
+	private void closeResources() throws IOException {
+		if (mirror != null) {
+			mirror.close();
+		}
+		if (groupCommit != null) {
+			groupCommit.close();
+			groupCommit = null;
+		}
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+		if (versions != null) {
+			versions.close();
+			versions = null;
+		}
+		if (expiry != null) {
+			expiry.close();
+			expiry = null;
+		}
+		if (usage != null) {
+			usage.close();
+			usage = null;
+		}
+		if (relayout != null) {
+			relayout.close();
+			relayout = null;
+		}
+		if (changeWatcher != null) {
+			changeWatcher.close();
+			changeWatcher = null;
+		}
+		if (changeFeed != null) {
+			changeFeed.close();
+			changeFeed = null;
+		}
+		setPrefetchBytes(0);
+		synchronized (this) {
+			if (readers != null) {
+				readers.shutdownNow();
+				readers = null;
+			}
+		}
+		setMetricsEnabled(false);
+	}
+
+	/**
+	 * Converts the given ID to a path relative to the base path of the file store.
+	 * 
+	 * @param id
+	 *            The ID to be converted to a path.
+	 * @return A path relative to the base path of the file store.
+	 */
+	protected String idToPath(String id) {
+		return toPath(id, idChunkSize, extension);
+	}
+
+	/**
+	 * Converts the given ID to a relative path in the layout given by an ID chunk size and
+	 * extension.
+	 * 
+	 * @param id
+	 *            The ID to be converted to a path.
+	 * @param idChunkSize
+	 *            The ID chunk size of the layout.
+	 * @param extension
+	 *            The extension of the layout.
+	 * @return A path relative to the base path of the file store.
+	 */
+	static String toPath(String id, int idChunkSize, String extension) {
+		// Size the result exactly, so that it is built in a single array:
+		int length = id.length();
+		int separators = length > 0 ? (length - 1) / Math.max(idChunkSize, 1) : 0;
+		char[] result = new char[length + separators + extension.length()];
+		int pos = 0;
+		int chunkPos = 0;
+		int out = 0;
+		while (pos < length) {
+			result[out++] = id.charAt(pos);
+			pos++;
+			chunkPos++;
+			// Add a file separator at the end of each chunk, unless we have
+			// reached the end of the String:
+			if ((chunkPos >= idChunkSize) && (pos < length)) {
+				chunkPos = 0;
+				result[out++] = File.separatorChar;
+			}
+		}
+		// Finally, add the extension:
+		extension.getChars(0, extension.length(), result, out);
+		return new String(result);
+	}
+
+	/**
+	 * Converts a path relative to the base path of the file store back to the ID it represents.
+	 * This is the reverse of {@link #idToPath(String)}.
+	 * 
+	 * @param path
+	 *            A path relative to the base path of the file store, including the extension.
+	 * @return The ID that maps to the given path.
+	 */
+	protected String pathToId(String path) {
+		int length = path.length() - extension.length();
+		StringBuilder result = new StringBuilder(length);
+		for (int pos = 0; pos < length; pos++) {
+			char c = path.charAt(pos);
+			if (c != File.separatorChar) {
+				result.append(c);
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Converts an ID into a {@link File} in the file store. Recently resolved IDs are held in a
+	 * small direct-mapped cache, so repeated access to the same ID allocates nothing.
+	 * 
+	 * @param id
+	 *            The ID to be converted.
+	 * @return A {@link File} instance representing the file that corresponds to the given ID.
+	 */
+	protected File idToFile(String id) {
+		return resolve(id).file;
+	}
+
+	/**
+	 * Converts an ID into a {@link Path} in the file store. This shares the cache used by
+	 * {@link #idToFile(String)}.
+	 * 
+	 * @param id
+	 *            The ID to be converted.
+	 * @return A {@link Path} for the file that corresponds to the given ID.
+	 */
+	protected Path idToNioPath(String id) {
+		return resolve(id).path;
+	}
+
+	/**
+	 * Looks up the {@link File} and {@link Path} for an ID in the cache, resolving them if
+	 * necessary.
+	 * 
+	 * @param id
+	 *            The ID to be resolved.
+	 * @return The cache entry for the ID.
+	 */
+	private CachedFile resolve(String id) {
+		int index = id.hashCode() & (fileCacheSize - 1);
+		CachedFile cached = fileCache[index];
+		if (cached != null && cached.id.equals(id)) {
+			return cached;
+		}
+		String relative = idToPath(id);
+		File file = new File(basePath, relative);
+		Path path = base != null ? base.resolve(relative) : file.toPath();
+		cached = new CachedFile(id, file, path);
+		fileCache[index] = cached;
+		return cached;
+	}
+
+	/**
+	 * Opens a {@link ParallelReader} for an ID, taking expiry, the write-behind buffer and any
+	 * relayout into account, as {@link #read(String)} does.
+	 * 
+	 * @param id
+	 *            The ID to read.
+	 * @param parallelism
+	 *            The number of ranges to read concurrently.
+	 * @return The reader, or null if the ID does not exist.
+	 * @throws IOException
+	 *             If the file cannot be opened.
+	 */
+	private ParallelReader parallelReader(String id, int parallelism) throws IOException {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("The parallelism must be at least 1.");
+		}
+		Expiry expiry = this.expiry;
+		if (expiry != null && expiry.isExpired(id)) {
+			return null;
+		}
+		WriteBehind writeBehind = this.writeBehind;
+		if (writeBehind != null) {
+			WriteBehind.Pending pending = writeBehind.get(id);
+			if (pending != null) {
+				return pending.content != null ? new ParallelReader(pending.content) : null;
+			}
+		}
+		CachedFile resolved = resolve(id);
+		Path path = resolved.path;
+		if (!resolved.file.isFile()) {
+			File previous = beforeRelayout(id);
+			if (previous == null) {
+				return null;
+			}
+			path = previous.toPath();
+		}
+		return new ParallelReader(path, parallelism, readers(), bufferPool);
+	}
+
+	/**
+	 * @return The threads shared by parallel reads, created the first time they are needed.
+	 */
+	private synchronized ExecutorService readers() {
+		if (readers == null) {
+			readers = ParallelReader.newPool();
+		}
+		return readers;
+	}
+
+	/**
+	 * Creates a file for the given ID on disk.
+	 * 
+	 * @param id
+	 *            The ID for the new file.
+	 * @param content
+	 *            The content for the file.
+	 * @param expectedSize
+	 *            The expected length of the content, or -1 if it is not known.
+	 * @return The number of bytes written.
+	 * @throws FileStoreException
+	 *             If the ID already exists, or if an IO error occurs.
+	 */
+	private long createFile(String id, InputStream content, long expectedSize) throws FileStoreException {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			File file = idToFile(id);
+			File folder = file.getParentFile();
+			try {
+				preserve(id, file);
+				long written;
+				if (journal != null) {
+					if (file.exists()) {
+						throw new FileStoreException("Duplicate file ID " + id + " (" + file.getPath() + ")");
+					}
+					written = writeJournaled(journal.intent(Operation.CREATE, id), id, file, content, true,
+							expectedSize);
+				} else {
+					boolean newFolders = folder.mkdirs();
+					// Check that the file doesn't already exist and can be created
+					if (!file.createNewFile()) {
+						throw new FileStoreException("Duplicate file ID " + id + " (" + file.getPath() + ")");
+					}
+					try {
+						written = writeFile(file, content, expectedSize);
+					} catch (IOException e) {
+						// Nothing else can be using the file yet, so free the ID rather than leave
+						// partial content under it:
+						file.delete();
+						throw e;
+					}
+					sync(file, true, newFolders);
+				}
+				accounted(id, -1, written);
+				mirror(id);
+				return written;
+			} catch (FileAlreadyExistsException e) {
+				throw new FileStoreException("Duplicate file ID " + id + " (" + file.getPath() + ")", e);
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to create file for ID " + id + " (" + file.getPath() + ")", e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Replaces the content of the file for the given ID on disk. The content is written to a
+	 * temporary file that then replaces the file, so the file is never modified in place and every
+	 * update gets a new file, and so a new {@link #getTag(String) tag}.
+	 * 
+	 * @param id
+	 *            The ID of the file to be updated.
+	 * @param content
+	 *            The new content for the file.
+	 * @return The number of bytes written.
+	 * @throws FileStoreException
+	 *             If the ID does not exist, or if an error occurs while updating the file.
+	 */
+	private long updateFile(String id, InputStream content) throws FileStoreException {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			File file = idToFile(id);
+			// Check existence directly (for expedience) rather than calling the
+			// exists method
+			if (!file.exists()) {
+				throw new FileStoreException("Unable to find file ID " + id + " (" + file.getPath() + ")");
+			}
+			long previous = file.length();
+			try {
+				preserve(id, file);
+				long written;
+				if (journal != null) {
+					written = writeJournaled(journal.intent(Operation.UPDATE, id), id, file, content, false, -1);
+				} else {
+					// Write alongside, so that the current file can be set aside as a version
+					// and any snapshot or copy sharing it through a hard link keeps its content:
+					File temp = tempFile("write");
+					try {
+						written = writeCounted(temp, content);
+						sync(temp, false, false);
+						replaceFile(id, file, temp);
+					} finally {
+						temp.delete();
+					}
+					syncFolders(file, false);
+				}
+				accounted(id, previous, written);
+				mirror(id);
+				return written;
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to update file for ID " + id + " (" + file.getPath() + ")", e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes new content for an ID to a temporary file and, if the file for the ID still has the
+	 * expected tag, moves it into place. Only the comparison and the move happen under the lock for
+	 * the ID, and other IDs are written concurrently.
+	 * 
+	 * @param id
+	 *            The ID being written.
+	 * @param content
+	 *            The new content.
+	 * @param expectedTag
+	 *            The tag the file must have, or null if it must not exist.
+	 * @param event
+	 *            The event for the operation, to record the number of bytes written.
+	 * @return The tag of the new content.
+	 * @throws FileStoreException
+	 *             {@link TagMismatchException} if the tag does not match, or if an IO error occurs.
+	 */
+	private String swapFile(String id, InputStream content, String expectedTag, FileStoreEvent event)
+			throws FileStoreException {
+		File file = idToFile(id);
+		Journal journal = this.journal;
+		try {
+			long seq = journal != null ? journal.intent(expectedTag != null ? Operation.UPDATE : Operation.CREATE, id)
+					: -1;
+			File temp = journal != null ? journal.tempFile(seq) : tempFile("write");
+			try {
+				long written = writeCounted(temp, content);
+				event.bytes = written;
+				sync(temp, false, false);
+				boolean newFolders = file.getParentFile().mkdirs();
+				String tag;
+				Lock lock = snapshotLock.readLock();
+				lock.lock();
+				try {
+					synchronized (tagLocks[id.hashCode() & (tagLockStripes - 1)]) {
+						preserve(id, file);
+						String current = tag(file);
+						if (expectedTag == null ? current != null : !expectedTag.equals(current)) {
+							throw new TagMismatchException(id, expectedTag, current);
+						}
+						long previous = current != null ? file.length() : -1;
+						if (journal != null) {
+							publish(seq, id, file, temp, current == null);
+						} else if (current == null) {
+							Files.move(temp.toPath(), file.toPath());
+						} else {
+							replaceFile(id, file, temp);
+						}
+						accounted(id, previous, written);
+						tag = tag(file);
+					}
+				} finally {
+					lock.unlock();
+				}
+				syncFolders(file, newFolders);
+				mirror(id);
+				return tag;
+			} finally {
+				temp.delete();
+				if (journal != null) {
+					journal.done(seq);
+				}
+			}
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to update file for ID " + id + " (" + file.getPath() + ")", e);
+		}
+	}
+
+	/**
+	 * Computes the tag for a file from its size, its modification time and, where the file system
+	 * provides one, the key that identifies the file itself, so that a file replaced within the
+	 * resolution of the modification time still gets a new tag.
+	 * 
+	 * @param file
+	 *            The file.
+	 * @return The tag, or null if the file does not exist.
+	 * @throws IOException
+	 *             If the attributes of the file cannot be read.
+	 */
+	private static String tag(File file) throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (!attributes.isRegularFile()) {
+			return null;
+		}
+		Object key = attributes.fileKey();
+		return Long.toHexString(attributes.size()) + "-"
+				+ Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)) + "-"
+				+ Integer.toHexString(key != null ? key.hashCode() : 0);
+	}
+
+	/**
+	 * Deletes the file for the given ID from disk.
+	 * 
+	 * @param id
+	 *            The ID to be deleted.
+	 * @return The return value of {@link Files#deleteIfExists(Path)}.
+	 * @throws FileStoreException
+	 *             If the file to be deleted does not exist, or cannot be deleted.
+	 */
+	private boolean deleteFile(String id) throws FileStoreException {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			File file = idToFile(id);
+			// Check existence directly (for expedience) rather than calling the
+			// exists method
+			if (!file.exists()) {
+				throw new FileStoreException("Unable to find file ID " + id + " (" + file.getPath() + ")");
+			}
+			long previous = file.length();
+			try {
+				preserve(id, file);
+				long seq = journal != null ? journal.intent(Operation.DELETE, id) : 0;
+				boolean result = Files.deleteIfExists(idToNioPath(id));
+				if (result) {
+					accounted(id, previous, -1);
+					syncFolders(file, false);
+					mirror(id);
+				}
+				if (journal != null) {
+					journal.done(seq);
+				}
+				return result;
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to complete deletion of ID " + id + " (" + file.getPath() + ")", e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copies the file of one ID to a new ID on disk.
+	 * 
+	 * @param fromId
+	 *            The ID of the file to be copied.
+	 * @param toId
+	 *            The ID for the copy.
+	 * @return The number of bytes copied.
+	 * @throws FileStoreException
+	 *             If the original ID does not exist, the new ID already exists, or if an IO error
+	 *             occurs.
+	 */
+	private long copyFile(String fromId, String toId) throws FileStoreException {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			File from = idToFile(fromId);
+			File to = idToFile(toId);
+			if (!from.isFile()) {
+				throw new FileStoreException("Unable to find file ID " + fromId + " (" + from.getPath() + ")");
+			}
+			try {
+				preserve(toId, to);
+				long length = from.length();
+				if (journal != null) {
+					if (to.exists()) {
+						throw new FileStoreException("Duplicate file ID " + toId + " (" + to.getPath() + ")");
+					}
+					long seq = journal.intent(Operation.CREATE, toId);
+					File temp = journal.tempFile(seq);
+					try {
+						duplicate(from, temp);
+						publish(seq, toId, to, temp, true);
+					} finally {
+						temp.delete();
+						journal.done(seq);
+					}
+				} else {
+					boolean newFolders = to.getParentFile().mkdirs();
+					duplicate(from, to);
+					sync(to, true, newFolders);
+				}
+				accounted(toId, -1, length);
+				mirror(toId);
+				return length;
+			} catch (FileAlreadyExistsException e) {
+				throw new FileStoreException("Duplicate file ID " + toId + " (" + to.getPath() + ")", e);
+			} catch (NoSuchFileException e) {
+				throw new FileStoreException("Unable to find file ID " + fromId + " (" + from.getPath() + ")", e);
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to copy file ID " + fromId + " to " + toId + " (" + to.getPath() + ")", e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the file of one ID to a new ID on disk.
+	 * 
+	 * @param fromId
+	 *            The ID of the file to be moved.
+	 * @param toId
+	 *            The new ID for the file.
+	 * @return The number of bytes moved.
+	 * @throws FileStoreException
+	 *             If the original ID does not exist, the new ID already exists, or if an IO error
+	 *             occurs.
+	 */
+	private long moveFile(String fromId, String toId) throws FileStoreException {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			if (journal != null) {
+				long length = copyFile(fromId, toId);
+				deleteFile(fromId);
+				return length;
+			}
+			File from = idToFile(fromId);
+			File to = idToFile(toId);
+			if (!from.isFile()) {
+				throw new FileStoreException("Unable to find file ID " + fromId + " (" + from.getPath() + ")");
+			}
+			try {
+				preserve(fromId, from);
+				preserve(toId, to);
+				long length = from.length();
+				boolean newFolders = to.getParentFile().mkdirs();
+				boolean linked = false;
+				if (hardLinks) {
+					try {
+						Files.createLink(to.toPath(), from.toPath());
+						linked = true;
+					} catch (FileAlreadyExistsException | NoSuchFileException e) {
+						throw e;
+					} catch (FileSystemException | UnsupportedOperationException e) {
+						// Hard links are not available here
+					}
+				}
+				if (linked) {
+					Files.delete(from.toPath());
+				} else {
+					Files.move(from.toPath(), to.toPath());
+				}
+				syncFolders(to, newFolders);
+				syncFolders(from, false);
+				accounted(fromId, length, -1);
+				accounted(toId, -1, length);
+				mirror(toId);
+				mirror(fromId);
+				return length;
+			} catch (FileAlreadyExistsException e) {
+				throw new FileStoreException("Duplicate file ID " + toId + " (" + to.getPath() + ")", e);
+			} catch (NoSuchFileException e) {
+				throw new FileStoreException("Unable to find file ID " + fromId + " (" + from.getPath() + ")", e);
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to move file ID " + fromId + " to " + toId + " (" + to.getPath() + ")", e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives a new name to the content of a file: as a hard link where possible, otherwise as a
+	 * copy made by the operating system.
+	 * 
+	 * @param from
+	 *            The existing file.
+	 * @param to
+	 *            The new file, which must not exist.
+	 * @throws IOException
+	 *             If the file cannot be linked or copied, including
+	 *             {@link FileAlreadyExistsException} if the new file already exists.
+	 */
+	void duplicate(File from, File to) throws IOException {
+		if (hardLinks) {
+			try {
+				Files.createLink(to.toPath(), from.toPath());
+				return;
+			} catch (FileAlreadyExistsException e) {
+				throw e;
+			} catch (FileSystemException | UnsupportedOperationException e) {
+				// E.g. a different device: fall back to copying
+			}
+		}
+		try (FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				position += in.transferTo(position, size - position, out);
+			}
+		}
+	}
+
+	/**
+	 * Writes a change from the write-behind buffer to disk. The ID is created, updated or deleted
+	 * according to its current state on disk.
+	 * 
+	 * @param id
+	 *            The ID that has changed.
+	 * @param content
+	 *            The new content, or null if the ID has been deleted.
+	 * @throws IOException
+	 *             If the change cannot be written.
+	 */
+	void writeThrough(String id, byte[] content) throws IOException {
+		try {
+			boolean exists = idToFile(id).exists();
+			if (content == null) {
+				if (exists) {
+					deleteFile(id);
+				}
+			} else if (exists) {
+				updateFile(id, new ByteArrayInputStream(content));
+			} else {
+				createFile(id, new ByteArrayInputStream(content), -1);
+			}
+		} catch (FileStoreException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Deletes an ID whose time to live has passed, on behalf of the expiry sweeper. An ID that has
+	 * already gone is ignored.
+	 * 
+	 * @param id
+	 *            The ID that has expired.
+	 * @throws IOException
+	 *             If the ID cannot be deleted.
+	 */
+	void deleteExpired(String id) throws IOException {
+		WriteBehind writeBehind = this.writeBehind;
+		try {
+			ownChange(id);
+			relocate(id);
+			if (writeBehind != null) {
+				if (writeBehind.exists(id)) {
+					writeBehind.delete(id);
+				}
+			} else if (idToFile(id).exists()) {
+				deleteFile(id);
+			}
+		} catch (FileStoreException e) {
+			// Without a cause, the ID was deleted in the meantime
+			if (e.getCause() != null) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param id
+	 *            An ID.
+	 * @return The size of the content of the ID, taking buffered changes into account, or -1 if
+	 *         the ID does not exist.
+	 */
+	private long sizeOf(String id) {
+		WriteBehind writeBehind = this.writeBehind;
+		WriteBehind.Pending pending = writeBehind != null ? writeBehind.get(id) : null;
+		if (pending != null) {
+			return pending.content != null ? pending.content.length : -1;
+		}
+		File file = idToFile(id);
+		return file.isFile() ? file.length() : -1;
+	}
+
+	/**
+	 * @return The usage tracker.
+	 * @throws IllegalStateException
+	 *             If usage is not being tracked.
+	 */
+	private Usage usage() {
+		Usage usage = this.usage;
+		if (usage == null) {
+			throw new IllegalStateException("Usage is not tracked for " + basePath);
+		}
+		return usage;
+	}
+
+	/**
+	 * Moves the given ID to the current layout if a relayout is in progress and has not reached it
+	 * yet, so that the operation about to run changes it in the current layout.
+	 * 
+	 * @param id
+	 *            The ID about to be changed.
+	 * @throws FileStoreException
+	 *             If the ID cannot be moved.
+	 */
+	private void relocate(String id) throws FileStoreException {
+		Relayout relayout = this.relayout;
+		if (relayout != null && !relayout.isComplete()) {
+			try {
+				relayout.relocate(id);
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to move ID " + id + " to the current layout", e);
+			}
+		}
+	}
+
+	/**
+	 * Finds the file for an ID that a relayout in progress has not moved yet.
+	 * 
+	 * @param id
+	 *            The ID, which is missing from the current layout.
+	 * @return The file holding the ID, or null if there is none or no relayout is in progress.
+	 */
+	private File beforeRelayout(String id) {
+		Relayout relayout = this.relayout;
+		if (relayout == null || relayout.isComplete()) {
+			return null;
+		}
+		File previous = relayout.previousFile(id);
+		if (previous.isFile()) {
+			return previous;
+		}
+		// Moved between the two checks:
+		File file = idToFile(id);
+		return file.isFile() ? file : null;
+	}
+
+	/**
+	 * Deletes the given ID straight away if it has expired, so that the operation about to run
+	 * treats it as absent.
+	 * 
+	 * @param id
+	 *            The ID about to be used.
+	 * @throws FileStoreException
+	 *             If the expired ID cannot be deleted.
+	 */
+	private void expireIfDue(String id) throws FileStoreException {
+		Expiry expiry = this.expiry;
+		if (expiry != null) {
+			try {
+				expiry.expireIfDue(id);
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to delete expired ID " + id, e);
+			}
+		}
+	}
+
+	/**
+	 * Carries the expiry time of an ID over to its copy, or to its new ID when moved.
+	 * 
+	 * @param fromId
+	 *            The ID that was copied or moved.
+	 * @param toId
+	 *            The new ID.
+	 * @param move
+	 *            True if the original ID has gone.
+	 * @throws FileStoreException
+	 *             If the expiry time cannot be recorded.
+	 */
+	private void copyExpiry(String fromId, String toId, boolean move) throws FileStoreException {
+		Expiry expiry = this.expiry;
+		Long deadline = expiry != null ? expiry.get(fromId) : null;
+		if (deadline == null) {
+			return;
+		}
+		try {
+			expiry.set(toId, deadline.longValue());
+			if (move) {
+				expiry.clear(fromId);
+			}
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to record expiry of ID " + toId, e);
+		}
+	}
+
+	/**
+	 * Stops a deleted ID from expiring.
+	 * 
+	 * @param id
+	 *            The ID that has been deleted.
+	 * @throws FileStoreException
+	 *             If the change cannot be recorded.
+	 */
+	private void clearExpiry(String id) throws FileStoreException {
+		Expiry expiry = this.expiry;
+		if (expiry != null) {
+			try {
+				expiry.clear(id);
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to record deletion of ID " + id, e);
+			}
+		}
+	}
+
+	/**
+	 * Reads content into memory so that it can be held in the write-behind buffer.
+	 * 
+	 * @param id
+	 *            The ID the content is for.
+	 * @param content
+	 *            The content. The stream is not closed.
+	 * @return The content.
+	 * @throws FileStoreException
+	 *             If the content cannot be read.
+	 */
+	private byte[] buffer(String id, InputStream content) throws FileStoreException {
+		if (content == null) {
+			throw new NullPointerException("Null content stream.");
+		}
+		try {
+			return IOUtils.toByteArray(content);
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to read content for ID " + id, e);
+		}
+	}
+
+	/**
+	 * Returns an output stream that collects content in memory and places it in the write-behind
+	 * buffer when the stream is closed.
+	 * 
+	 * @param writeBehind
+	 *            The write-behind buffer.
+	 * @param id
+	 *            The ID being written.
+	 * @return An output stream for the ID.
+	 */
+	private OutputStream bufferingOutputStream(WriteBehind writeBehind, String id) {
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		return new CompletingOutputStream(content, () -> {
+			try {
+				writeBehind.update(id, content.toByteArray());
+			} catch (FileStoreException e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		});
+	}
+
+	/**
+	 * This method writes the contents of the given {@link InputStream} to the given {@link File}.
+	 * If content is null, a {@link NullPointerException} is thrown. Content is copied in blocks
+	 * through a buffer borrowed from the {@link BufferPool}, so there is no need to buffer the
+	 * incoming content parameter. This method does not close the content {@link InputStream}.
+	 * 
+	 * @param file
+	 *            The file to which content will be written (if not null) or which will otherwise be
+	 *            created if it does not exist.
+	 * @param content
+	 *            The content to be written to the file. The caller is responsible for closing the
+	 *            stream - this method does not assume that it should be closed.
+	 * @throws IOException
+	 *             If an error occurs.
+	 */
+	protected void writeFile(File file, InputStream content) throws IOException {
+
+		if (content == null) {
+			throw new NullPointerException("Null content stream.");
+		}
+
+		OutputStream output = openOutputStream(file);
+		byte[] buffer = bufferPool.acquireHeap();
+		long written = 0;
+		try {
+			int count;
+			while ((count = content.read(buffer)) != -1) {
+				output.write(buffer, 0, count);
+				written += count;
+			}
+		} finally {
+			bufferPool.release(buffer);
+			IOUtils.closeQuietly(output);
+			if (metrics != null) {
+				metrics.written(written);
+			}
+		}
+	}
+
+	/**
+	 * Writes content through {@link #writeFile(File, InputStream)}, counting the bytes written.
+	 * 
+	 * @param file
+	 *            The file to write to.
+	 * @param content
+	 *            The content.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             If the content cannot be written.
+	 */
+	private long writeCounted(File file, InputStream content) throws IOException {
+		if (content == null) {
+			throw new NullPointerException("Null content stream.");
+		}
+		CountingInputStream counting = new CountingInputStream(content);
+		writeFile(file, counting);
+		return counting.getByteCount();
+	}
+
+	/**
+	 * Writes content whose length is known to the given file. The content is read through a pooled
+	 * heap buffer and gathered in a pooled direct buffer, limited to a byte beyond the expected
+	 * size, so that content which fits is read to its end and written in a single call. Larger
+	 * content is written a whole direct buffer at a time. Reading stops as soon as the content
+	 * turns out to be longer than expected.
+	 * 
+	 * @param file
+	 *            The file to write to.
+	 * @param content
+	 *            The content.
+	 * @param expectedSize
+	 *            The expected length of the content or, if it is not known, -1, in which case
+	 *            this is the same as {@link #writeFile(File, InputStream)}.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             If the content cannot be written, or is not the expected length.
+	 */
+	private long writeFile(File file, InputStream content, long expectedSize) throws IOException {
+		if (expectedSize < 0) {
+			return writeCounted(file, content);
+		}
+		if (content == null) {
+			throw new NullPointerException("Null content stream.");
+		}
+
+		byte[] input = bufferPool.acquireHeap();
+		ByteBuffer output = bufferPool.acquireDirect();
+		long written = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			output.limit((int) Math.min(expectedSize + 1, output.capacity()));
+			int count;
+			while ((count = content.read(input, 0, Math.min(input.length, output.remaining()))) != -1) {
+				output.put(input, 0, count);
+				if (written + output.position() > expectedSize) {
+					throw new IOException("Content is longer than the expected " + expectedSize + " bytes");
+				}
+				if (!output.hasRemaining()) {
+					written += drain(output, channel);
+				}
+			}
+			written += drain(output, channel);
+			if (written != expectedSize) {
+				throw new IOException("Content is " + written + " bytes, not the expected " + expectedSize);
+			}
+		} finally {
+			bufferPool.release(input);
+			bufferPool.release(output);
+			if (metrics != null) {
+				metrics.written(written);
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * Writes out the content gathered in a buffer and clears it for reuse.
+	 * 
+	 * @param buffer
+	 *            The buffer, in write mode.
+	 * @param channel
+	 *            The channel to write to.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             If the content cannot be written.
+	 */
+	private static int drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		int count = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+		return count;
+	}
+
+	/**
+	 * Creates an output stream for the given file. The caller is responsible for closing the
+	 * returned stream.
+	 * 
+	 * @param file
+	 *            The file to create an output stream for
+	 * @return A buffered output stream for the given file, using a buffer from the
+	 *         {@link BufferPool}
+	 * @throws IOException
+	 *             If it is not possible to create a file output stream for the given file
+	 */
+	private OutputStream createOutputStream(File file) throws IOException {
+		return bufferPool.output(openOutputStream(file));
+	}
+
+	/**
+	 * Opens an unbuffered output stream for the given file.
+	 * 
+	 * @param file
+	 *            The file to create an output stream for
+	 * @return An output stream for the given file
+	 * @throws IOException
+	 *             If it is not possible to create a file output stream for the given file
+	 */
+	private static OutputStream openOutputStream(File file) throws IOException {
+		try {
+			return Files.newOutputStream(file.toPath());
+		} catch (IOException e) {
+			throw new IOException("Unable to create output stream for file " + file.getPath(), e);
+		}
+	}
+
+	/**
+	 * Resolves a file in the {@value #metadataFolder} folder. The folder itself is not created.
+	 * 
+	 * @param name
+	 *            The name of the housekeeping file.
+	 * @return A {@link File} for the given name in the metadata folder.
+	 */
+	protected File metadataFile(String name) {
+		return new File(new File(basePath, metadataFolder), name);
+	}
+
+	/**
+	 * Reserves an ID for a create whose content is still to be written, by creating an empty file
+	 * for it. The reservation is not accounted for; the create is, once its content is in place.
+	 * 
+	 * @param id
+	 *            The ID to reserve.
+	 * @param file
+	 *            The file for the ID.
+	 * @return Whether folders were created for the file.
+	 * @throws FileStoreException
+	 *             If the ID already exists.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	private boolean reserve(String id, File file) throws FileStoreException, IOException {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			preserve(id, file);
+			boolean newFolders = file.getParentFile().mkdirs();
+			// Check that the file doesn't already exist and can be created
+			if (!file.createNewFile()) {
+				throw new FileStoreException("Duplicate file ID " + id + " (" + file.getPath() + ")");
+			}
+			return newFolders;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Releases an ID reserved by {@link #reserve(String, File)} whose content was never written.
+	 * 
+	 * @param file
+	 *            The file reserving the ID.
+	 */
+	private void release(File file) {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			file.delete();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns an output stream for a create or update that is not journaled. Content is written to
+	 * a temporary file, which atomically replaces the file for the ID when the stream is closed.
+	 * The file is therefore never modified in place, so a snapshot taken while the stream is open
+	 * keeps the content from before the stream was opened.
+	 * 
+	 * @param id
+	 *            The ID being written.
+	 * @param file
+	 *            The file for the ID.
+	 * @param created
+	 *            Whether the file has just been created, in which case it is not versioned.
+	 * @param newFolders
+	 *            Whether folders were created for the file.
+	 * @return An output stream for the temporary file.
+	 * @throws IOException
+	 *             If it is not possible to create an output stream for the temporary file.
+	 */
+	private OutputStream copyOnWriteOutputStream(String id, File file, boolean created, boolean newFolders)
+			throws IOException {
+		File temp = tempFile("write");
+		OutputStream output;
+		try {
+			output = createOutputStream(temp);
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		}
+		return new CompletingOutputStream(output, copyOnWriteCompletion(id, file, temp, created, newFolders));
+	}
+
+	/**
+	 * Returns the work to do once the content of a copy-on-write create or update is complete in
+	 * its temporary file: the temporary file atomically replaces the file for the ID.
+	 * 
+	 * @param id
+	 *            The ID being written.
+	 * @param file
+	 *            The file for the ID.
+	 * @param temp
+	 *            The temporary file the content is written to.
+	 * @param created
+	 *            Whether the file has just been created, in which case it is not versioned.
+	 * @param newFolders
+	 *            Whether folders were created for the file.
+	 * @return The completion.
+	 */
+	private CompletingOutputStream.Completion copyOnWriteCompletion(String id, File file, File temp, boolean created,
+			boolean newFolders) {
+		return () -> {
+			Lock lock = snapshotLock.readLock();
+			lock.lock();
+			try {
+				written(temp);
+				sync(temp, false, false);
+				preserve(id, file);
+				long length = temp.length();
+				// A created file is only a reservation until now, so this is the create:
+				long previous = created ? -1 : file.length();
+				if (created) {
+					Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				} else {
+					replaceFile(id, file, temp);
+				}
+				accounted(id, previous, length);
+			} finally {
+				lock.unlock();
+				temp.delete();
+			}
+			syncFolders(file, newFolders);
+			mirror(id);
+		};
+	}
+
+	/**
+	 * Writes new content for a journaled create or update. The content is written to a temporary
+	 * file, which is then published under the ID.
+	 * 
+	 * @param seq
+	 *            The journal sequence number of the operation.
+	 * @param id
+	 *            The ID being written.
+	 * @param file
+	 *            The file for the ID.
+	 * @param content
+	 *            The new content.
+	 * @param create
+	 *            True for a create, false for an update.
+	 * @param expectedSize
+	 *            The expected length of the content, or -1 if it is not known.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 *             If the content cannot be written or published.
+	 */
+	private long writeJournaled(long seq, String id, File file, InputStream content, boolean create,
+			long expectedSize) throws IOException {
+		File temp = journal.tempFile(seq);
+		try {
+			long written = writeFile(temp, content, expectedSize);
+			publish(seq, id, file, temp, create);
+			return written;
+		} finally {
+			// The temporary file must be gone before the operation is marked done, otherwise
+			// recovery could publish it:
+			temp.delete();
+			journal.done(seq);
+		}
+	}
+
+	/**
+	 * Returns an output stream for a journaled create or update. Content is written to a
+	 * temporary file, which is published under the ID when the stream is closed.
+	 * 
+	 * @param seq
+	 *            The journal sequence number of the operation.
+	 * @param id
+	 *            The ID being written.
+	 * @param file
+	 *            The file for the ID.
+	 * @param create
+	 *            True for a create, false for an update.
+	 * @return An output stream for the temporary file.
+	 * @throws IOException
+	 *             If it is not possible to create an output stream for the temporary file.
+	 */
+	private OutputStream journaledOutputStream(long seq, String id, File file, boolean create) throws IOException {
+		File temp = journal.tempFile(seq);
+		return new CompletingOutputStream(createOutputStream(temp), () -> {
+			Lock lock = snapshotLock.readLock();
+			lock.lock();
+			try {
+				written(temp);
+				preserve(id, file);
+				long length = temp.length();
+				long previous = create ? -1 : file.length();
+				publish(seq, id, file, temp, create);
+				accounted(id, previous, length);
+			} finally {
+				lock.unlock();
+				temp.delete();
+				journal.done(seq);
+			}
+			mirror(id);
+		});
+	}
+
+	/**
+	 * Publishes the content of a temporary file under an ID. For an update, the temporary file
+	 * atomically replaces the existing file. For a create, the temporary file is hard-linked into
+	 * place, which fails atomically if the ID has been created in the meantime.
+	 * 
+	 * @param seq
+	 *            The journal sequence number of the operation.
+	 * @param id
+	 *            The ID being published.
+	 * @param file
+	 *            The file for the ID.
+	 * @param temp
+	 *            The temporary file holding the complete content.
+	 * @param create
+	 *            True for a create, false for an update.
+	 * @throws IOException
+	 *             If the file cannot be published, including
+	 *             {@link FileAlreadyExistsException} if a created ID already exists.
+	 */
+	private void publish(long seq, String id, File file, File temp, boolean create) throws IOException {
+		sync(temp, false, false);
+		journal.ready(seq);
+		boolean newFolders = file.getParentFile().mkdirs();
+		if (create) {
+			link(temp, file);
+		} else {
+			replaceFile(id, file, temp);
+		}
+		syncFolders(file, newFolders);
+	}
+
+	/**
+	 * Publishes the file of a {@link MultipartUpload} under its ID.
+	 * 
+	 * @param id
+	 *            The ID for the new file.
+	 * @param temp
+	 *            The complete file.
+	 * @param size
+	 *            The size of the file.
+	 * @throws FileStoreException
+	 *             If the ID already exists, or if an IO error occurs.
+	 */
+	void commitUpload(String id, File temp, long size) throws FileStoreException {
+		long start = System.nanoTime();
+		FileStoreEvent event = new FileStoreEvent.Create();
+		event.begin();
+		Usage.Reservation quota = Usage.Reservation.none;
+		try {
+			ownChange(id);
+			relocate(id);
+			expireIfDue(id);
+			quota = reserveQuota(id, size, null);
+			event.bytes = size;
+			File file = idToFile(id);
+			try {
+				// The ID may have been created while the parts were being written:
+				flush();
+				sync(temp, false, false);
+				Lock lock = snapshotLock.readLock();
+				lock.lock();
+				try {
+					preserve(id, file);
+					boolean newFolders = file.getParentFile().mkdirs();
+					link(temp, file);
+					accounted(id, -1, size);
+					syncFolders(file, newFolders);
+				} finally {
+					lock.unlock();
+				}
+				mirror(id);
+			} catch (FileAlreadyExistsException e) {
+				throw new FileStoreException("Duplicate file ID " + id + " (" + file.getPath() + ")", e);
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to create file for ID " + id + " (" + file.getPath() + ")", e);
+			}
+		} catch (FileStoreException e) {
+			throw failed(e);
+		} finally {
+			quota.release();
+			completed(Operation.CREATE, start, event, id);
+		}
+	}
+
+	/**
+	 * Publishes a temporary file under a new name by hard-linking it into place, which fails
+	 * atomically if the name has been taken. Where hard links are not available, the file is moved
+	 * instead.
+	 * 
+	 * @param temp
+	 *            The temporary file.
+	 * @param file
+	 *            The new name.
+	 * @throws IOException
+	 *             If the file cannot be published, including {@link FileAlreadyExistsException} if
+	 *             the name is taken.
+	 */
+	private static void link(File temp, File file) throws IOException {
+		try {
+			Files.createLink(file.toPath(), temp.toPath());
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (FileSystemException | UnsupportedOperationException e) {
+			// Hard links are not available here:
+			Files.move(temp.toPath(), file.toPath());
+		}
+	}
+
+	/**
+	 * Atomically replaces the file for an ID with a temporary file. If versioning is enabled, the
+	 * current file is first set aside as a version.
+	 * 
+	 * @param id
+	 *            The ID being updated.
+	 * @param file
+	 *            The file for the ID.
+	 * @param temp
+	 *            The temporary file holding the complete content.
+	 * @throws IOException
+	 *             If the file cannot be replaced.
+	 */
+	private void replaceFile(String id, File file, File temp) throws IOException {
+		Versions versions = this.versions;
+		if (versions != null) {
+			versions.replace(id, file, temp);
+		} else {
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * Creates an empty temporary file in the {@value #metadataFolder} folder, on the same file
+	 * system as the store, so that it can be moved into place atomically.
+	 * 
+	 * @param prefix
+	 *            A prefix for the name of the file.
+	 * @return The new file.
+	 * @throws IOException
+	 *             If the file cannot be created.
+	 */
+	private File tempFile(String prefix) throws IOException {
+		File folder = metadataFile("tmp");
+		folder.mkdirs();
+		return File.createTempFile(prefix, ".tmp", folder);
+	}
+
+	/**
+	 * Deletes the files in the temporary folder that have not been modified since the given
+	 * time: content of creates and updates that never completed, multipart uploads that were
+	 * never committed, and files left by a crash part way through a swap.
+	 * 
+	 * @param before
+	 *            Files last modified before this time, in milliseconds since the epoch, are
+	 *            deleted.
+	 */
+	private void deleteTempFiles(long before) {
+		File[] files = metadataFile("tmp").listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(".tmp") && file.lastModified() < before) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Resolves the operations that were in progress when the store last stopped. Creates and
+	 * updates whose content was complete are rolled forward; those whose content was incomplete
+	 * are rolled back, leaving the ID as it was. Deletes are rolled forward. Changes rolled
+	 * forward are counted in the usage and appended to the change feed, as any other change is.
+	 * 
+	 * @param journal
+	 *            The journal to recover from.
+	 * @throws IOException
+	 *             If an operation cannot be resolved.
+	 */
+	private void recover(Journal journal) throws IOException {
+		Lock lock = snapshotLock.readLock();
+		lock.lock();
+		try {
+			for (Journal.Entry entry : journal.recover()) {
+				File file = idToFile(entry.id);
+				File temp = journal.tempFile(entry.seq);
+				long previous = file.isFile() ? file.length() : -1;
+				if (entry.operation == Operation.DELETE) {
+					preserve(entry.id, file);
+					if (file.delete()) {
+						accounted(entry.id, previous, -1);
+					}
+				} else if (entry.ready && temp.exists()) {
+					file.getParentFile().mkdirs();
+					if (entry.operation == Operation.UPDATE || !file.exists()) {
+						preserve(entry.id, file);
+						long length = temp.length();
+						Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+						accounted(entry.id, previous, length);
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		journal.deleteTempFiles();
+	}
+
+	/**
+	 * Records the duration of an operation if metrics are enabled, and commits its flight
+	 * recorder event if it took long enough to be recorded.
+	 * 
+	 * @param operation
+	 *            The operation that has completed.
+	 * @param start
+	 *            The value of {@link System#nanoTime()} when the operation started.
+	 * @param event
+	 *            The flight recorder event for the operation.
+	 * @param id
+	 *            The ID the operation applied to.
+	 */
+	private void completed(Operation operation, long start, FileStoreEvent event, String id) {
+		FileStoreMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.record(operation, start);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			File file = idToFile(id);
+			event.id = id;
+			event.path = file.getPath();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Counts an error if metrics are enabled.
+	 * 
+	 * @param e
+	 *            The exception about to be thrown.
+	 * @return The given exception, so that it can be rethrown.
+	 */
+	private FileStoreException failed(FileStoreException e) {
+		FileStoreMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.error(e);
+		}
+		return e;
+	}
+
+	/**
+	 * Counts the bytes of a file written through a stream, if metrics are enabled.
+	 * 
+	 * @param file
+	 *            The file that has been written.
+	 */
+	private void written(File file) {
+		FileStoreMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.written(file.length());
+		}
+	}
+
+	/**
+	 * Adjusts the running totals of IDs and bytes, if usage is being tracked, and appends to the
+	 * change feed, if it is enabled, after the file for an ID has changed.
+	 * <p>
+	 * The change has already been made by the time this is called, so a failure to append it to
+	 * the change feed is counted as an error in the metrics rather than thrown, which would report
+	 * a change that has succeeded as failed.
+	 * 
+	 * @param id
+	 *            The ID whose file has changed.
+	 * @param previous
+	 *            The length of the file before the change, or -1 if there was no file.
+	 * @param current
+	 *            The length of the file after the change, or -1 if there is now no file.
+	 */
+	private void accounted(String id, long previous, long current) {
+		Usage usage = this.usage;
+		if (usage != null) {
+			usage.changed(id, previous, current);
+		}
+		ChangeFeed changeFeed = this.changeFeed;
+		if (changeFeed != null) {
+			ownChange(id);
+			Operation operation = current < 0 ? Operation.DELETE : previous < 0 ? Operation.CREATE : Operation.UPDATE;
+			try {
+				changeFeed.append(operation, id, false);
+			} catch (IOException e) {
+				failed(new FileStoreException("Unable to record " + operation + " of ID " + id + " in the change feed", e));
+			}
+		}
+	}
+
+	/**
+	 * Captures an ID into the snapshot being taken, if there is one, before its file is changed, so
+	 * that the snapshot keeps the content the ID had when it was started. Must be called with the
+	 * shared lock held.
+	 * 
+	 * @param id
+	 *            The ID about to change.
+	 * @param file
+	 *            The file currently holding the ID's content, which may not exist.
+	 * @throws IOException
+	 *             If the file cannot be captured.
+	 */
+	void preserve(String id, File file) throws IOException {
+		SnapshotCapture capture = this.capture;
+		if (capture != null) {
+			capture.capture(id, file);
+		}
+	}
+
+	/**
+	 * Tells the watcher of external changes, if there is one, that the store is changing the given
+	 * ID itself, so that the events this raises are not recorded as external changes.
+	 * 
+	 * @param id
+	 *            The ID being changed.
+	 */
+	void ownChange(String id) {
+		ChangeWatcher changeWatcher = this.changeWatcher;
+		if (changeWatcher != null) {
+			changeWatcher.own(id);
+		}
+	}
+
+	/**
+	 * Fails fast if a new ID would take a prefix over its quota, and otherwise reserves the new
+	 * ID's share of its quotas, so that concurrent creates cannot together overshoot them.
+	 * 
+	 * @param id
+	 *            The new ID.
+	 * @param size
+	 *            The size of its content, or -1 if not yet known.
+	 * @param fromId
+	 *            The ID being moved to the new ID, or null.
+	 * @return The reservation, to be released once the new ID has been accounted for or has
+	 *         failed.
+	 * @throws FileStoreException
+	 *             If a quota would be exceeded.
+	 */
+	private Usage.Reservation reserveQuota(String id, long size, String fromId) throws FileStoreException {
+		Usage usage = this.usage;
+		return usage != null ? usage.reserve(id, size, fromId) : Usage.Reservation.none;
+	}
+
+	/**
+	 * Fails fast if a new ID would take a prefix over its quota, for a create whose content is
+	 * written after the operation returns and so cannot hold a reservation.
+	 * 
+	 * @param id
+	 *            The new ID.
+	 * @throws FileStoreException
+	 *             If a quota would be exceeded.
+	 */
+	private void checkQuota(String id) throws FileStoreException {
+		reserveQuota(id, -1, null).release();
+	}
+
+	/**
+	 * Wraps a stream returned by {@link #read(String)} to count the bytes read from it, if metrics
+	 * are enabled.
+	 * 
+	 * @param input
+	 *            The stream to be returned.
+	 * @return The stream to return to the caller.
+	 */
+	private InputStream metered(InputStream input) {
+		final FileStoreMetrics metrics = this.metrics;
+		if (metrics == null) {
+			return input;
+		}
+		return new ProxyInputStream(input) {
+
+			@Override
+			protected void afterRead(int n) {
+				if (n > 0) {
+					metrics.read(n);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Makes the given file durable according to the {@link Durability} setting.
+	 * 
+	 * @param file
+	 *            The file that has been written.
+	 * @param created
+	 *            Whether the file has just been created, in which case its folder also needs to be
+	 *            made durable.
+	 * @param newFolders
+	 *            Whether folders were created for the file, in which case their parents need to be
+	 *            made durable too.
+	 * @throws IOException
+	 *             If the file or its folders cannot be forced to stable storage.
+	 */
+	private void sync(File file, boolean created, boolean newFolders) throws IOException {
+		// Read each setting once, because setDurability can change them while we write:
+		GroupCommit groupCommit = this.groupCommit;
+		switch (durability) {
+		case GROUP:
+			if (groupCommit != null) {
+				List<File> folders = created ? foldersToSync(file, newFolders) : Collections.<File> emptyList();
+				groupCommit.sync(file, folders);
+				break;
+			}
+			// Switched away from group commit in the meantime, so force straight away:
+			// fall through
+		case FILE:
+			GroupCommit.force(file);
+			if (created) {
+				forceFolders(file, newFolders);
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Makes changes to the folder entries for the given file durable according to the
+	 * {@link Durability} setting.
+	 * 
+	 * @param file
+	 *            The file that has been created or deleted.
+	 * @param newFolders
+	 *            Whether folders were created for the file.
+	 * @throws IOException
+	 *             If a folder cannot be forced to stable storage.
+	 */
+	private void syncFolders(File file, boolean newFolders) throws IOException {
+		GroupCommit groupCommit = this.groupCommit;
+		switch (durability) {
+		case GROUP:
+			if (groupCommit != null) {
+				groupCommit.sync(null, foldersToSync(file, newFolders));
+				break;
+			}
+			// fall through
+		case FILE:
+			forceFolders(file, newFolders);
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Forces the folder entries for the given file to stable storage straight away.
+	 * 
+	 * @param file
+	 *            The file that has been created or deleted.
+	 * @param newFolders
+	 *            Whether folders were created for the file.
+	 * @throws IOException
+	 *             If a folder cannot be forced to stable storage.
+	 */
+	private void forceFolders(File file, boolean newFolders) throws IOException {
+		for (File folder : foldersToSync(file, newFolders)) {
+			GroupCommit.forceDirectory(folder);
+		}
+	}
+
+	/**
+	 * @param file
+	 *            A file in the store.
+	 * @param newFolders
+	 *            Whether folders were created for the file.
+	 * @return The folder of the given file and, if new folders were created, each of its parents
+	 *         up to the base path.
+	 */
+	private List<File> foldersToSync(File file, boolean newFolders) {
+		List<File> result = new ArrayList<File>();
+		File base = new File(basePath);
+		File folder = file.getParentFile();
+		result.add(folder);
+		while (newFolders && folder != null && !folder.equals(base)) {
+			folder = folder.getParentFile();
+			if (folder != null) {
+				result.add(folder);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Queues the given ID for replication if a {@link Mirror} is set.
+	 * 
+	 * @param id
+	 *            The ID that has been created, updated or deleted.
+	 * @throws IOException
+	 *             If the ID cannot be recorded in the mirror queue.
+	 */
+	private void mirror(String id) throws IOException {
+		if (mirror != null) {
+			mirror.enqueue(id);
+		}
+	}
+
+	/**
+	 * Derives a table of permitted characters from a regex of the form <code>[...]+</code>, such
+	 * as the {@link #defaultIdRegex}. Only ASCII characters are considered.
+	 * 
+	 * @param pattern
+	 *            The pattern.
+	 * @return A table indexed by character value, true where the character is permitted.
+	 */
+	private static boolean[] idChars(Pattern pattern) {
+		boolean[] result = new boolean[128];
+		for (char c = 0; c < result.length; c++) {
+			result[c] = pattern.matcher(String.valueOf(c)).matches();
+		}
+		return result;
+	}
+
+	/**
+	 * Discards resolved files, because the layout of the store has changed.
+	 */
+	private void clearFileCache() {
+		Arrays.fill(fileCache, null);
+	}
+
+	/**
+	 * An entry in the cache of resolved files. The fields are final so that an entry can be safely
+	 * shared between threads without locking.
+	 */
+	private static class CachedFile {
+		final String id;
+		final File file;
+		final Path path;
+
+		CachedFile(String id, File file, Path path) {
+			this.id = id;
+			this.file = file;
+			this.path = path;
+		}
+	}
+
+	// --------------- Getters and Setters --------------- //
+
+	/**
+	 * @return the idRegex
+	 */
+	public String getIdRegex() {
+		return idRegex;
+	}
+
+	/**
+	 * Sets the regular expression used for validating IDs and compiles a {@link Pattern}. The regex
+	 * defaults to [a-zA-Z0-9_\\.-]+ which means that a valid ID consists of one or more letters,
+	 * numbers, underscores, dashes and periods.
+	 * 
+	 * In practice, IDs are first checked for null and empty String, before being validated with the
 	 * regex.
 	 * 
 	 * @param idRegex
@@ -396,6 +3387,8 @@ public class FileStore {
 	public void setIdRegex(String idRegex) {
 		this.idRegex = idRegex;
 		pattern = Pattern.compile(idRegex);
+		// Only the default regex is known to be a simple character class:
+		idChars = defaultIdRegex.equals(idRegex) ? defaultIdChars : null;
 	}
 
 	/**
@@ -407,12 +3400,24 @@ public class FileStore {
 
 	/**
 	 * Sets the root folder that will be used as the starting point for storing files.
+	 * <p>
+	 * Temporary files left in the {@value #metadataFolder} folder by uploads that were abandoned,
+	 * or by writes interrupted by a crash, are deleted once they have not been touched for
+	 * {@value #staleTempMillis}ms.
 	 * 
 	 * @param basePath
 	 *            the basePath to set
 	 */
 	public void setBasePath(String basePath) {
 		this.basePath = basePath;
+		base = basePath != null ? Paths.get(basePath) : null;
+		// Hard links are only used where link counts can be read, so that shared files can be
+		// detected before they are rewritten:
+		hardLinks = base != null && base.getFileSystem().supportedFileAttributeViews().contains("unix");
+		clearFileCache();
+		if (basePath != null) {
+			deleteTempFiles(System.currentTimeMillis() - staleTempMillis);
+		}
 	}
 
 	/**
@@ -426,12 +3431,16 @@ public class FileStore {
 	 * The ID chunk size controls how given IDs are split up to create a folder hierarchy in the
 	 * binary tree. The default is 2, so for an ID 1234567, this would generate
 	 * [basePath]/12/34/56/7.file
+	 * <p>
+	 * Changing this for a store that already holds files leaves them where they are, so call
+	 * {@link #relayout(int, String)} to move them.
 	 * 
 	 * @param idChunkSize
 	 *            the idChunkSize to set
 	 */
 	public void setIdChunkSize(int idChunkSize) {
 		this.idChunkSize = idChunkSize;
+		clearFileCache();
 	}
 
 	/**
@@ -447,11 +3456,464 @@ public class FileStore {
 	 * create /10/00 and /10/00/11. In the former "00" is a file and in the latter it is a directory
 	 * of the same name. Adding an extension prevents these collisions. The extension defaults to
 	 * ".file".
+	 * <p>
+	 * Changing this for a store that already holds files leaves them where they are, so call
+	 * {@link #relayout(int, String)} to move them.
 	 * 
 	 * @param extension
 	 *            the extension to set
 	 */
 	public void setExtension(String extension) {
 		this.extension = extension;
+		clearFileCache();
+	}
+
+	/**
+	 * @return the mirror, or null if mirroring is not enabled.
+	 */
+	public Mirror getMirror() {
+		return mirror;
+	}
+
+	/**
+	 * Sets a {@link Mirror} that will asynchronously replicate every create, update and delete to a
+	 * second root. The <code>basePath</code>, ID chunk size and extension must be set before the
+	 * mirror, because the mirror uses the same layout and keeps its queue under the base path. Any
+	 * entries left in the queue from a previous run are replayed.
+	 * 
+	 * @param mirror
+	 *            the mirror to set, or null to stop mirroring.
+	 * @throws IOException
+	 *             If the mirror queue cannot be opened.
+	 */
+	public void setMirror(Mirror mirror) throws IOException {
+		if (this.mirror != null) {
+			this.mirror.close();
+		}
+		this.mirror = mirror;
+		if (mirror != null) {
+			mirror.attach(this);
+		}
+	}
+
+	/**
+	 * @return the durability
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Sets whether, and how, written content is forced to stable storage before create, update and
+	 * delete return. The default is {@link Durability#NONE}. For streams returned by
+	 * {@link #create(String)} and {@link #update(String)}, content is made durable when the stream
+	 * is closed.
+	 * 
+	 * @param durability
+	 *            the durability to set
+	 */
+	public synchronized void setDurability(Durability durability) {
+		if (durability == Durability.GROUP && groupCommit == null) {
+			groupCommit = new GroupCommit(groupCommitMillis);
+		}
+		this.durability = durability;
+		if (journal != null) {
+			journal.setForce(durability != Durability.NONE);
+		}
+		if (durability != Durability.GROUP && groupCommit != null) {
+			// Writers that still see the old instance force their changes themselves once it is
+			// closed:
+			GroupCommit previous = groupCommit;
+			groupCommit = null;
+			previous.close();
+		}
+	}
+
+	/**
+	 * @return the groupCommitMillis
+	 */
+	public long getGroupCommitMillis() {
+		return groupCommitMillis;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, a {@link Durability#GROUP} batch stays open for concurrent
+	 * writers to join before it is forced. Longer intervals share each force between more writers
+	 * at the cost of latency. A value of zero forces each batch as soon as the previous one is
+	 * complete. The default is 2ms. This must be set before the durability.
+	 * 
+	 * @param groupCommitMillis
+	 *            the groupCommitMillis to set
+	 */
+	public void setGroupCommitMillis(long groupCommitMillis) {
+		this.groupCommitMillis = groupCommitMillis;
+	}
+
+	/**
+	 * @return Whether operations are recorded in a write-ahead journal.
+	 */
+	public boolean isJournaled() {
+		return journal != null;
+	}
+
+	/**
+	 * Enables or disables the write-ahead journal. When enabled, create, update and delete record
+	 * their intent in a journal under the {@value #metadataFolder} folder before changing anything,
+	 * and new content is written to a temporary file that only appears under the ID once it is
+	 * complete. A crash therefore never leaves a partially written file that looks valid to
+	 * {@link #exists(String)}.
+	 * <p>
+	 * Enabling the journal first recovers any operations left incomplete by a previous run. The
+	 * <code>basePath</code>, ID chunk size, extension and durability should be set beforehand.
+	 * 
+	 * @param journaled
+	 *            whether to journal operations
+	 * @throws IOException
+	 *             If the journal cannot be opened or recovery fails.
+	 */
+	public synchronized void setJournaled(boolean journaled) throws IOException {
+		if (journaled && journal == null) {
+			Journal journal = new Journal(metadataFile("journal"), Journal.defaultSegmentSize, durability != Durability.NONE);
+			recover(journal);
+			journal.start();
+			this.journal = journal;
+		} else if (!journaled && journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * @return the metrics, or null if metrics are not enabled.
+	 */
+	public FileStoreMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Enables or disables metrics. When enabled, the latency of every operation is recorded in a
+	 * histogram, bytes written and read are counted, and {@link FileStoreException}s are counted by
+	 * cause. The metrics are registered as an MXBean in the
+	 * {@value FileStoreMetrics#jmxDomain} domain, named after the <code>basePath</code>, until they
+	 * are disabled or the store is closed.
+	 * 
+	 * @param metricsEnabled
+	 *            whether to enable metrics
+	 */
+	public synchronized void setMetricsEnabled(boolean metricsEnabled) {
+		if (metricsEnabled && metrics == null) {
+			FileStoreMetrics metrics = new FileStoreMetrics(basePath);
+			metrics.setBufferPool(bufferPool);
+			try {
+				metrics.register();
+			} catch (JMException e) {
+				throw new IllegalStateException("Unable to register metrics for " + basePath, e);
+			}
+			this.metrics = metrics;
+		} else if (!metricsEnabled && metrics != null) {
+			try {
+				metrics.unregister();
+			} catch (JMException e) {
+				// Already unregistered
+			}
+			metrics = null;
+		}
+	}
+
+	/**
+	 * @return the bufferPool
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Sets the pool from which I/O buffers are borrowed when copying content. By default, all
+	 * stores share {@link BufferPool#getShared()}.
+	 * 
+	 * @param bufferPool
+	 *            the bufferPool to set
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		FileStoreMetrics metrics = this.metrics;
+		if (metrics != null) {
+			metrics.setBufferPool(bufferPool);
+		}
+	}
+
+	/**
+	 * @return the maximum number of bytes held in the write-behind buffer, or zero if write-behind
+	 *         is not enabled.
+	 */
+	public long getWriteBehindBytes() {
+		return writeBehindBytes;
+	}
+
+	/**
+	 * Enables write-behind, with a buffer of the given size, or disables it if the size is zero.
+	 * With write-behind, create, update and delete return as soon as the change has been placed in
+	 * an in-memory buffer, and a background thread writes changes to disk in batches. Reads see
+	 * buffered changes immediately. When the buffer is full, writers wait for room, so a burst of
+	 * writes slows down rather than exhausting memory. Content is made durable, journaled and
+	 * mirrored as it is written from the buffer, so these guarantees are deferred accordingly.
+	 * <p>
+	 * Changing the size, disabling write-behind or closing the store waits for the buffer to be
+	 * written out; changes attempted in the meantime are refused. Use
+	 * {@link #flush()} to wait for buffered changes without disabling write-behind.
+	 * 
+	 * @param writeBehindBytes
+	 *            the maximum number of bytes of content to buffer, or zero to disable write-behind
+	 * @throws IOException
+	 *             If write-behind is being disabled and buffered changes could not be written.
+	 */
+	public synchronized void setWriteBehindBytes(long writeBehindBytes) throws IOException {
+		if (writeBehindBytes < 0) {
+			throw new IllegalArgumentException("Negative write-behind buffer size: " + writeBehindBytes);
+		}
+		WriteBehind previous = writeBehind;
+		if (previous != null) {
+			// Readers continue to see the previous buffer until it has been written out:
+			try {
+				previous.close();
+			} finally {
+				writeBehind = null;
+				this.writeBehindBytes = 0;
+			}
+		}
+		if (writeBehindBytes > 0) {
+			writeBehind = new WriteBehind(this, writeBehindBytes);
+			this.writeBehindBytes = writeBehindBytes;
+		}
+	}
+
+	/**
+	 * @return the maximum number of bytes queued or being read by {@link #prefetch(Collection)}, or
+	 *         zero if prefetching is not enabled.
+	 */
+	public long getPrefetchBytes() {
+		return prefetchBytes;
+	}
+
+	/**
+	 * Enables {@link #prefetch(Collection)}, capping the number of bytes queued or being read at
+	 * once, or disables it if the cap is zero. Prefetching uses {@value Prefetcher#threads}
+	 * background threads. Changing the cap or disabling prefetching abandons prefetches that have
+	 * not yet started.
+	 * 
+	 * @param prefetchBytes
+	 *            the maximum number of bytes to prefetch at once, or zero to disable prefetching
+	 */
+	public synchronized void setPrefetchBytes(long prefetchBytes) {
+		if (prefetchBytes < 0) {
+			throw new IllegalArgumentException("Negative prefetch size: " + prefetchBytes);
+		}
+		Prefetcher previous = prefetcher;
+		if (previous != null) {
+			prefetcher = null;
+			this.prefetchBytes = 0;
+			previous.close();
+		}
+		if (prefetchBytes > 0) {
+			prefetcher = new Prefetcher(bufferPool, prefetchBytes);
+			this.prefetchBytes = prefetchBytes;
+		}
+	}
+
+	/**
+	 * @return the maximum number of previous versions kept for each ID, or zero if versioning is
+	 *         not enabled.
+	 */
+	public int getMaxVersions() {
+		return maxVersions;
+	}
+
+	/**
+	 * Enables versioning, keeping up to the given number of previous versions of each ID, or
+	 * disables it if the number is zero. When versioning is enabled, an update sets the file it
+	 * replaces aside as a numbered version under the {@value #metadataFolder} folder, rather than
+	 * overwriting it. The file is set aside with a hard link, or a rename where links are not
+	 * available, so keeping a version costs no extra writes. Versions are read with
+	 * {@link #read(String, int)} and listed with {@link #getVersions(String)}.
+	 * <p>
+	 * A background thread prunes each ID down to the maximum shortly after it is updated, and
+	 * removes versions older than {@link #setVersionMaxAgeMillis(long)}. Disabling versioning
+	 * stops pruning but leaves the versions already kept. With write-behind, only the updates
+	 * actually written to disk are versioned.
+	 * 
+	 * @param maxVersions
+	 *            the maximum number of versions to keep for each ID, or zero to disable versioning
+	 */
+	public synchronized void setMaxVersions(int maxVersions) {
+		if (maxVersions < 0) {
+			throw new IllegalArgumentException("Negative maximum number of versions: " + maxVersions);
+		}
+		this.maxVersions = maxVersions;
+		if (maxVersions > 0 && versions == null) {
+			Versions versions = new Versions(this, metadataFile("versions"), maxVersions, versionMaxAgeMillis);
+			versions.start();
+			this.versions = versions;
+		} else if (maxVersions > 0) {
+			versions.setMaxVersions(maxVersions);
+		} else if (versions != null) {
+			versions.close();
+			versions = null;
+		}
+	}
+
+	/**
+	 * @return the versionMaxAgeMillis
+	 */
+	public long getVersionMaxAgeMillis() {
+		return versionMaxAgeMillis;
+	}
+
+	/**
+	 * Sets how long, in milliseconds, previous versions are kept, measured from when their content
+	 * was written. Older versions are removed by the background pruner, even if that leaves an ID
+	 * with fewer than the maximum number of versions. The default is zero, meaning versions are
+	 * kept regardless of age.
+	 * 
+	 * @param versionMaxAgeMillis
+	 *            the versionMaxAgeMillis to set
+	 */
+	public synchronized void setVersionMaxAgeMillis(long versionMaxAgeMillis) {
+		this.versionMaxAgeMillis = versionMaxAgeMillis;
+		if (versions != null) {
+			versions.setMaxAgeMillis(versionMaxAgeMillis);
+		}
+	}
+
+	/**
+	 * @return Whether IDs created with a time to live expire.
+	 */
+	public boolean isExpiryEnabled() {
+		return expiry != null;
+	}
+
+	/**
+	 * Enables or disables expiry, which allows IDs to be created with a time to live using
+	 * {@link #create(String, InputStream, Duration)}. Expiry times are kept in memory and recorded
+	 * in a log under the {@value #metadataFolder} folder, so enabling expiry first loads the times
+	 * recorded by a previous run. A background thread deletes expired IDs.
+	 * <p>
+	 * While expiry is disabled, IDs that have expired but not been deleted are visible again.
+	 * 
+	 * @param expiryEnabled
+	 *            whether to enable expiry
+	 * @throws IOException
+	 *             If the log of expiry times cannot be read.
+	 */
+	public synchronized void setExpiryEnabled(boolean expiryEnabled) throws IOException {
+		if (expiryEnabled && expiry == null) {
+			Expiry expiry = new Expiry(this, metadataFile("expiry"));
+			expiry.start();
+			this.expiry = expiry;
+		} else if (!expiryEnabled && expiry != null) {
+			expiry.close();
+			expiry = null;
+		}
+	}
+
+	/**
+	 * @return Whether running totals of IDs and bytes are kept.
+	 */
+	public boolean isUsageEnabled() {
+		return usage != null;
+	}
+
+	/**
+	 * Enables or disables usage tracking. While enabled, running totals of the number of IDs and
+	 * the bytes they hold are adjusted as files are created, updated and deleted, so
+	 * {@link #getObjectCount()} and {@link #getByteCount()} are answered without walking the
+	 * store. The totals are saved under the {@value #metadataFolder} folder every few seconds and
+	 * when tracking is disabled or the store is closed. Enabling tracking loads the saved totals,
+	 * or, if there are none, reconciles them with a walk of the store in the background.
+	 * <p>
+	 * Only the files of IDs are counted, not housekeeping data such as versions and snapshots.
+	 * With write-behind, changes are counted as they are written to disk.
+	 * 
+	 * @param usageEnabled
+	 *            whether to track usage
+	 * @throws IOException
+	 *             If the saved totals cannot be read or written.
+	 */
+	public synchronized void setUsageEnabled(boolean usageEnabled) throws IOException {
+		if (usageEnabled && usage == null) {
+			Usage usage = new Usage(this, metadataFile("usage"));
+			usage.start();
+			this.usage = usage;
+		} else if (!usageEnabled && usage != null) {
+			usage.close();
+			usage = null;
+		}
+	}
+
+	/**
+	 * @return Whether changes are recorded in the change feed.
+	 */
+	public boolean isChangeFeedEnabled() {
+		return changeFeed != null;
+	}
+
+	/**
+	 * Enables or disables the change feed. While enabled, every create, update and delete that
+	 * reaches disk, including those made by copies, moves and expiry, is appended to a
+	 * sequence-numbered log under the {@value #metadataFolder} folder, so that consumers can find
+	 * changed IDs without walking the store. Consumers read the feed with
+	 * {@link #readChanges(long, int)} or subscribe with {@link #changesFrom(long, int)}. Sequence
+	 * numbers carry on from where a previous run left off. The most recent million or so changes
+	 * are kept.
+	 * <p>
+	 * Creating an ID through a stream is recorded as a single create when the stream is closed,
+	 * and nothing is recorded if the stream is abandoned. With write-behind, changes are recorded
+	 * as they are written to disk.
+	 * 
+	 * @param changeFeedEnabled
+	 *            whether to record changes
+	 * @throws IOException
+	 *             If the log cannot be opened or closed.
+	 */
+	public synchronized void setChangeFeedEnabled(boolean changeFeedEnabled) throws IOException {
+		if (changeFeedEnabled && changeFeed == null) {
+			changeFeed = new ChangeFeed(metadataFile("changes"));
+		} else if (!changeFeedEnabled && changeFeed != null) {
+			setWatchingExternalChanges(false);
+			changeFeed.close();
+			changeFeed = null;
+		}
+	}
+
+	/**
+	 * @return Whether changes made to the base path by other processes are recorded in the change
+	 *         feed.
+	 */
+	public boolean isWatchingExternalChanges() {
+		return changeWatcher != null;
+	}
+
+	/**
+	 * Enables or disables recording, in the change feed, of files created, modified and deleted in
+	 * the base path by other processes. These are found with a {@link java.nio.file.WatchService}
+	 * on every folder of the store and are marked as {@link Change#isExternal() external}. This is
+	 * best-effort: events dropped by the watch service are lost, and an external change made to an
+	 * ID within a couple of seconds of the store changing it may be taken for the store's own.
+	 * 
+	 * @param watchingExternalChanges
+	 *            whether to watch for external changes
+	 * @throws IOException
+	 *             If the folders of the store cannot be watched.
+	 * @throws IllegalStateException
+	 *             If the change feed is not enabled.
+	 */
+	public synchronized void setWatchingExternalChanges(boolean watchingExternalChanges) throws IOException {
+		if (watchingExternalChanges && changeWatcher == null) {
+			ChangeWatcher changeWatcher = new ChangeWatcher(this, changeFeed());
+			changeWatcher.start();
+			this.changeWatcher = changeWatcher;
+		} else if (!watchingExternalChanges && changeWatcher != null) {
+			changeWatcher.close();
+			changeWatcher = null;
+		}
 	}
 }
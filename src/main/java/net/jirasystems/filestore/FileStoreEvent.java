@@ -0,0 +1,116 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events emitted by {@link FileStore} operations, so that store activity can
+ * be correlated with latency spikes in a recording. There is one event type per
+ * {@link Operation}, each carrying the ID, the resolved path and, where known, the number of bytes
+ * transferred.
+ * <p>
+ * By default only operations taking {@value #defaultThreshold} or longer are recorded; the
+ * threshold of each type can be changed in the recording settings. When an event type is not
+ * enabled in any recording, {@link #shouldCommit()} is false and the JIT removes the event
+ * entirely, so the instrumentation costs nothing.
+ *
+ * @author david
+ *
+ */
+@Category("FileStore")
+@StackTrace(false)
+@Threshold(FileStoreEvent.defaultThreshold)
+abstract class FileStoreEvent extends Event {
+
+	/**
+	 * The default duration below which events are not recorded.
+	 */
+	static final String defaultThreshold = "10 ms";
+
+	@Label("ID")
+	String id;
+
+	@Label("Path")
+	String path;
+
+	@Label("Bytes")
+	@Description("The number of bytes written or, for a read, the size of the content read")
+	@DataAmount
+	long bytes;
+
+	/**
+	 * A {@link FileStore#create(String, java.io.InputStream)} or {@link FileStore#create(String)}.
+	 */
+	@Name("net.jirasystems.filestore.Create")
+	@Label("FileStore Create")
+	static class Create extends FileStoreEvent {
+		// Fields are inherited
+	}
+
+	/**
+	 * A {@link FileStore#read(String)}.
+	 */
+	@Name("net.jirasystems.filestore.Read")
+	@Label("FileStore Read")
+	static class Read extends FileStoreEvent {
+		// Fields are inherited
+	}
+
+	/**
+	 * A {@link FileStore#update(String, java.io.InputStream)} or {@link FileStore#update(String)}.
+	 */
+	@Name("net.jirasystems.filestore.Update")
+	@Label("FileStore Update")
+	static class Update extends FileStoreEvent {
+		// Fields are inherited
+	}
+
+	/**
+	 * A {@link FileStore#delete(String)}.
+	 */
+	@Name("net.jirasystems.filestore.Delete")
+	@Label("FileStore Delete")
+	static class Delete extends FileStoreEvent {
+		// Fields are inherited
+	}
+
+	/**
+	 * A {@link FileStore#copy(String, String)}. The ID is that of the original.
+	 */
+	@Name("net.jirasystems.filestore.Copy")
+	@Label("FileStore Copy")
+	static class Copy extends FileStoreEvent {
+
+		@Label("Target ID")
+		String targetId;
+	}
+
+	/**
+	 * A {@link FileStore#move(String, String)}. The ID is that of the original.
+	 */
+	@Name("net.jirasystems.filestore.Move")
+	@Label("FileStore Move")
+	static class Move extends FileStoreEvent {
+
+		@Label("Target ID")
+		String targetId;
+	}
+
+	/**
+	 * A {@link FileStore#exists(String)}.
+	 */
+	@Name("net.jirasystems.filestore.Exists")
+	@Label("FileStore Exists")
+	static class Exists extends FileStoreEvent {
+		// Fields are inherited
+	}
+}
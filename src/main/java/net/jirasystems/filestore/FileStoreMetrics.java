@@ -0,0 +1,245 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms, byte counters and error counts for a single {@link FileStore}, exposed over
+ * JMX as a {@link FileStoreMetricsMXBean}. Recording is lock-free and allocation-free, apart from
+ * the first error with a given cause.
+ *
+ * @author david
+ *
+ */
+public class FileStoreMetrics implements FileStoreMetricsMXBean {
+
+	/**
+	 * The JMX domain under which metrics are registered. The value is "{@value #jmxDomain}".
+	 */
+	public static final String jmxDomain = "net.jirasystems.filestore";
+
+	private final String basePath;
+	private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder bytesRead = new LongAdder();
+	private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+	private ObjectName objectName;
+	private volatile BufferPool bufferPool;
+
+	/**
+	 * @param basePath
+	 *            The base path of the store these metrics are for.
+	 */
+	public FileStoreMetrics(String basePath) {
+		this.basePath = basePath;
+		for (Operation operation : Operation.values()) {
+			latencies.put(operation, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Records the duration of an operation.
+	 *
+	 * @param operation
+	 *            The operation.
+	 * @param startNanos
+	 *            The value of {@link System#nanoTime()} when the operation started.
+	 */
+	public void record(Operation operation, long startNanos) {
+		latencies.get(operation).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Counts an error.
+	 *
+	 * @param e
+	 *            The exception thrown by the store.
+	 */
+	public void error(FileStoreException e) {
+		Throwable cause = e.getCause() != null ? e.getCause() : e;
+		String key = cause.getClass().getSimpleName();
+		LongAdder count = errors.get(key);
+		if (count == null) {
+			count = errors.computeIfAbsent(key, k -> new LongAdder());
+		}
+		count.increment();
+	}
+
+	/**
+	 * @param bytes
+	 *            A number of bytes written to a file.
+	 */
+	public void written(long bytes) {
+		bytesWritten.add(bytes);
+	}
+
+	/**
+	 * @param bytes
+	 *            A number of bytes read from a file.
+	 */
+	public void read(long bytes) {
+		bytesRead.add(bytes);
+	}
+
+	/**
+	 * @param operation
+	 *            An operation.
+	 * @return A summary of the latency of the operation.
+	 */
+	public LatencySnapshot getLatency(Operation operation) {
+		return latencies.get(operation).snapshot();
+	}
+
+	@Override
+	public String getBasePath() {
+		return basePath;
+	}
+
+	@Override
+	public LatencySnapshot getCreateLatency() {
+		return getLatency(Operation.CREATE);
+	}
+
+	@Override
+	public LatencySnapshot getReadLatency() {
+		return getLatency(Operation.READ);
+	}
+
+	@Override
+	public LatencySnapshot getUpdateLatency() {
+		return getLatency(Operation.UPDATE);
+	}
+
+	@Override
+	public LatencySnapshot getDeleteLatency() {
+		return getLatency(Operation.DELETE);
+	}
+
+	@Override
+	public LatencySnapshot getExistsLatency() {
+		return getLatency(Operation.EXISTS);
+	}
+
+	@Override
+	public LatencySnapshot getCopyLatency() {
+		return getLatency(Operation.COPY);
+	}
+
+	@Override
+	public LatencySnapshot getMoveLatency() {
+		return getLatency(Operation.MOVE);
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBufferPoolHits() {
+		BufferPool bufferPool = this.bufferPool;
+		return bufferPool != null ? bufferPool.getHits() : 0;
+	}
+
+	@Override
+	public long getBufferPoolMisses() {
+		BufferPool bufferPool = this.bufferPool;
+		return bufferPool != null ? bufferPool.getMisses() : 0;
+	}
+
+	@Override
+	public double getBufferPoolHitRate() {
+		BufferPool bufferPool = this.bufferPool;
+		return bufferPool != null ? bufferPool.getHitRate() : 0;
+	}
+
+	@Override
+	public Map<String, Long> getErrors() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : errors.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().sum());
+		}
+		return result;
+	}
+
+	@Override
+	public void reset() {
+		for (LatencyHistogram histogram : latencies.values()) {
+			histogram.reset();
+		}
+		bytesWritten.reset();
+		bytesRead.reset();
+		errors.clear();
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Registers this instance with the platform MBean server, under the {@value #jmxDomain} domain
+	 * with the base path as its name. If another store with the same base path is already
+	 * registered, an instance number is added.
+	 *
+	 * @throws JMException
+	 *             If registration fails.
+	 */
+	void register() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		String name = jmxDomain + ":type=FileStore,name=" + ObjectName.quote(String.valueOf(basePath));
+		for (int instance = 1;; instance++) {
+			ObjectName candidate = new ObjectName(instance == 1 ? name : name + ",instance=" + instance);
+			try {
+				server.registerMBean(this, candidate);
+				objectName = candidate;
+				return;
+			} catch (InstanceAlreadyExistsException e) {
+				// Try the next instance number
+			}
+		}
+	}
+
+	/**
+	 * Removes this instance from the platform MBean server, if it was registered.
+	 *
+	 * @throws JMException
+	 *             If deregistration fails.
+	 */
+	void unregister() throws JMException {
+		if (objectName != null) {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			objectName = null;
+		}
+	}
+
+	/**
+	 * @param bufferPool
+	 *            The buffer pool used by the store, whose hit rate is reported.
+	 */
+	void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * @return The name under which this instance is registered, or null.
+	 */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+}
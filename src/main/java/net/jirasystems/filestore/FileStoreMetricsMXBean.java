@@ -0,0 +1,96 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.util.Map;
+
+/**
+ * The management interface through which {@link FileStoreMetrics} are exposed over JMX.
+ *
+ * @author david
+ *
+ */
+public interface FileStoreMetricsMXBean {
+
+	/**
+	 * @return The base path of the store these metrics are for.
+	 */
+	String getBasePath();
+
+	/**
+	 * @return Latency of {@link FileStore#create(String, java.io.InputStream)} and
+	 *         {@link FileStore#create(String)}.
+	 */
+	LatencySnapshot getCreateLatency();
+
+	/**
+	 * @return Latency of {@link FileStore#read(String)}. This covers opening the file, not
+	 *         reading its content.
+	 */
+	LatencySnapshot getReadLatency();
+
+	/**
+	 * @return Latency of {@link FileStore#update(String, java.io.InputStream)} and
+	 *         {@link FileStore#update(String)}.
+	 */
+	LatencySnapshot getUpdateLatency();
+
+	/**
+	 * @return Latency of {@link FileStore#delete(String)}.
+	 */
+	LatencySnapshot getDeleteLatency();
+
+	/**
+	 * @return Latency of {@link FileStore#exists(String)}.
+	 */
+	LatencySnapshot getExistsLatency();
+
+	/**
+	 * @return Latency of {@link FileStore#copy(String, String)}.
+	 */
+	LatencySnapshot getCopyLatency();
+
+	/**
+	 * @return Latency of {@link FileStore#move(String, String)}.
+	 */
+	LatencySnapshot getMoveLatency();
+
+	/**
+	 * @return The number of bytes written to files.
+	 */
+	long getBytesWritten();
+
+	/**
+	 * @return The number of bytes read from streams returned by {@link FileStore#read(String)}.
+	 */
+	long getBytesRead();
+
+	/**
+	 * @return The number of buffers served from the store's {@link BufferPool}. The pool may be
+	 *         shared with other stores, in which case so is this count.
+	 */
+	long getBufferPoolHits();
+
+	/**
+	 * @return The number of buffers the store's {@link BufferPool} had to allocate.
+	 */
+	long getBufferPoolMisses();
+
+	/**
+	 * @return The proportion of buffers served from the store's {@link BufferPool}, between 0 and
+	 *         1.
+	 */
+	double getBufferPoolHitRate();
+
+	/**
+	 * @return The number of {@link FileStoreException}s thrown, keyed by the simple class name of
+	 *         their cause, or of the exception itself where there is no cause.
+	 */
+	Map<String, Long> getErrors();
+
+	/**
+	 * Clears all metrics, apart from those of the {@link BufferPool}, which may be shared.
+	 */
+	void reset();
+}
@@ -0,0 +1,292 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forces files and directories to stable storage in batches on behalf of concurrent writers. This
+ * implements {@link Durability#GROUP}: each caller of {@link #sync(File, Collection)} joins the
+ * current batch and waits while a background thread forces everything in it, so one round of
+ * forcing serves many writers.
+ * <p>
+ * The first writer to join an empty batch wakes the background thread, which then holds the
+ * batch open for the full interval; writers that join later do not cut the interval short. The
+ * files in a batch are forced in parallel by a small pool of threads, followed by the
+ * directories, so a large batch does not take longer to force than the writers would have taken
+ * on their own.
+ *
+ * @author david
+ *
+ */
+class GroupCommit implements Closeable {
+
+	/**
+	 * The default time, in milliseconds, that a batch stays open for other writers to join. The
+	 * default is {@value #defaultIntervalMillis}.
+	 */
+	static final long defaultIntervalMillis = 2;
+
+	/**
+	 * The number of threads that force the files of a batch in parallel. The value is
+	 * {@value #forceThreads}.
+	 */
+	static final int forceThreads = 4;
+
+	private final long intervalMillis;
+	private final ExecutorService forcers;
+	private final AtomicLong batches = new AtomicLong();
+	private final Object lock = new Object();
+	private Batch current = new Batch();
+	private final Thread flusher;
+	private volatile boolean running = true;
+
+	/**
+	 * Starts the background thread.
+	 *
+	 * @param intervalMillis
+	 *            The time a batch stays open for other writers to join.
+	 */
+	GroupCommit(long intervalMillis) {
+		this.intervalMillis = intervalMillis;
+		forcers = Executors.newFixedThreadPool(forceThreads, runnable -> {
+			Thread thread = new Thread(runnable, "FileStore group commit force");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher = new Thread(this::flush, "FileStore group commit");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Adds the given file and directories to the current batch and waits until they have been
+	 * forced. Once the group commit has been closed, for example because the durability of the
+	 * store was changed while the caller was writing, they are forced straight away instead.
+	 *
+	 * @param file
+	 *            The file to force.
+	 * @param directories
+	 *            Directories whose entries have changed and need to be forced.
+	 * @throws IOException
+	 *             If the file or a directory could not be forced.
+	 */
+	void sync(File file, Collection<File> directories) throws IOException {
+		Batch batch;
+		synchronized (lock) {
+			if (!running) {
+				batch = null;
+			} else {
+				batch = current;
+				boolean wasEmpty = batch.isEmpty();
+				if (file != null) {
+					batch.files.add(file);
+				}
+				batch.directories.addAll(directories);
+				if (wasEmpty && !batch.isEmpty()) {
+					// Only the first writer wakes the flusher, so later ones do not close the batch:
+					lock.notifyAll();
+				}
+				try {
+					while (!batch.done) {
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for group commit.");
+				}
+			}
+		}
+		if (batch == null) {
+			if (file != null) {
+				force(file);
+			}
+			for (File directory : directories) {
+				forceDirectory(directory);
+			}
+			return;
+		}
+		IOException failure = batch.failures.get(file);
+		for (File directory : directories) {
+			if (failure == null) {
+				failure = batch.failures.get(directory);
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Forces any outstanding batch and stops the background thread.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		forcers.shutdown();
+	}
+
+	/**
+	 * @return The number of batches forced so far.
+	 */
+	long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * Forces the content and metadata of a file to stable storage.
+	 *
+	 * @param file
+	 *            The file to force.
+	 * @throws IOException
+	 *             If an error occurs.
+	 */
+	static void force(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Forces the entries of a directory to stable storage, so that files created or removed in it
+	 * survive a power loss. Not every platform allows a directory to be opened for this purpose;
+	 * where it is refused the directory is left to the file system.
+	 *
+	 * @param directory
+	 *            The directory to force.
+	 * @throws IOException
+	 *             If an error occurs in forcing the directory.
+	 */
+	static void forceDirectory(File directory) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			// E.g. Windows, which does not allow directories to be opened.
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Body of the background thread.
+	 */
+	private void flush() {
+		while (true) {
+			Batch batch;
+			synchronized (lock) {
+				try {
+					while (running && current.isEmpty()) {
+						lock.wait();
+					}
+					// Hold the batch open for other writers to join, for the whole interval even if
+					// woken early:
+					long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+					long remaining;
+					while (running && (remaining = deadline - System.nanoTime()) > 0) {
+						TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+					}
+				} catch (InterruptedException e) {
+					running = false;
+				}
+				batch = current;
+				current = new Batch();
+			}
+
+			// File content first, then the directory entries that refer to it:
+			forceAll(batch, batch.files, false);
+			forceAll(batch, batch.directories, true);
+			batches.incrementAndGet();
+
+			synchronized (lock) {
+				batch.done = true;
+				lock.notifyAll();
+				if (!running && current.isEmpty()) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forces files or directories in parallel on the pool, recording any failures in the batch, and
+	 * waits for them all.
+	 */
+	private void forceAll(Batch batch, Set<File> files, boolean directories) {
+		Map<File, Future<?>> forced = new HashMap<File, Future<?>>();
+		for (File file : files) {
+			try {
+				forced.put(file, forcers.submit(() -> {
+					if (directories) {
+						forceDirectory(file);
+					} else {
+						force(file);
+					}
+					return null;
+				}));
+			} catch (RuntimeException e) {
+				batch.failures.put(file, new IOException("Unable to force " + file.getPath(), e));
+			}
+		}
+		for (Map.Entry<File, Future<?>> entry : forced.entrySet()) {
+			try {
+				entry.getValue().get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				batch.failures.put(entry.getKey(), cause instanceof IOException ? (IOException) cause
+						: new IOException("Unable to force " + entry.getKey().getPath(), cause));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				batch.failures.put(entry.getKey(), new InterruptedIOException("Interrupted while forcing."));
+			}
+		}
+	}
+
+	/**
+	 * The files and directories waiting to be forced together.
+	 */
+	private static class Batch {
+		final Set<File> files = new LinkedHashSet<File>();
+		final Set<File> directories = new LinkedHashSet<File>();
+		final Map<File, IOException> failures = new HashMap<File, IOException>();
+		boolean done;
+
+		boolean isEmpty() {
+			return files.isEmpty() && directories.isEmpty();
+		}
+	}
+}
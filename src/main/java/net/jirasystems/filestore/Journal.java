@@ -0,0 +1,481 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead journal of the multi-step operations performed by a
+ * {@link FileStore}. An intent is recorded before an operation changes anything, a ready record
+ * once new content is complete in a temporary file, and a done record once the operation has
+ * finished. After a crash, {@link #recover()} returns the operations that did not finish so that
+ * they can be rolled forward or back.
+ * <p>
+ * The journal is written as a series of fixed-size segments. Once every operation recorded in the
+ * oldest segment has finished, the segment is recycled as the next one to write, rather than a new
+ * file being allocated, so the journal only ever costs sequential writes to files that already
+ * exist. Each segment starts with a header carrying an epoch number, and every record carries the
+ * epoch of its segment, so stale records left over from a segment's previous use are ignored.
+ * Segments found by recovery are retired when writing starts, by giving them an invalid epoch.
+ *
+ * @author david
+ *
+ */
+class Journal implements Closeable {
+
+	/**
+	 * The default size at which the journal moves on to a new segment. The default is
+	 * {@value #defaultSegmentSize} bytes.
+	 */
+	static final long defaultSegmentSize = 4 * 1024 * 1024;
+
+	private static final int magic = 0x46534A4C;
+	private static final int headerLength = 12;
+	private static final int maxRecordLength = 64 * 1024;
+	private static final byte intent = 1;
+	private static final byte ready = 2;
+	private static final byte done = 3;
+	private static final String prefix = "journal-";
+	private static final String suffix = ".log";
+
+	private final File folder;
+	private final long segmentSize;
+	private volatile boolean force;
+
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+	private final Map<Long, Segment> outstanding = new HashMap<Long, Segment>();
+	private volatile Segment active;
+	private long epoch;
+	private long sequence;
+	private volatile long written;
+
+	private final Object forceLock = new Object();
+	private long forced;
+
+	/**
+	 * @param folder
+	 *            The folder that holds the journal segments.
+	 * @param segmentSize
+	 *            The size at which the journal moves on to a new segment.
+	 * @param force
+	 *            Whether intent and ready records are forced to stable storage before the
+	 *            operation continues.
+	 */
+	Journal(File folder, long segmentSize, boolean force) {
+		this.folder = folder;
+		this.segmentSize = segmentSize;
+		this.force = force;
+	}
+
+	/**
+	 * Reads the existing segments and determines which operations did not finish. The segments
+	 * are left untouched until {@link #start()} is called, so recovery can safely be interrupted.
+	 *
+	 * @return The unfinished operations, in the order they were started.
+	 * @throws IOException
+	 *             If the segments cannot be read.
+	 */
+	synchronized List<Entry> recover() throws IOException {
+		folder.mkdirs();
+		List<Segment> found = new ArrayList<Segment>();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.startsWith(prefix) && name.endsWith(suffix)) {
+					found.add(new Segment(file, readEpoch(file)));
+					// New segments are named after their epoch, so avoid names already in use:
+					try {
+						epoch = Math.max(epoch, Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+					} catch (NumberFormatException e) {
+						// Not a name we generated.
+					}
+				}
+			}
+		}
+		Collections.sort(found, (a, b) -> Long.compare(a.epoch, b.epoch));
+
+		TreeMap<Long, Entry> entries = new TreeMap<Long, Entry>();
+		for (Segment segment : found) {
+			epoch = Math.max(epoch, segment.epoch);
+			sequence = Math.max(sequence, readRecords(segment, entries));
+			segments.addLast(segment);
+		}
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	/**
+	 * Starts writing. Must be called once the entries returned by {@link #recover()} have been
+	 * resolved, because the existing segments are retired so that a later recovery does not
+	 * repeat them, and become eligible for recycling.
+	 *
+	 * @throws IOException
+	 *             If a segment cannot be retired or opened.
+	 */
+	synchronized void start() throws IOException {
+		synchronized (forceLock) {
+			// Oldest first, so that a crash part way through never leaves an intent whose done
+			// record has been retired:
+			for (Segment segment : segments) {
+				retire(segment);
+			}
+			active = nextSegment();
+			segments.addLast(active);
+		}
+	}
+
+	/**
+	 * Records the intent to perform an operation.
+	 *
+	 * @param operation
+	 *            The operation.
+	 * @param id
+	 *            The ID the operation applies to.
+	 * @return The sequence number of the operation.
+	 * @throws IOException
+	 *             If the intent cannot be recorded.
+	 */
+	long intent(Operation operation, String id) throws IOException {
+		long seq;
+		long position;
+		synchronized (this) {
+			seq = ++sequence;
+			position = append(intent, seq, operation, id);
+			outstanding.put(seq, active);
+			active.outstanding++;
+		}
+		forceTo(position);
+		return seq;
+	}
+
+	/**
+	 * Records that the new content for an operation is complete in its temporary file, so the
+	 * operation can be rolled forward after a crash.
+	 *
+	 * @param seq
+	 *            The sequence number of the operation.
+	 * @throws IOException
+	 *             If the record cannot be written.
+	 */
+	void ready(long seq) throws IOException {
+		long position;
+		synchronized (this) {
+			position = append(ready, seq, null, null);
+		}
+		forceTo(position);
+	}
+
+	/**
+	 * Records that an operation has finished, successfully or not. This record is not forced: if
+	 * it is lost, recovery simply repeats work that turns out to have been done already.
+	 *
+	 * @param seq
+	 *            The sequence number of the operation.
+	 * @throws IOException
+	 *             If the record cannot be written.
+	 */
+	synchronized void done(long seq) throws IOException {
+		append(done, seq, null, null);
+		Segment segment = outstanding.remove(seq);
+		if (segment != null) {
+			segment.outstanding--;
+		}
+	}
+
+	/**
+	 * @param force
+	 *            Whether intent and ready records are forced to stable storage before the
+	 *            operation continues.
+	 */
+	void setForce(boolean force) {
+		this.force = force;
+	}
+
+	/**
+	 * @param seq
+	 *            The sequence number of an operation.
+	 * @return The temporary file in which new content for the operation is written.
+	 */
+	File tempFile(long seq) {
+		return new File(folder, seq + ".tmp");
+	}
+
+	/**
+	 * Deletes temporary files that do not belong to an operation in progress. This is only safe
+	 * during recovery.
+	 */
+	void deleteTempFiles() {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(".tmp")) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		synchronized (forceLock) {
+			if (active != null) {
+				active.channel.close();
+				active = null;
+			}
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Appends a record to the active segment, moving on to another segment if it is full.
+	 *
+	 * @return The logical position of the end of the record.
+	 */
+	private long append(byte type, long seq, Operation operation, String id) throws IOException {
+		if (active == null) {
+			throw new IOException("Journal " + folder.getPath() + " is closed.");
+		}
+		byte[] body = encode(active.epoch, type, seq, operation, id);
+		if (active.position + 8 + body.length > segmentSize && active.position > headerLength) {
+			rollover();
+			body = encode(active.epoch, type, seq, operation, id);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+		buffer.putInt(body.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(body);
+		buffer.flip();
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			active.channel.write(buffer, active.position + length - buffer.remaining());
+		}
+		active.position += length;
+		written += length;
+		return written;
+	}
+
+	/**
+	 * Forces the journal to stable storage at least up to the given position. Concurrent callers
+	 * share a single force where possible.
+	 */
+	private void forceTo(long position) throws IOException {
+		if (!force) {
+			return;
+		}
+		synchronized (forceLock) {
+			if (forced >= position || active == null) {
+				return;
+			}
+			long target = written;
+			active.channel.force(false);
+			forced = target;
+		}
+	}
+
+	/**
+	 * Moves on to the next segment. Called while holding the lock on this instance.
+	 */
+	private void rollover() throws IOException {
+		synchronized (forceLock) {
+			if (force) {
+				active.channel.force(false);
+			}
+			forced = written;
+			active.channel.close();
+			active = nextSegment();
+			segments.addLast(active);
+		}
+	}
+
+	/**
+	 * Invalidates the header of a segment whose operations have all been resolved, so that its
+	 * records are ignored until the segment is recycled.
+	 */
+	private static void retire(Segment segment) throws IOException {
+		FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.write(header(-1), 0);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Recycles the oldest segment if every operation in it has finished, or creates a new one.
+	 */
+	private Segment nextSegment() throws IOException {
+		epoch++;
+		File file = new File(folder, prefix + epoch + suffix);
+		Segment head = segments.peekFirst();
+		if (head != null && head != active && head.outstanding == 0) {
+			segments.removeFirst();
+			// Write the new header before renaming, so that a crash part way through leaves a
+			// segment whose stale records are ignored:
+			FileChannel channel = FileChannel.open(head.file.toPath(), StandardOpenOption.WRITE);
+			try {
+				channel.write(header(epoch), 0);
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+			Files.move(head.file.toPath(), file.toPath());
+		} else {
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			try {
+				channel.write(header(epoch), 0);
+			} finally {
+				channel.close();
+			}
+		}
+
+		Segment segment = new Segment(file, epoch);
+		segment.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		segment.position = headerLength;
+		return segment;
+	}
+
+	private static ByteBuffer header(long epoch) {
+		ByteBuffer header = ByteBuffer.allocate(headerLength);
+		header.putInt(magic);
+		header.putLong(epoch);
+		header.flip();
+		return header;
+	}
+
+	private static byte[] encode(long epoch, byte type, long seq, Operation operation, String id) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(epoch);
+		out.writeLong(seq);
+		out.writeByte(type);
+		if (type == intent) {
+			out.writeByte(operation.ordinal());
+			out.writeUTF(id);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return The epoch in the header of the given segment file, or -1 if the header is invalid.
+	 */
+	private static long readEpoch(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(headerLength);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+				// Keep reading
+			}
+			header.flip();
+			if (header.remaining() < headerLength || header.getInt() != magic) {
+				return -1;
+			}
+			return header.getLong();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Reads the valid records in a segment. Reading stops at the first record that is torn,
+	 * corrupt, or left over from a previous use of the segment.
+	 * 
+	 * @return The highest sequence number read.
+	 */
+	private static long readRecords(Segment segment, Map<Long, Entry> entries) throws IOException {
+		long highest = 0;
+		if (segment.epoch < 0) {
+			return highest;
+		}
+		byte[] content = Files.readAllBytes(segment.file.toPath());
+		ByteBuffer buffer = ByteBuffer.wrap(content);
+		buffer.position(headerLength);
+		CRC32 crc = new CRC32();
+		while (buffer.remaining() >= 8) {
+			int length = buffer.getInt();
+			int checksum = buffer.getInt();
+			if (length <= 0 || length > maxRecordLength || length > buffer.remaining()) {
+				return highest;
+			}
+			crc.reset();
+			crc.update(content, buffer.position(), length);
+			if ((int) crc.getValue() != checksum) {
+				return highest;
+			}
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, buffer.position(), length));
+			buffer.position(buffer.position() + length);
+			if (in.readLong() != segment.epoch) {
+				return highest;
+			}
+			long seq = in.readLong();
+			highest = Math.max(highest, seq);
+			byte type = in.readByte();
+			if (type == intent) {
+				Operation operation = Operation.values()[in.readByte()];
+				entries.put(seq, new Entry(seq, operation, in.readUTF()));
+			} else if (type == ready && entries.containsKey(seq)) {
+				entries.get(seq).ready = true;
+			} else if (type == done) {
+				entries.remove(seq);
+			}
+		}
+		return highest;
+	}
+
+	/**
+	 * An operation recorded in the journal.
+	 */
+	static class Entry {
+		final long seq;
+		final Operation operation;
+		final String id;
+		boolean ready;
+
+		Entry(long seq, Operation operation, String id) {
+			this.seq = seq;
+			this.operation = operation;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * A journal segment file.
+	 */
+	private static class Segment {
+		final File file;
+		final long epoch;
+		FileChannel channel;
+		long position;
+		int outstanding;
+
+		Segment(File file, long epoch) {
+			this.file = file;
+			this.epoch = epoch;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, in the style of HdrHistogram. Values are
+ * counted in log-linear buckets: each power of two is split into {@value #subBuckets} linear
+ * buckets, so any recorded value is reported to within about 3%, from nanoseconds up to the full
+ * range of a long, in a fixed array of counters.
+ * <p>
+ * {@link #record(long)} is allocation-free and never blocks, so it is safe to call on the hot path
+ * of every operation. Percentiles are computed from a scan of the counters, which is not atomic
+ * with respect to concurrent recording, but is accurate enough for monitoring.
+ *
+ * @author david
+ *
+ */
+class LatencyHistogram {
+
+	private static final int subBucketBits = 5;
+	private static final int subBuckets = 1 << subBucketBits;
+	private static final int buckets = subBuckets + (63 - subBucketBits) * subBuckets;
+
+	private final AtomicLongArray counts = new AtomicLongArray(buckets);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            The duration in nanoseconds. Negative values are recorded as zero.
+	 */
+	void record(long nanos) {
+		long value = Math.max(nanos, 0);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return The number of values recorded.
+	 */
+	long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return The mean of the values recorded, in nanoseconds, or zero if nothing has been
+	 *         recorded.
+	 */
+	long getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : total.get() / n;
+	}
+
+	/**
+	 * @return The largest value recorded, in nanoseconds.
+	 */
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The value at or below which the given percentage of recorded values fall, in
+	 *         nanoseconds. This is the highest value equivalent to the bucket in which the
+	 *         percentile falls, capped at the largest value recorded.
+	 */
+	long getPercentile(double percentile) {
+		long[] snapshot = new long[buckets];
+		long n = 0;
+		for (int i = 0; i < buckets; i++) {
+			snapshot[i] = counts.get(i);
+			n += snapshot[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(n * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < buckets; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return Math.min(highestEquivalent(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Clears all recorded values.
+	 */
+	void reset() {
+		for (int i = 0; i < buckets; i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * @return A point-in-time summary of this histogram.
+	 */
+	LatencySnapshot snapshot() {
+		return new LatencySnapshot(getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99),
+				getPercentile(99.9), getMax());
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * @param value
+	 *            A non-negative value.
+	 * @return The index of the bucket for the value.
+	 */
+	static int index(long value) {
+		if (value < subBuckets) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - subBucketBits;
+		int subBucket = (int) (value >>> shift) - subBuckets;
+		return subBuckets + shift * subBuckets + subBucket;
+	}
+
+	/**
+	 * @param index
+	 *            A bucket index.
+	 * @return The highest value that falls in the bucket.
+	 */
+	static long highestEquivalent(int index) {
+		if (index < subBuckets) {
+			return index;
+		}
+		int shift = (index - subBuckets) / subBuckets;
+		long subBucket = (index - subBuckets) % subBuckets;
+		long lowest = (subBuckets + subBucket) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * A point-in-time summary of the latency of one kind of {@link Operation}. All durations are in
+ * nanoseconds. Over JMX this is presented as composite data.
+ *
+ * @author david
+ *
+ */
+public class LatencySnapshot {
+
+	private final long count;
+	private final long meanNanos;
+	private final long p50Nanos;
+	private final long p90Nanos;
+	private final long p99Nanos;
+	private final long p999Nanos;
+	private final long maxNanos;
+
+	/**
+	 * @param count
+	 *            The number of operations.
+	 * @param meanNanos
+	 *            The mean duration.
+	 * @param p50Nanos
+	 *            The median duration.
+	 * @param p90Nanos
+	 *            The 90th percentile duration.
+	 * @param p99Nanos
+	 *            The 99th percentile duration.
+	 * @param p999Nanos
+	 *            The 99.9th percentile duration.
+	 * @param maxNanos
+	 *            The longest duration.
+	 */
+	@ConstructorProperties({"count", "meanNanos", "p50Nanos", "p90Nanos", "p99Nanos", "p999Nanos", "maxNanos"})
+	public LatencySnapshot(long count, long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long p999Nanos,
+			long maxNanos) {
+		this.count = count;
+		this.meanNanos = meanNanos;
+		this.p50Nanos = p50Nanos;
+		this.p90Nanos = p90Nanos;
+		this.p99Nanos = p99Nanos;
+		this.p999Nanos = p999Nanos;
+		this.maxNanos = maxNanos;
+	}
+
+	/**
+	 * @return the count
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the meanNanos
+	 */
+	public long getMeanNanos() {
+		return meanNanos;
+	}
+
+	/**
+	 * @return the p50Nanos
+	 */
+	public long getP50Nanos() {
+		return p50Nanos;
+	}
+
+	/**
+	 * @return the p90Nanos
+	 */
+	public long getP90Nanos() {
+		return p90Nanos;
+	}
+
+	/**
+	 * @return the p99Nanos
+	 */
+	public long getP99Nanos() {
+		return p99Nanos;
+	}
+
+	/**
+	 * @return the p999Nanos
+	 */
+	public long getP999Nanos() {
+		return p999Nanos;
+	}
+
+	/**
+	 * @return the maxNanos
+	 */
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + count + " mean=" + meanNanos + "ns p50=" + p50Nanos + "ns p90=" + p90Nanos + "ns p99="
+				+ p99Nanos + "ns p99.9=" + p999Nanos + "ns max=" + maxNanos + "ns";
+	}
+}
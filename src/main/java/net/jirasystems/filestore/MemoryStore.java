@@ -0,0 +1,510 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link StorageBackend} that keeps content in memory rather than on disk. Content is held in
+ * pages carved from large {@link ByteBuffer} slabs which, by default, are allocated off-heap so
+ * that stored content neither adds to garbage collection work nor counts against the heap.
+ * <p>
+ * Content is immutable once written: an update writes a complete new copy and swaps it in when it
+ * is finished. A stream returned by {@link #read(String)} therefore always sees the content as it
+ * was when the stream was opened, even if the ID is updated or deleted while it is being read. The
+ * pages of replaced content are reused once the last such stream has been closed, so streams
+ * should always be closed.
+ *
+ * @author david
+ *
+ */
+public class MemoryStore implements StorageBackend {
+
+	private String idRegex = FileStore.defaultIdRegex;
+	private Pattern pattern = Pattern.compile(idRegex);
+	private final SlabAllocator allocator;
+	private final ConcurrentMap<String, Blob> blobs = new ConcurrentHashMap<String, Blob>();
+
+	/**
+	 * Creates an instance that stores content off-heap in slabs of the default size.
+	 */
+	public MemoryStore() {
+		this(true);
+	}
+
+	/**
+	 * @param direct
+	 *            If true, content is stored off-heap. Otherwise it is stored in heap buffers.
+	 */
+	public MemoryStore(boolean direct) {
+		this(SlabAllocator.defaultPageSize, SlabAllocator.defaultPagesPerSlab, direct);
+	}
+
+	/**
+	 * @param pageSize
+	 *            The unit, in bytes, in which memory is allocated to content.
+	 * @param pagesPerSlab
+	 *            The number of pages allocated from the system at a time.
+	 * @param direct
+	 *            If true, content is stored off-heap. Otherwise it is stored in heap buffers.
+	 */
+	public MemoryStore(int pageSize, int pagesPerSlab, boolean direct) {
+		allocator = new SlabAllocator(pageSize, pagesPerSlab, direct);
+	}
+
+	@Override
+	public boolean validId(String id) {
+		if (id == null || id.length() == 0) {
+			return false;
+		}
+		return pattern.matcher(id).matches();
+	}
+
+	@Override
+	public boolean exists(String id) {
+		return blobs.containsKey(id);
+	}
+
+	@Override
+	public InputStream read(String id) {
+		Blob blob = retain(id);
+		return blob != null ? new BlobInputStream(blob) : null;
+	}
+
+	@Override
+	public void create(String id, InputStream content) throws FileStoreException {
+		if (blobs.containsKey(id)) {
+			throw new FileStoreException("Duplicate ID " + id);
+		}
+		Blob blob = write(id, content);
+		if (blobs.putIfAbsent(id, blob) != null) {
+			blob.release();
+			throw new FileStoreException("Duplicate ID " + id);
+		}
+	}
+
+	/**
+	 * The ID is reserved, with empty content, as soon as this method returns; the content written
+	 * to the stream replaces it when the stream is closed.
+	 */
+	@Override
+	public OutputStream create(final String id) throws FileStoreException {
+		if (blobs.putIfAbsent(id, new Blob(new ByteBuffer[0], 0)) != null) {
+			throw new FileStoreException("Duplicate ID " + id);
+		}
+		return new BlobOutputStream(id);
+	}
+
+	@Override
+	public void update(String id, InputStream content) throws FileStoreException {
+		if (content == null) {
+			throw new FileStoreException("Null content detected.");
+		}
+		if (!blobs.containsKey(id)) {
+			throw new FileStoreException("Unable to find ID " + id);
+		}
+		Blob blob = write(id, content);
+		if (!replace(id, blob)) {
+			blob.release();
+			throw new FileStoreException("Unable to find ID " + id);
+		}
+	}
+
+	/**
+	 * The content written to the stream replaces the existing content when the stream is closed. If
+	 * the ID has been deleted by then, the new content is discarded.
+	 */
+	@Override
+	public OutputStream update(String id) throws FileStoreException {
+		if (!blobs.containsKey(id)) {
+			throw new FileStoreException("Unable to find ID " + id);
+		}
+		return new BlobOutputStream(id);
+	}
+
+	/**
+	 * The new ID shares the content of the original, so no content is copied.
+	 */
+	@Override
+	public void copy(String fromId, String toId) throws FileStoreException {
+		Blob blob = retain(fromId);
+		if (blob == null) {
+			throw new FileStoreException("Unable to find ID " + fromId);
+		}
+		if (blobs.putIfAbsent(toId, blob) != null) {
+			blob.release();
+			throw new FileStoreException("Duplicate ID " + toId);
+		}
+	}
+
+	@Override
+	public void move(String fromId, String toId) throws FileStoreException {
+		for (;;) {
+			Blob blob = retain(fromId);
+			if (blob == null) {
+				throw new FileStoreException("Unable to find ID " + fromId);
+			}
+			if (blobs.putIfAbsent(toId, blob) != null) {
+				blob.release();
+				throw new FileStoreException("Duplicate ID " + toId);
+			}
+			// Our reference now belongs to the new ID:
+			if (blobs.remove(fromId, blob)) {
+				blob.release();
+				return;
+			}
+			// The original was changed in the meantime, so try again with its new content:
+			if (blobs.remove(toId, blob)) {
+				blob.release();
+			}
+		}
+	}
+
+	@Override
+	public boolean delete(String id) throws FileStoreException {
+		Blob blob = blobs.remove(id);
+		if (blob == null) {
+			throw new FileStoreException("Unable to find ID " + id);
+		}
+		blob.release();
+		return true;
+	}
+
+	/**
+	 * Discards all content. Streams that are still open for reading remain valid until they are
+	 * closed.
+	 */
+	@Override
+	public void close() {
+		for (String id : blobs.keySet()) {
+			Blob blob = blobs.remove(id);
+			if (blob != null) {
+				blob.release();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of IDs stored.
+	 */
+	public int size() {
+		return blobs.size();
+	}
+
+	/**
+	 * @return The number of bytes of memory allocated for storing content, including memory that
+	 *         is currently free.
+	 */
+	public long getCapacity() {
+		return allocator.getCapacity();
+	}
+
+	/**
+	 * @return The number of bytes of allocated memory that are not currently holding content.
+	 */
+	public long getFree() {
+		return allocator.getFree();
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Copies the given content into newly allocated pages.
+	 *
+	 * @param id
+	 *            The ID being written, for error reporting.
+	 * @param content
+	 *            The content to copy. The stream is not closed.
+	 * @return The content, with a single reference held by the caller.
+	 * @throws FileStoreException
+	 *             If the content cannot be read.
+	 */
+	private Blob write(String id, InputStream content) throws FileStoreException {
+		if (content == null) {
+			throw new NullPointerException("Null content stream.");
+		}
+		BlobOutputStream output = new BlobOutputStream(null);
+		byte[] buffer = new byte[allocator.getPageSize()];
+		try {
+			int read;
+			while ((read = content.read(buffer)) != -1) {
+				output.write(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			output.discard();
+			throw new FileStoreException("Unable to write content for ID " + id, e);
+		}
+		return output.toBlob();
+	}
+
+	/**
+	 * Acquires a reference to the content of an ID.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @return The content, or null if the ID does not exist. The caller must release it.
+	 */
+	private Blob retain(String id) {
+		for (;;) {
+			Blob blob = blobs.get(id);
+			if (blob == null) {
+				return null;
+			}
+			// If the content was released between the lookup and here, look again:
+			if (blob.retain()) {
+				return blob;
+			}
+		}
+	}
+
+	/**
+	 * Swaps new content in for the existing content of an ID, releasing the existing content.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @param blob
+	 *            The new content.
+	 * @return False if the ID does not exist, in which case the new content has not been stored.
+	 */
+	private boolean replace(String id, Blob blob) {
+		for (;;) {
+			Blob existing = blobs.get(id);
+			if (existing == null) {
+				return false;
+			}
+			if (blobs.replace(id, existing, blob)) {
+				existing.release();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Immutable content held in allocator pages. The store holds one reference for as long as the
+	 * content is mapped to an ID, and each open input stream holds another. The pages are returned
+	 * to the allocator when the last reference is released.
+	 */
+	private class Blob {
+
+		final ByteBuffer[] pages;
+		final long length;
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		Blob(ByteBuffer[] pages, long length) {
+			this.pages = pages;
+			this.length = length;
+		}
+
+		/**
+		 * @return True if a reference was acquired; false if the content has already been released.
+		 */
+		boolean retain() {
+			for (;;) {
+				int count = references.get();
+				if (count == 0) {
+					return false;
+				}
+				if (references.compareAndSet(count, count + 1)) {
+					return true;
+				}
+			}
+		}
+
+		void release() {
+			if (references.decrementAndGet() == 0) {
+				for (ByteBuffer page : pages) {
+					allocator.release(page);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a {@link Blob}, releasing its reference on close.
+	 */
+	private static class BlobInputStream extends InputStream {
+
+		private Blob blob;
+		private int page;
+		private long remaining;
+		private ByteBuffer current;
+
+		BlobInputStream(Blob blob) {
+			this.blob = blob;
+			remaining = blob.length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!advance()) {
+				return -1;
+			}
+			remaining--;
+			return current.get() & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!advance()) {
+				return -1;
+			}
+			int count = Math.min(len, current.remaining());
+			current.get(b, off, count);
+			remaining -= count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void close() {
+			if (blob != null) {
+				blob.release();
+				blob = null;
+				current = null;
+				remaining = 0;
+			}
+		}
+
+		/**
+		 * @return True if there is data to read in {@link #current}.
+		 * @throws IOException
+		 *             If the stream has been closed.
+		 */
+		private boolean advance() throws IOException {
+			if (blob == null) {
+				throw new IOException("Stream closed");
+			}
+			if (remaining == 0) {
+				return false;
+			}
+			if (current == null || !current.hasRemaining()) {
+				current = blob.pages[page++].duplicate();
+				current.clear();
+				current.limit((int) Math.min(current.capacity(), remaining));
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Accumulates content in allocator pages. If constructed with an ID, the content replaces the
+	 * content of that ID when the stream is closed.
+	 */
+	private class BlobOutputStream extends OutputStream {
+
+		private final String id;
+		private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+		private ByteBuffer current;
+		private long length;
+		private boolean closed;
+
+		BlobOutputStream(String id) {
+			this.id = id;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			ensureOpen();
+			page().put((byte) b);
+			length++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			ensureOpen();
+			while (len > 0) {
+				ByteBuffer page = page();
+				int count = Math.min(len, page.remaining());
+				page.put(b, off, count);
+				off += count;
+				len -= count;
+				length += count;
+			}
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			if (id == null) {
+				closed = true;
+				return;
+			}
+			Blob blob = toBlob();
+			if (!replace(id, blob)) {
+				blob.release();
+			}
+		}
+
+		/**
+		 * Closes the stream and returns the content written to it.
+		 *
+		 * @return The content, with a single reference.
+		 */
+		Blob toBlob() {
+			closed = true;
+			return new Blob(pages.toArray(new ByteBuffer[pages.size()]), length);
+		}
+
+		/**
+		 * Closes the stream and returns its pages to the allocator.
+		 */
+		void discard() {
+			closed = true;
+			for (ByteBuffer page : pages) {
+				allocator.release(page);
+			}
+			pages.clear();
+		}
+
+		private ByteBuffer page() {
+			if (current == null || !current.hasRemaining()) {
+				current = allocator.allocate();
+				pages.add(current);
+			}
+			return current;
+		}
+
+		private void ensureOpen() throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+		}
+	}
+
+	// --------------- Getters and Setters --------------- //
+
+	/**
+	 * @return the idRegex
+	 */
+	public String getIdRegex() {
+		return idRegex;
+	}
+
+	/**
+	 * @param idRegex
+	 *            the idRegex to set
+	 */
+	public void setIdRegex(String idRegex) {
+		this.idRegex = idRegex;
+		pattern = Pattern.compile(idRegex);
+	}
+}
@@ -0,0 +1,739 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Maintains an asynchronous copy of a {@link FileStore} under a second root, typically on another
+ * volume, so that a warm replica is available for failover without adding to the write latency of
+ * the primary store.
+ * <p>
+ * Each create, update and delete is appended to a durable queue file in the primary store's
+ * {@value FileStore#metadataFolder} folder and then replicated in batches by a background thread.
+ * Replication copies the current state of an ID rather than the content that was written, so
+ * entries are idempotent and repeated IDs in a batch are only copied once. Anything still in the
+ * queue when the store is closed, or after a crash, is replayed when the mirror is next attached.
+ * <p>
+ * Unless the store's {@link Durability} is {@link Durability#NONE}, an entry is forced to disk
+ * before the change it records is acknowledged; writers that queue entries together share a
+ * single force. The queue file is compacted once the entries at its start have been replicated,
+ * so it stays small under sustained load rather than growing until the queue is empty.
+ * <p>
+ * The in-memory queue is bounded: if replication falls behind by more than
+ * <code>queueCapacity</code> entries, writers to the primary store block until there is space.
+ *
+ * @author david
+ *
+ */
+public class Mirror implements Closeable {
+
+	/**
+	 * The default maximum number of entries waiting to be replicated. The default is
+	 * {@value #defaultQueueCapacity}.
+	 */
+	public static final int defaultQueueCapacity = 10000;
+
+	/**
+	 * The default maximum number of entries replicated in a single batch. The default is
+	 * {@value #defaultBatchSize}.
+	 */
+	public static final int defaultBatchSize = 100;
+
+	/**
+	 * The name of the queue file in the metadata folder of the primary store.
+	 */
+	static final String queueFileName = "mirror.queue";
+
+	/**
+	 * The number of bytes of replicated entries at the start of the queue file above which the
+	 * file is compacted, provided they are at least half of it. The value is
+	 * {@value #compactBytes}.
+	 */
+	static final long compactBytes = 1 << 20;
+
+	private static final long retryDelayMillis = 1000;
+
+	private final String mirrorPath;
+	private int queueCapacity = defaultQueueCapacity;
+	private int batchSize = defaultBatchSize;
+
+	private FileStore source;
+	private FileStore target;
+	private BlockingQueue<Entry> queue;
+	private File queueFile;
+	private FileChannel queueChannel;
+	private DataOutputStream queueOut;
+	private long pending;
+	private final Deque<Entry> outstanding = new ArrayDeque<Entry>();
+	private long written;
+	private long forced;
+	private final Object queueLock = new Object();
+	private final Object forceLock = new Object();
+	private Thread replicator;
+	private volatile boolean running;
+
+	/**
+	 * @param mirrorPath
+	 *            The root directory for the mirror. This is normally on a different volume to the
+	 *            primary store.
+	 */
+	public Mirror(String mirrorPath) {
+		this.mirrorPath = mirrorPath;
+	}
+
+	/**
+	 * Waits until every queued entry has been replicated.
+	 *
+	 * @param timeout
+	 *            The maximum time to wait.
+	 * @param unit
+	 *            The unit of the timeout.
+	 * @return True if the queue was drained, false if the timeout elapsed first.
+	 * @throws InterruptedException
+	 *             If the current thread is interrupted while waiting.
+	 */
+	public boolean awaitReplication(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (queueLock) {
+			while (pending > 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(queueLock, remaining);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compares the primary store with the mirror, walking both trees in parallel. Entries that
+	 * are still waiting to be replicated will show up as differences.
+	 *
+	 * @param parallelism
+	 *            The number of threads to use for the comparison.
+	 * @param compareContent
+	 *            If true, files of the same size are compared byte for byte. Otherwise only
+	 *            existence and size are compared.
+	 * @return A {@link Report} of the differences found.
+	 * @throws IOException
+	 *             If an error occurs in reading either tree.
+	 */
+	public Report check(int parallelism, final boolean compareContent) throws IOException {
+		if (source == null) {
+			throw new IllegalStateException("Mirror is not attached to a FileStore.");
+		}
+
+		final Report report = new Report();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			StoreWalker.walk(source, pool, (id, file) -> {
+				File other = target.idToFile(id);
+				if (!other.isFile()) {
+					report.missing.add(id);
+				} else if (other.length() != file.length() || (compareContent && !contentEquals(file, other))) {
+					report.different.add(id);
+				}
+			});
+			StoreWalker.walk(target, pool, (id, file) -> {
+				if (!source.idToFile(id).exists()) {
+					report.extra.add(id);
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+		Collections.sort(report.missing);
+		Collections.sort(report.different);
+		Collections.sort(report.extra);
+		return report;
+	}
+
+	/**
+	 * Queues every ID in the given report for replication, bringing the mirror back into line with
+	 * the primary store.
+	 *
+	 * @param report
+	 *            A report produced by {@link #check(int, boolean)}.
+	 * @throws IOException
+	 *             If the IDs cannot be recorded in the queue.
+	 */
+	public void repair(Report report) throws IOException {
+		for (String id : report.getMissing()) {
+			enqueue(id);
+		}
+		for (String id : report.getDifferent()) {
+			enqueue(id);
+		}
+		for (String id : report.getExtra()) {
+			enqueue(id);
+		}
+	}
+
+	/**
+	 * Stops the replication thread. Entries that have not yet been replicated remain in the queue
+	 * file and are replayed when the mirror is next attached.
+	 */
+	@Override
+	public void close() throws IOException {
+		running = false;
+		Thread thread = replicator;
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			replicator = null;
+		}
+		synchronized (forceLock) {
+			synchronized (queueLock) {
+				IOUtils.closeQuietly(queueOut);
+				queueOut = null;
+			}
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Attaches this mirror to the given primary store, replays any queued entries and starts the
+	 * replication thread.
+	 *
+	 * @param source
+	 *            The primary store.
+	 * @throws IOException
+	 *             If the queue file cannot be read or opened.
+	 */
+	void attach(FileStore source) throws IOException {
+		this.source = source;
+		target = new FileStore(mirrorPath);
+		target.setIdChunkSize(source.getIdChunkSize());
+		target.setExtension(source.getExtension());
+		target.setIdRegex(source.getIdRegex());
+
+		queueFile = source.metadataFile(queueFileName);
+		queueFile.getParentFile().mkdirs();
+		Set<String> replay = new LinkedHashSet<String>();
+		readQueue(queueFile, replay);
+
+		// Start from a compact file, without repeated IDs or a partially written last entry:
+		rewriteQueue(replay);
+		List<Entry> entries = new ArrayList<Entry>();
+		long end = 0;
+		for (String id : replay) {
+			end += 2 + utfLength(id);
+			entries.add(new Entry(id, end));
+		}
+		openQueue();
+
+		queue = new LinkedBlockingQueue<Entry>(Math.max(queueCapacity, replay.size()));
+		synchronized (queueLock) {
+			outstanding.clear();
+			outstanding.addAll(entries);
+			pending = entries.size();
+			written = end;
+			forced = end;
+		}
+		queue.addAll(entries);
+
+		running = true;
+		replicator = new Thread(this::replicate, "FileStore mirror " + mirrorPath);
+		replicator.setDaemon(true);
+		replicator.start();
+	}
+
+	/**
+	 * Records the given ID in the durable queue and hands it to the replication thread. Unless the
+	 * store's durability is {@link Durability#NONE}, the entry is forced to disk first. This blocks
+	 * if the in-memory queue is full.
+	 *
+	 * @param id
+	 *            The ID to replicate.
+	 * @throws IOException
+	 *             If the ID cannot be recorded.
+	 */
+	void enqueue(String id) throws IOException {
+		Entry entry;
+		synchronized (queueLock) {
+			if (queueOut == null) {
+				throw new IOException("Mirror " + mirrorPath + " is closed.");
+			}
+			queueOut.writeUTF(id);
+			queueOut.flush();
+			written += 2 + utfLength(id);
+			entry = new Entry(id, written);
+			outstanding.add(entry);
+			pending++;
+		}
+		boolean queued = false;
+		try {
+			if (source.getDurability() != Durability.NONE) {
+				force(entry);
+			}
+			queue.put(entry);
+			queued = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing ID " + id + " for mirroring");
+		} finally {
+			if (!queued) {
+				// Stop waiting for an entry that will never be replicated. It stays in the queue
+				// file until that is truncated or compacted, so a restart before then replays it:
+				completed(Collections.singletonList(entry));
+			}
+		}
+	}
+
+	/**
+	 * Forces the queue file to disk up to the end of the given entry, unless another writer has
+	 * already done so. One force covers every entry written before it started, so concurrent
+	 * writers share forces rather than queueing for one each.
+	 *
+	 * @param entry
+	 *            The entry that must be on disk.
+	 * @throws IOException
+	 *             If the queue file cannot be forced.
+	 */
+	private void force(Entry entry) throws IOException {
+		synchronized (forceLock) {
+			long target;
+			FileChannel channel;
+			synchronized (queueLock) {
+				if (entry.end <= forced) {
+					return;
+				}
+				if (queueOut == null) {
+					throw new IOException("Mirror " + mirrorPath + " is closed.");
+				}
+				target = written;
+				channel = queueChannel;
+			}
+			// Compaction and close also hold the force lock, so the file cannot change under us:
+			channel.force(false);
+			synchronized (queueLock) {
+				forced = Math.max(forced, target);
+			}
+		}
+	}
+
+	/**
+	 * Body of the replication thread.
+	 */
+	private void replicate() {
+		List<Entry> batch = new ArrayList<Entry>(batchSize);
+		List<Entry> retry = new ArrayList<Entry>();
+		while (running) {
+			batch.clear();
+			batch.addAll(retry);
+			retry.clear();
+			try {
+				if (batch.isEmpty()) {
+					batch.add(queue.take());
+				}
+				queue.drainTo(batch, batchSize - batch.size());
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			// Each ID only needs to be copied once, however many times it appears:
+			Set<String> failed = new LinkedHashSet<String>();
+			for (String id : ids(batch)) {
+				try {
+					sync(id);
+				} catch (IOException e) {
+					failed.add(id);
+				}
+			}
+			List<Entry> done = new ArrayList<Entry>(batch.size());
+			for (Entry entry : batch) {
+				(failed.contains(entry.id) ? retry : done).add(entry);
+			}
+
+			completed(done);
+			if (!retry.isEmpty()) {
+				try {
+					Thread.sleep(retryDelayMillis);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The distinct IDs of the given entries, in order.
+	 */
+	private static Set<String> ids(Collection<Entry> entries) {
+		Set<String> result = new LinkedHashSet<String>();
+		for (Entry entry : entries) {
+			result.add(entry.id);
+		}
+		return result;
+	}
+
+	/**
+	 * Accounts for replicated entries and works out how far the queue file has been replicated
+	 * without a gap. The file is truncated once nothing is outstanding, and compacted once the
+	 * replicated entries at its start reach {@value #compactBytes} bytes and at least half of it.
+	 *
+	 * @param done
+	 *            The entries that have been replicated.
+	 */
+	private void completed(List<Entry> done) {
+		synchronized (forceLock) {
+			synchronized (queueLock) {
+				for (Entry entry : done) {
+					entry.done = true;
+				}
+				pending -= done.size();
+				long replicated = 0;
+				while (!outstanding.isEmpty() && outstanding.peekFirst().done) {
+					replicated = outstanding.removeFirst().end;
+				}
+				if (queueOut != null && replicated > 0) {
+					try {
+						if (outstanding.isEmpty()) {
+							// The stream is in append mode, so writes continue from the new end:
+							queueChannel.truncate(0);
+							written = 0;
+							forced = 0;
+						} else if (replicated >= compactBytes && replicated * 2 >= written) {
+							compact(replicated);
+						}
+					} catch (IOException e) {
+						// Replicated entries will be replayed on restart, which is safe.
+					}
+				}
+				queueLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Drops the replicated entries from the start of the queue file, by copying the rest of the
+	 * file to a new one, forcing it and renaming it over the queue file. Must be called holding
+	 * both the force lock and the queue lock.
+	 *
+	 * @param replicated
+	 *            The length of the start of the file that has been replicated.
+	 * @throws IOException
+	 *             If the file cannot be compacted. The queue file is then left as it was.
+	 */
+	private void compact(long replicated) throws IOException {
+		File temp = new File(queueFile.getPath() + ".tmp");
+		try (FileChannel in = FileChannel.open(queueFile.toPath(), StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			long position = replicated;
+			while (position < written) {
+				position += in.transferTo(position, written - position, out);
+			}
+			out.force(false);
+		}
+		Files.move(temp.toPath(), queueFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		IOUtils.closeQuietly(queueOut);
+		queueOut = null;
+		openQueue();
+		for (Entry entry : outstanding) {
+			entry.end -= replicated;
+		}
+		written -= replicated;
+		forced = written;
+	}
+
+	/**
+	 * Opens the queue file for appending.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be opened.
+	 */
+	private void openQueue() throws IOException {
+		FileOutputStream output = new FileOutputStream(queueFile, true);
+		queueChannel = output.getChannel();
+		queueOut = new DataOutputStream(output);
+	}
+
+	/**
+	 * Replaces the queue file with one holding the given IDs, forced to disk.
+	 *
+	 * @param ids
+	 *            The IDs still to be replicated.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	private void rewriteQueue(Collection<String> ids) throws IOException {
+		File temp = new File(queueFile.getPath() + ".tmp");
+		FileOutputStream output = new FileOutputStream(temp);
+		try {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+			for (String id : ids) {
+				data.writeUTF(id);
+			}
+			data.flush();
+			output.getChannel().force(false);
+		} finally {
+			output.close();
+		}
+		Files.move(temp.toPath(), queueFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Brings the mirror copy of the given ID into line with the primary store.
+	 *
+	 * @param id
+	 *            The ID to synchronise.
+	 * @throws IOException
+	 *             If the copy or deletion fails.
+	 */
+	private void sync(String id) throws IOException {
+		File from = source.idToFile(id);
+		File to = target.idToFile(id);
+		if (from.exists()) {
+			File folder = target.metadataFile("tmp");
+			folder.mkdirs();
+			to.getParentFile().mkdirs();
+			File temp = File.createTempFile("mirror", ".tmp", folder);
+			try {
+				Files.copy(from.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				Files.move(temp.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				return;
+			} catch (NoSuchFileException e) {
+				// Deleted while we were copying: fall through to deletion.
+			} finally {
+				temp.delete();
+			}
+		}
+		if (to.exists() && !to.delete()) {
+			throw new IOException("Unable to delete mirror file for ID " + id + " (" + to.getPath() + ")");
+		}
+	}
+
+	/**
+	 * Compares two files of the same length byte for byte, through direct buffers borrowed from
+	 * the source store's {@link BufferPool}.
+	 *
+	 * @param a
+	 *            A file.
+	 * @param b
+	 *            Another file.
+	 * @return True if the files have the same content.
+	 * @throws IOException
+	 *             If either file cannot be read.
+	 */
+	private boolean contentEquals(File a, File b) throws IOException {
+		BufferPool bufferPool = source.getBufferPool();
+		ByteBuffer bufferA = bufferPool.acquireDirect();
+		ByteBuffer bufferB = bufferPool.acquireDirect();
+		try (FileChannel channelA = FileChannel.open(a.toPath(), StandardOpenOption.READ);
+				FileChannel channelB = FileChannel.open(b.toPath(), StandardOpenOption.READ)) {
+			while (true) {
+				bufferA.clear();
+				bufferB.clear();
+				boolean endA = fill(channelA, bufferA);
+				boolean endB = fill(channelB, bufferB);
+				bufferA.flip();
+				bufferB.flip();
+				if (!bufferA.equals(bufferB)) {
+					return false;
+				}
+				if (endA || endB) {
+					return endA == endB;
+				}
+			}
+		} finally {
+			bufferPool.release(bufferA);
+			bufferPool.release(bufferB);
+		}
+	}
+
+	/**
+	 * Reads from a channel until the buffer is full or the end of the channel is reached.
+	 *
+	 * @return True if the end of the channel was reached.
+	 */
+	private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) == -1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads the IDs recorded in the given queue file.
+	 *
+	 * @param file
+	 *            The queue file.
+	 * @param ids
+	 *            Receives the IDs.
+	 * @throws IOException
+	 *             If the file cannot be read.
+	 */
+	private static void readQueue(File file, Set<String> ids) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			while (true) {
+				ids.add(in.readUTF());
+			}
+		} catch (EOFException e) {
+			// End of queue, or an entry that was only partially written.
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	/**
+	 * @param s
+	 *            A string.
+	 * @return The number of bytes {@link DataOutputStream#writeUTF(String)} writes for the string,
+	 *         excluding the two-byte length prefix.
+	 */
+	private static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	// --------------- Getters and Setters --------------- //
+
+	/**
+	 * @return the mirrorPath
+	 */
+	public String getMirrorPath() {
+		return mirrorPath;
+	}
+
+	/**
+	 * @return the queueCapacity
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Sets the maximum number of entries that can be waiting for replication before writers to
+	 * the primary store block. This must be set before the mirror is attached.
+	 *
+	 * @param queueCapacity
+	 *            the queueCapacity to set
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * @return the batchSize
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of entries the replication thread takes from the queue at a time.
+	 *
+	 * @param batchSize
+	 *            the batchSize to set
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * An ID in the queue, with the offset in the queue file at which its entry ends.
+	 */
+	private static class Entry {
+		final String id;
+		long end;
+		boolean done;
+
+		Entry(String id, long end) {
+			this.id = id;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * The result of {@link Mirror#check(int, boolean)}. Each list is sorted by ID.
+	 */
+	public static class Report {
+
+		private final List<String> missing = Collections.synchronizedList(new ArrayList<String>());
+		private final List<String> different = Collections.synchronizedList(new ArrayList<String>());
+		private final List<String> extra = Collections.synchronizedList(new ArrayList<String>());
+
+		/**
+		 * @return IDs present in the primary store but not in the mirror.
+		 */
+		public List<String> getMissing() {
+			return missing;
+		}
+
+		/**
+		 * @return IDs present in both, but with different content.
+		 */
+		public List<String> getDifferent() {
+			return different;
+		}
+
+		/**
+		 * @return IDs present in the mirror but not in the primary store.
+		 */
+		public List<String> getExtra() {
+			return extra;
+		}
+
+		/**
+		 * @return True if no differences were found.
+		 */
+		public boolean isConsistent() {
+			return missing.isEmpty() && different.isEmpty() && extra.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An upload of a large object in numbered parts, which can be written concurrently by different
+ * threads, so that the upload is not limited to the speed of a single stream. Start one with
+ * {@link FileStore#beginUpload(String, long)}.
+ * <p>
+ * Every part except the last is exactly the part size given when the upload was begun, so each
+ * part has a known place in the object. Parts are written straight to that place in a single
+ * temporary file with positional writes, so nothing needs to be copied when the upload is
+ * committed. A part can be written again, for example to retry a failed transfer, until the
+ * upload is committed.
+ * <p>
+ * {@link #commit()} checks that the parts run from 1 with no gaps and publishes the file under the
+ * ID atomically, so readers never see a partial object. {@link #abort()}, or {@link #close()}
+ * without a commit, deletes the temporary file.
+ *
+ * @author david
+ *
+ */
+public class MultipartUpload implements Closeable {
+
+	private final FileStore store;
+	private final String id;
+	private final long partSize;
+	private final File temp;
+	private final FileChannel channel;
+	private final Map<Integer, Long> parts = new ConcurrentHashMap<Integer, Long>();
+
+	/**
+	 * Part writes hold the read lock, so that many can run at once, and commit and abort hold the
+	 * write lock, so that they wait for writes in progress.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private boolean finished;
+
+	/**
+	 * @param store
+	 *            The store the object is being uploaded to.
+	 * @param id
+	 *            The ID the object is to be created under.
+	 * @param partSize
+	 *            The size of every part except the last.
+	 * @param temp
+	 *            The temporary file the parts are written to.
+	 * @throws IOException
+	 *             If the temporary file cannot be opened.
+	 */
+	MultipartUpload(FileStore store, String id, long partSize, File temp) throws IOException {
+		this.store = store;
+		this.id = id;
+		this.partSize = partSize;
+		this.temp = temp;
+		channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Writes a part of the object. This can be called concurrently for different parts.
+	 *
+	 * @param partNumber
+	 *            The number of the part, starting from 1.
+	 * @param content
+	 *            The content of the part. This must be exactly the part size, unless it is the
+	 *            last part, in which case it can be shorter.
+	 * @return The number of bytes written.
+	 * @throws FileStoreException
+	 *             If the part number is not valid, the content is longer than the part size, the
+	 *             upload has been committed or aborted, or if an IO error occurs.
+	 */
+	public long writePart(int partNumber, InputStream content) throws FileStoreException {
+		if (partNumber < 1) {
+			throw new FileStoreException("Invalid part number " + partNumber + " for upload of ID " + id);
+		}
+		if (content == null) {
+			throw new FileStoreException("Null content detected.");
+		}
+		Lock readLock = lock.readLock();
+		readLock.lock();
+		try {
+			if (finished) {
+				throw new FileStoreException("Upload of ID " + id + " has already been committed or aborted.");
+			}
+			parts.remove(Integer.valueOf(partNumber));
+			long start = (partNumber - 1) * partSize;
+			long written = 0;
+			ReadableByteChannel input = Channels.newChannel(content);
+			ByteBuffer buffer = store.getBufferPool().acquireDirect();
+			try {
+				while (input.read(buffer) != -1) {
+					buffer.flip();
+					if (written + buffer.remaining() > partSize) {
+						throw new FileStoreException("Part " + partNumber + " of upload of ID " + id
+								+ " is longer than the part size of " + partSize + " bytes.");
+					}
+					while (buffer.hasRemaining()) {
+						written += channel.write(buffer, start + written);
+					}
+					buffer.clear();
+				}
+			} finally {
+				store.getBufferPool().release(buffer);
+			}
+			parts.put(Integer.valueOf(partNumber), Long.valueOf(written));
+			return written;
+		} catch (IOException e) {
+			throw new FileStoreException("Unable to write part " + partNumber + " of upload of ID " + id, e);
+		} finally {
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Checks that the parts are complete and publishes the object under the ID. Writes in progress
+	 * are waited for.
+	 *
+	 * @return The size of the object.
+	 * @throws FileStoreException
+	 *             If a part is missing or, other than the last, is short, if the ID has been
+	 *             created in the meantime, if the upload has already been committed or aborted, or
+	 *             if an IO error occurs. Unless the upload had already finished, it is aborted.
+	 */
+	public long commit() throws FileStoreException {
+		Lock writeLock = lock.writeLock();
+		writeLock.lock();
+		try {
+			if (finished) {
+				throw new FileStoreException("Upload of ID " + id + " has already been committed or aborted.");
+			}
+			finished = true;
+			try {
+				long size = size();
+				channel.truncate(size);
+				channel.close();
+				store.commitUpload(id, temp, size);
+				return size;
+			} catch (IOException e) {
+				throw new FileStoreException("Unable to commit upload of ID " + id, e);
+			} finally {
+				discard();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Abandons the upload and deletes the parts written so far. Writes in progress are waited for.
+	 * This does nothing if the upload has already been committed or aborted.
+	 */
+	public void abort() {
+		Lock writeLock = lock.writeLock();
+		writeLock.lock();
+		try {
+			if (!finished) {
+				finished = true;
+				discard();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Aborts the upload, unless it has been committed.
+	 */
+	@Override
+	public void close() {
+		abort();
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * @return The size of the object, once it has been checked that the parts run from 1 with no
+	 *         gaps and that every part but the last is full.
+	 */
+	private long size() throws FileStoreException {
+		int count = parts.size();
+		long size = 0;
+		for (int partNumber = 1; partNumber <= count; partNumber++) {
+			Long length = parts.get(Integer.valueOf(partNumber));
+			if (length == null) {
+				throw new FileStoreException("Part " + partNumber + " of upload of ID " + id + " is missing.");
+			}
+			if (partNumber < count && length.longValue() != partSize) {
+				throw new FileStoreException("Part " + partNumber + " of upload of ID " + id + " is " + length
+						+ " bytes, but only the last part can be shorter than " + partSize + " bytes.");
+			}
+			size += length.longValue();
+		}
+		return size;
+	}
+
+	/**
+	 * Closes and deletes the temporary file.
+	 */
+	private void discard() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing more can be done
+		}
+		temp.delete();
+	}
+
+	// --------------- Getters and Setters --------------- //
+
+	/**
+	 * @return the id
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the partSize
+	 */
+	public long getPartSize() {
+		return partSize;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+/**
+ * The operations a {@link FileStore} performs. The ordinal of each constant is recorded on disk,
+ * so new constants must only ever be added at the end.
+ *
+ * @author david
+ *
+ */
+public enum Operation {
+
+	/**
+	 * A new file is created.
+	 */
+	CREATE,
+
+	/**
+	 * A file is read.
+	 */
+	READ,
+
+	/**
+	 * The content of an existing file is replaced.
+	 */
+	UPDATE,
+
+	/**
+	 * A file is deleted.
+	 */
+	DELETE,
+
+	/**
+	 * The existence of a file is checked.
+	 */
+	EXISTS,
+
+	/**
+	 * The content of a file is copied to a new ID.
+	 */
+	COPY,
+
+	/**
+	 * A file is given a new ID.
+	 */
+	MOVE
+}
@@ -0,0 +1,266 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a file as a sequence of chunks, with several chunks read concurrently by positional
+ * {@link FileChannel} reads, so that a single large file can keep more than one request in flight
+ * to the device. Chunks are handed out in order, either whole through {@link #next()} or as a
+ * stream of bytes.
+ * <p>
+ * Up to twice the parallelism in chunks is read ahead of the caller. Chunks are read on a pool of
+ * threads shared by every reader of a store, see {@link #newPool()}, into direct buffers taken
+ * from the store's {@link BufferPool}, so each chunk is the size of the pool's direct buffers.
+ * Buffers are reused once the caller has moved on to the next chunk, and go back to the pool
+ * when the reader is closed.
+ *
+ * @author david
+ *
+ */
+class ParallelReader extends InputStream {
+
+	/**
+	 * The number of threads in the pool shared by the readers of a store. The value is
+	 * {@value #threads}.
+	 */
+	static final int threads = 16;
+
+	private final FileChannel channel;
+	private final long size;
+	private final ExecutorService pool;
+	private final BufferPool bufferPool;
+	private final int readAhead;
+	private final Deque<Future<ByteBuffer>> inFlight = new ArrayDeque<Future<ByteBuffer>>();
+	private final Deque<ByteBuffer> reading = new ArrayDeque<ByteBuffer>();
+	private final Deque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+	private long position;
+	private ByteBuffer current;
+	private ByteBuffer content;
+
+	/**
+	 * Opens a file and starts reading ahead.
+	 *
+	 * @param path
+	 *            The file to read.
+	 * @param parallelism
+	 *            The number of chunks to read concurrently.
+	 * @param pool
+	 *            The threads to read chunks on, from {@link #newPool()}.
+	 * @param bufferPool
+	 *            The pool to take chunk buffers from.
+	 * @throws IOException
+	 *             If the file cannot be opened, including
+	 *             {@link java.nio.file.NoSuchFileException} if it does not exist.
+	 */
+	ParallelReader(Path path, int parallelism, ExecutorService pool, BufferPool bufferPool) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		size = channel.size();
+		this.pool = pool;
+		this.bufferPool = bufferPool;
+		readAhead = 2 * parallelism;
+		while (inFlight.size() < readAhead && submit()) {
+			// Fill the read-ahead
+		}
+	}
+
+	/**
+	 * Hands out content that is already in memory, as a single chunk.
+	 *
+	 * @param content
+	 *            The content.
+	 */
+	ParallelReader(byte[] content) {
+		channel = null;
+		size = content.length;
+		pool = null;
+		bufferPool = null;
+		readAhead = 0;
+		this.content = ByteBuffer.wrap(content);
+	}
+
+	/**
+	 * Creates a pool of {@value #threads} daemon threads for reading chunks, to be shared by the
+	 * readers of a store and shut down when the store is closed.
+	 *
+	 * @return The pool.
+	 */
+	static ExecutorService newPool() {
+		return Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "FileStore reader");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Returns the next chunk of the file. The buffer belongs to the reader, and is only valid until
+	 * the next call to this method or to one of the read methods.
+	 *
+	 * @return The next chunk, ready to be read, or null at the end of the file.
+	 * @throws IOException
+	 *             If a chunk could not be read, or if interrupted.
+	 */
+	ByteBuffer next() throws IOException {
+		if (current != null && channel != null) {
+			free.add(current);
+		}
+		current = null;
+		if (content != null) {
+			current = content;
+			content = null;
+			return current;
+		}
+		Future<ByteBuffer> chunk = inFlight.poll();
+		if (chunk == null) {
+			return null;
+		}
+		reading.poll();
+		try {
+			current = chunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading ahead.");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Unable to read ahead", e.getCause());
+		}
+		submit();
+		return current;
+	}
+
+	/**
+	 * @return The size of the file.
+	 */
+	long size() {
+		return size;
+	}
+
+	@Override
+	public int read() throws IOException {
+		ByteBuffer buffer = buffer();
+		return buffer != null ? buffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		ByteBuffer buffer = buffer();
+		if (buffer == null) {
+			return -1;
+		}
+		int count = Math.min(len, buffer.remaining());
+		buffer.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return current != null ? current.remaining() : 0;
+	}
+
+	/**
+	 * Stops reading ahead, returns the buffers to the pool and closes the file. Chunks already
+	 * being read are waited for, so that their buffers are not returned while still in use.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel == null) {
+			return;
+		}
+		boolean interrupted = false;
+		while (!inFlight.isEmpty()) {
+			Future<ByteBuffer> chunk = inFlight.poll();
+			ByteBuffer buffer = reading.poll();
+			if (!chunk.cancel(false)) {
+				// Already being read, so the buffer is in use until the read finishes:
+				while (true) {
+					try {
+						chunk.get();
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					} catch (ExecutionException | CancellationException e) {
+						break;
+					}
+				}
+			}
+			free.add(buffer);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (current != null) {
+			free.add(current);
+			current = null;
+		}
+		for (ByteBuffer buffer : free) {
+			bufferPool.release(buffer);
+		}
+		free.clear();
+		channel.close();
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * @return The current chunk, moving on to the next if it has been read, or null at the end of
+	 *         the file.
+	 */
+	private ByteBuffer buffer() throws IOException {
+		while (current == null || !current.hasRemaining()) {
+			if (next() == null) {
+				return null;
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Starts reading the next chunk, if there is one.
+	 *
+	 * @return Whether a chunk was submitted.
+	 */
+	private boolean submit() {
+		if (pool == null || position >= size) {
+			return false;
+		}
+		ByteBuffer recycled = free.poll();
+		final ByteBuffer buffer = recycled != null ? recycled : bufferPool.acquireDirect();
+		final long start = position;
+		final int length = (int) Math.min(buffer.capacity(), size - start);
+		position += length;
+		reading.add(buffer);
+		inFlight.add(pool.submit(() -> {
+			buffer.clear().limit(length);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, start + buffer.position()) == -1) {
+					// Truncated while being read:
+					break;
+				}
+			}
+			buffer.flip();
+			return buffer;
+		}));
+		return true;
+	}
+}
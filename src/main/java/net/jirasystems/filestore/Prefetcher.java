@@ -0,0 +1,121 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads files on a small pool of background threads, discarding the content, so that the
+ * operating system has them in its page cache by the time they are read for real. See
+ * {@link FileStore#prefetch(java.util.Collection)}.
+ * <p>
+ * The number of bytes queued or being read is capped, so that prefetching cannot evict more of
+ * the page cache than the caller is likely to use, nor queue up work without bound. A file that
+ * would take the total over the cap is not prefetched. Prefetching is advisory, so files deleted
+ * or replaced in the meantime are simply skipped.
+ *
+ * @author david
+ *
+ */
+class Prefetcher implements Closeable {
+
+	/**
+	 * The number of background threads. The value is {@value #threads}.
+	 */
+	static final int threads = 4;
+
+	private final BufferPool bufferPool;
+	private final long maxBytes;
+	private final AtomicLong outstanding = new AtomicLong();
+	private final ExecutorService pool;
+
+	/**
+	 * @param bufferPool
+	 *            The pool to take read buffers from.
+	 * @param maxBytes
+	 *            The most bytes that can be queued or being read at once.
+	 */
+	Prefetcher(BufferPool bufferPool, long maxBytes) {
+		this.bufferPool = bufferPool;
+		this.maxBytes = maxBytes;
+		pool = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "FileStore prefetch");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Queues a file to be read, unless that would take the bytes outstanding over the cap.
+	 *
+	 * @param path
+	 *            The file.
+	 * @param size
+	 *            The size of the file.
+	 * @return Whether the file was queued.
+	 */
+	boolean prefetch(Path path, long size) {
+		long current;
+		do {
+			current = outstanding.get();
+			if (current + size > maxBytes) {
+				return false;
+			}
+		} while (!outstanding.compareAndSet(current, current + size));
+		try {
+			pool.execute(() -> {
+				try {
+					read(path);
+				} finally {
+					outstanding.addAndGet(-size);
+				}
+			});
+		} catch (RuntimeException e) {
+			// Closed in the meantime
+			outstanding.addAndGet(-size);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Abandons queued prefetches and waits briefly for those in progress to stop.
+	 */
+	@Override
+	public void close() {
+		pool.shutdownNow();
+		try {
+			pool.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	private void read(Path path) {
+		ByteBuffer buffer = bufferPool.acquireDirect();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long position = 0;
+			int count;
+			while ((count = channel.read(buffer, position)) > 0) {
+				position += count;
+				buffer.clear();
+			}
+		} catch (IOException e) {
+			// Deleted since it was queued, or interrupted by a close: nothing to warm
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
+}
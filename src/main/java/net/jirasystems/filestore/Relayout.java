@@ -0,0 +1,276 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Moves the files of a {@link FileStore} from a previous layout, given by an ID chunk size and
+ * extension, to the store's current layout, while the store stays in use.
+ * <p>
+ * A background thread walks the previous layout in parallel, one fork-join task per folder, and
+ * moves each file it finds to its new path with an atomic rename. Until the walk is complete, the
+ * store looks for an ID in the previous layout when it is missing from the new one, and moves an
+ * ID before changing it, so that every change is made in the new layout. Nothing is written to
+ * the previous layout, so a single walk is enough.
+ * <p>
+ * The previous layout and the number of files moved are saved under the
+ * {@value FileStore#metadataFolder} folder, so that an unfinished relayout can be resumed after
+ * a restart. If the walk fails, it is tried again after {@value #retryIntervalMillis}ms. Folders
+ * emptied by the walk are left in place.
+ *
+ * @author david
+ *
+ */
+class Relayout implements Closeable {
+
+	/**
+	 * How long, in milliseconds, the background thread waits before walking again after a failure.
+	 * The value is {@value #retryIntervalMillis}.
+	 */
+	static final long retryIntervalMillis = 10000;
+
+	/**
+	 * The number of locks over which IDs are spread, so that the walk and a change to the same ID
+	 * do not both try to move it. This must be a power of two. The value is {@value #lockStripes}.
+	 */
+	private static final int lockStripes = 64;
+
+	private final FileStore store;
+	private final File file;
+	private final int fromIdChunkSize;
+	private final String fromExtension;
+	private final Object[] locks = new Object[lockStripes];
+	private final LongAdder moved = new LongAdder();
+	private volatile boolean complete;
+
+	private final Object lock = new Object();
+	private volatile boolean running = true;
+	private final Thread thread;
+
+	/**
+	 * Call {@link #start()} to start the background thread.
+	 *
+	 * @param store
+	 *            The store whose files are to be moved.
+	 * @param file
+	 *            The file in which the state of the relayout is saved.
+	 * @param fromIdChunkSize
+	 *            The ID chunk size of the previous layout.
+	 * @param fromExtension
+	 *            The extension of the previous layout.
+	 * @param moved
+	 *            The number of files already moved by a previous run.
+	 */
+	Relayout(FileStore store, File file, int fromIdChunkSize, String fromExtension, long moved) {
+		this.store = store;
+		this.file = file;
+		this.fromIdChunkSize = fromIdChunkSize;
+		this.fromExtension = fromExtension;
+		this.moved.add(moved);
+		for (int i = 0; i < lockStripes; i++) {
+			locks[i] = new Object();
+		}
+		thread = new Thread(this::run, "FileStore relayout " + store.getBasePath());
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Reads the state of a relayout left unfinished by a previous run.
+	 *
+	 * @param store
+	 *            The store whose files are to be moved.
+	 * @param file
+	 *            The file in which the state of the relayout is saved.
+	 * @return The relayout, or null if none was in progress.
+	 * @throws IOException
+	 *             If the saved state cannot be read.
+	 */
+	static Relayout load(FileStore store, File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			int fromIdChunkSize = input.readInt();
+			String fromExtension = input.readUTF();
+			long moved = input.readLong();
+			return new Relayout(store, file, fromIdChunkSize, fromExtension, moved);
+		}
+	}
+
+	/**
+	 * Saves the state of the relayout, so that it can be resumed after a restart, and starts the
+	 * background thread.
+	 *
+	 * @throws IOException
+	 *             If the state cannot be saved.
+	 */
+	void start() throws IOException {
+		save();
+		thread.start();
+	}
+
+	/**
+	 * @param id
+	 *            An ID.
+	 * @return The file the ID would have in the previous layout.
+	 */
+	File previousFile(String id) {
+		return new File(store.getBasePath(), FileStore.toPath(id, fromIdChunkSize, fromExtension));
+	}
+
+	/**
+	 * Moves an ID to the new layout, if it is still in the previous one.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @throws IOException
+	 *             If the file cannot be moved.
+	 */
+	void relocate(String id) throws IOException {
+		File from = previousFile(id);
+		File to = store.idToFile(id);
+		if (from.equals(to) || !from.isFile()) {
+			return;
+		}
+		Lock shared = store.sharedLock();
+		shared.lock();
+		try {
+			synchronized (locks[id.hashCode() & (lockStripes - 1)]) {
+				if (!from.isFile()) {
+					// Moved in the meantime
+					return;
+				}
+				if (to.exists()) {
+					// The new layout is what the store sees, so the previous file is stale
+					Files.deleteIfExists(from.toPath());
+					return;
+				}
+				store.ownChange(id);
+				store.preserve(id, from);
+				Files.createDirectories(to.getParentFile().toPath());
+				Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				moved.increment();
+			}
+		} finally {
+			shared.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of files moved so far.
+	 */
+	long getMoved() {
+		return moved.sum();
+	}
+
+	/**
+	 * @return Whether every file has been moved to the new layout.
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Stops the background thread. If the relayout is not complete, its state is saved so that it
+	 * can be resumed.
+	 *
+	 * @throws IOException
+	 *             If the state cannot be saved.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!complete) {
+			save();
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Saves the previous layout and the number of files moved, replacing the previous save
+	 * atomically.
+	 */
+	private void save() throws IOException {
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			output.writeInt(fromIdChunkSize);
+			output.writeUTF(fromExtension);
+			output.writeLong(moved.sum());
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Moves every file found in the previous layout. Files whose path is not the one their ID has
+	 * in the previous layout are already in the new layout, and are left alone.
+	 */
+	private void walk() throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			StoreWalker.walk(store, pool, fromExtension, (id, found) -> {
+				if (!running) {
+					throw new InterruptedIOException("Relayout stopped");
+				}
+				if (store.validId(id) && previousFile(id).equals(found)) {
+					relocate(id);
+				}
+			});
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Body of the background thread.
+	 */
+	private void run() {
+		while (true) {
+			try {
+				walk();
+				complete = true;
+				Files.deleteIfExists(file.toPath());
+				return;
+			} catch (IOException | RuntimeException e) {
+				// Stopped, or try again after a pause
+			}
+			synchronized (lock) {
+				try {
+					if (running) {
+						TimeUnit.MILLISECONDS.timedWait(lock, retryIntervalMillis);
+					}
+				} catch (InterruptedException e) {
+					running = false;
+				}
+				if (!running) {
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out fixed-size pages carved from large {@link ByteBuffer} slabs. Allocating a few large
+ * buffers rather than one per item keeps the number of direct buffers, and so the cost of
+ * allocating and eventually freeing them, low. Released pages are kept on a free list and reused;
+ * slabs are never returned to the system until the allocator itself is discarded.
+ *
+ * @author david
+ *
+ */
+class SlabAllocator {
+
+	/**
+	 * The default size of a page, which is {@value #defaultPageSize} bytes.
+	 */
+	static final int defaultPageSize = 4096;
+
+	/**
+	 * The default number of pages in a slab, which is {@value #defaultPagesPerSlab}.
+	 */
+	static final int defaultPagesPerSlab = 256;
+
+	private final int pageSize;
+	private final int pagesPerSlab;
+	private final boolean direct;
+	private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong capacity = new AtomicLong();
+	private ByteBuffer slab;
+
+	/**
+	 * @param pageSize
+	 *            The size of each page in bytes.
+	 * @param pagesPerSlab
+	 *            The number of pages allocated at a time.
+	 * @param direct
+	 *            If true, slabs are allocated off-heap with {@link ByteBuffer#allocateDirect(int)}.
+	 */
+	SlabAllocator(int pageSize, int pagesPerSlab, boolean direct) {
+		if (pageSize <= 0 || pagesPerSlab <= 0 || (long) pageSize * pagesPerSlab > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid slab geometry: " + pagesPerSlab + " x " + pageSize);
+		}
+		this.pageSize = pageSize;
+		this.pagesPerSlab = pagesPerSlab;
+		this.direct = direct;
+	}
+
+	/**
+	 * @return A cleared page of {@link #getPageSize()} bytes.
+	 */
+	ByteBuffer allocate() {
+		ByteBuffer page = free.poll();
+		if (page == null) {
+			page = carve();
+		}
+		page.clear();
+		return page;
+	}
+
+	/**
+	 * Returns a page to the free list. The caller must not use the page afterwards.
+	 *
+	 * @param page
+	 *            A page obtained from {@link #allocate()}.
+	 */
+	void release(ByteBuffer page) {
+		free.offer(page);
+	}
+
+	/**
+	 * @return The size of each page in bytes.
+	 */
+	int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @return The total number of bytes allocated in slabs.
+	 */
+	long getCapacity() {
+		return capacity.get();
+	}
+
+	/**
+	 * @return The number of bytes in pages on the free list, or in slabs that have not yet been
+	 *         handed out.
+	 */
+	synchronized long getFree() {
+		long result = (long) free.size() * pageSize;
+		if (slab != null) {
+			result += slab.remaining();
+		}
+		return result;
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Takes the next page from the current slab, allocating a new slab if necessary.
+	 *
+	 * @return A new page.
+	 */
+	private synchronized ByteBuffer carve() {
+		if (slab == null || !slab.hasRemaining()) {
+			int size = pageSize * pagesPerSlab;
+			slab = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			capacity.addAndGet(size);
+		}
+		slab.limit(slab.position() + pageSize);
+		ByteBuffer page = slab.slice();
+		slab.position(slab.limit());
+		slab.limit(slab.capacity());
+		return page;
+	}
+}
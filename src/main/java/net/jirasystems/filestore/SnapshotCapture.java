@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds the tree of a snapshot while the store stays in use. The snapshot is fixed at the point
+ * in time the capture starts; after that, each ID is captured exactly once, either by the walk of
+ * the store or by the first change to the ID, whichever comes first.
+ * <p>
+ * A change captures the ID before it touches the file, so the snapshot gets the content from
+ * before the change. An ID created after the capture started is captured as absent, and the walk
+ * then leaves it out. Because files are always replaced rather than modified in place, capturing
+ * an ID usually costs a single hard link, and a copy only where hard links are not available.
+ *
+ * @author david
+ *
+ */
+class SnapshotCapture implements StoreWalker.Visitor {
+
+	/**
+	 * The number of locks over which IDs are spread, so that the walk and a change to the same ID
+	 * do not both capture it. This must be a power of two. The value is {@value #lockStripes}.
+	 */
+	private static final int lockStripes = 64;
+
+	private final FileStore store;
+	private final File folder;
+	private final Object[] locks = new Object[lockStripes];
+	private final Set<String> captured = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param store
+	 *            The store being captured.
+	 * @param folder
+	 *            The empty folder in which to build the snapshot.
+	 */
+	SnapshotCapture(FileStore store, File folder) {
+		this.store = store;
+		this.folder = folder;
+		for (int i = 0; i < lockStripes; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Captures an ID found by the walk, unless it has already been captured by a change.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @param file
+	 *            The file for the ID.
+	 * @throws IOException
+	 *             If the file cannot be linked or copied into the snapshot.
+	 */
+	@Override
+	public void visit(String id, File file) throws IOException {
+		capture(id, file);
+	}
+
+	/**
+	 * Captures an ID as it is now, if it has not already been captured. This must be called before
+	 * the file for the ID is changed, while changes are allowed through.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @param file
+	 *            The file currently holding the ID's content, which may not exist.
+	 * @throws IOException
+	 *             If the file cannot be linked or copied into the snapshot.
+	 */
+	void capture(String id, File file) throws IOException {
+		synchronized (locks[id.hashCode() & (lockStripes - 1)]) {
+			if (captured.add(id) && file.isFile()) {
+				File link = new File(folder, store.idToPath(id));
+				Files.createDirectories(link.getParentFile().toPath());
+				store.duplicate(file, link);
+			}
+		}
+	}
+}
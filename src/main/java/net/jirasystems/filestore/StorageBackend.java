@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+
+/**
+ * The operations through which content is stored and retrieved by ID. {@link FileStore} is the
+ * implementation backed by a filesystem; {@link MemoryStore} keeps content in memory, which is
+ * useful for tests, benchmarks and as a RAM-resident cache tier.
+ * <p>
+ * All implementations are safe for use by concurrent callers and share the following semantics:
+ * <ul>
+ * <li>Creating an ID that already exists fails, and of several concurrent creates of the same ID
+ * exactly one succeeds.</li>
+ * <li>Updating or deleting an ID that does not exist fails.</li>
+ * <li>Reading an ID that does not exist returns null rather than failing.</li>
+ * <li>Content written through a returned {@link OutputStream} is only guaranteed to be visible
+ * once the stream has been closed.</li>
+ * </ul>
+ *
+ * @author david
+ *
+ */
+public interface StorageBackend extends Closeable {
+
+	/**
+	 * @param id
+	 *            The ID to be validated.
+	 * @return True if the given ID can be used to identify content in this backend.
+	 */
+	boolean validId(String id);
+
+	/**
+	 * @param id
+	 *            The ID to query.
+	 * @return If the given ID exists, true. Otherwise, false.
+	 */
+	boolean exists(String id);
+
+	/**
+	 * @param id
+	 *            The ID of the content to be read.
+	 * @return An {@link InputStream} for the content, or null if the ID does not exist. The caller
+	 *         is responsible for closing the stream.
+	 */
+	InputStream read(String id);
+
+	/**
+	 * As {@link #read(String)}, but reports a missing ID as an empty {@link Optional} rather than
+	 * null.
+	 *
+	 * @param id
+	 *            The ID of the content to be read.
+	 * @return An {@link InputStream} for the content, or empty if the ID does not exist. The
+	 *         caller is responsible for closing the stream.
+	 */
+	default Optional<InputStream> readIfExists(String id) {
+		return Optional.ofNullable(read(id));
+	}
+
+	/**
+	 * @param id
+	 *            The ID for the new content.
+	 * @param content
+	 *            The content. The stream is not closed.
+	 * @throws FileStoreException
+	 *             If the ID already exists, or if an IO error occurs.
+	 */
+	void create(String id, InputStream content) throws FileStoreException;
+
+	/**
+	 * @param id
+	 *            The ID for the new content.
+	 * @return A stream to which the content should be written. The caller is responsible for
+	 *         closing the stream.
+	 * @throws FileStoreException
+	 *             If the ID already exists, or if an IO error occurs.
+	 */
+	OutputStream create(String id) throws FileStoreException;
+
+	/**
+	 * @param id
+	 *            The ID of the content to be replaced.
+	 * @param content
+	 *            The new content. The stream is not closed.
+	 * @throws FileStoreException
+	 *             If the content is null, the ID does not exist, or if an IO error occurs.
+	 */
+	void update(String id, InputStream content) throws FileStoreException;
+
+	/**
+	 * @param id
+	 *            The ID of the content to be replaced.
+	 * @return A stream to which the new content should be written. The caller is responsible for
+	 *         closing the stream.
+	 * @throws FileStoreException
+	 *             If the ID does not exist, or if an IO error occurs.
+	 */
+	OutputStream update(String id) throws FileStoreException;
+
+	/**
+	 * Copies content to a new ID. Implementations avoid passing the content through the caller
+	 * where they can.
+	 *
+	 * @param fromId
+	 *            The ID of the content to be copied.
+	 * @param toId
+	 *            The new ID.
+	 * @throws FileStoreException
+	 *             If the original ID does not exist, the new ID already exists, or if an IO error
+	 *             occurs.
+	 */
+	void copy(String fromId, String toId) throws FileStoreException;
+
+	/**
+	 * Moves content to a new ID, so that the original ID no longer exists.
+	 *
+	 * @param fromId
+	 *            The ID of the content to be moved.
+	 * @param toId
+	 *            The new ID.
+	 * @throws FileStoreException
+	 *             If the original ID does not exist, the new ID already exists, or if an IO error
+	 *             occurs.
+	 */
+	void move(String fromId, String toId) throws FileStoreException;
+
+	/**
+	 * @param id
+	 *            The ID to be deleted.
+	 * @return True if the content was deleted.
+	 * @throws FileStoreException
+	 *             If the ID does not exist, or if an IO error occurs.
+	 */
+	boolean delete(String id) throws FileStoreException;
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Walks the files of a {@link FileStore} in parallel, using one fork-join task per directory. The
+ * {@value FileStore#metadataFolder} folder is skipped, as are files that do not carry the store's
+ * extension.
+ *
+ * @author david
+ *
+ */
+final class StoreWalker {
+
+	/**
+	 * Receives each file found by the walk. Implementations are called concurrently.
+	 */
+	interface Visitor {
+
+		/**
+		 * @param id
+		 *            The ID the file represents.
+		 * @param file
+		 *            The file.
+		 * @throws IOException
+		 *             If an error occurs. This ends the walk.
+		 */
+		void visit(String id, File file) throws IOException;
+	}
+
+	/**
+	 * No need to instantiate.
+	 */
+	private StoreWalker() {
+		// No need to instantiate.
+	}
+
+	/**
+	 * Walks the given store, calling the visitor for every file.
+	 *
+	 * @param store
+	 *            The store to walk.
+	 * @param pool
+	 *            The pool on which to run the walk.
+	 * @param visitor
+	 *            The visitor to call for each file.
+	 * @throws IOException
+	 *             If the visitor throws an exception.
+	 */
+	static void walk(FileStore store, ForkJoinPool pool, Visitor visitor) throws IOException {
+		walk(store, pool, store.getExtension(), visitor);
+	}
+
+	/**
+	 * Walks the given store, calling the visitor for every file with the given extension, rather
+	 * than the store's own. This is used to find files left in a previous layout.
+	 *
+	 * @param store
+	 *            The store to walk.
+	 * @param pool
+	 *            The pool on which to run the walk.
+	 * @param extension
+	 *            The extension of the files to visit.
+	 * @param visitor
+	 *            The visitor to call for each file.
+	 * @throws IOException
+	 *             If the visitor throws an exception.
+	 */
+	static void walk(FileStore store, ForkJoinPool pool, String extension, Visitor visitor) throws IOException {
+		File base = new File(store.getBasePath());
+		if (!base.isDirectory()) {
+			return;
+		}
+		try {
+			pool.invoke(new DirectoryTask(store, base, "", extension, visitor));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Visits the files in a single directory and forks a task for each subdirectory.
+	 */
+	private static class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final FileStore store;
+		private final File directory;
+		private final String prefix;
+		private final String extension;
+		private final Visitor visitor;
+
+		DirectoryTask(FileStore store, File directory, String prefix, String extension, Visitor visitor) {
+			this.store = store;
+			this.directory = directory;
+			this.prefix = prefix;
+			this.extension = extension;
+			this.visitor = visitor;
+		}
+
+		@Override
+		protected void compute() {
+			File[] files = directory.listFiles();
+			if (files == null) {
+				return;
+			}
+			List<DirectoryTask> subdirectories = new ArrayList<DirectoryTask>();
+			for (File file : files) {
+				String name = file.getName();
+				if (file.isDirectory()) {
+					if (prefix.length() > 0 || !FileStore.metadataFolder.equals(name)) {
+						subdirectories.add(new DirectoryTask(store, file, prefix + name + File.separatorChar, extension,
+								visitor));
+					}
+				} else if (name.endsWith(extension)) {
+					try {
+						visitor.visit(toId(prefix + name), file);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			}
+			invokeAll(subdirectories);
+		}
+
+		/**
+		 * Converts a relative path to an ID, using the store's own conversion unless a different
+		 * extension is being walked.
+		 */
+		private String toId(String path) {
+			if (extension.equals(store.getExtension())) {
+				return store.pathToId(path);
+			}
+			return path.substring(0, path.length() - extension.length()).replace(String.valueOf(File.separatorChar), "");
+		}
+	}
+}
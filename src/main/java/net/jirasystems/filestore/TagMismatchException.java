@@ -0,0 +1,62 @@
+/**
+ * 
+ */
+package net.jirasystems.filestore;
+
+/**
+ * Thrown by {@link FileStore#update(String, java.io.InputStream, String)} when the file for an ID
+ * no longer has the tag the caller expected, because another writer has changed it in the
+ * meantime. The content that was supplied has not been stored. The caller can read the ID again,
+ * along with its {@link #getCurrentTag() current tag}, and retry.
+ * 
+ * @author david
+ * 
+ */
+public class TagMismatchException extends FileStoreException {
+
+	/**
+	 * Generated by Eclipse.
+	 */
+	private static final long serialVersionUID = 2714398627416151360L;
+
+	private final String id;
+	private final String expectedTag;
+	private final String currentTag;
+
+	/**
+	 * @param id
+	 *            The ID that was to be written.
+	 * @param expectedTag
+	 *            The tag the caller expected, or null if the ID was expected not to exist.
+	 * @param currentTag
+	 *            The tag the file actually has, or null if the ID does not exist.
+	 */
+	public TagMismatchException(String id, String expectedTag, String currentTag) {
+		super("Tag mismatch for ID " + id + ": expected " + expectedTag + " but found " + currentTag);
+		this.id = id;
+		this.expectedTag = expectedTag;
+		this.currentTag = currentTag;
+	}
+
+	/**
+	 * @return the id
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return The tag the caller expected, or null if the ID was expected not to exist.
+	 */
+	public String getExpectedTag() {
+		return expectedTag;
+	}
+
+	/**
+	 * @return The tag the file had when the write was refused, or null if the ID did not exist.
+	 */
+	public String getCurrentTag() {
+		return currentTag;
+	}
+
+}
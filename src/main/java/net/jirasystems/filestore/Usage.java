@@ -0,0 +1,487 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Keeps running totals of the number of IDs in a {@link FileStore} and the bytes they hold, so
+ * that the size of the store is known without walking it. The totals are adjusted as files are
+ * created, updated and deleted, and are also kept for each ID prefix that has a quota.
+ * <p>
+ * A background thread saves the totals under the {@value FileStore#metadataFolder} folder
+ * periodically, so that they survive a restart, and reconciles them with a parallel walk of the
+ * store from time to time, so that drift caused by crashes or changes made outside the store is
+ * corrected. IDs changed while the walk is in progress are counted as they were when the walk
+ * started, and the changes are then carried over, so the walk does not need to stop writers.
+ * <p>
+ * A new ID reserves its share of each quota it falls under before it is written, so concurrent
+ * creates cannot together overshoot a quota that each of them alone would fit.
+ *
+ * @author david
+ *
+ */
+class Usage implements Closeable {
+
+	/**
+	 * How long, in milliseconds, the background thread waits between saves of changed totals.
+	 * The value is {@value #saveIntervalMillis}.
+	 */
+	static final long saveIntervalMillis = 10000;
+
+	/**
+	 * How long, in milliseconds, the background thread waits between reconciliations. The value
+	 * is {@value #reconcileIntervalMillis}.
+	 */
+	static final long reconcileIntervalMillis = 24 * 60 * 60 * 1000L;
+
+	private final FileStore store;
+	private final File file;
+	private final Totals total = new Totals(Long.MAX_VALUE, Long.MAX_VALUE);
+	private final Map<String, Totals> quotas = new ConcurrentHashMap<String, Totals>();
+	private final Map<String, long[]> saved = new HashMap<String, long[]>();
+	private volatile Map<String, Long> touched;
+
+	private final Object lock = new Object();
+	private final Object reconciling = new Object();
+	private boolean running = true;
+	private boolean reconcileRequested;
+	private final Thread thread;
+
+	/**
+	 * Loads the totals saved by a previous run. If there are none, a reconciliation is requested.
+	 * Call {@link #start()} to start the background thread.
+	 *
+	 * @param store
+	 *            The store to account for.
+	 * @param file
+	 *            The file in which totals are saved.
+	 * @throws IOException
+	 *             If the saved totals cannot be read.
+	 */
+	Usage(FileStore store, File file) throws IOException {
+		this.store = store;
+		this.file = file;
+		load();
+		long[] saved = this.saved.get("");
+		if (saved != null) {
+			total.count.add(saved[0]);
+			total.bytes.add(saved[1]);
+		} else {
+			reconcileRequested = true;
+		}
+		thread = new Thread(this::run, "FileStore usage " + store.getBasePath());
+		thread.setDaemon(true);
+	}
+
+	/**
+	 * Starts the background thread.
+	 */
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Records a change to the file of an ID.
+	 *
+	 * @param id
+	 *            The ID.
+	 * @param previous
+	 *            The length of the file before the change, or -1 if there was no file.
+	 * @param current
+	 *            The length of the file after the change, or -1 if there is now no file.
+	 */
+	void changed(String id, long previous, long current) {
+		long count = (current >= 0 ? 1 : 0) - (previous >= 0 ? 1 : 0);
+		long bytes = Math.max(current, 0) - Math.max(previous, 0);
+		Map<String, Long> touched = this.touched;
+		if (touched != null) {
+			touched.putIfAbsent(id, Long.valueOf(previous));
+		}
+		total.add(count, bytes);
+		for (Map.Entry<String, Totals> quota : quotas.entrySet()) {
+			if (id.startsWith(quota.getKey())) {
+				quota.getValue().add(count, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Checks that a new ID would not take any prefix over its quota, counting the IDs that have
+	 * reserved a share of the quota but have not yet been written, and reserves the new ID's share.
+	 *
+	 * @param id
+	 *            The new ID.
+	 * @param size
+	 *            The size of its content, or -1 if not known, in which case it is assumed to be at
+	 *            least one byte.
+	 * @param fromId
+	 *            The ID being moved to the new ID, whose prefixes are not charged again, or null.
+	 * @return The reservation, to be released once the new ID has been written and accounted for,
+	 *         or has failed.
+	 * @throws FileStoreException
+	 *             If the new ID would exceed a quota. Nothing is then reserved.
+	 */
+	Reservation reserve(String id, long size, String fromId) throws FileStoreException {
+		long needed = size >= 0 ? size : 1;
+		Reservation reservation = new Reservation(needed);
+		for (Map.Entry<String, Totals> quota : quotas.entrySet()) {
+			String prefix = quota.getKey();
+			if (!id.startsWith(prefix) || (fromId != null && fromId.startsWith(prefix))) {
+				continue;
+			}
+			Totals totals = quota.getValue();
+			synchronized (totals) {
+				String exceeded = null;
+				if (totals.getCount() + totals.reservedCount + 1 > totals.maxCount) {
+					exceeded = totals.maxCount + " IDs";
+				} else if (totals.getBytes() + totals.reservedBytes + needed > totals.maxBytes) {
+					exceeded = totals.maxBytes + " bytes";
+				}
+				if (exceeded != null) {
+					reservation.release();
+					throw new FileStoreException("Quota of " + exceeded + " for prefix \"" + prefix
+							+ "\" would be exceeded by ID " + id);
+				}
+				totals.reservedCount++;
+				totals.reservedBytes += needed;
+			}
+			reservation.totals.add(totals);
+		}
+		return reservation;
+	}
+
+	/**
+	 * Sets the quota for a prefix. The usage of the prefix starts from the last saved value, if
+	 * any, and a reconciliation is requested to bring it up to date. A prefix that has never been
+	 * counted is reconciled before this method returns.
+	 *
+	 * @param prefix
+	 *            The ID prefix.
+	 * @param maxCount
+	 *            The maximum number of IDs with the prefix.
+	 * @param maxBytes
+	 *            The maximum number of bytes held by IDs with the prefix.
+	 * @throws IOException
+	 *             If the store cannot be walked to count a new prefix.
+	 */
+	void setQuota(String prefix, long maxCount, long maxBytes) throws IOException {
+		Totals totals = new Totals(maxCount, maxBytes);
+		boolean uncounted;
+		synchronized (lock) {
+			Totals previous = quotas.get(prefix);
+			long[] saved = previous != null ? new long[] {previous.getCount(), previous.getBytes()} : this.saved.get(prefix);
+			if (saved != null) {
+				totals.add(saved[0], saved[1]);
+			}
+			quotas.put(prefix, totals);
+			uncounted = saved == null;
+			if (previous == null && !uncounted) {
+				reconcileRequested = true;
+				lock.notifyAll();
+			}
+		}
+		if (uncounted) {
+			reconcile();
+		}
+	}
+
+	/**
+	 * @param prefix
+	 *            The ID prefix whose quota is to be removed.
+	 */
+	void removeQuota(String prefix) {
+		quotas.remove(prefix);
+	}
+
+	/**
+	 * @param prefix
+	 *            An ID prefix, or the empty string for the whole store.
+	 * @return The totals for the prefix, or null if it has no quota.
+	 */
+	Totals get(String prefix) {
+		return prefix.length() == 0 ? total : quotas.get(prefix);
+	}
+
+	/**
+	 * Walks the store and corrects the totals. IDs changed while the walk is in progress are
+	 * counted with the length they had before their first change, so that the change is not
+	 * counted twice when it is carried over. Only one reconciliation runs at a time.
+	 *
+	 * @throws IOException
+	 *             If the store cannot be walked.
+	 */
+	void reconcile() throws IOException {
+		synchronized (reconciling) {
+			walk();
+		}
+	}
+
+	/**
+	 * Saves the totals, replacing the previous save atomically.
+	 *
+	 * @throws IOException
+	 *             If the totals cannot be saved.
+	 */
+	void save() throws IOException {
+		Map<String, Totals> all = new HashMap<String, Totals>(quotas);
+		all.put("", total);
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+			output.writeInt(all.size());
+			for (Map.Entry<String, Totals> entry : all.entrySet()) {
+				output.writeUTF(entry.getKey());
+				output.writeLong(entry.getValue().getCount());
+				output.writeLong(entry.getValue().getBytes());
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Stops the background thread and saves the totals.
+	 *
+	 * @throws IOException
+	 *             If the totals cannot be saved.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		save();
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Walks the store for {@link #reconcile()}. Tracking of changed IDs starts and stops while
+	 * changes are held back, so that every change is either in the starting totals or tracked.
+	 */
+	private void walk() throws IOException {
+		final Map<String, Totals> quotas = new HashMap<String, Totals>(this.quotas);
+		final Map<String, Totals> scanned = new HashMap<String, Totals>();
+		Map<String, long[]> before = new HashMap<String, long[]>();
+		final Map<String, Long> touched = new ConcurrentHashMap<String, Long>();
+		final Map<String, Boolean> visited = new ConcurrentHashMap<String, Boolean>();
+		Lock exclusive = store.exclusiveLock();
+		exclusive.lock();
+		try {
+			scanned.put("", new Totals(0, 0));
+			before.put("", new long[] {total.getCount(), total.getBytes()});
+			for (Map.Entry<String, Totals> quota : quotas.entrySet()) {
+				scanned.put(quota.getKey(), new Totals(0, 0));
+				before.put(quota.getKey(), new long[] {quota.getValue().getCount(), quota.getValue().getBytes()});
+			}
+			this.touched = touched;
+		} finally {
+			exclusive.unlock();
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		try {
+			StoreWalker.walk(store, pool, (id, file) -> {
+				Long previous = touched.get(id);
+				if (previous != null) {
+					visited.put(id, Boolean.TRUE);
+					count(scanned, id, previous.longValue());
+				} else {
+					count(scanned, id, file.length());
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			this.touched = null;
+			throw e;
+		} finally {
+			pool.shutdown();
+		}
+
+		exclusive.lock();
+		try {
+			this.touched = null;
+			// IDs deleted or moved away before the walk reached them:
+			for (Map.Entry<String, Long> entry : touched.entrySet()) {
+				if (!visited.containsKey(entry.getKey())) {
+					count(scanned, entry.getKey(), entry.getValue().longValue());
+				}
+			}
+			correct(total, scanned.get(""), before.get(""));
+			for (Map.Entry<String, Totals> quota : quotas.entrySet()) {
+				correct(quota.getValue(), scanned.get(quota.getKey()), before.get(quota.getKey()));
+			}
+		} finally {
+			exclusive.unlock();
+		}
+	}
+
+	/**
+	 * Reads the saved totals, if there are any.
+	 */
+	private void load() throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+			int size = input.readInt();
+			for (int i = 0; i < size; i++) {
+				String prefix = input.readUTF();
+				saved.put(prefix, new long[] {input.readLong(), input.readLong()});
+			}
+		}
+	}
+
+	/**
+	 * Adds an ID to the scanned totals for the whole store and for each prefix it has. A length
+	 * of -1 means the ID did not exist.
+	 */
+	private static void count(Map<String, Totals> scanned, String id, long length) {
+		if (length < 0) {
+			return;
+		}
+		for (Map.Entry<String, Totals> entry : scanned.entrySet()) {
+			if (id.startsWith(entry.getKey())) {
+				entry.getValue().add(1, length);
+			}
+		}
+	}
+
+	/**
+	 * Sets the totals to the scanned values plus whatever changed while the scan was running.
+	 */
+	private static void correct(Totals totals, Totals scanned, long[] before) {
+		totals.add(scanned.getCount() - before[0], scanned.getBytes() - before[1]);
+	}
+
+	/**
+	 * Body of the background thread.
+	 */
+	private void run() {
+		long lastReconcile = System.currentTimeMillis();
+		long lastSaved = -1;
+		while (true) {
+			boolean reconcile;
+			synchronized (lock) {
+				try {
+					if (running && !reconcileRequested) {
+						TimeUnit.MILLISECONDS.timedWait(lock, saveIntervalMillis);
+					}
+				} catch (InterruptedException e) {
+					running = false;
+				}
+				if (!running) {
+					return;
+				}
+				reconcile = reconcileRequested || System.currentTimeMillis() - lastReconcile >= reconcileIntervalMillis;
+				reconcileRequested = false;
+			}
+			try {
+				if (reconcile) {
+					lastReconcile = System.currentTimeMillis();
+					reconcile();
+				}
+				long changes = total.changes.sum();
+				if (changes != lastSaved) {
+					save();
+					lastSaved = changes;
+				}
+			} catch (IOException | RuntimeException e) {
+				// Try again next time round
+			}
+		}
+	}
+
+	/**
+	 * The shares of quotas held by a new ID until it has been written.
+	 */
+	static class Reservation {
+
+		/**
+		 * A reservation of nothing, for when usage is not tracked.
+		 */
+		static final Reservation none = new Reservation(0);
+
+		private final long bytes;
+		private final List<Totals> totals = new ArrayList<Totals>();
+		private boolean released;
+
+		private Reservation(long bytes) {
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Gives the reserved shares back. Calling this more than once has no further effect.
+		 */
+		synchronized void release() {
+			if (released) {
+				return;
+			}
+			released = true;
+			for (Totals quota : totals) {
+				synchronized (quota) {
+					quota.reservedCount--;
+					quota.reservedBytes -= bytes;
+				}
+			}
+			totals.clear();
+		}
+	}
+
+	/**
+	 * The number of IDs and bytes for the whole store or a prefix, and the quota for a prefix.
+	 * The shares reserved by IDs not yet written are guarded by the instance's monitor.
+	 */
+	static class Totals {
+		final long maxCount;
+		final long maxBytes;
+		final LongAdder count = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder changes = new LongAdder();
+		long reservedCount;
+		long reservedBytes;
+
+		Totals(long maxCount, long maxBytes) {
+			this.maxCount = maxCount;
+			this.maxBytes = maxBytes;
+		}
+
+		void add(long count, long bytes) {
+			this.count.add(count);
+			this.bytes.add(bytes);
+			changes.increment();
+		}
+
+		long getCount() {
+			return count.sum();
+		}
+
+		long getBytes() {
+			return bytes.sum();
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the previous content of IDs in a {@link FileStore} when they are updated. When an ID is
+ * replaced, its current file is set aside under the next version number in a tree under the
+ * {@value FileStore#metadataFolder} folder that mirrors the layout of the store. Setting a file
+ * aside is a hard link where possible and a rename otherwise, so no content is copied.
+ * <p>
+ * A background thread enforces the retention policy: IDs that have gained a version are pruned
+ * down to the maximum number of versions shortly afterwards, and if there is a maximum age, the
+ * whole tree is swept for expired versions periodically.
+ *
+ * @author david
+ *
+ */
+class Versions implements Closeable {
+
+	/**
+	 * How long, in milliseconds, the pruner waits between rounds. The value is
+	 * {@value #pruneIntervalMillis}.
+	 */
+	static final long pruneIntervalMillis = 1000;
+
+	/**
+	 * How long, in milliseconds, the pruner waits between sweeps of the whole tree for versions
+	 * older than the maximum age. The value is {@value #sweepIntervalMillis}.
+	 */
+	static final long sweepIntervalMillis = 60000;
+
+	/**
+	 * The number of locks over which IDs are spread, so that setting a version aside and replacing
+	 * the file happen together. This must be a power of two. The value is {@value #lockStripes}.
+	 */
+	private static final int lockStripes = 64;
+
+	private final FileStore store;
+	private final File folder;
+	private final Object[] locks = new Object[lockStripes];
+	private volatile int maxVersions;
+	private volatile long maxAgeMillis;
+	private final Object lock = new Object();
+	private final Set<String> changed = new LinkedHashSet<String>();
+	private boolean running = true;
+	private final Thread pruner;
+
+	/**
+	 * Call {@link #start()} to start pruning.
+	 *
+	 * @param store
+	 *            The store whose versions are kept.
+	 * @param folder
+	 *            The folder under which versions are kept.
+	 * @param maxVersions
+	 *            The maximum number of versions to keep for each ID.
+	 * @param maxAgeMillis
+	 *            The maximum age of a version, or zero for no limit.
+	 */
+	Versions(FileStore store, File folder, int maxVersions, long maxAgeMillis) {
+		this.store = store;
+		this.folder = folder;
+		this.maxVersions = maxVersions;
+		this.maxAgeMillis = maxAgeMillis;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		pruner = new Thread(this::prune, "FileStore version pruner " + store.getBasePath());
+		pruner.setDaemon(true);
+	}
+
+	/**
+	 * Starts the background thread.
+	 */
+	void start() {
+		pruner.start();
+	}
+
+	/**
+	 * Replaces the file for an ID with new content, first setting the current file aside as a new
+	 * version. If the ID has no file, the new content is simply moved into place.
+	 *
+	 * @param id
+	 *            The ID being updated.
+	 * @param file
+	 *            The file for the ID.
+	 * @param temp
+	 *            A file holding the complete new content, on the same file system.
+	 * @throws IOException
+	 *             If the version cannot be set aside or the file cannot be replaced.
+	 */
+	void replace(String id, File file, File temp) throws IOException {
+		synchronized (locks[id.hashCode() & (lockStripes - 1)]) {
+			if (file.exists()) {
+				keep(id, file);
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		}
+		synchronized (lock) {
+			changed.add(id);
+		}
+	}
+
+	/**
+	 * @param store
+	 *            A store.
+	 * @param id
+	 *            An ID.
+	 * @return The versions kept for the ID, oldest first.
+	 */
+	static List<Integer> list(FileStore store, String id) {
+		List<Integer> result = new ArrayList<Integer>();
+		File file = store.versionFile(id, 0);
+		String prefix = file.getName().substring(0, file.getName().length() - 1);
+		String[] names = file.getParentFile().list();
+		if (names != null) {
+			for (String name : names) {
+				int version = parseVersion(name, prefix);
+				if (version > 0) {
+					result.add(Integer.valueOf(version));
+				}
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+
+	/**
+	 * Applies the retention policy to the versions of a single ID.
+	 *
+	 * @param id
+	 *            The ID to prune.
+	 */
+	void prune(String id) {
+		List<Integer> versions = list(store, id);
+		int excess = versions.size() - maxVersions;
+		long cutoff = maxAgeMillis > 0 ? System.currentTimeMillis() - maxAgeMillis : 0;
+		for (int i = 0; i < versions.size(); i++) {
+			File version = store.versionFile(id, versions.get(i).intValue());
+			if (i < excess || (cutoff > 0 && version.lastModified() < cutoff)) {
+				version.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes every version in the tree that is older than the maximum age.
+	 *
+	 * @throws IOException
+	 *             If the tree cannot be walked.
+	 */
+	void sweep() throws IOException {
+		long maxAgeMillis = this.maxAgeMillis;
+		if (maxAgeMillis <= 0 || !folder.isDirectory()) {
+			return;
+		}
+		long cutoff = System.currentTimeMillis() - maxAgeMillis;
+		try (Stream<Path> paths = Files.walk(folder.toPath())) {
+			paths.map(path -> path.toFile()).filter(file -> file.isFile() && file.lastModified() < cutoff)
+					.forEach(File::delete);
+		}
+	}
+
+	/**
+	 * Stops the background thread. Versions that have not yet been pruned are pruned the next time
+	 * versioning is enabled and the ID is updated, or by the next sweep.
+	 */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			pruner.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Sets the current file of an ID aside under the next version number. Must be called holding
+	 * the lock for the ID.
+	 */
+	private void keep(String id, File file) throws IOException {
+		List<Integer> versions = list(store, id);
+		int version = versions.isEmpty() ? 1 : versions.get(versions.size() - 1).intValue() + 1;
+		File target = store.versionFile(id, version);
+		target.getParentFile().mkdirs();
+		try {
+			Files.createLink(target.toPath(), file.toPath());
+		} catch (FileAlreadyExistsException | NoSuchFileException e) {
+			throw e;
+		} catch (FileSystemException | UnsupportedOperationException e) {
+			// Hard links are not available here, so the ID is briefly absent:
+			Files.move(file.toPath(), target.toPath());
+		}
+	}
+
+	/**
+	 * @return The version number in the given file name, or zero if the name is not a version of
+	 *         the ID with the given prefix.
+	 */
+	private static int parseVersion(String name, String prefix) {
+		if (!name.startsWith(prefix) || name.length() == prefix.length()
+				|| name.length() - prefix.length() > 9) {
+			return 0;
+		}
+		int version = 0;
+		for (int i = prefix.length(); i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0;
+			}
+			version = version * 10 + (c - '0');
+		}
+		return version;
+	}
+
+	/**
+	 * Body of the background thread.
+	 */
+	private void prune() {
+		long lastSweep = System.currentTimeMillis();
+		while (true) {
+			List<String> ids;
+			synchronized (lock) {
+				try {
+					if (running) {
+						TimeUnit.MILLISECONDS.timedWait(lock, pruneIntervalMillis);
+					}
+				} catch (InterruptedException e) {
+					running = false;
+				}
+				if (!running) {
+					return;
+				}
+				ids = new ArrayList<String>(changed);
+				changed.clear();
+			}
+			for (String id : ids) {
+				prune(id);
+			}
+			if (System.currentTimeMillis() - lastSweep >= sweepIntervalMillis) {
+				lastSweep = System.currentTimeMillis();
+				try {
+					sweep();
+				} catch (IOException | RuntimeException e) {
+					// Versions being deleted under us: try again next time
+				}
+			}
+		}
+	}
+
+	// --------------- Getters and Setters --------------- //
+
+	/**
+	 * @return the maxVersions
+	 */
+	int getMaxVersions() {
+		return maxVersions;
+	}
+
+	/**
+	 * @param maxVersions
+	 *            the maxVersions to set
+	 */
+	void setMaxVersions(int maxVersions) {
+		this.maxVersions = maxVersions;
+	}
+
+	/**
+	 * @return the maxAgeMillis
+	 */
+	long getMaxAgeMillis() {
+		return maxAgeMillis;
+	}
+
+	/**
+	 * @param maxAgeMillis
+	 *            the maxAgeMillis to set
+	 */
+	void setMaxAgeMillis(long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+	}
+}
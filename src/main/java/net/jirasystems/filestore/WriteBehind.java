@@ -0,0 +1,380 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers creates, updates and deletes in memory and writes them to a {@link FileStore} on a
+ * background thread, so that callers are not held up by the disk during bursts. Reads consult the
+ * buffer first, so buffered content is visible immediately.
+ * <p>
+ * The buffer holds at most one pending change per ID: a later change to the same ID replaces the
+ * earlier one, so rapid rewrites of an ID cost only one disk write. The total size of buffered
+ * content is bounded; when the buffer is full, writers wait for the flusher to make room. Each
+ * batch is written in path order, so that files in the same directory are written together.
+ *
+ * @author david
+ *
+ */
+class WriteBehind implements Closeable {
+
+	/**
+	 * How long, in milliseconds, the flusher waits before retrying after a failed write. The value
+	 * is {@value #retryMillis}.
+	 */
+	static final long retryMillis = 100;
+
+	private final FileStore store;
+	private final long capacity;
+	private final Object lock = new Object();
+	private final Map<String, Pending> pending = new HashMap<String, Pending>();
+	private long bytes;
+	private IOException failure;
+	private boolean running = true;
+	private final Thread flusher;
+
+	/**
+	 * Starts the background thread.
+	 *
+	 * @param store
+	 *            The store to write to.
+	 * @param capacity
+	 *            The maximum number of bytes of content to buffer.
+	 */
+	WriteBehind(FileStore store, long capacity) {
+		this.store = store;
+		this.capacity = capacity;
+		flusher = new Thread(this::flush, "FileStore write-behind " + store.getBasePath());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * @param id
+	 *            An ID.
+	 * @return The buffered change for the ID, or null if there is none.
+	 */
+	Pending get(String id) {
+		synchronized (lock) {
+			return pending.get(id);
+		}
+	}
+
+	/**
+	 * @param id
+	 *            An ID.
+	 * @return Whether the ID exists, taking buffered changes into account.
+	 */
+	boolean exists(String id) {
+		synchronized (lock) {
+			return exists(id, pending.get(id));
+		}
+	}
+
+	/**
+	 * Buffers the creation of an ID.
+	 *
+	 * @param id
+	 *            The ID to create.
+	 * @param content
+	 *            The content.
+	 * @throws FileStoreException
+	 *             If the ID already exists.
+	 * @throws IOException
+	 *             If interrupted while waiting for room in the buffer, or the buffer is closed.
+	 */
+	void create(String id, byte[] content) throws FileStoreException, IOException {
+		synchronized (lock) {
+			awaitRoom(content.length);
+			if (exists(id, pending.get(id))) {
+				throw new FileStoreException("Duplicate file ID " + id + " (" + store.idToFile(id).getPath() + ")");
+			}
+			put(id, content);
+		}
+	}
+
+	/**
+	 * Buffers new content for an existing ID.
+	 *
+	 * @param id
+	 *            The ID to update.
+	 * @param content
+	 *            The new content.
+	 * @throws FileStoreException
+	 *             If the ID does not exist.
+	 * @throws IOException
+	 *             If interrupted while waiting for room in the buffer, or the buffer is closed.
+	 */
+	void update(String id, byte[] content) throws FileStoreException, IOException {
+		synchronized (lock) {
+			awaitRoom(content.length);
+			if (!exists(id, pending.get(id))) {
+				throw new FileStoreException("Unable to find file ID " + id + " (" + store.idToFile(id).getPath() + ")");
+			}
+			put(id, content);
+		}
+	}
+
+	/**
+	 * Buffers the deletion of an ID.
+	 *
+	 * @param id
+	 *            The ID to delete.
+	 * @throws FileStoreException
+	 *             If the ID does not exist.
+	 * @throws IOException
+	 *             If the buffer is closed.
+	 */
+	void delete(String id) throws FileStoreException, IOException {
+		synchronized (lock) {
+			awaitRoom(0);
+			if (!exists(id, pending.get(id))) {
+				throw new FileStoreException("Unable to find file ID " + id + " (" + store.idToFile(id).getPath() + ")");
+			}
+			put(id, null);
+		}
+	}
+
+	/**
+	 * Buffers a copy or move. The content of the original is taken from the buffer if it has a
+	 * pending change, otherwise from disk.
+	 *
+	 * @param fromId
+	 *            The ID to copy or move.
+	 * @param toId
+	 *            The new ID.
+	 * @param move
+	 *            True to delete the original ID as well.
+	 * @return The number of bytes copied.
+	 * @throws FileStoreException
+	 *             If the original ID does not exist or the new ID already exists.
+	 * @throws IOException
+	 *             If the original cannot be read, if interrupted while waiting for room in the
+	 *             buffer, or the buffer is closed.
+	 */
+	long copy(String fromId, String toId, boolean move) throws FileStoreException, IOException {
+		while (true) {
+			Pending source = get(fromId);
+			byte[] content = source != null ? source.content : readFile(fromId);
+			if (content == null) {
+				throw new FileStoreException("Unable to find file ID " + fromId + " (" + store.idToFile(fromId).getPath() + ")");
+			}
+			synchronized (lock) {
+				awaitRoom(content.length);
+				if (pending.get(fromId) != source) {
+					// Changed while we were reading it
+					continue;
+				}
+				if (exists(toId, pending.get(toId))) {
+					throw new FileStoreException("Duplicate file ID " + toId + " (" + store.idToFile(toId).getPath() + ")");
+				}
+				put(toId, content);
+				if (move) {
+					put(fromId, null);
+				}
+				return content.length;
+			}
+		}
+	}
+
+	/**
+	 * Waits until every buffered change has been written.
+	 *
+	 * @throws IOException
+	 *             If a buffered change could not be written, or if interrupted.
+	 */
+	void drain() throws IOException {
+		synchronized (lock) {
+			try {
+				while (!pending.isEmpty()) {
+					if (failure != null) {
+						throw new IOException("Unable to write buffered changes", failure);
+					}
+					lock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for buffered changes to be written.");
+			}
+		}
+	}
+
+	/**
+	 * @return The number of bytes of content currently buffered.
+	 */
+	long getBytes() {
+		synchronized (lock) {
+			return bytes;
+		}
+	}
+
+	/**
+	 * Writes out everything that has been buffered and stops the background thread. Further
+	 * changes are refused.
+	 *
+	 * @throws IOException
+	 *             If buffered changes could not be written. These changes are lost.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing buffered changes.");
+		}
+		synchronized (lock) {
+			if (!pending.isEmpty()) {
+				throw new IOException(pending.size() + " buffered changes could not be written", failure);
+			}
+		}
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * @return The content of the file for the given ID, or null if there is no file.
+	 */
+	private byte[] readFile(String id) throws IOException {
+		try {
+			return Files.readAllBytes(store.idToNioPath(id));
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Must be called holding the lock.
+	 */
+	private boolean exists(String id, Pending change) {
+		if (change != null) {
+			return change.content != null;
+		}
+		return store.idToFile(id).exists();
+	}
+
+	/**
+	 * Waits until there is room for content of the given size. Content larger than the whole
+	 * buffer is accepted once the buffer is empty. Must be called holding the lock.
+	 */
+	private void awaitRoom(long size) throws IOException {
+		try {
+			while (running && bytes > 0 && bytes + size > capacity) {
+				lock.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for room in the write-behind buffer.");
+		}
+		if (!running) {
+			throw new IOException("Write-behind has been closed.");
+		}
+	}
+
+	/**
+	 * Must be called holding the lock.
+	 */
+	private void put(String id, byte[] content) {
+		Pending change = new Pending(id, content);
+		Pending replaced = pending.put(id, change);
+		if (replaced != null) {
+			bytes -= replaced.size();
+		}
+		bytes += change.size();
+		lock.notifyAll();
+	}
+
+	/**
+	 * Body of the background thread.
+	 */
+	private void flush() {
+		final Comparator<Pending> byPath = Comparator.comparing(change -> store.idToPath(change.id));
+		while (true) {
+			List<Pending> batch;
+			synchronized (lock) {
+				try {
+					while (running && pending.isEmpty()) {
+						lock.wait();
+					}
+				} catch (InterruptedException e) {
+					running = false;
+				}
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = new ArrayList<Pending>(pending.values());
+			}
+
+			batch.sort(byPath);
+			IOException batchFailure = null;
+			for (Pending change : batch) {
+				try {
+					store.writeThrough(change.id, change.content);
+				} catch (IOException e) {
+					batchFailure = e;
+					continue;
+				}
+				synchronized (lock) {
+					// Only remove the change if it has not been superseded in the meantime:
+					if (pending.remove(change.id, change)) {
+						bytes -= change.size();
+						lock.notifyAll();
+					}
+				}
+			}
+
+			synchronized (lock) {
+				failure = batchFailure;
+				lock.notifyAll();
+				if (batchFailure != null) {
+					if (!running) {
+						return;
+					}
+					try {
+						TimeUnit.MILLISECONDS.timedWait(lock, retryMillis);
+					} catch (InterruptedException e) {
+						running = false;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A buffered change to an ID.
+	 */
+	static class Pending {
+
+		final String id;
+
+		/**
+		 * The new content, or null for a delete.
+		 */
+		final byte[] content;
+
+		Pending(String id, byte[] content) {
+			this.id = id;
+			this.content = content;
+		}
+
+		long size() {
+			return content != null ? content.length : 0;
+		}
+	}
+}
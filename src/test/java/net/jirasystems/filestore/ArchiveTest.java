@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class ArchiveTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+	private File targetFolder;
+	private FileStore target;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+		targetFolder = FileStoreTestUtils.createTempFolder();
+		target = new FileStore(targetFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		target.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+		FileStoreTestUtils.deleteFolder(targetFolder);
+	}
+
+	/**
+	 * Test that an export can be imported into a store with a different layout, including content
+	 * too large to be buffered, and that exporting the same content gives the same archive.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testRoundTrip() throws Exception {
+
+		// Given
+		byte[] large = new byte[Archive.maxBuffered + 10];
+		new Random(1).nextBytes(large);
+		for (int i = 0; i < 100; i++) {
+			fileStore.create("id" + i, new ByteArrayInputStream(new byte[] {(byte) i}));
+		}
+		fileStore.create("large", new ByteArrayInputStream(large));
+		fileStore.create("empty", new ByteArrayInputStream(new byte[0]));
+		target.setIdChunkSize(3);
+
+		// When
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		long exported = fileStore.exportTo(first);
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		fileStore.exportTo(second);
+		long imported = target.importFrom(new ByteArrayInputStream(first.toByteArray()));
+
+		// Then
+		assertEquals(102, exported);
+		assertEquals(102, imported);
+		assertArrayEquals(first.toByteArray(), second.toByteArray());
+		for (int i = 0; i < 100; i++) {
+			assertArrayEquals(new byte[] {(byte) i}, read(target, "id" + i));
+		}
+		assertArrayEquals(large, read(target, "large"));
+		assertArrayEquals(new byte[0], read(target, "empty"));
+	}
+
+	/**
+	 * Test that an import fails if an ID already exists.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testDuplicate() throws Exception {
+
+		// Given
+		fileStore.create("id", new ByteArrayInputStream(new byte[] {1}));
+		target.create("id", new ByteArrayInputStream(new byte[] {2}));
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		fileStore.exportTo(archive);
+
+		// When
+		try {
+			target.importFrom(new ByteArrayInputStream(archive.toByteArray()));
+			fail("Expected the import to fail.");
+		} catch (FileStoreException e) {
+			// Expected
+		}
+
+		// Then
+		assertArrayEquals(new byte[] {2}, read(target, "id"));
+	}
+
+	private static byte[] read(FileStore store, String id) throws Exception {
+		InputStream input = store.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
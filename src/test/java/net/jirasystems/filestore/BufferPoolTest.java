@@ -0,0 +1,181 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class BufferPoolTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that released buffers are reused, and that the pool is bounded.
+	 */
+	@Test
+	public void testReuse() {
+
+		// Given
+		BufferPool pool = new BufferPool(16, 32, 2);
+		byte[] first = pool.acquireHeap();
+		pool.release(first);
+
+		// When
+		byte[] second = pool.acquireHeap();
+		Set<byte[]> released = new HashSet<byte[]>();
+		for (int i = 0; i < 5; i++) {
+			released.add(new byte[16]);
+		}
+		for (byte[] buffer : released) {
+			pool.release(buffer);
+		}
+		pool.release(new byte[8]);
+		for (int i = 0; i < 4; i++) {
+			pool.acquireHeap();
+		}
+
+		// Then
+		assertSame(first, second);
+		// One held by the thread and two in the shared list, then one allocated:
+		assertEquals(4, pool.getHits());
+		assertEquals(2, pool.getMisses());
+		assertEquals(4.0 / 6, pool.getHitRate(), 0.0001);
+	}
+
+	/**
+	 * Test that direct buffers are reused and cleared.
+	 */
+	@Test
+	public void testDirect() {
+
+		// Given
+		BufferPool pool = new BufferPool(16, 32, 2);
+		ByteBuffer first = pool.acquireDirect();
+		first.put((byte) 1);
+		pool.release(first);
+
+		// When
+		ByteBuffer second = pool.acquireDirect();
+
+		// Then
+		assertSame(first, second);
+		assertTrue(second.isDirect());
+		assertEquals(0, second.position());
+		assertEquals(32, second.remaining());
+	}
+
+	/**
+	 * Test that pooled streams copy content correctly, whatever the size of reads and writes.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testStreams() throws Exception {
+
+		// Given
+		BufferPool pool = new BufferPool(16, 32, 2);
+		byte[] content = new byte[100];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+		// When
+		OutputStream output = pool.output(copy);
+		output.write(content, 0, 3);
+		output.write(content[3]);
+		output.write(content, 4, 40);
+		output.write(content, 44, 56);
+		output.close();
+		InputStream input = pool.input(new ByteArrayInputStream(content));
+		byte[] read = new byte[100];
+		read[0] = (byte) input.read();
+		int count = 1 + input.read(read, 1, 5);
+		count += input.skip(4);
+		while (count < 100) {
+			count += input.read(read, count, Math.min(40, 100 - count));
+		}
+		input.close();
+
+		// Then
+		assertArrayEquals(content, copy.toByteArray());
+		for (int i = 0; i < 100; i++) {
+			if (i < 6 || i >= 10) {
+				assertEquals(content[i], read[i]);
+			}
+		}
+		assertEquals(-1, pool.input(new ByteArrayInputStream(new byte[0])).read());
+	}
+
+	/**
+	 * Test that the store borrows its buffers from the pool, and that the hit rate is reported in
+	 * the metrics.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testStoreUsesPool() throws Exception {
+
+		// Given
+		BufferPool pool = new BufferPool();
+		fileStore.setBufferPool(pool);
+		fileStore.setMetricsEnabled(true);
+		String id = "testStoreUsesPool";
+
+		// When
+		fileStore.create(id, new ByteArrayInputStream(new byte[100000]));
+		for (int i = 0; i < 100; i++) {
+			InputStream input = fileStore.read(id);
+			IOUtils.toByteArray(input);
+			input.close();
+			OutputStream output = fileStore.update(id);
+			output.write(new byte[10]);
+			output.close();
+		}
+
+		// Then
+		assertEquals(1, pool.getMisses());
+		assertEquals(200, pool.getHits());
+		assertEquals(pool.getHitRate(), fileStore.getMetrics().getBufferPoolHitRate(), 0.0001);
+	}
+}
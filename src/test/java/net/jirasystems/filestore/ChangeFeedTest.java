@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class ChangeFeedTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+		fileStore.setChangeFeedEnabled(true);
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that each change is recorded in order, and that sequence numbers carry on after a
+	 * restart.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testFeed() throws Exception {
+
+		// Given
+		fileStore.create("a", new ByteArrayInputStream(new byte[] {1}));
+		fileStore.update("a", new ByteArrayInputStream(new byte[] {2}));
+		fileStore.copy("a", "b");
+		fileStore.move("b", "c");
+		fileStore.delete("a");
+
+		// When
+		List<Change> changes = fileStore.readChanges(1, 100);
+		List<Change> from4 = fileStore.readChanges(4, 2);
+		fileStore.close();
+		fileStore = new FileStore(tempFolder.getPath());
+		fileStore.setChangeFeedEnabled(true);
+		fileStore.create("d", new ByteArrayInputStream(new byte[] {3}));
+
+		// Then
+		assertEquals("[1 CREATE a, 2 UPDATE a, 3 CREATE b, 4 DELETE b, 5 CREATE c, 6 DELETE a]", changes.toString());
+		assertEquals("[4 DELETE b, 5 CREATE c]", from4.toString());
+		assertEquals("[7 CREATE d]", fileStore.readChanges(7, 100).toString());
+		assertEquals(8, fileStore.getNextChangeSequence());
+	}
+
+	/**
+	 * Test that a subscriber receives batches only as it requests them.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testSubscription() throws Exception {
+
+		// Given
+		fileStore.create("before", new ByteArrayInputStream(new byte[0]));
+		final BlockingQueue<List<Change>> batches = new LinkedBlockingQueue<List<Change>>();
+		final List<Flow.Subscription> subscriptions = new ArrayList<Flow.Subscription>();
+		fileStore.changesFrom(fileStore.getNextChangeSequence(), 2).subscribe(new Flow.Subscriber<List<Change>>() {
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				subscriptions.add(subscription);
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(List<Change> item) {
+				batches.add(item);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				batches.add(new ArrayList<Change>());
+			}
+
+			@Override
+			public void onComplete() {
+				// Nothing to do
+			}
+		});
+
+		// When
+		for (int i = 0; i < 5; i++) {
+			OutputStream output = fileStore.create("id" + i);
+			output.close();
+		}
+		List<Change> first = batches.poll(5, TimeUnit.SECONDS);
+		List<Change> unrequested = batches.poll(200, TimeUnit.MILLISECONDS);
+		subscriptions.get(0).request(Long.MAX_VALUE);
+		List<Change> received = new ArrayList<Change>(first);
+		while (received.size() < 5) {
+			List<Change> batch = batches.poll(5, TimeUnit.SECONDS);
+			assertTrue(batch.size() <= 2);
+			received.addAll(batch);
+		}
+		subscriptions.get(0).cancel();
+
+		// Then
+		// The subscriber may wake for the first change before the second is recorded:
+		assertTrue(first.size() >= 1 && first.size() <= 2);
+		assertNull(unrequested);
+		for (int i = 0; i < 5; i++) {
+			assertEquals(Operation.CREATE, received.get(i).getOperation());
+			assertEquals("id" + i, received.get(i).getId());
+		}
+		for (int i = 1; i < received.size(); i++) {
+			assertEquals(received.get(i - 1).getSequence() + 1, received.get(i).getSequence());
+		}
+	}
+
+	/**
+	 * Test that files written to the base path by another process are recorded as external
+	 * changes, while the store's own changes are not.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testExternalChanges() throws Exception {
+
+		// Given
+		fileStore.setWatchingExternalChanges(true);
+		long start = fileStore.getNextChangeSequence();
+
+		// When
+		fileStore.create("own", new ByteArrayInputStream(new byte[] {1}));
+		File external = fileStore.idToFile("external");
+		external.getParentFile().mkdirs();
+		Files.write(external.toPath(), new byte[] {2});
+		List<Change> changes = new ArrayList<Change>();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!contains(changes, "external") && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			changes = fileStore.readChanges(start, 100);
+		}
+		Thread.sleep(500);
+		changes = fileStore.readChanges(start, 100);
+
+		// Then
+		assertEquals("own", changes.get(0).getId());
+		assertFalse(changes.get(0).isExternal());
+		for (Change change : changes.subList(1, changes.size())) {
+			assertEquals("external", change.getId());
+			assertTrue(change.isExternal());
+		}
+		assertEquals(Operation.CREATE, changes.get(1).getOperation());
+	}
+
+	/**
+	 * Test that a file created through a stream is recorded as a single create, once its content
+	 * is in place, whether or not the store is journaled.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testStreamedCreate() throws Exception {
+
+		// Given
+		long start = fileStore.getNextChangeSequence();
+
+		// When
+		OutputStream output = fileStore.create("plain");
+		List<Change> whileOpen = fileStore.readChanges(start, 100);
+		output.write(1);
+		output.close();
+		fileStore.setJournaled(true);
+		output = fileStore.create("journaled");
+		output.write(2);
+		output.close();
+
+		// Then
+		assertTrue(whileOpen.isEmpty());
+		List<Change> changes = fileStore.readChanges(start, 100);
+		assertEquals(2, changes.size());
+		assertEquals("plain", changes.get(0).getId());
+		assertEquals(Operation.CREATE, changes.get(0).getOperation());
+		assertEquals("journaled", changes.get(1).getId());
+		assertEquals(Operation.CREATE, changes.get(1).getOperation());
+	}
+
+	private static boolean contains(List<Change> changes, String id) {
+		for (Change change : changes) {
+			if (change.getId().equals(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
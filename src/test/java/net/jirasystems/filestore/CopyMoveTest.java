@@ -0,0 +1,185 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class CopyMoveTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test method for {@link FileStore#copy(String, String)}, including that updating either ID
+	 * afterwards leaves the other unchanged.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testCopy() throws Exception {
+
+		// Given
+		fileStore.create("original", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+
+		// When
+		fileStore.copy("original", "copy");
+		boolean shared = linkCount("copy") == 2;
+		fileStore.update("copy", new ByteArrayInputStream(new byte[] {4}));
+		fileStore.copy("original", "second");
+		OutputStream output = fileStore.update("original");
+		output.write(5);
+		output.close();
+
+		// Then
+		assertTrue(shared || !isUnix());
+		assertArrayEquals(new byte[] {5}, read("original"));
+		assertArrayEquals(new byte[] {4}, read("copy"));
+		assertArrayEquals(new byte[] {1, 2, 3}, read("second"));
+		assertEquals(1, linkCount("original"));
+	}
+
+	/**
+	 * Test method for {@link FileStore#move(String, String)}.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testMove() throws Exception {
+
+		// Given
+		fileStore.create("from", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+
+		// When
+		fileStore.move("from", "toSomewhereElse");
+
+		// Then
+		assertFalse(fileStore.exists("from"));
+		assertArrayEquals(new byte[] {1, 2, 3}, read("toSomewhereElse"));
+		assertEquals(1, linkCount("toSomewhereElse"));
+	}
+
+	/**
+	 * Test that copying or moving a missing ID, or onto an existing ID, fails without changing
+	 * anything.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testFailures() throws Exception {
+
+		// Given
+		fileStore.create("a", new ByteArrayInputStream(new byte[] {1}));
+		fileStore.create("b", new ByteArrayInputStream(new byte[] {2}));
+
+		// When
+		String[][] attempts = new String[][] {{"missing", "c"}, {"a", "b"}};
+		for (String[] attempt : attempts) {
+			try {
+				fileStore.copy(attempt[0], attempt[1]);
+				fail("Expected copy to fail: " + attempt[0] + " to " + attempt[1]);
+			} catch (FileStoreException e) {
+				// Expected
+			}
+			try {
+				fileStore.move(attempt[0], attempt[1]);
+				fail("Expected move to fail: " + attempt[0] + " to " + attempt[1]);
+			} catch (FileStoreException e) {
+				// Expected
+			}
+		}
+
+		// Then
+		assertArrayEquals(new byte[] {1}, read("a"));
+		assertArrayEquals(new byte[] {2}, read("b"));
+		assertFalse(fileStore.exists("c"));
+	}
+
+	/**
+	 * Test copy and move with the journal and with write-behind.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testJournaledAndBuffered() throws Exception {
+
+		// Given
+		fileStore.setJournaled(true);
+		fileStore.create("journaled", new ByteArrayInputStream(new byte[] {1}));
+
+		// When
+		fileStore.copy("journaled", "journaledCopy");
+		fileStore.move("journaled", "journaledMove");
+		fileStore.update("journaledCopy", new ByteArrayInputStream(new byte[] {2}));
+		fileStore.setWriteBehindBytes(1000);
+		fileStore.create("buffered", new ByteArrayInputStream(new byte[] {3}));
+		fileStore.copy("buffered", "bufferedCopy");
+		fileStore.move("journaledMove", "bufferedMove");
+		fileStore.flush();
+
+		// Then
+		assertFalse(fileStore.exists("journaled"));
+		assertFalse(fileStore.exists("journaledMove"));
+		assertArrayEquals(new byte[] {2}, read("journaledCopy"));
+		assertArrayEquals(new byte[] {3}, read("bufferedCopy"));
+		assertArrayEquals(new byte[] {1}, read("bufferedMove"));
+	}
+
+	private byte[] read(String id) throws IOException {
+		InputStream input = fileStore.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	private int linkCount(String id) throws IOException {
+		if (!isUnix()) {
+			return 1;
+		}
+		return ((Integer) Files.getAttribute(fileStore.idToNioPath(id), "unix:nlink")).intValue();
+	}
+
+	private boolean isUnix() {
+		return tempFolder.toPath().getFileSystem().supportedFileAttributeViews().contains("unix");
+	}
+}
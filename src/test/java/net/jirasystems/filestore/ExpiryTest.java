@@ -0,0 +1,193 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.time.Duration;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class ExpiryTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+		fileStore.setExpiryEnabled(true);
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that an expired ID is treated as absent straight away, and can be created again.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testExpiry() throws Exception {
+
+		// Given
+		fileStore.create("short", new ByteArrayInputStream(new byte[] {1}), Duration.ofMillis(100));
+		fileStore.create("long", new ByteArrayInputStream(new byte[] {2}), Duration.ofHours(1));
+		fileStore.create("forever", new ByteArrayInputStream(new byte[] {3}));
+
+		// When
+		Thread.sleep(200);
+		boolean expired = !fileStore.exists("short") && fileStore.read("short") == null;
+		fileStore.create("short", new ByteArrayInputStream(new byte[] {4}));
+		Thread.sleep(2 * Expiry.tickMillis);
+
+		// Then
+		assertTrue(expired);
+		assertArrayEquals(new byte[] {4}, read("short"));
+		assertArrayEquals(new byte[] {2}, read("long"));
+		assertArrayEquals(new byte[] {3}, read("forever"));
+	}
+
+	/**
+	 * Test that the sweeper deletes expired IDs from disk.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testSweeper() throws Exception {
+
+		// Given
+		for (int i = 0; i < 20; i++) {
+			fileStore.create("id" + i, new ByteArrayInputStream(new byte[] {1}), Duration.ofMillis(10 * i + 1));
+		}
+
+		// When
+		// IDs that fall due together are deleted in path order, so wait for each of them:
+		boolean swept = true;
+		for (int i = 0; i < 20; i++) {
+			swept &= awaitSwept("id" + i);
+		}
+
+		// Then
+		assertTrue(swept);
+		for (int i = 0; i < 20; i++) {
+			assertFalse(fileStore.idToFile("id" + i).exists());
+		}
+	}
+
+	/**
+	 * Test that expiry times survive a restart, and follow copies and moves but not deletes.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testRestart() throws Exception {
+
+		// Given
+		fileStore.create("expiring", new ByteArrayInputStream(new byte[] {1}), Duration.ofMillis(500));
+		fileStore.copy("expiring", "copied");
+		fileStore.move("copied", "moved");
+		fileStore.create("deleted", new ByteArrayInputStream(new byte[] {2}), Duration.ofMillis(500));
+		fileStore.delete("deleted");
+		fileStore.create("deleted", new ByteArrayInputStream(new byte[] {3}));
+
+		// When
+		fileStore.close();
+		Thread.sleep(600);
+		fileStore = new FileStore(tempFolder.getPath());
+		boolean existsWhileDisabled = fileStore.exists("expiring");
+		fileStore.setExpiryEnabled(true);
+
+		// Then
+		assertTrue(existsWhileDisabled);
+		assertFalse(fileStore.exists("expiring"));
+		assertFalse(fileStore.exists("moved"));
+		assertArrayEquals(new byte[] {3}, read("deleted"));
+		assertTrue(awaitSwept("moved"));
+	}
+
+	/**
+	 * Test that a create with a time to live fails over an existing ID, leaving the ID as it was.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testCreateOverExisting() throws Exception {
+
+		// Given
+		fileStore.create("forever", new ByteArrayInputStream(new byte[] {1}));
+
+		// When
+		boolean failed = false;
+		try {
+			fileStore.create("forever", new ByteArrayInputStream(new byte[] {2}), Duration.ofNanos(1));
+		} catch (FileStoreException e) {
+			failed = true;
+		}
+		Thread.sleep(2 * Expiry.tickMillis);
+
+		// Then
+		assertTrue(failed);
+		assertArrayEquals(new byte[] {1}, read("forever"));
+	}
+
+	/**
+	 * Test that a time to live cannot be given unless expiry is enabled.
+	 *
+	 * @throws Exception .
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testNotEnabled() throws Exception {
+
+		// Given
+		fileStore.setExpiryEnabled(false);
+
+		// When
+		fileStore.create("id", new ByteArrayInputStream(new byte[] {1}), Duration.ofMinutes(1));
+
+		// Then
+		// We expect an exception.
+	}
+
+	private boolean awaitSwept(String id) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5 * Expiry.tickMillis;
+		while (fileStore.idToFile(id).exists() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertNull(fileStore.read(id));
+		return !fileStore.idToFile(id).exists();
+	}
+
+	private byte[] read(String id) throws Exception {
+		InputStream input = fileStore.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
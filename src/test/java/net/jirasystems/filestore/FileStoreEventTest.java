@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class FileStoreEventTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that each operation emits an event carrying the ID, path and byte count.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testEvents() throws Exception {
+
+		// Given
+		String id = "testEvents";
+		String path = fileStore.idToFile(id).getPath();
+		Path dump = new File(tempFolder, "recording.jfr").toPath();
+		Recording recording = new Recording();
+		for (String name : new String[] {"Create", "Read", "Update", "Delete", "Exists"}) {
+			recording.enable("net.jirasystems.filestore." + name).withThreshold(Duration.ZERO);
+		}
+
+		// When
+		recording.start();
+		fileStore.create(id, new ByteArrayInputStream(new byte[100]));
+		InputStream input = fileStore.read(id);
+		input.close();
+		fileStore.update(id, new ByteArrayInputStream(new byte[50]));
+		fileStore.exists(id);
+		fileStore.delete(id);
+		recording.stop();
+		recording.dump(dump);
+		recording.close();
+
+		// Then
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+		Map<String, RecordedEvent> byName = new HashMap<String, RecordedEvent>();
+		for (RecordedEvent event : events) {
+			byName.put(event.getEventType().getName(), event);
+		}
+		assertEquals(5, byName.size());
+		for (RecordedEvent event : byName.values()) {
+			assertEquals(id, event.getString("id"));
+			assertEquals(path, event.getString("path"));
+			assertTrue(event.getDuration().toNanos() >= 0);
+		}
+		assertEquals(100, byName.get("net.jirasystems.filestore.Create").getLong("bytes"));
+		assertEquals(100, byName.get("net.jirasystems.filestore.Read").getLong("bytes"));
+		assertEquals(50, byName.get("net.jirasystems.filestore.Update").getLong("bytes"));
+	}
+
+	/**
+	 * Test that a read served from the write-behind buffer reports the size of the buffered
+	 * content, not of the file on disk.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testBufferedReadEvent() throws Exception {
+
+		// Given
+		String id = "testBufferedReadEvent";
+		fileStore.create(id, new ByteArrayInputStream(new byte[100]));
+		final CountDownLatch diskAvailable = new CountDownLatch(1);
+		fileStore.close();
+		fileStore = new FileStore(tempFolder.getPath()) {
+			@Override
+			protected void writeFile(File file, InputStream content) throws IOException {
+				try {
+					diskAvailable.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				super.writeFile(file, content);
+			}
+		};
+		fileStore.setWriteBehindBytes(1000);
+		fileStore.update(id, new ByteArrayInputStream(new byte[30]));
+		Path dump = new File(tempFolder, "recording.jfr").toPath();
+		Recording recording = new Recording();
+		recording.enable("net.jirasystems.filestore.Read").withThreshold(Duration.ZERO);
+
+		// When
+		recording.start();
+		InputStream input = fileStore.read(id);
+		input.close();
+		recording.stop();
+		recording.dump(dump);
+		recording.close();
+		diskAvailable.countDown();
+
+		// Then
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+		assertEquals(1, events.size());
+		assertEquals(30, events.get(0).getLong("bytes"));
+	}
+}
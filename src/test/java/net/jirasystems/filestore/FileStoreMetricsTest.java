@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class FileStoreMetricsTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+		fileStore.setMetricsEnabled(true);
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that operations, bytes and errors are counted.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testOperationMetrics() throws Exception {
+
+		// Given
+		String id = "testOperationMetrics";
+		FileStoreMetrics metrics = fileStore.getMetrics();
+
+		// When
+		fileStore.create(id, new ByteArrayInputStream(new byte[100]));
+		InputStream input = fileStore.read(id);
+		IOUtils.toByteArray(input);
+		input.close();
+		fileStore.update(id, new ByteArrayInputStream(new byte[50]));
+		assertTrue(fileStore.exists(id));
+		fileStore.delete(id);
+		try {
+			fileStore.delete(id);
+			fail("Expected an exception when attempting to delete nonexistent ID " + id);
+		} catch (FileStoreException e) {
+			// Expected
+		}
+
+		// Then
+		assertEquals(1, metrics.getCreateLatency().getCount());
+		assertEquals(1, metrics.getReadLatency().getCount());
+		assertEquals(1, metrics.getUpdateLatency().getCount());
+		assertEquals(2, metrics.getDeleteLatency().getCount());
+		assertEquals(1, metrics.getExistsLatency().getCount());
+		assertEquals(150, metrics.getBytesWritten());
+		assertEquals(100, metrics.getBytesRead());
+		assertEquals(Long.valueOf(1), metrics.getErrors().get("FileStoreException"));
+		assertTrue(metrics.getCreateLatency().getMaxNanos() > 0);
+	}
+
+	/**
+	 * Test that metrics are exposed over JMX and unregistered when the store is closed.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testJmx() throws Exception {
+
+		// Given
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = fileStore.getMetrics().getObjectName();
+		assertNotNull(name);
+
+		// When
+		fileStore.exists("testJmx");
+		CompositeData latency = (CompositeData) server.getAttribute(name, "ExistsLatency");
+
+		// Then
+		assertEquals(Long.valueOf(1), latency.get("count"));
+		assertEquals(tempFolder.getPath(), server.getAttribute(name, "BasePath"));
+		fileStore.close();
+		assertFalse(server.isRegistered(name));
+		assertNull(fileStore.getMetrics());
+	}
+
+	/**
+	 * Test method for {@link LatencyHistogram}.
+	 */
+	@Test
+	public void testHistogram() {
+
+		// Given
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		// When
+		for (long value = 1; value <= 100000; value++) {
+			histogram.record(value);
+		}
+
+		// Then
+		assertEquals(100000, histogram.getCount());
+		assertEquals(50000, histogram.getMean());
+		assertEquals(100000, histogram.getMax());
+		assertWithin(50000, histogram.getPercentile(50));
+		assertWithin(99000, histogram.getPercentile(99));
+		assertWithin(99900, histogram.getPercentile(99.9));
+		assertEquals(100000, histogram.getPercentile(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+	/**
+	 * Test that bucket indices cover the whole range of values.
+	 */
+	@Test
+	public void testHistogramBuckets() {
+		long[] values = {0, 1, 31, 32, 33, 63, 64, 1000, 1L << 40, Long.MAX_VALUE};
+		for (long value : values) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(LatencyHistogram.highestEquivalent(index) >= value);
+			if (index > 0) {
+				assertTrue(LatencyHistogram.highestEquivalent(index - 1) < value);
+			}
+		}
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * 0.04);
+	}
+}
@@ -10,11 +10,13 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.AfterClass;
@@ -486,6 +488,113 @@ public class FileStoreTest {
 		}
 	}
 
+	/**
+	 * Test method for {@link net.jirasystems.filestore.FileStore#idToPath(java.lang.String)} with
+	 * different chunk sizes.
+	 */
+	@Test
+	public void testIdToPathChunks() {
+		FileStore fileStore = new FileStore("testIdToPathChunks");
+		String[] ids = new String[] {"a", "ab", "abc", "abcd", "abcdefghij"};
+		for (int idChunkSize = 1; idChunkSize <= 4; idChunkSize++) {
+			fileStore.setIdChunkSize(idChunkSize);
+			for (String id : ids) {
+				StringBuilder expected = new StringBuilder();
+				for (int i = 0; i < id.length(); i++) {
+					if (i > 0 && i % idChunkSize == 0) {
+						expected.append(File.separatorChar);
+					}
+					expected.append(id.charAt(i));
+				}
+				expected.append(FileStore.defaultFileExtension);
+				assertEquals(expected.toString(), fileStore.idToPath(id));
+				assertEquals(new File("testIdToPathChunks", expected.toString()), fileStore.idToFile(id));
+			}
+		}
+	}
+
+	/**
+	 * Test method for {@link net.jirasystems.filestore.FileStore#validId(java.lang.String)} with a
+	 * custom regex, which cannot use the character table.
+	 */
+	@Test
+	public void testValidIdCustomRegex() {
+		FileStore fileStore = new FileStore();
+		assertFalse(fileStore.validId("caf\u00e9"));
+		assertFalse(fileStore.validId("a b"));
+		fileStore.setIdRegex("[a-z]+");
+		assertTrue(fileStore.validId("abc"));
+		assertFalse(fileStore.validId("ABC"));
+		fileStore.setIdRegex(FileStore.defaultIdRegex);
+		assertTrue(fileStore.validId("ABC"));
+	}
+
+	/**
+	 * Test that validating and resolving an ID that has been seen before allocates nothing.
+	 */
+	@Test
+	public void testLookupAllocation() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		FileStore fileStore = new FileStore("testLookupAllocation");
+		String[] ids = new String[] {"testLookupAllocation", "12345", "a-_"};
+		long thread = Thread.currentThread().getId();
+
+		// Warm up:
+		for (int i = 0; i < 100000; i++) {
+			fileStore.validId(ids[i % ids.length]);
+			fileStore.idToFile(ids[i % ids.length]);
+		}
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(fileStore.validId(ids[i % ids.length]));
+			assertNotNull(fileStore.idToFile(ids[i % ids.length]));
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		// Allow for the measurement itself, but not for anything per lookup:
+		assertTrue("Allocated " + allocated + " bytes", allocated < 10000);
+	}
+
+	/**
+	 * Test method for {@link net.jirasystems.filestore.FileStore#readIfExists(java.lang.String)}.
+	 * 
+	 * @throws Exception .
+	 */
+	@Test
+	public void testReadIfExists() throws Exception {
+		String id = "testReadIfExists";
+		assertFalse(fileStore.readIfExists(id).isPresent());
+		fileStore.create(id, new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		InputStream input = fileStore.readIfExists(id).get();
+		assertEquals(3, IOUtils.toByteArray(input).length);
+		input.close();
+		fileStore.delete(id);
+		assertFalse(fileStore.readIfExists(id).isPresent());
+	}
+
+	/**
+	 * Test that reading a missing ID is cheap: a miss that constructed an exception would
+	 * allocate its stack trace.
+	 */
+	@Test
+	public void testReadMissAllocation() {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		String id = "testReadMissAllocation";
+		long thread = Thread.currentThread().getId();
+		for (int i = 0; i < 10000; i++) {
+			assertNull(fileStore.read(id));
+		}
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < 10000; i++) {
+			assertNull(fileStore.read(id));
+		}
+		long perMiss = (threads.getThreadAllocatedBytes(thread) - before) / 10000;
+
+		assertTrue("Allocated " + perMiss + " bytes per miss", perMiss < 200);
+	}
+
 	/**
 	 * Test method for
 	 * {@link net.jirasystems.filestore.FileStore#writeFile(java.io.File, java.io.InputStream)} .
@@ -0,0 +1,198 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class GroupCommitTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test method for {@link GroupCommit#sync(File, java.util.Collection)} with concurrent callers.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testConcurrentSync() throws Exception {
+
+		// Given
+		final GroupCommit groupCommit = new GroupCommit(GroupCommit.defaultIntervalMillis);
+		final AtomicReference<Exception> exception = new AtomicReference<Exception>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		// When
+		for (int i = 0; i < 20; i++) {
+			final File file = new File(tempFolder, "sync" + i);
+			assertTrue(file.createNewFile());
+			Thread thread = new Thread(() -> {
+				try {
+					groupCommit.sync(file, Collections.singletonList(tempFolder));
+				} catch (Exception e) {
+					exception.set(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		groupCommit.close();
+
+		// Then
+		assertNull(exception.get());
+	}
+
+	/**
+	 * Test that concurrent callers of {@link GroupCommit#sync(File, java.util.Collection)} share a
+	 * batch rather than each being forced separately.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testConcurrentSyncSharesBatch() throws Exception {
+
+		// Given
+		final int writers = 20;
+		final GroupCommit groupCommit = new GroupCommit(200);
+		final CyclicBarrier start = new CyclicBarrier(writers);
+		final AtomicReference<Exception> exception = new AtomicReference<Exception>();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		// When
+		for (int i = 0; i < writers; i++) {
+			final File file = new File(tempFolder, "batch" + i);
+			assertTrue(file.createNewFile());
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					groupCommit.sync(file, Collections.singletonList(tempFolder));
+				} catch (Exception e) {
+					exception.set(e);
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		groupCommit.close();
+
+		// Then
+		assertNull(exception.get());
+		assertTrue("Expected writers to share batches but got " + groupCommit.getBatches(),
+				groupCommit.getBatches() <= 2);
+	}
+
+	/**
+	 * Test that a failure to force a file is reported to the caller that wrote it.
+	 *
+	 * @throws Exception .
+	 */
+	@Test(expected = IOException.class)
+	public void testSyncFailure() throws Exception {
+		GroupCommit groupCommit = new GroupCommit(0);
+		try {
+			groupCommit.sync(new File(tempFolder, "nonexistent"), Collections.<File> emptyList());
+		} finally {
+			groupCommit.close();
+		}
+	}
+
+	/**
+	 * Test that a writer still holding a group commit that has been closed, because the durability
+	 * was changed, has its file forced rather than failing.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testSyncAfterClose() throws Exception {
+
+		// Given
+		GroupCommit groupCommit = new GroupCommit(GroupCommit.defaultIntervalMillis);
+		File file = FileStoreTestUtils.generateContent();
+		groupCommit.close();
+		long batches = groupCommit.getBatches();
+
+		// When
+		groupCommit.sync(file, Collections.singletonList(file.getParentFile()));
+
+		// Then
+		assertEquals(batches, groupCommit.getBatches());
+	}
+
+	/**
+	 * Test create, update and delete in each {@link Durability} mode.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testDurabilityModes() throws Exception {
+		for (Durability durability : Durability.values()) {
+
+			// Given
+			fileStore.setDurability(durability);
+			String id = "testDurability" + durability;
+			File content = FileStoreTestUtils.generateContent();
+
+			// When
+			InputStream input = new FileInputStream(content);
+			try {
+				fileStore.create(id, input);
+			} finally {
+				input.close();
+			}
+			OutputStream output = fileStore.update(id);
+			output.write(1);
+			output.close();
+
+			// Then
+			assertEquals(durability, fileStore.getDurability());
+			assertEquals(1, fileStore.idToFile(id).length());
+			assertTrue(fileStore.delete(id));
+		}
+	}
+}
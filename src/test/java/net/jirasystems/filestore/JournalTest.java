@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class JournalTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test create, update and delete on a journaled store.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testJournaledOperations() throws Exception {
+
+		// Given
+		fileStore.setJournaled(true);
+		String id = "testJournaled";
+
+		// When
+		fileStore.create(id, new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		OutputStream output = fileStore.update(id);
+		output.write(new byte[] {4, 5});
+		output.close();
+
+		// Then
+		assertArrayEquals(new byte[] {4, 5}, IOUtils.toByteArray(fileStore.read(id)));
+		assertTrue(fileStore.delete(id));
+		assertFalse(fileStore.exists(id));
+		assertEquals(0, fileStore.metadataFile("journal").list((dir, name) -> name.endsWith(".tmp")).length);
+	}
+
+	/**
+	 * Test that a created ID stays hidden until its stream is closed, and that a duplicate create
+	 * is still rejected.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testJournaledCreateStream() throws Exception {
+
+		// Given
+		fileStore.setJournaled(true);
+		String id = "testJournaledCreateStream";
+
+		// When
+		OutputStream output = fileStore.create(id);
+		output.write(1);
+
+		// Then
+		assertFalse(fileStore.exists(id));
+		output.close();
+		assertTrue(fileStore.exists(id));
+		try {
+			fileStore.create(id, new ByteArrayInputStream(new byte[0]));
+			fail("Expected exception when creating duplicate ID " + id);
+		} catch (FileStoreException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test recovery of operations interrupted by a crash.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testRecovery() throws Exception {
+
+		// Given
+		String created = "recoverCreate";
+		String abandoned = "recoverAbandoned";
+		String updated = "recoverUpdate";
+		String deleted = "recoverDelete";
+		write(updated, new byte[] {1});
+		write(deleted, new byte[] {1});
+
+		Journal journal = new Journal(fileStore.metadataFile("journal"), Journal.defaultSegmentSize, false);
+		assertTrue(journal.recover().isEmpty());
+		journal.start();
+		// A create whose content was complete:
+		long seq = journal.intent(Operation.CREATE, created);
+		FileUtils.writeByteArrayToFile(journal.tempFile(seq), new byte[] {2});
+		journal.ready(seq);
+		// A create whose content was not:
+		seq = journal.intent(Operation.CREATE, abandoned);
+		FileUtils.writeByteArrayToFile(journal.tempFile(seq), new byte[] {3});
+		// An update whose content was not complete:
+		seq = journal.intent(Operation.UPDATE, updated);
+		FileUtils.writeByteArrayToFile(journal.tempFile(seq), new byte[] {4});
+		// A delete:
+		journal.intent(Operation.DELETE, deleted);
+		journal.close();
+
+		// When
+		fileStore.setChangeFeedEnabled(true);
+		fileStore.setJournaled(true);
+
+		// Then
+		assertArrayEquals(new byte[] {2}, IOUtils.toByteArray(fileStore.read(created)));
+		assertEquals("[1 CREATE recoverCreate, 2 DELETE recoverDelete]", fileStore.readChanges(1, 100).toString());
+		assertFalse(fileStore.exists(abandoned));
+		assertArrayEquals(new byte[] {1}, IOUtils.toByteArray(fileStore.read(updated)));
+		assertFalse(fileStore.exists(deleted));
+		String[] tempFiles = fileStore.metadataFile("journal").list((dir, name) -> name.endsWith(".tmp"));
+		assertEquals(0, tempFiles.length);
+
+		// Nothing is left to recover after a clean close:
+		fileStore.close();
+		journal = new Journal(fileStore.metadataFile("journal"), Journal.defaultSegmentSize, false);
+		assertTrue(journal.recover().isEmpty());
+	}
+
+	/**
+	 * Test that operations resolved by recovery are not replayed by a later recovery, even when
+	 * the journal had moved on past the segment holding them.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testRecoveryNotRepeated() throws Exception {
+
+		// Given
+		String id = "recoverTwice";
+		write(id, new byte[] {1});
+		Journal journal = new Journal(fileStore.metadataFile("journal"), 100, false);
+		journal.recover();
+		journal.start();
+		for (int i = 0; i < 5; i++) {
+			journal.done(journal.intent(Operation.CREATE, "filler" + i));
+		}
+		journal.intent(Operation.DELETE, id);
+		journal.close();
+
+		// When
+		fileStore.setJournaled(true);
+		boolean deleted = !fileStore.exists(id);
+		fileStore.create(id, new ByteArrayInputStream(new byte[] {2}));
+		fileStore.close();
+		fileStore = new FileStore(tempFolder.getPath());
+		fileStore.setJournaled(true);
+
+		// Then
+		assertTrue(deleted);
+		assertArrayEquals(new byte[] {2}, IOUtils.toByteArray(fileStore.read(id)));
+	}
+
+	/**
+	 * Test that segments are recycled once their operations are done, and that the stale records
+	 * in a recycled segment are ignored.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testSegmentRecycling() throws Exception {
+
+		// Given
+		File folder = fileStore.metadataFile("journal");
+		Journal journal = new Journal(folder, 256, false);
+		journal.recover();
+		journal.start();
+
+		// When
+		for (int i = 0; i < 100; i++) {
+			journal.done(journal.intent(Operation.CREATE, "recycle" + i));
+		}
+		long unfinished = journal.intent(Operation.UPDATE, "unfinished");
+		journal.close();
+
+		// Then
+		String[] segments = folder.list((dir, name) -> name.endsWith(".log"));
+		assertTrue("Expected segments to be recycled, found " + segments.length, segments.length <= 3);
+		List<Journal.Entry> entries = new Journal(folder, 256, false).recover();
+		assertEquals(1, entries.size());
+		assertEquals(unfinished, entries.get(0).seq);
+		assertEquals("unfinished", entries.get(0).id);
+	}
+
+	private void write(String id, byte[] content) throws IOException {
+		File file = fileStore.idToFile(id);
+		FileUtils.writeByteArrayToFile(file, content);
+	}
+}
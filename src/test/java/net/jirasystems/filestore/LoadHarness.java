@@ -0,0 +1,547 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Drives a configurable load against a {@link FileStore} for a fixed time and reports the
+ * throughput and latency of each operation, so that hardware can be sized before a deployment.
+ * <p>
+ * Each thread repeatedly picks an operation according to the mix, an ID from a fixed keyspace
+ * according to the ID pattern and, for writes, a content size from the size distribution. Part of
+ * the keyspace is created before the clock starts, so that reads, updates and deletes mostly find
+ * their ID. Operations that find the store in the wrong state for them, such as a create of an ID
+ * that another thread has just created, are counted as misses rather than errors, because they are
+ * the normal result of a random mix. Latencies are recorded in a {@link LatencyHistogram} per
+ * operation.
+ * <p>
+ * To run it from the command line, build the test classes and run this class with
+ * <code>name=value</code> arguments named after the setters, for example:
+ * 
+ * <pre>
+ * java -cp target/classes:target/test-classes:commons-io.jar net.jirasystems.filestore.LoadHarness \
+ *     path=/mnt/store threads=32 durationMillis=60000 sizes=LOG_UNIFORM minSize=1024 maxSize=1048576 \
+ *     ids=HOT keyspace=100000 mix=10,60,20,5,5
+ * </pre>
+ * 
+ * The mix is given as the relative weights of create, read, update, delete and exists. Without a
+ * path, a temporary folder is used and deleted afterwards.
+ *
+ * @author david
+ *
+ */
+public class LoadHarness {
+
+	/**
+	 * How content sizes are chosen between the minimum and maximum.
+	 */
+	public enum SizeDistribution {
+		/** Always the minimum size. */
+		FIXED,
+		/** Any size in the range, equally likely. */
+		UNIFORM,
+		/** Equally likely to fall in any power of two in the range, so most objects are small. */
+		LOG_UNIFORM
+	}
+
+	/**
+	 * How IDs are chosen from the keyspace.
+	 */
+	public enum IdPattern {
+		/** Any ID, equally likely. */
+		UNIFORM,
+		/** Nine operations in ten go to the first tenth of the keyspace. */
+		HOT,
+		/** Each thread works through the keyspace in order, from its own starting point. */
+		SEQUENTIAL
+	}
+
+	private static final Operation[] operations = {Operation.CREATE, Operation.READ, Operation.UPDATE,
+			Operation.DELETE, Operation.EXISTS};
+
+	private int threads = 8;
+	private long durationMillis = 10000;
+	private int[] mix = {10, 60, 20, 5, 5};
+	private SizeDistribution sizes = SizeDistribution.LOG_UNIFORM;
+	private int minSize = 1024;
+	private int maxSize = 1024 * 1024;
+	private IdPattern ids = IdPattern.UNIFORM;
+	private int keyspace = 10000;
+	private double preload = 0.5;
+
+	/**
+	 * Runs the harness from the command line. See the class documentation for the arguments.
+	 * 
+	 * @param args
+	 *            <code>name=value</code> settings.
+	 * @throws Exception
+	 *             If the store cannot be set up or an argument is not valid.
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadHarness harness = new LoadHarness();
+		String path = null;
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			}
+			String name = arg.substring(0, equals);
+			String value = arg.substring(equals + 1);
+			switch (name) {
+			case "path":
+				path = value;
+				break;
+			case "threads":
+				harness.setThreads(Integer.parseInt(value));
+				break;
+			case "durationMillis":
+				harness.setDurationMillis(Long.parseLong(value));
+				break;
+			case "mix":
+				String[] weights = value.split(",");
+				int[] mix = new int[weights.length];
+				for (int i = 0; i < weights.length; i++) {
+					mix[i] = Integer.parseInt(weights[i].trim());
+				}
+				harness.setMix(mix);
+				break;
+			case "sizes":
+				harness.setSizes(SizeDistribution.valueOf(value));
+				break;
+			case "minSize":
+				harness.setMinSize(Integer.parseInt(value));
+				break;
+			case "maxSize":
+				harness.setMaxSize(Integer.parseInt(value));
+				break;
+			case "ids":
+				harness.setIds(IdPattern.valueOf(value));
+				break;
+			case "keyspace":
+				harness.setKeyspace(Integer.parseInt(value));
+				break;
+			case "preload":
+				harness.setPreload(Double.parseDouble(value));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown setting: " + name);
+			}
+		}
+
+		File folder = path != null ? new File(path) : FileStoreTestUtils.createTempFolder();
+		FileStore fileStore = new FileStore(folder.getPath());
+		try {
+			System.out.println(harness.run(fileStore));
+		} finally {
+			fileStore.close();
+			if (path == null) {
+				FileStoreTestUtils.deleteFolder(folder);
+			}
+		}
+	}
+
+	/**
+	 * Preloads the store and then runs the load for the configured duration.
+	 * 
+	 * @param fileStore
+	 *            The store to load. IDs that already exist in it are used as they are.
+	 * @return The results.
+	 * @throws IOException
+	 *             If the store cannot be preloaded.
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the threads to finish.
+	 */
+	public Report run(final FileStore fileStore) throws IOException, InterruptedException {
+		if (mix.length != operations.length) {
+			throw new IllegalArgumentException("The mix needs a weight for each of " + operations.length + " operations.");
+		}
+		final byte[] content = new byte[maxSize];
+		new Random(0).nextBytes(content);
+		preload(fileStore, content);
+
+		final Report report = new Report(threads);
+		final long deadline = System.nanoTime() + durationMillis * 1000000L;
+		List<Thread> workers = new ArrayList<Thread>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			final int offset = (int) ((long) keyspace * t / threads);
+			Thread worker = new Thread(() -> work(fileStore, content, report, offset, deadline), "LoadHarness " + t);
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		report.elapsedNanos = System.nanoTime() - start;
+		return report;
+	}
+
+	// --------------- Internal methods --------------- //
+
+	/**
+	 * Creates the preloaded part of the keyspace, skipping IDs that already exist.
+	 */
+	private void preload(FileStore fileStore, byte[] content) throws IOException {
+		int count = (int) (keyspace * preload);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < count; i++) {
+			String id = id(i);
+			if (!fileStore.exists(id)) {
+				try {
+					fileStore.create(id, new ByteArrayInputStream(content, 0, size(random)));
+				} catch (FileStoreException e) {
+					throw new IOException("Unable to preload ID " + id, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Body of each worker thread.
+	 */
+	private void work(FileStore fileStore, byte[] content, Report report, int next, long deadline) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int total = 0;
+		for (int weight : mix) {
+			total += weight;
+		}
+		while (System.nanoTime() < deadline) {
+
+			// Choose the operation:
+			int pick = random.nextInt(total);
+			int o = 0;
+			while (pick >= mix[o]) {
+				pick -= mix[o++];
+			}
+			Operation operation = operations[o];
+
+			// Choose the ID:
+			int index;
+			switch (ids) {
+			case HOT:
+				int hot = Math.max(1, keyspace / 10);
+				index = random.nextInt(10) < 9 ? random.nextInt(hot) : random.nextInt(keyspace);
+				break;
+			case SEQUENTIAL:
+				index = next;
+				next = (next + 1) % keyspace;
+				break;
+			default:
+				index = random.nextInt(keyspace);
+				break;
+			}
+			String id = id(index);
+
+			long start = System.nanoTime();
+			boolean hit;
+			try {
+				hit = perform(fileStore, operation, id, content, random);
+			} catch (FileStoreException e) {
+				// The ID was not in the state this operation needs
+				hit = false;
+			} catch (IOException | RuntimeException e) {
+				report.error(e);
+				hit = false;
+			}
+			report.record(operation, System.nanoTime() - start, hit);
+		}
+	}
+
+	/**
+	 * Performs one operation.
+	 * 
+	 * @return False if the ID was not in the state the operation needs.
+	 */
+	private boolean perform(FileStore fileStore, Operation operation, String id, byte[] content, Random random)
+			throws FileStoreException, IOException {
+		switch (operation) {
+		case CREATE:
+			fileStore.create(id, new ByteArrayInputStream(content, 0, size(random)));
+			return true;
+		case READ:
+			InputStream input = fileStore.read(id);
+			if (input == null) {
+				return false;
+			}
+			try {
+				IOUtils.consume(input);
+			} finally {
+				input.close();
+			}
+			return true;
+		case UPDATE:
+			fileStore.update(id, new ByteArrayInputStream(content, 0, size(random)));
+			return true;
+		case DELETE:
+			return fileStore.delete(id);
+		default:
+			return fileStore.exists(id);
+		}
+	}
+
+	private int size(Random random) {
+		switch (sizes) {
+		case UNIFORM:
+			return minSize + random.nextInt(maxSize - minSize + 1);
+		case LOG_UNIFORM:
+			double low = Math.log(Math.max(minSize, 1));
+			double high = Math.log(maxSize);
+			return (int) Math.min(maxSize, Math.max(minSize, Math.exp(low + random.nextDouble() * (high - low))));
+		default:
+			return minSize;
+		}
+	}
+
+	private static String id(int index) {
+		return String.format("load-%08d", Integer.valueOf(index));
+	}
+
+	/**
+	 * The results of a run.
+	 */
+	public static class Report {
+
+		private final int threads;
+		private final Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(
+				Operation.class);
+		private final Map<Operation, AtomicLong> misses = new EnumMap<Operation, AtomicLong>(Operation.class);
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicReference<Exception> firstError = new AtomicReference<Exception>();
+		private volatile long elapsedNanos;
+
+		Report(int threads) {
+			this.threads = threads;
+			for (Operation operation : operations) {
+				latencies.put(operation, new LatencyHistogram());
+				misses.put(operation, new AtomicLong());
+			}
+		}
+
+		void record(Operation operation, long nanos, boolean hit) {
+			latencies.get(operation).record(nanos);
+			if (!hit) {
+				misses.get(operation).incrementAndGet();
+			}
+		}
+
+		void error(Exception e) {
+			errors.incrementAndGet();
+			firstError.compareAndSet(null, e);
+		}
+
+		/**
+		 * @param operation
+		 *            An operation.
+		 * @return The latencies of the operation, including misses.
+		 */
+		public LatencySnapshot getLatency(Operation operation) {
+			return latencies.get(operation).snapshot();
+		}
+
+		/**
+		 * @param operation
+		 *            An operation.
+		 * @return The number of times the operation found its ID in the wrong state.
+		 */
+		public long getMisses(Operation operation) {
+			return misses.get(operation).get();
+		}
+
+		/**
+		 * @return The number of operations that failed unexpectedly.
+		 */
+		public long getErrors() {
+			return errors.get();
+		}
+
+		/**
+		 * @return The first unexpected failure, or null if there was none.
+		 */
+		public Exception getFirstError() {
+			return firstError.get();
+		}
+
+		/**
+		 * @return The number of operations completed per second, across all threads.
+		 */
+		public double getThroughput() {
+			long count = 0;
+			for (LatencyHistogram latency : latencies.values()) {
+				count += latency.getCount();
+			}
+			return elapsedNanos == 0 ? 0 : count * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder result = new StringBuilder();
+			result.append(String.format("%d threads, %.1fs, %.0f ops/s%n", Integer.valueOf(threads),
+					Double.valueOf(elapsedNanos / 1e9), Double.valueOf(getThroughput())));
+			result.append(String.format("%-8s %10s %10s %10s %10s %10s %10s%n", "op", "count", "misses", "p50 us",
+					"p99 us", "p999 us", "max us"));
+			for (Operation operation : operations) {
+				LatencySnapshot latency = getLatency(operation);
+				result.append(String.format("%-8s %10d %10d %10.1f %10.1f %10.1f %10.1f%n", operation,
+						Long.valueOf(latency.getCount()), Long.valueOf(getMisses(operation)),
+						Double.valueOf(latency.getP50Nanos() / 1e3), Double.valueOf(latency.getP99Nanos() / 1e3),
+						Double.valueOf(latency.getP999Nanos() / 1e3), Double.valueOf(latency.getMaxNanos() / 1e3)));
+			}
+			if (errors.get() > 0) {
+				result.append(errors.get()).append(" errors, the first being: ").append(firstError.get());
+			}
+			return result.toString();
+		}
+	}
+
+	// --------------- Getters and Setters --------------- //
+
+	/**
+	 * @return the threads
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads
+	 *            the threads to set
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @return the durationMillis
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * @param durationMillis
+	 *            the durationMillis to set
+	 */
+	public void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * @return The relative weights of create, read, update, delete and exists.
+	 */
+	public int[] getMix() {
+		return mix.clone();
+	}
+
+	/**
+	 * @param mix
+	 *            The relative weights of create, read, update, delete and exists.
+	 */
+	public void setMix(int... mix) {
+		this.mix = mix.clone();
+	}
+
+	/**
+	 * @return the sizes
+	 */
+	public SizeDistribution getSizes() {
+		return sizes;
+	}
+
+	/**
+	 * @param sizes
+	 *            the sizes to set
+	 */
+	public void setSizes(SizeDistribution sizes) {
+		this.sizes = sizes;
+	}
+
+	/**
+	 * @return the minSize
+	 */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * @param minSize
+	 *            the minSize to set
+	 */
+	public void setMinSize(int minSize) {
+		this.minSize = minSize;
+	}
+
+	/**
+	 * @return the maxSize
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            the maxSize to set
+	 */
+	public void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the ids
+	 */
+	public IdPattern getIds() {
+		return ids;
+	}
+
+	/**
+	 * @param ids
+	 *            the ids to set
+	 */
+	public void setIds(IdPattern ids) {
+		this.ids = ids;
+	}
+
+	/**
+	 * @return the keyspace
+	 */
+	public int getKeyspace() {
+		return keyspace;
+	}
+
+	/**
+	 * @param keyspace
+	 *            the keyspace to set
+	 */
+	public void setKeyspace(int keyspace) {
+		this.keyspace = keyspace;
+	}
+
+	/**
+	 * @return The fraction of the keyspace created before the run starts.
+	 */
+	public double getPreload() {
+		return preload;
+	}
+
+	/**
+	 * @param preload
+	 *            The fraction of the keyspace created before the run starts.
+	 */
+	public void setPreload(double preload) {
+		this.preload = preload;
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class LoadHarnessTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that a short run exercises every operation without unexpected errors, for each ID
+	 * pattern.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testRun() throws Exception {
+		for (LoadHarness.IdPattern ids : LoadHarness.IdPattern.values()) {
+
+			// Given
+			LoadHarness harness = new LoadHarness();
+			harness.setThreads(4);
+			harness.setDurationMillis(300);
+			harness.setKeyspace(200);
+			harness.setMinSize(10);
+			harness.setMaxSize(10000);
+			harness.setIds(ids);
+
+			// When
+			LoadHarness.Report report = harness.run(fileStore);
+
+			// Then
+			assertEquals(String.valueOf(report.getFirstError()), 0, report.getErrors());
+			for (Operation operation : new Operation[] {Operation.CREATE, Operation.READ, Operation.UPDATE,
+					Operation.DELETE, Operation.EXISTS}) {
+				assertTrue(report.toString(), report.getLatency(operation).getCount() > 0);
+			}
+			assertTrue(report.getThroughput() > 0);
+			assertTrue(report.toString().contains("p999"));
+		}
+	}
+}
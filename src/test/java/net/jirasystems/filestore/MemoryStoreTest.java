@@ -0,0 +1,274 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class MemoryStoreTest {
+
+	private MemoryStore memoryStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		memoryStore = new MemoryStore(64, 16, true);
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		memoryStore.close();
+	}
+
+	/**
+	 * Test that the memory store and the file store behave in the same way.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testContract() throws Exception {
+		File tempFolder = FileStoreTestUtils.createTempFolder();
+		FileStore fileStore = new FileStore(tempFolder.getPath());
+		try {
+			checkContract(fileStore);
+			checkContract(memoryStore);
+			checkContract(new MemoryStore(false));
+		} finally {
+			fileStore.close();
+			FileStoreTestUtils.deleteFolder(tempFolder);
+		}
+	}
+
+	/**
+	 * Test that a stream opened before an update or delete continues to see the content as it
+	 * was when the stream was opened.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testSnapshotRead() throws Exception {
+
+		// Given
+		String id = "testSnapshotRead";
+		byte[] original = bytes(1000, 1);
+		memoryStore.create(id, new ByteArrayInputStream(original));
+		InputStream input = memoryStore.read(id);
+
+		// When
+		memoryStore.update(id, new ByteArrayInputStream(bytes(1000, 2)));
+		memoryStore.delete(id);
+		memoryStore.create(id, new ByteArrayInputStream(bytes(2000, 3)));
+
+		// Then
+		assertArrayEquals(original, IOUtils.toByteArray(input));
+		input.close();
+		assertArrayEquals(bytes(2000, 3), read(memoryStore, id));
+	}
+
+	/**
+	 * Test that the pages of deleted and replaced content are reused.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testPageReuse() throws Exception {
+
+		// Given
+		String id = "testPageReuse";
+		memoryStore.create(id, new ByteArrayInputStream(bytes(640, 1)));
+		// An update holds both old and new content until it is swapped in:
+		memoryStore.update(id, new ByteArrayInputStream(bytes(640, 2)));
+		long capacity = memoryStore.getCapacity();
+
+		// When
+		for (int i = 0; i < 100; i++) {
+			memoryStore.update(id, new ByteArrayInputStream(bytes(640, i)));
+		}
+		memoryStore.delete(id);
+
+		// Then
+		assertEquals(capacity, memoryStore.getCapacity());
+		assertEquals(capacity, memoryStore.getFree());
+	}
+
+	/**
+	 * Test that, of several concurrent creates of the same ID, exactly one succeeds, and that
+	 * concurrent readers always see complete content.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testConcurrency() throws Exception {
+
+		// Given
+		final String id = "testConcurrency";
+		final int size = 5000;
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> creates = new ArrayList<Future<Boolean>>();
+
+		// When
+		for (int i = 0; i < 8; i++) {
+			final int value = i;
+			creates.add(executor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					try {
+						memoryStore.create(id, new ByteArrayInputStream(bytes(size, value)));
+						return Boolean.TRUE;
+					} catch (FileStoreException e) {
+						return Boolean.FALSE;
+					}
+				}
+			}));
+		}
+		int successes = 0;
+		for (Future<Boolean> create : creates) {
+			successes += create.get().booleanValue() ? 1 : 0;
+		}
+		List<Future<Void>> tasks = new ArrayList<Future<Void>>();
+		for (int i = 0; i < 8; i++) {
+			final boolean writer = i % 2 == 0;
+			final int value = i;
+			tasks.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int n = 0; n < 200; n++) {
+						if (writer) {
+							memoryStore.update(id, new ByteArrayInputStream(bytes(size, value + n)));
+						} else {
+							byte[] content = read(memoryStore, id);
+							assertEquals(size, content.length);
+							for (byte b : content) {
+								assertEquals(content[0], b);
+							}
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> task : tasks) {
+			task.get();
+		}
+		executor.shutdown();
+
+		// Then
+		assertEquals(1, successes);
+		assertEquals(1, memoryStore.size());
+	}
+
+	private static void checkContract(StorageBackend backend) throws Exception {
+		String id = "contract";
+
+		assertTrue(backend.validId(id));
+		assertFalse(backend.validId("&"));
+		assertFalse(backend.exists(id));
+		assertNull(backend.read(id));
+		try {
+			backend.update(id, new ByteArrayInputStream(new byte[1]));
+			fail("Expected an exception when updating nonexistent ID " + id);
+		} catch (FileStoreException e) {
+			// Expected
+		}
+
+		backend.create(id, new ByteArrayInputStream(bytes(300, 1)));
+		assertTrue(backend.exists(id));
+		assertArrayEquals(bytes(300, 1), read(backend, id));
+		try {
+			backend.create(id, new ByteArrayInputStream(new byte[1]));
+			fail("Expected an exception when creating duplicate ID " + id);
+		} catch (FileStoreException e) {
+			// Expected
+		}
+		try {
+			backend.create(id);
+			fail("Expected an exception when creating duplicate ID " + id);
+		} catch (FileStoreException e) {
+			// Expected
+		}
+
+		backend.update(id, new ByteArrayInputStream(bytes(10, 2)));
+		assertArrayEquals(bytes(10, 2), read(backend, id));
+		OutputStream output = backend.update(id);
+		output.write(bytes(500, 3));
+		output.close();
+		assertArrayEquals(bytes(500, 3), read(backend, id));
+
+		backend.copy(id, "copy");
+		backend.update("copy", new ByteArrayInputStream(bytes(20, 5)));
+		assertArrayEquals(bytes(500, 3), read(backend, id));
+		backend.move("copy", "moved");
+		assertFalse(backend.exists("copy"));
+		assertArrayEquals(bytes(20, 5), read(backend, "moved"));
+		try {
+			backend.copy(id, "moved");
+			fail("Expected an exception when copying to duplicate ID moved");
+		} catch (FileStoreException e) {
+			// Expected
+		}
+		backend.delete("moved");
+
+		assertTrue(backend.delete(id));
+		assertFalse(backend.exists(id));
+		try {
+			backend.delete(id);
+			fail("Expected an exception when deleting nonexistent ID " + id);
+		} catch (FileStoreException e) {
+			// Expected
+		}
+
+		output = backend.create(id);
+		assertTrue(backend.exists(id));
+		output.write(bytes(70, 4));
+		output.close();
+		assertArrayEquals(bytes(70, 4), read(backend, id));
+		backend.delete(id);
+	}
+
+	private static byte[] read(StorageBackend backend, String id) throws Exception {
+		InputStream input = backend.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	private static byte[] bytes(int length, int value) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) value;
+		}
+		return result;
+	}
+}
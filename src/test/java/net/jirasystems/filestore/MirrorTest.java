@@ -0,0 +1,197 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class MirrorTest {
+
+	private File primaryFolder;
+	private File mirrorFolder;
+	private FileStore fileStore;
+	private Mirror mirror;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		primaryFolder = FileStoreTestUtils.createTempFolder();
+		mirrorFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(primaryFolder.getPath());
+		mirror = new Mirror(mirrorFolder.getPath());
+		fileStore.setMirror(mirror);
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(primaryFolder);
+		FileStoreTestUtils.deleteFolder(mirrorFolder);
+	}
+
+	/**
+	 * Test method for {@link Mirror} replication of create, update and delete.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testReplication() throws Exception {
+
+		// Given
+		String id = "testReplication";
+		File content1 = FileStoreTestUtils.generateContent();
+		File content2 = FileStoreTestUtils.generateContent();
+		File mirrored = new File(mirrorFolder, fileStore.idToPath(id));
+
+		// When
+		create(id, content1);
+		assertTrue(mirror.awaitReplication(10, TimeUnit.SECONDS));
+
+		// Then
+		assertTrue(FileUtils.contentEquals(content1, mirrored));
+
+		// When
+		OutputStream output = fileStore.update(id);
+		output.write(FileUtils.readFileToByteArray(content2));
+		output.close();
+		assertTrue(mirror.awaitReplication(10, TimeUnit.SECONDS));
+
+		// Then
+		assertTrue(FileUtils.contentEquals(content2, mirrored));
+
+		// When
+		fileStore.delete(id);
+		assertTrue(mirror.awaitReplication(10, TimeUnit.SECONDS));
+
+		// Then
+		assertFalse(mirrored.exists());
+	}
+
+	/**
+	 * Test that entries left in the queue are replayed when the mirror is attached again.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testReplay() throws Exception {
+
+		// Given
+		String id = "testReplay";
+		File content = FileStoreTestUtils.generateContent();
+		mirror.close();
+		fileStore.setMirror(null);
+
+		// When
+		// Simulate an entry queued before a crash:
+		create(id, content);
+		File queueFile = fileStore.metadataFile(Mirror.queueFileName);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(queueFile, true));
+		out.writeUTF(id);
+		out.write(0); // A torn entry
+		out.close();
+		mirror = new Mirror(mirrorFolder.getPath());
+		fileStore.setMirror(mirror);
+
+		// Then
+		assertTrue(mirror.awaitReplication(10, TimeUnit.SECONDS));
+		assertTrue(FileUtils.contentEquals(content, new File(mirrorFolder, fileStore.idToPath(id))));
+		assertEquals(0, queueFile.length());
+	}
+
+	/**
+	 * Test method for {@link Mirror#check(int, boolean)} and {@link Mirror#repair(Mirror.Report)}.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testCheckAndRepair() throws Exception {
+
+		// Given
+		create("checkMissing", FileStoreTestUtils.generateContent());
+		create("checkDifferent", FileStoreTestUtils.generateContent());
+		create("checkExtra", FileStoreTestUtils.generateContent());
+		assertTrue(mirror.awaitReplication(10, TimeUnit.SECONDS));
+		assertTrue(mirror.check(4, true).isConsistent());
+
+		// When
+		new File(mirrorFolder, fileStore.idToPath("checkMissing")).delete();
+		FileUtils.writeByteArrayToFile(new File(mirrorFolder, fileStore.idToPath("checkDifferent")), new byte[] {1});
+		File extra = new File(mirrorFolder, fileStore.idToPath("checkExtraOnly"));
+		FileUtils.writeByteArrayToFile(extra, new byte[] {1});
+		Mirror.Report report = mirror.check(4, true);
+
+		// Then
+		assertEquals(Arrays.asList("checkMissing"), report.getMissing());
+		assertEquals(Arrays.asList("checkDifferent"), report.getDifferent());
+		assertEquals(Arrays.asList("checkExtraOnly"), report.getExtra());
+
+		// When
+		mirror.repair(report);
+		assertTrue(mirror.awaitReplication(10, TimeUnit.SECONDS));
+
+		// Then
+		assertTrue(mirror.check(4, true).isConsistent());
+		assertFalse(extra.exists());
+	}
+
+	/**
+	 * Test that an enqueue interrupted before the entry is queued does not leave replication
+	 * waiting for it.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testInterruptedEnqueue() throws Exception {
+
+		// Given
+		Thread.currentThread().interrupt();
+
+		// When
+		boolean interrupted = false;
+		try {
+			mirror.enqueue("testInterruptedEnqueue");
+		} catch (InterruptedIOException e) {
+			interrupted = Thread.interrupted();
+		}
+
+		// Then
+		assertTrue(interrupted);
+		assertTrue(mirror.awaitReplication(1, TimeUnit.SECONDS));
+	}
+
+	private void create(String id, File content) throws IOException, FileStoreException {
+		InputStream input = new FileInputStream(content);
+		try {
+			fileStore.create(id, input);
+		} finally {
+			input.close();
+		}
+	}
+}
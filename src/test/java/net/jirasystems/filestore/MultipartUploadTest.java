@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class MultipartUploadTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that parts written concurrently and out of order are assembled in order, and that the
+	 * object only appears once the upload is committed.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testParallelParts() throws Exception {
+
+		// Given
+		final int partSize = 100000;
+		final byte[] content = new byte[7 * partSize + 1234];
+		new Random(0).nextBytes(content);
+		final MultipartUpload upload = fileStore.beginUpload("large", partSize);
+
+		// When
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<Long>> writes = new ArrayList<Future<Long>>();
+		try {
+			for (int part = 8; part >= 1; part--) {
+				final int partNumber = part;
+				writes.add(pool.submit(() -> {
+					int offset = (partNumber - 1) * partSize;
+					int length = Math.min(partSize, content.length - offset);
+					return Long.valueOf(upload.writePart(partNumber,
+							new ByteArrayInputStream(content, offset, length)));
+				}));
+			}
+			for (Future<Long> write : writes) {
+				write.get();
+			}
+		} finally {
+			pool.shutdown();
+		}
+		boolean existsBeforeCommit = fileStore.exists("large");
+		long size = upload.commit();
+
+		// Then
+		assertFalse(existsBeforeCommit);
+		assertEquals(content.length, size);
+		assertArrayEquals(content, read("large"));
+		assertEquals(0, tempFiles());
+	}
+
+	/**
+	 * Test that a commit with a missing part fails, leaving nothing behind.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testMissingPart() throws Exception {
+
+		// Given
+		MultipartUpload upload = fileStore.beginUpload("id", 10);
+		upload.writePart(1, new ByteArrayInputStream(new byte[10]));
+		upload.writePart(3, new ByteArrayInputStream(new byte[5]));
+
+		// When
+		try {
+			upload.commit();
+			fail("Expected the commit to fail.");
+		} catch (FileStoreException e) {
+			// Expected
+		}
+
+		// Then
+		assertNull(fileStore.read("id"));
+		assertEquals(0, tempFiles());
+	}
+
+	/**
+	 * Test that a part longer than the part size is refused, and that it can be written again.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testRewritePart() throws Exception {
+
+		// Given
+		MultipartUpload upload = fileStore.beginUpload("id", 2);
+
+		// When
+		boolean refused = false;
+		try {
+			upload.writePart(1, new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		} catch (FileStoreException e) {
+			refused = true;
+		}
+		upload.writePart(1, new ByteArrayInputStream(new byte[] {1, 2}));
+		upload.writePart(2, new ByteArrayInputStream(new byte[] {3, 4}));
+		upload.writePart(2, new ByteArrayInputStream(new byte[] {3}));
+		upload.commit();
+
+		// Then
+		assertTrue(refused);
+		assertArrayEquals(new byte[] {1, 2, 3}, read("id"));
+	}
+
+	/**
+	 * Test that an aborted upload is cleaned up, and that an upload to an ID created in the
+	 * meantime fails.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testAbortAndDuplicate() throws Exception {
+
+		// Given
+		MultipartUpload aborted = fileStore.beginUpload("a", 10);
+		aborted.writePart(1, new ByteArrayInputStream(new byte[3]));
+		MultipartUpload duplicate = fileStore.beginUpload("b", 10);
+		duplicate.writePart(1, new ByteArrayInputStream(new byte[3]));
+		fileStore.create("b", new ByteArrayInputStream(new byte[] {9}));
+
+		// When
+		aborted.close();
+		boolean refused = false;
+		try {
+			duplicate.commit();
+		} catch (FileStoreException e) {
+			refused = true;
+		}
+
+		// Then
+		assertNull(fileStore.read("a"));
+		assertTrue(refused);
+		assertArrayEquals(new byte[] {9}, read("b"));
+		assertEquals(0, tempFiles());
+	}
+
+	/**
+	 * Test that an upload abandoned without being committed or closed is cleared away when a store
+	 * is next opened on the base path, once it is stale, while a recent one is left alone.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testStaleUploadCleared() throws Exception {
+
+		// Given
+		fileStore.beginUpload("stale", 10).writePart(1, new ByteArrayInputStream(new byte[3]));
+		File[] files = new File(new File(tempFolder, FileStore.metadataFolder), "tmp").listFiles();
+		assertEquals(1, files.length);
+		assertTrue(files[0].setLastModified(System.currentTimeMillis() - FileStore.staleTempMillis - 1000));
+		fileStore.beginUpload("recent", 10).writePart(1, new ByteArrayInputStream(new byte[3]));
+
+		// When
+		FileStore reopened = new FileStore(tempFolder.getPath());
+
+		// Then
+		assertFalse(files[0].exists());
+		assertEquals(1, tempFiles());
+		reopened.close();
+	}
+
+	private int tempFiles() {
+		String[] names = new File(new File(tempFolder, FileStore.metadataFolder), "tmp").list();
+		return names != null ? names.length : 0;
+	}
+
+	private byte[] read(String id) throws Exception {
+		InputStream input = fileStore.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
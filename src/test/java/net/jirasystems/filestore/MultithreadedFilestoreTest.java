@@ -11,7 +11,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -43,6 +46,7 @@ public class MultithreadedFilestoreTest {
 	 */
 	@AfterClass
 	public static void tearDownAfterClass() throws Exception {
+		fileStore.close();
 		FileStoreTestUtils.deleteFolder(tempFolder);
 	}
 
@@ -60,35 +64,44 @@ public class MultithreadedFilestoreTest {
 	// public void tearDown() throws Exception {
 	// }
 
-	private Exception exception;
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
 
 	/**
-	 * Test method for trying out multi-threaded access to the file store.
+	 * Test method for trying out multi-threaded access to the file store. Every thread is waited
+	 * for, and the first failure in any of them, including a failed assertion, fails the test.
+	 * 
+	 * @throws InterruptedException
+	 *             If interrupted while waiting for the threads.
 	 */
 	@Test
-	public void testMultipleThreads() {
+	public void testMultipleThreads() throws InterruptedException {
 
 		final int trials = 500;
 
+		List<Thread> threads = new ArrayList<Thread>();
 		for (int i = 0; i < trials; i++) {
 			Runnable runnable = new Runnable() {
 
 				public void run() {
 					try {
 						testCreateUpdateDelete();
-					} catch (Exception e) {
-						exception = e;
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
 					}
 				}
 			};
 			Thread thread = new Thread(runnable);
 			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
 		}
 
-		if (exception != null) {
-			exception.printStackTrace();
+		if (failure.get() != null) {
+			failure.get().printStackTrace();
 		}
-		assertNull(exception);
+		assertNull(failure.get());
 	}
 
 	/**
@@ -107,26 +120,32 @@ public class MultithreadedFilestoreTest {
 		File contentStart = FileStoreTestUtils.generateContent();
 		File contentUpdated = FileStoreTestUtils.generateContent();
 
-		// Create stage
-		InputStream create = new FileInputStream(contentStart);
-		fileStore.create(id, create);
-		create.close();
-		InputStream a = new FileInputStream(contentStart);
-		InputStream b = fileStore.read(id);
-		assertTrue(fileStore.exists(id));
-		assertTrue(FileStoreTestUtils.compareContent(a, b));
-
-		// Update stage
-		InputStream update = new FileInputStream(contentUpdated);
-		fileStore.update(id, update);
-		update.close();
-		a = new FileInputStream(contentUpdated);
-		b = fileStore.read(id);
-		assertTrue(fileStore.exists(id));
-		assertTrue(FileStoreTestUtils.compareContent(a, b));
-
-		// delete stage
-		fileStore.delete(id);
-		assertFalse(fileStore.exists(id));
+		try {
+
+			// Create stage
+			try (InputStream create = new FileInputStream(contentStart)) {
+				fileStore.create(id, create);
+			}
+			assertTrue(fileStore.exists(id));
+			try (InputStream a = new FileInputStream(contentStart); InputStream b = fileStore.read(id)) {
+				assertTrue(FileStoreTestUtils.compareContent(a, b));
+			}
+
+			// Update stage
+			try (InputStream update = new FileInputStream(contentUpdated)) {
+				fileStore.update(id, update);
+			}
+			assertTrue(fileStore.exists(id));
+			try (InputStream a = new FileInputStream(contentUpdated); InputStream b = fileStore.read(id)) {
+				assertTrue(FileStoreTestUtils.compareContent(a, b));
+			}
+
+			// delete stage
+			fileStore.delete(id);
+			assertFalse(fileStore.exists(id));
+		} finally {
+			contentStart.delete();
+			contentUpdated.delete();
+		}
 	}
 }
@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class ParallelReadTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+	private byte[] content;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+		content = new byte[5 * BufferPool.defaultDirectBufferSize + 12345];
+		new Random(0).nextBytes(content);
+		fileStore.create("large", new ByteArrayInputStream(content));
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that a stream of ranges read concurrently is reassembled in order.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testStream() throws Exception {
+
+		// Given
+		byte[] read;
+
+		// When
+		InputStream input = fileStore.readParallel("large", 4);
+		try {
+			read = IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+
+		// Then
+		assertArrayEquals(content, read);
+		assertNull(fileStore.readParallel("missing", 4));
+	}
+
+	/**
+	 * Test that ranges are passed to a consumer in order.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testConsumer() throws Exception {
+
+		// Given
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		// When
+		long read = fileStore.readParallel("large", 3, buffer -> {
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			output.write(bytes, 0, bytes.length);
+		});
+
+		// Then
+		assertEquals(content.length, read);
+		assertArrayEquals(content, output.toByteArray());
+		assertEquals(-1, fileStore.readParallel("missing", 3, buffer -> {
+			// Not called
+		}));
+	}
+
+	/**
+	 * Test that small files and content held in the write-behind buffer are read.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testSmall() throws Exception {
+
+		// Given
+		fileStore.create("small", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		fileStore.setWriteBehindBytes(1000);
+		fileStore.create("buffered", new ByteArrayInputStream(new byte[] {4, 5}));
+
+		// When
+		byte[] small = read("small");
+		byte[] buffered = read("buffered");
+
+		// Then
+		assertArrayEquals(new byte[] {1, 2, 3}, small);
+		assertArrayEquals(new byte[] {4, 5}, buffered);
+	}
+
+	private byte[] read(String id) throws Exception {
+		InputStream input = fileStore.readParallel(id, 2);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class PrefetchTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+		for (int i = 0; i < 10; i++) {
+			fileStore.create("id" + i, new ByteArrayInputStream(new byte[1000]));
+		}
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that existing IDs are prefetched and missing ones skipped, and that reads are unaffected.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testPrefetch() throws Exception {
+
+		// Given
+		fileStore.setPrefetchBytes(1024 * 1024);
+
+		// When
+		int queued = fileStore.prefetch(Arrays.asList("id1", "id2", "missing", "id3"));
+
+		// Then
+		assertEquals(3, queued);
+		InputStream input = fileStore.read("id2");
+		try {
+			assertArrayEquals(new byte[1000], IOUtils.toByteArray(input));
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Test that files that would take the bytes outstanding over the cap are skipped.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testCap() throws Exception {
+
+		// Given
+		fileStore.setPrefetchBytes(500);
+		fileStore.create("small", new ByteArrayInputStream(new byte[100]));
+
+		// When
+		int large = fileStore.prefetch(Collections.singletonList("id0"));
+		int small = fileStore.prefetch(Collections.singletonList("small"));
+
+		// Then
+		assertEquals(0, large);
+		assertEquals(1, small);
+	}
+
+	/**
+	 * Test that prefetching must be enabled, and can be disabled again.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testDisabled() throws Exception {
+
+		// Given
+		boolean refused = false;
+
+		// When
+		try {
+			fileStore.prefetch(Collections.singletonList("id0"));
+		} catch (IllegalStateException e) {
+			refused = true;
+		}
+		fileStore.setPrefetchBytes(1000);
+		fileStore.setPrefetchBytes(0);
+
+		// Then
+		assertTrue(refused);
+		assertEquals(0, fileStore.getPrefetchBytes());
+	}
+}
@@ -0,0 +1,194 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class ReactiveTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+	private byte[] content;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+		content = new byte[5 * fileStore.getBufferPool().getDirectBufferSize() + 123];
+		new Random(0).nextBytes(content);
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that the content of a file is published in order, and no faster than it is requested.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testReadPublisher() throws Exception {
+
+		// Given
+		fileStore.create("id", new ByteArrayInputStream(content));
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		final AtomicLong outstanding = new AtomicLong();
+		final AtomicLong overflow = new AtomicLong();
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		// When
+		fileStore.readPublisher("id").subscribe(new Flow.Subscriber<ByteBuffer>() {
+
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				outstanding.incrementAndGet();
+				subscription.request(1);
+			}
+
+			@Override
+			public void onNext(ByteBuffer item) {
+				if (outstanding.decrementAndGet() < 0) {
+					overflow.incrementAndGet();
+				}
+				received.write(item.array(), item.arrayOffset() + item.position(), item.remaining());
+				outstanding.incrementAndGet();
+				subscription.request(1);
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				done.completeExceptionally(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				done.complete(null);
+			}
+		});
+		done.get(10, TimeUnit.SECONDS);
+
+		// Then
+		assertArrayEquals(content, received.toByteArray());
+		assertEquals(0, overflow.get());
+		assertNull(fileStore.readPublisher("missing"));
+	}
+
+	/**
+	 * Test that content published to a subscriber is stored under the ID, and that a file can be
+	 * copied by subscribing one to the publisher of another.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testWriteSubscriber() throws Exception {
+
+		// Given
+		ContentSubscriber create = fileStore.createSubscriber("id");
+		boolean existsWhileWriting;
+
+		// When
+		try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>()) {
+			publisher.subscribe(create);
+			for (int offset = 0; offset < content.length; offset += 10000) {
+				publisher.submit(ByteBuffer.wrap(content, offset, Math.min(10000, content.length - offset)));
+			}
+			existsWhileWriting = fileStore.exists("id");
+		}
+		long written = create.getResult().get(10, TimeUnit.SECONDS).longValue();
+		fileStore.create("copy", new ByteArrayInputStream(new byte[] {1}));
+		ContentSubscriber update = fileStore.updateSubscriber("copy");
+		fileStore.readPublisher("id").subscribe(update);
+		update.getResult().get(10, TimeUnit.SECONDS);
+
+		// Then
+		assertTrue(existsWhileWriting);
+		assertEquals(content.length, written);
+		assertArrayEquals(content, read("id"));
+		assertArrayEquals(content, read("copy"));
+	}
+
+	/**
+	 * Test that a failed publisher leaves no file behind for a create, and the previous content for
+	 * an update.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testPublisherError() throws Exception {
+
+		// Given
+		fileStore.create("existing", new ByteArrayInputStream(new byte[] {1}));
+		ContentSubscriber create = fileStore.createSubscriber("new");
+		ContentSubscriber update = fileStore.updateSubscriber("existing");
+
+		// When
+		for (ContentSubscriber subscriber : new ContentSubscriber[] {create, update}) {
+			try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<ByteBuffer>()) {
+				publisher.subscribe(subscriber);
+				publisher.submit(ByteBuffer.wrap(new byte[] {2, 3}));
+				publisher.closeExceptionally(new IOException("Upstream failure"));
+			}
+		}
+
+		// Then
+		for (ContentSubscriber subscriber : new ContentSubscriber[] {create, update}) {
+			try {
+				subscriber.getResult().get(10, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				assertEquals("Upstream failure", e.getCause().getMessage());
+			}
+			assertTrue(subscriber.getResult().isCompletedExceptionally());
+		}
+		assertFalse(fileStore.exists("new"));
+		assertArrayEquals(new byte[] {1}, read("existing"));
+	}
+
+	private byte[] read(String id) throws Exception {
+		InputStream input = fileStore.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collection;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class RelayoutTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+		for (int i = 0; i < 200; i++) {
+			fileStore.create("id" + i, new ByteArrayInputStream(new byte[] {(byte) i}));
+		}
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that files are moved to a new chunk size and extension, and that the store can be used
+	 * while they are being moved.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testRelayout() throws Exception {
+
+		// Given
+		fileStore.setIdChunkSize(3);
+		fileStore.setExtension(".dat");
+
+		// When
+		fileStore.relayout(FileStore.defaultIdChunkSize, FileStore.defaultFileExtension);
+		byte[] read = read("id150");
+		boolean exists = fileStore.exists("id199");
+		fileStore.update("id100", new ByteArrayInputStream(new byte[] {1, 2, 3}));
+		fileStore.delete("id101");
+		boolean duplicate = false;
+		try {
+			fileStore.create("id102", new ByteArrayInputStream(new byte[0]));
+		} catch (FileStoreException e) {
+			duplicate = true;
+		}
+		awaitRelayout();
+
+		// Then
+		assertArrayEquals(new byte[] {(byte) 150}, read);
+		assertTrue(exists);
+		assertTrue(duplicate);
+		assertArrayEquals(new byte[] {1, 2, 3}, read("id100"));
+		assertNull(fileStore.read("id101"));
+		assertEquals(200, fileStore.getRelayoutMoved());
+		assertEquals(0, files(FileStore.defaultFileExtension));
+		assertEquals(199, files(".dat"));
+		for (int i = 0; i < 200; i++) {
+			assertEquals(i != 101, fileStore.idToFile("id" + i).isFile());
+		}
+	}
+
+	/**
+	 * Test that a relayout left unfinished is resumed, and that files already in the new layout
+	 * are left alone when only the chunk size changes.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testResume() throws Exception {
+
+		// Given
+		// An unfinished relayout, as left by a crash:
+		new Relayout(fileStore, fileStore.metadataFile("relayout"), 2, FileStore.defaultFileExtension, 0).close();
+		fileStore.close();
+		fileStore = new FileStore(tempFolder.getPath());
+		fileStore.setIdChunkSize(1);
+		fileStore.create("new", new ByteArrayInputStream(new byte[] {9}));
+
+		// When
+		boolean resumed = fileStore.resumeRelayout();
+		awaitRelayout();
+
+		// Then
+		assertTrue(resumed);
+		assertFalse(fileStore.resumeRelayout());
+		assertEquals(200, fileStore.getRelayoutMoved());
+		assertArrayEquals(new byte[] {9}, read("new"));
+		for (int i = 0; i < 200; i++) {
+			assertArrayEquals(new byte[] {(byte) i}, read("id" + i));
+			assertTrue(fileStore.idToFile("id" + i).isFile());
+		}
+	}
+
+	/**
+	 * Test that only one relayout can run at a time.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testOneAtATime() throws Exception {
+
+		// Given
+		new Relayout(fileStore, fileStore.metadataFile("relayout"), 2, FileStore.defaultFileExtension, 0).close();
+		fileStore.setIdChunkSize(4);
+		fileStore.resumeRelayout();
+
+		// When
+		try {
+			fileStore.relayout(3, FileStore.defaultFileExtension);
+			if (fileStore.isRelayoutInProgress()) {
+				fail("Expected the second relayout to be refused.");
+			}
+		} catch (IllegalStateException e) {
+			// Expected, unless the first had already finished
+		}
+
+		// Then
+		awaitRelayout();
+	}
+
+	private void awaitRelayout() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (fileStore.isRelayoutInProgress() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertFalse(fileStore.isRelayoutInProgress());
+		assertFalse(fileStore.metadataFile("relayout").exists());
+	}
+
+	private int files(String extension) {
+		Collection<File> files = FileUtils.listFiles(tempFolder, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE);
+		int count = 0;
+		for (File file : files) {
+			if (file.getName().endsWith(extension) && !file.getPath().contains(FileStore.metadataFolder)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private byte[] read(String id) throws Exception {
+		InputStream input = fileStore.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
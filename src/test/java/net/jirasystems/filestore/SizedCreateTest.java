@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class SizedCreateTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that content of the expected size, larger than the write buffer, is written in full.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testExpectedSize() throws Exception {
+
+		// Given
+		byte[] content = new byte[BufferPool.defaultDirectBufferSize * 2 + 100];
+		new Random(0).nextBytes(content);
+
+		// When
+		fileStore.create("large", new ByteArrayInputStream(content), content.length);
+		fileStore.create("small", new ByteArrayInputStream(new byte[] {1, 2}), 2);
+		fileStore.create("empty", new ByteArrayInputStream(new byte[0]), 0);
+
+		// Then
+		assertArrayEquals(content, read("large"));
+		assertArrayEquals(new byte[] {1, 2}, read("small"));
+		assertEquals(0, fileStore.idToFile("empty").length());
+	}
+
+	/**
+	 * Test that content shorter or longer than expected fails the create and leaves the ID free,
+	 * whether or not the store is journaled.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testWrongSize() throws Exception {
+
+		// Given
+		byte[] content = new byte[10000];
+		new Random(1).nextBytes(content);
+
+		// When
+		boolean shortFailed = failsToCreate("short", content, 50000);
+		boolean longFailed = failsToCreate("long", content, 10);
+		boolean largeFailed = failsToCreate("large", new byte[BufferPool.defaultDirectBufferSize * 3], 100000);
+		fileStore.setJournaled(true);
+		boolean journaledFailed = failsToCreate("journaled", content, 10001);
+
+		// Then
+		assertTrue(shortFailed);
+		assertTrue(longFailed);
+		assertTrue(largeFailed);
+		assertTrue(journaledFailed);
+		assertFalse(fileStore.exists("short"));
+		assertFalse(fileStore.exists("long"));
+		assertFalse(fileStore.exists("large"));
+		assertFalse(fileStore.exists("journaled"));
+		fileStore.create("short", new ByteArrayInputStream(content), content.length);
+		assertArrayEquals(content, read("short"));
+	}
+
+	/**
+	 * Test that a sized create is journaled, and that a duplicate is refused.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testJournaled() throws Exception {
+
+		// Given
+		fileStore.setJournaled(true);
+
+		// When
+		fileStore.create("id", new ByteArrayInputStream(new byte[] {7, 8, 9}), 3);
+		boolean duplicate = false;
+		try {
+			fileStore.create("id", new ByteArrayInputStream(new byte[] {1}), 1);
+		} catch (FileStoreException e) {
+			duplicate = true;
+		}
+
+		// Then
+		assertTrue(duplicate);
+		assertArrayEquals(new byte[] {7, 8, 9}, read("id"));
+	}
+
+	private boolean failsToCreate(String id, byte[] content, long expectedSize) {
+		try {
+			fileStore.create(id, new ByteArrayInputStream(content), expectedSize);
+			return false;
+		} catch (FileStoreException e) {
+			return true;
+		}
+	}
+
+	private byte[] read(String id) throws Exception {
+		InputStream input = fileStore.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class SnapshotTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test method for {@link FileStore#snapshot(String)}, checking that the snapshot keeps its
+	 * content whichever way the store is changed afterwards.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testSnapshot() throws Exception {
+
+		// Given
+		for (int i = 0; i < 50; i++) {
+			fileStore.create("id" + i, new ByteArrayInputStream(new byte[] {(byte) i}));
+		}
+
+		// When
+		fileStore.snapshot("first");
+		boolean shared = linkCount("id1") == 2;
+		fileStore.update("id1", new ByteArrayInputStream(new byte[] {101}));
+		OutputStream output = fileStore.update("id2");
+		output.write(102);
+		output.close();
+		fileStore.delete("id3");
+		fileStore.create("new", new ByteArrayInputStream(new byte[] {103}));
+
+		// Then
+		assertTrue(shared || !isUnix());
+		for (int i = 0; i < 50; i++) {
+			assertArrayEquals(new byte[] {(byte) i}, readSnapshot("first", "id" + i));
+		}
+		assertNull(fileStore.readSnapshot("first", "new"));
+		assertArrayEquals(new byte[] {101}, read("id1"));
+		assertArrayEquals(new byte[] {102}, read("id2"));
+		assertFalse(fileStore.exists("id3"));
+	}
+
+	/**
+	 * Test listing and deleting snapshots, and that deleting a snapshot leaves the store alone.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testListAndDelete() throws Exception {
+
+		// Given
+		fileStore.create("a", new ByteArrayInputStream(new byte[] {1}));
+		fileStore.snapshot("second");
+		fileStore.snapshot("first");
+
+		// When
+		try {
+			fileStore.snapshot("first");
+			fail("Expected a duplicate snapshot to fail.");
+		} catch (FileStoreException e) {
+			// Expected
+		}
+		fileStore.deleteSnapshot("second");
+
+		// Then
+		assertEquals(Arrays.asList("first"), fileStore.getSnapshots());
+		assertNull(fileStore.readSnapshot("second", "a"));
+		assertArrayEquals(new byte[] {1}, readSnapshot("first", "a"));
+		assertArrayEquals(new byte[] {1}, read("a"));
+		try {
+			fileStore.deleteSnapshot("second");
+			fail("Expected deleting a missing snapshot to fail.");
+		} catch (FileStoreException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Test that a snapshot includes changes held in the write-behind buffer, and that a stream
+	 * still open when the snapshot is taken does not change the snapshot.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testPendingChanges() throws Exception {
+
+		// Given
+		fileStore.create("streamed", new ByteArrayInputStream(new byte[] {1}));
+		OutputStream output = fileStore.update("streamed");
+		output.write(2);
+		output.flush();
+		fileStore.setWriteBehindBytes(1000);
+		fileStore.create("buffered", new ByteArrayInputStream(new byte[] {3}));
+
+		// When
+		fileStore.snapshot("snapshot");
+		output.close();
+
+		// Then
+		assertArrayEquals(new byte[] {1}, readSnapshot("snapshot", "streamed"));
+		assertArrayEquals(new byte[] {3}, readSnapshot("snapshot", "buffered"));
+		assertArrayEquals(new byte[] {2}, read("streamed"));
+	}
+
+	/**
+	 * Test that changes made while a snapshot is being built leave the snapshot with the content
+	 * from the point in time at which it was started.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testChangesDuringCapture() throws Exception {
+
+		// Given
+		fileStore.create("updated", new ByteArrayInputStream(new byte[] {1}));
+		fileStore.create("deleted", new ByteArrayInputStream(new byte[] {2}));
+		File folder = new File(tempFolder, "capture");
+		SnapshotCapture capture = new SnapshotCapture(fileStore, folder);
+
+		// When
+		// Each change captures the ID first, as the store does, and the walk comes afterwards:
+		capture.capture("updated", fileStore.idToFile("updated"));
+		fileStore.update("updated", new ByteArrayInputStream(new byte[] {3}));
+		capture.capture("deleted", fileStore.idToFile("deleted"));
+		fileStore.delete("deleted");
+		capture.capture("created", fileStore.idToFile("created"));
+		fileStore.create("created", new ByteArrayInputStream(new byte[] {4}));
+		for (String id : Arrays.asList("updated", "created")) {
+			capture.visit(id, fileStore.idToFile(id));
+		}
+
+		// Then
+		assertArrayEquals(new byte[] {1}, Files.readAllBytes(new File(folder, fileStore.idToPath("updated")).toPath()));
+		assertArrayEquals(new byte[] {2}, Files.readAllBytes(new File(folder, fileStore.idToPath("deleted")).toPath()));
+		assertFalse(new File(folder, fileStore.idToPath("created")).exists());
+		assertArrayEquals(new byte[] {3}, read("updated"));
+	}
+
+	private byte[] read(String id) throws IOException {
+		return toByteArray(fileStore.read(id));
+	}
+
+	private byte[] readSnapshot(String name, String id) throws IOException {
+		return toByteArray(fileStore.readSnapshot(name, id));
+	}
+
+	private static byte[] toByteArray(InputStream input) throws IOException {
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	private int linkCount(String id) throws IOException {
+		if (!isUnix()) {
+			return 1;
+		}
+		return ((Integer) Files.getAttribute(fileStore.idToNioPath(id), "unix:nlink")).intValue();
+	}
+
+	private boolean isUnix() {
+		return tempFolder.toPath().getFileSystem().supportedFileAttributeViews().contains("unix");
+	}
+}
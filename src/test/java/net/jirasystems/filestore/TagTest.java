@@ -0,0 +1,235 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class TagTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that a tag is returned for an existing ID and changes when the ID is updated.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testTag() throws Exception {
+
+		// Given
+		fileStore.create("id", new ByteArrayInputStream(new byte[] {1}));
+
+		// When
+		String tag = fileStore.getTag("id");
+		String unchanged = fileStore.getTag("id");
+		OutputStream output = fileStore.update("id");
+		output.write(2);
+		output.close();
+		String updated = fileStore.getTag("id");
+
+		// Then
+		assertNotNull(tag);
+		assertEquals(tag, unchanged);
+		assertNotEquals(tag, updated);
+		assertNull(fileStore.getTag("missing"));
+	}
+
+	/**
+	 * Test that a plain update with content of the same size, straight after the create, still
+	 * changes the tag.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testSameSizeUpdate() throws Exception {
+
+		// Given
+		fileStore.create("id", new ByteArrayInputStream(new byte[] {1}));
+		String tag = fileStore.getTag("id");
+
+		// When
+		fileStore.update("id", new ByteArrayInputStream(new byte[] {2}));
+
+		// Then
+		assertNotEquals(tag, fileStore.getTag("id"));
+		assertArrayEquals(new byte[] {2}, read("id"));
+	}
+
+	/**
+	 * Test that an update with the current tag succeeds and that one with a stale tag is refused,
+	 * leaving the content alone.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testConditionalUpdate() throws Exception {
+
+		// Given
+		fileStore.create("id", new ByteArrayInputStream(new byte[] {1}));
+		String stale = fileStore.getTag("id");
+
+		// When
+		String tag = fileStore.update("id", new ByteArrayInputStream(new byte[] {2}), stale);
+		TagMismatchException mismatch = null;
+		try {
+			fileStore.update("id", new ByteArrayInputStream(new byte[] {3}), stale);
+		} catch (TagMismatchException e) {
+			mismatch = e;
+		}
+
+		// Then
+		assertEquals(fileStore.getTag("id"), tag);
+		assertNotNull(mismatch);
+		assertEquals(stale, mismatch.getExpectedTag());
+		assertEquals(tag, mismatch.getCurrentTag());
+		assertArrayEquals(new byte[] {2}, read("id"));
+		assertEquals(0, tempFolder.toPath().resolve(FileStore.metadataFolder).resolve("tmp").toFile().list().length);
+	}
+
+	/**
+	 * Test that a null tag creates an ID only if it does not exist, and that an ID that has been
+	 * deleted no longer matches its tag.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testConditionalCreate() throws Exception {
+
+		// Given
+		String tag = fileStore.update("id", new ByteArrayInputStream(new byte[] {1}), null);
+
+		// When
+		boolean duplicate = false;
+		try {
+			fileStore.update("id", new ByteArrayInputStream(new byte[] {2}), null);
+		} catch (TagMismatchException e) {
+			duplicate = true;
+		}
+		fileStore.delete("id");
+		boolean deleted = false;
+		try {
+			fileStore.update("id", new ByteArrayInputStream(new byte[] {3}), tag);
+		} catch (TagMismatchException e) {
+			deleted = true;
+		}
+
+		// Then
+		assertNotNull(tag);
+		assertEquals(true, duplicate);
+		assertEquals(true, deleted);
+		assertNull(fileStore.read("id"));
+	}
+
+	/**
+	 * Test that concurrent writers retrying on a mismatch lose no updates, with and without
+	 * journaling.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testConcurrentWriters() throws Exception {
+		counter();
+		fileStore.delete("counter");
+		fileStore.setJournaled(true);
+		counter();
+	}
+
+	private void counter() throws Exception {
+
+		// Given
+		fileStore.update("counter", new ByteArrayInputStream("0".getBytes(StandardCharsets.UTF_8)), null);
+		final int threads = 4;
+		final int increments = 25;
+		final AtomicInteger mismatches = new AtomicInteger();
+		final List<Throwable> errors = new ArrayList<Throwable>();
+
+		// When
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			Thread writer = new Thread(() -> {
+				try {
+					for (int i = 0; i < increments; i++) {
+						while (true) {
+							String tag = fileStore.getTag("counter");
+							int value = Integer.parseInt(new String(read("counter"), StandardCharsets.UTF_8));
+							try {
+								fileStore.update("counter", new ByteArrayInputStream(
+										String.valueOf(value + 1).getBytes(StandardCharsets.UTF_8)), tag);
+								break;
+							} catch (TagMismatchException e) {
+								mismatches.incrementAndGet();
+							}
+						}
+					}
+				} catch (Throwable e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				}
+			});
+			writer.start();
+			writers.add(writer);
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		// Then
+		if (!errors.isEmpty()) {
+			fail(errors.get(0).toString());
+		}
+		assertEquals(String.valueOf(threads * increments), new String(read("counter"), StandardCharsets.UTF_8));
+	}
+
+	private byte[] read(String id) throws Exception {
+		InputStream input = fileStore.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class UsageTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that every kind of change adjusts the running totals.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testTotals() throws Exception {
+
+		// Given
+		enableUsage();
+
+		// When
+		fileStore.create("a", new ByteArrayInputStream(new byte[3]));
+		fileStore.create("b", new ByteArrayInputStream(new byte[5]));
+		OutputStream output = fileStore.create("c");
+		output.write(new byte[2]);
+		output.close();
+		fileStore.update("a", new ByteArrayInputStream(new byte[10]));
+		output = fileStore.update("b");
+		output.write(1);
+		output.close();
+		fileStore.copy("a", "d");
+		fileStore.move("d", "e");
+		fileStore.delete("c");
+		fileStore.setJournaled(true);
+		fileStore.create("f", new ByteArrayInputStream(new byte[4]));
+		fileStore.update("f", new ByteArrayInputStream(new byte[7]));
+
+		// Then
+		// a (10), b (1), e (10) and f (7):
+		assertEquals(4, fileStore.getObjectCount());
+		assertEquals(28, fileStore.getByteCount());
+	}
+
+	/**
+	 * Test that totals are saved when the store is closed and loaded again, and that a
+	 * reconciliation corrects changes made behind the store's back.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testPersistenceAndReconcile() throws Exception {
+
+		// Given
+		enableUsage();
+		fileStore.create("a", new ByteArrayInputStream(new byte[3]));
+		fileStore.create("b", new ByteArrayInputStream(new byte[5]));
+		fileStore.close();
+
+		// When
+		fileStore = new FileStore(tempFolder.getPath());
+		fileStore.setUsageEnabled(true);
+		long savedCount = fileStore.getObjectCount();
+		long savedBytes = fileStore.getByteCount();
+		Files.delete(fileStore.idToNioPath("b"));
+		fileStore.reconcileUsage();
+
+		// Then
+		assertEquals(2, savedCount);
+		assertEquals(8, savedBytes);
+		assertEquals(1, fileStore.getObjectCount());
+		assertEquals(3, fileStore.getByteCount());
+	}
+
+	/**
+	 * Test that a quota on a prefix stops new IDs with that prefix, and only that prefix.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testQuota() throws Exception {
+
+		// Given
+		enableUsage();
+		fileStore.setQuota("limited", 2, 10);
+		fileStore.create("limited1", new ByteArrayInputStream(new byte[4]));
+		fileStore.create("limited2", new ByteArrayInputStream(new byte[4]));
+
+		// When
+		boolean countRefused = refused("limited3", 0);
+		fileStore.delete("limited2");
+		// Write-behind knows the size of the content in advance:
+		fileStore.setWriteBehindBytes(1000);
+		boolean bytesRefused = refused("limited3", 7);
+		fileStore.setWriteBehindBytes(0);
+		fileStore.create("limited3", new ByteArrayInputStream(new byte[6]));
+		boolean fullRefused = refused("limited4", 0);
+		fileStore.create("other", new ByteArrayInputStream(new byte[100]));
+		try {
+			fileStore.move("other", "limited5");
+			fail("Expected the move to be refused.");
+		} catch (FileStoreException e) {
+			// Expected
+		}
+		fileStore.removeQuota("limited");
+		fileStore.create("limited4", new ByteArrayInputStream(new byte[100]));
+
+		// Then
+		assertTrue(countRefused);
+		assertTrue(bytesRefused);
+		assertTrue(fullRefused);
+		assertFalse(fileStore.exists("limited5"));
+		assertTrue(fileStore.exists("limited4"));
+	}
+
+	/**
+	 * Test that concurrent creates cannot together overshoot a quota, because each one reserves
+	 * its share before writing.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testConcurrentQuota() throws Exception {
+
+		// Given
+		enableUsage();
+		fileStore.setQuota("race", 5, 1000);
+		final int writers = 20;
+		final CyclicBarrier start = new CyclicBarrier(writers);
+		final AtomicInteger created = new AtomicInteger();
+		List<Thread> threads = new ArrayList<Thread>();
+
+		// When
+		for (int i = 0; i < writers; i++) {
+			final String id = "race" + i;
+			Thread thread = new Thread(() -> {
+				try {
+					start.await();
+					if (!refused(id, 10)) {
+						created.incrementAndGet();
+					}
+				} catch (Exception e) {
+					// Counted as not created
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// Then
+		assertEquals(5, created.get());
+		assertEquals(5, fileStore.getObjectCount());
+	}
+
+	/**
+	 * Enables usage tracking and waits for the initial reconciliation to be saved, so that it does
+	 * not overlap the test.
+	 */
+	private void enableUsage() throws Exception {
+		fileStore.setUsageEnabled(true);
+		File saved = fileStore.metadataFile("usage");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!saved.exists() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(saved.exists());
+	}
+
+	private boolean refused(String id, int size) throws Exception {
+		try {
+			fileStore.create(id, new ByteArrayInputStream(new byte[size]));
+			return false;
+		} catch (FileStoreException e) {
+			return true;
+		}
+	}
+}
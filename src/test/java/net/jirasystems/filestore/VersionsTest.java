@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class VersionsTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		fileStore = new FileStore(tempFolder.getPath());
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that each kind of update keeps the content it replaces as a version.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testVersions() throws Exception {
+
+		// Given
+		fileStore.setMaxVersions(10);
+		String id = "testVersions";
+		fileStore.create(id, new ByteArrayInputStream(new byte[] {1}));
+
+		// When
+		fileStore.update(id, new ByteArrayInputStream(new byte[] {2}));
+		OutputStream output = fileStore.update(id);
+		output.write(3);
+		output.close();
+		fileStore.setJournaled(true);
+		fileStore.update(id, new ByteArrayInputStream(new byte[] {4}));
+
+		// Then
+		assertEquals(Arrays.asList(1, 2, 3), fileStore.getVersions(id));
+		for (int version = 1; version <= 3; version++) {
+			assertArrayEquals(new byte[] {(byte) version}, read(fileStore.read(id, version)));
+		}
+		assertArrayEquals(new byte[] {4}, read(fileStore.read(id)));
+		assertNull(fileStore.read(id, 4));
+		assertNull(fileStore.read("other", 1));
+	}
+
+	/**
+	 * Test that updates do not keep versions unless versioning is enabled.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testDisabled() throws Exception {
+
+		// Given
+		String id = "testDisabled";
+		fileStore.create(id, new ByteArrayInputStream(new byte[] {1}));
+
+		// When
+		fileStore.update(id, new ByteArrayInputStream(new byte[] {2}));
+		fileStore.setMaxVersions(1);
+		fileStore.setMaxVersions(0);
+		fileStore.update(id, new ByteArrayInputStream(new byte[] {3}));
+
+		// Then
+		assertTrue(fileStore.getVersions(id).isEmpty());
+	}
+
+	/**
+	 * Test that the pruner enforces the maximum number of versions and the maximum age.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testPruning() throws Exception {
+
+		// Given
+		fileStore.setMaxVersions(2);
+		String id = "testPruning";
+		fileStore.create(id, new ByteArrayInputStream(new byte[] {0}));
+		for (int i = 1; i <= 5; i++) {
+			fileStore.update(id, new ByteArrayInputStream(new byte[] {(byte) i}));
+		}
+
+		// When
+		List<Integer> counted = awaitVersions(id, 2);
+		fileStore.setVersionMaxAgeMillis(60000);
+		fileStore.versionFile(id, 5).setLastModified(System.currentTimeMillis() - 120000);
+		fileStore.update(id, new ByteArrayInputStream(new byte[] {6}));
+		List<Integer> aged = awaitVersions(id, 1);
+
+		// Then
+		assertEquals(Arrays.asList(4, 5), counted);
+		assertEquals(Arrays.asList(6), aged);
+		assertArrayEquals(new byte[] {5}, read(fileStore.read(id, 6)));
+	}
+
+	/**
+	 * Waits for the pruner to reduce the versions of an ID to the given number.
+	 */
+	private List<Integer> awaitVersions(String id, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10 * Versions.pruneIntervalMillis;
+		List<Integer> versions = fileStore.getVersions(id);
+		while (versions.size() != count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			versions = fileStore.getVersions(id);
+		}
+		return versions;
+	}
+
+	private static byte[] read(InputStream input) throws IOException {
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}
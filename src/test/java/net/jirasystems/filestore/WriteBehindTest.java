@@ -0,0 +1,193 @@
+/**
+ *
+ */
+package net.jirasystems.filestore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author david
+ *
+ */
+public class WriteBehindTest {
+
+	private File tempFolder;
+	private FileStore fileStore;
+	private final CountDownLatch diskAvailable = new CountDownLatch(1);
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@Before
+	public void setUp() throws Exception {
+		tempFolder = FileStoreTestUtils.createTempFolder();
+		// Writes to disk are held up until the latch is released:
+		fileStore = new FileStore(tempFolder.getPath()) {
+			@Override
+			protected void writeFile(File file, InputStream content) throws IOException {
+				try {
+					diskAvailable.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				super.writeFile(file, content);
+			}
+		};
+		fileStore.setWriteBehindBytes(1000);
+	}
+
+	/**
+	 * @throws java.lang.Exception .
+	 */
+	@After
+	public void tearDown() throws Exception {
+		diskAvailable.countDown();
+		fileStore.close();
+		FileStoreTestUtils.deleteFolder(tempFolder);
+	}
+
+	/**
+	 * Test that buffered changes are visible before they reach the disk.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testReadBuffered() throws Exception {
+
+		// Given
+		String id = "testReadBuffered";
+		byte[] content = "buffered".getBytes("UTF-8");
+
+		// When
+		fileStore.create(id, new ByteArrayInputStream(content));
+
+		// Then
+		assertTrue(fileStore.exists(id));
+		assertFalse(fileStore.idToFile(id).exists());
+		assertArrayEquals(content, read(id));
+		try {
+			fileStore.create(id, new ByteArrayInputStream(content));
+			fail("Expected an exception when creating duplicate ID " + id);
+		} catch (FileStoreException e) {
+			// Expected
+		}
+		fileStore.delete(id);
+		assertFalse(fileStore.exists(id));
+		assertNull(fileStore.read(id));
+	}
+
+	/**
+	 * Test that changes are written to disk on flush, and that successive changes to an ID are
+	 * coalesced.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testFlush() throws Exception {
+
+		// Given
+		fileStore.create("a", new ByteArrayInputStream(new byte[] {1}));
+		fileStore.update("a", new ByteArrayInputStream(new byte[] {2}));
+		fileStore.create("b", new ByteArrayInputStream(new byte[] {3}));
+		fileStore.delete("b");
+		OutputStream output = fileStore.create("c");
+		output.write(4);
+		output.close();
+
+		// When
+		diskAvailable.countDown();
+		fileStore.flush();
+
+		// Then
+		assertArrayEquals(new byte[] {2}, FileUtils.readFileToByteArray(fileStore.idToFile("a")));
+		assertFalse(fileStore.idToFile("b").exists());
+		assertArrayEquals(new byte[] {4}, FileUtils.readFileToByteArray(fileStore.idToFile("c")));
+		assertArrayEquals(new byte[] {2}, read("a"));
+	}
+
+	/**
+	 * Test that writers wait when the buffer is full.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testBackPressure() throws Exception {
+
+		// Given
+		fileStore.create("full", new ByteArrayInputStream(new byte[900]));
+		final CountDownLatch created = new CountDownLatch(1);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					fileStore.create("waiting", new ByteArrayInputStream(new byte[200]));
+					created.countDown();
+				} catch (FileStoreException e) {
+					// Not counted down
+				}
+			}
+		};
+
+		// When
+		writer.start();
+		boolean createdWhileFull = created.await(200, TimeUnit.MILLISECONDS);
+		diskAvailable.countDown();
+		boolean createdOnceFlushed = created.await(5, TimeUnit.SECONDS);
+
+		// Then
+		assertFalse(createdWhileFull);
+		assertTrue(createdOnceFlushed);
+	}
+
+	/**
+	 * Test that closing the store writes out the buffer.
+	 *
+	 * @throws Exception .
+	 */
+	@Test
+	public void testCloseDrains() throws Exception {
+
+		// Given
+		for (int i = 0; i < 100; i++) {
+			fileStore.create("drain" + i, new ByteArrayInputStream(new byte[] {(byte) i}));
+		}
+
+		// When
+		diskAvailable.countDown();
+		fileStore.close();
+
+		// Then
+		assertEquals(0, fileStore.getWriteBehindBytes());
+		for (int i = 0; i < 100; i++) {
+			assertArrayEquals(new byte[] {(byte) i}, FileUtils.readFileToByteArray(fileStore.idToFile("drain" + i)));
+		}
+	}
+
+	private byte[] read(String id) throws IOException {
+		InputStream input = fileStore.read(id);
+		try {
+			return IOUtils.toByteArray(input);
+		} finally {
+			input.close();
+		}
+	}
+}